@@ -0,0 +1,72 @@
+/*
+ * (C) Copyright 2015 Hewlett-Packard Development Company, L.P.
+ */
+
+package com.fortify.sample.defecttracking.jira;
+
+import java.util.BitSet;
+
+/**
+ * Set membership test that may answer "maybe" for a string that was never added, but never answers "no" for one
+ * that was. It needs a few bits per entry however long the strings are. Not thread safe.
+ *
+ */
+final class Jira4BloomFilter {
+
+	private final BitSet _bits;
+	private final int _size;
+	private final int _hashes;
+
+	/**
+	 *
+	 * @param expectedEntries How many strings will be added
+	 * @param falsePositiveRate Chance of "maybe" for a string that was not added, once the expected entries are in
+	 */
+	Jira4BloomFilter(int expectedEntries, double falsePositiveRate) {
+		final double ln2 = Math.log(2);
+		_size = Math.max(64, (int) Math.ceil(-expectedEntries * Math.log(falsePositiveRate) / (ln2 * ln2)));
+		_hashes = Math.max(1, (int) Math.round((double) _size / expectedEntries * ln2));
+		_bits = new BitSet(_size);
+	}
+
+	void add(String value) {
+		final int first = value.hashCode();
+		final int second = secondHash(value);
+		for (int i = 0; i < _hashes; i++) {
+			_bits.set(index(first, second, i));
+		}
+	}
+
+	/**
+	 *
+	 * @return false if the value was certainly never added
+	 */
+	boolean mightContain(String value) {
+		final int first = value.hashCode();
+		final int second = secondHash(value);
+		for (int i = 0; i < _hashes; i++) {
+			if (!_bits.get(index(first, second, i))) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private int index(int first, int second, int i) {
+		final int combined = first + i * second;
+		return (combined & Integer.MAX_VALUE) % _size;
+	}
+
+	/**
+	 * FNV-1a, independent of {@link String#hashCode()} so that strings sharing one hash rarely share the other.
+	 */
+	private static int secondHash(String value) {
+		int retval = 0x811c9dc5;
+		for (int i = 0; i < value.length(); i++) {
+			retval ^= value.charAt(i);
+			retval *= 0x01000193;
+		}
+		// An even step would only ever reach half of the bits
+		return retval | 1;
+	}
+}
@@ -0,0 +1,139 @@
+/*
+ * (C) Copyright 2015 Hewlett-Packard Development Company, L.P.
+ */
+
+package com.fortify.sample.defecttracking.jira;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.commons.lang.StringUtils;
+
+import com.atlassian.jira.rpc.soap.client.RemoteIssue;
+import com.fortify.pub.bugtracker.support.Bug;
+
+/**
+ * What the plugin last saw of a JIRA issue: its type id, its status and resolution by name, when JIRA last changed it
+ * and, for issues filed by the plugin, the SSC issue instance ids the issue was filed for.
+ * Immutable, so states can be handed between threads and kept in {@link Jira4BugStateStore}.
+ *
+ */
+final class Jira4BugState {
+
+	static final String STATUS_UNKNOWN = "UNKNOWN";
+
+	private final String _issueKey;
+	private final String _issueType;
+	private final String _status;
+	private final String _resolution;
+	private final long _updated;
+	private final List<String> _instanceIds;
+
+	Jira4BugState(String issueKey, String status, String resolution, long updated) {
+		this(issueKey, null, status, resolution, updated, Collections.<String>emptyList());
+	}
+
+	Jira4BugState(String issueKey, String status, String resolution, long updated, List<String> instanceIds) {
+		this(issueKey, null, status, resolution, updated, instanceIds);
+	}
+
+	Jira4BugState(String issueKey, String issueType, String status, String resolution, long updated, List<String> instanceIds) {
+		_issueKey = issueKey;
+		_issueType = issueType;
+		_status = status;
+		_resolution = resolution;
+		_updated = updated;
+		_instanceIds = instanceIds.isEmpty() ? Collections.<String>emptyList() : Collections.unmodifiableList(new ArrayList<String>(instanceIds));
+	}
+
+	/**
+	 * Translate an issue read from JIRA into names, using the given metadata snapshot.
+	 *
+	 * @param issueKey Key the issue was asked for with; differs from the issue's key if it has been moved
+	 */
+	static Jira4BugState from(String issueKey, RemoteIssue issue, Jira4Metadata metadata) {
+		final String status = metadata.getStatuses().findName(issue.getStatus());
+		return new Jira4BugState(issueKey,
+				issue.getType(),
+				status == null ? STATUS_UNKNOWN : status,
+				metadata.getResolutions().findName(issue.getResolution()),
+				issue.getUpdated() == null ? 0 : issue.getUpdated().getTimeInMillis(),
+				Collections.<String>emptyList());
+	}
+
+	String getIssueKey() {
+		return _issueKey;
+	}
+
+	/**
+	 *
+	 * @return Key of the JIRA project, i.e. everything before the last dash of the issue key, or null
+	 */
+	String getProjectKey() {
+		return projectOf(_issueKey);
+	}
+
+	/**
+	 *
+	 * @return Id of the issue type, or null if unknown
+	 */
+	String getIssueType() {
+		return _issueType;
+	}
+
+	String getStatus() {
+		return _status;
+	}
+
+	String getResolution() {
+		return _resolution;
+	}
+
+	/**
+	 *
+	 * @return Time in milliseconds at which the issue was last changed in JIRA, 0 if unknown
+	 */
+	long getUpdated() {
+		return _updated;
+	}
+
+	/**
+	 *
+	 * @return Ids of the SSC issue instances this issue was filed for, empty if unknown
+	 */
+	List<String> getInstanceIds() {
+		return _instanceIds;
+	}
+
+	/**
+	 *
+	 * @return This state with the given issue type and instance ids
+	 */
+	Jira4BugState with(String issueType, List<String> instanceIds) {
+		return new Jira4BugState(_issueKey, issueType, _status, _resolution, _updated, instanceIds);
+	}
+
+	boolean sameAs(Jira4BugState other) {
+		return StringUtils.equals(_issueKey, other._issueKey) && StringUtils.equals(_issueType, other._issueType)
+				&& StringUtils.equals(_status, other._status)
+				&& StringUtils.equals(_resolution, other._resolution) && _updated == other._updated && _instanceIds.equals(other._instanceIds);
+	}
+
+	/**
+	 *
+	 * @return The same representation {@link Jira4PluginConnection#fetchDetails(String)} returns
+	 */
+	Bug toBug() {
+		final Bug retval = new Bug(_issueKey, _status);
+		if (_resolution != null) {
+			retval.setBugResolution(_resolution);
+		}
+		return retval;
+	}
+
+	static String projectOf(String issueKey) {
+		final int dash = issueKey == null ? -1 : issueKey.lastIndexOf('-');
+		return dash > 0 ? issueKey.substring(0, dash) : null;
+	}
+}
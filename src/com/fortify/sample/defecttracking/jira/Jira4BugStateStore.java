@@ -0,0 +1,547 @@
+/*
+ * (C) Copyright 2015 Hewlett-Packard Development Company, L.P.
+ */
+
+package com.fortify.sample.defecttracking.jira;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.zip.CRC32;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Last known state of the JIRA issues the plugin has filed or looked at, one store per JIRA URL.
+ * Kept up to date by {@link Jira4DeltaSync} so that status checks can be answered without asking JIRA.
+ *
+ * The states of the {@link #MAX_CACHED_STATES} most recently used issues are cached. Without a directory the store
+ * lives in memory only, and the state of an issue that drops out of the cache is forgotten. With a directory every
+ * change is appended to a log file, together with the sync marks of each project, so that a restarted SSC continues
+ * where it stopped instead of reading every issue again. Only the position of each issue in the log is kept for all
+ * issues; states that are not cached are read back from the log. Once the log holds more outdated records than
+ * current ones, it is compacted into a new file holding only the current records.
+ *
+ * Each record is framed by its length and a CRC32 of its contents. A record torn by a crash is cut off when the
+ * log is opened again. If the log cannot be written, the store carries on in memory without it.
+ *
+ */
+final class Jira4BugStateStore {
+
+	private static final Log LOG = LogFactory.getLog(Jira4BugStateStore.class);
+
+	static final int MAX_CACHED_STATES = 10000;
+	static final int MIN_RECORDS_BEFORE_COMPACTION = 1000;
+
+	private static final byte RECORD_STATE = 1;
+	private static final byte RECORD_REMOVED = 2;
+	private static final byte RECORD_SYNC_MARKS = 3;
+
+	/** Position of states that only exist in memory */
+	private static final long IN_MEMORY = -1;
+
+	private static final ConcurrentMap<String, Jira4BugStateStore> STORES = new ConcurrentHashMap<String, Jira4BugStateStore>();
+
+	private final File _file;
+	private RandomAccessFile _log;
+	/** Issue key to position of its current record in the log */
+	private final Map<String, Long> _index = new HashMap<String, Long>();
+	private final Map<String, Jira4BugState> _cache = new LinkedHashMap<String, Jira4BugState>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, Jira4BugState> eldest) {
+			if (size() <= MAX_CACHED_STATES) {
+				return false;
+			}
+			final Long position = _index.get(eldest.getKey());
+			if (position != null && position.longValue() == IN_MEMORY) {
+				// Cannot be read back, so it is forgotten altogether
+				_index.remove(eldest.getKey());
+				Jira4Metrics.increment("store.forgotten");
+			}
+			return true;
+		}
+	};
+	/** Project key to its high-water mark and time of last full sync */
+	private final Map<String, long[]> _syncMarks = new HashMap<String, long[]>();
+	private final ConcurrentMap<String, Jira4DeltaSync> _syncs = new ConcurrentHashMap<String, Jira4DeltaSync>();
+	private int _records;
+
+	/**
+	 * Create a store that is kept in memory only.
+	 */
+	Jira4BugStateStore() {
+		_file = null;
+	}
+
+	/**
+	 * Open the store kept in the given file, creating the file if needed.
+	 *
+	 * @throws IOException if the file cannot be read or written
+	 */
+	Jira4BugStateStore(File file) throws IOException {
+		_file = file;
+		load();
+	}
+
+	/**
+	 *
+	 * @param directory Where to keep the store, or null to keep it in memory only
+	 * @throws IOException if the store in the directory cannot be opened
+	 */
+	static Jira4BugStateStore getInstance(String jiraBaseUrl, File directory) throws IOException {
+		final String key = jiraBaseUrl + '|' + (directory == null ? "" : directory.getAbsolutePath());
+		Jira4BugStateStore retval = STORES.get(key);
+		if (retval == null) {
+			synchronized (STORES) {
+				retval = STORES.get(key);
+				if (retval == null) {
+					if (directory == null) {
+						retval = new Jira4BugStateStore();
+					} else {
+						if (!directory.isDirectory() && !directory.mkdirs()) {
+							throw new IOException("Unable to create directory " + directory);
+						}
+						retval = new Jira4BugStateStore(new File(directory, fileNameFor(jiraBaseUrl)));
+					}
+					STORES.put(key, retval);
+				}
+			}
+		}
+		return retval;
+	}
+
+	static String fileNameFor(String jiraBaseUrl) {
+		return "bugstates-" + jiraBaseUrl.replaceAll("[^A-Za-z0-9.-]+", "_") + ".log";
+	}
+
+	/**
+	 *
+	 * @return The incremental sync of the project, which keeps its marks in this store
+	 */
+	Jira4DeltaSync getDeltaSync(String projectKey) {
+		Jira4DeltaSync retval = _syncs.get(projectKey);
+		if (retval == null) {
+			final Jira4DeltaSync created = new Jira4DeltaSync(projectKey, this);
+			retval = _syncs.putIfAbsent(projectKey, created);
+			if (retval == null) {
+				retval = created;
+			}
+		}
+		return retval;
+	}
+
+	synchronized Jira4BugState get(String issueKey) {
+		Jira4BugState retval = _cache.get(issueKey);
+		if (retval == null) {
+			final Long position = _index.get(issueKey);
+			if (position != null && position.longValue() != IN_MEMORY) {
+				retval = readState(position.longValue());
+				if (retval != null) {
+					_cache.put(issueKey, retval);
+				}
+			}
+		}
+		return retval;
+	}
+
+	synchronized boolean contains(String issueKey) {
+		return _index.containsKey(issueKey);
+	}
+
+	/**
+	 * Remember the state unless a state with a later change time is already known, which happens when
+	 * a slow reader loses the race against a newer one. The issue type and instance ids already known are kept
+	 * when the new state has none.
+	 */
+	synchronized void put(Jira4BugState state) {
+		final Jira4BugState current = get(state.getIssueKey());
+		Jira4BugState merged = state;
+		if (current != null) {
+			if (current.getUpdated() > state.getUpdated() && state.getUpdated() != 0) {
+				return;
+			}
+			if ((state.getIssueType() == null && current.getIssueType() != null)
+					|| (state.getInstanceIds().isEmpty() && !current.getInstanceIds().isEmpty())) {
+				merged = state.with(state.getIssueType() == null ? current.getIssueType() : state.getIssueType(),
+						state.getInstanceIds().isEmpty() ? current.getInstanceIds() : state.getInstanceIds());
+			}
+			if (merged.sameAs(current)) {
+				return;
+			}
+		}
+		final long position = append(stateRecord(merged));
+		_index.put(merged.getIssueKey(), Long.valueOf(position));
+		_cache.put(merged.getIssueKey(), merged);
+		compactIfNeeded();
+	}
+
+	synchronized void remove(String issueKey) {
+		if (_index.remove(issueKey) != null) {
+			_cache.remove(issueKey);
+			append(removedRecord(issueKey));
+			compactIfNeeded();
+		}
+	}
+
+	/**
+	 *
+	 * @return Keys of every known issue of the project
+	 */
+	synchronized List<String> getKeys(String projectKey) {
+		final List<String> retval = new ArrayList<String>();
+		for (final String key : _index.keySet()) {
+			if (projectKey.equals(Jira4BugState.projectOf(key))) {
+				retval.add(key);
+			}
+		}
+		return retval;
+	}
+
+	synchronized int size() {
+		return _index.size();
+	}
+
+	/**
+	 *
+	 * @return High-water mark and time of the last full sync of the project, zeros if it was never synced
+	 */
+	synchronized long[] getSyncMarks(String projectKey) {
+		final long[] marks = _syncMarks.get(projectKey);
+		return marks == null ? new long[2] : new long[] { marks[0], marks[1] };
+	}
+
+	synchronized void putSyncMarks(String projectKey, long highWaterMark, long lastFullSync) {
+		_syncMarks.put(projectKey, new long[] { highWaterMark, lastFullSync });
+		append(syncMarksRecord(projectKey, highWaterMark, lastFullSync));
+		compactIfNeeded();
+	}
+
+	/**
+	 * Close the log file. As many states as the cache holds are kept in memory, so the store keeps working in memory
+	 * afterwards; the others are forgotten, as if they were never stored.
+	 */
+	synchronized void close() {
+		if (_file == null) {
+			return;
+		}
+		int dropped = 0;
+		for (final Iterator<Map.Entry<String, Long>> it = _index.entrySet().iterator(); it.hasNext();) {
+			final Map.Entry<String, Long> entry = it.next();
+			Jira4BugState state = _cache.get(entry.getKey());
+			if (state == null && entry.getValue().longValue() != IN_MEMORY && _cache.size() < MAX_CACHED_STATES) {
+				state = readState(entry.getValue().longValue());
+				if (state != null) {
+					_cache.put(entry.getKey(), state);
+				}
+			}
+			if (state == null) {
+				it.remove();
+				dropped++;
+			} else {
+				entry.setValue(Long.valueOf(IN_MEMORY));
+			}
+		}
+		if (_log != null) {
+			try {
+				_log.close();
+			} catch (final IOException e) {
+				LOG.debug("Unable to close " + _file, e);
+			}
+			_log = null;
+		}
+		if (dropped > 0) {
+			LOG.warn("Forgot " + dropped + " bug states that could not be kept in memory after closing " + _file);
+		}
+	}
+
+	/**
+	 * Append a record to the log.
+	 *
+	 * @return Position of the record, or {@link #IN_MEMORY} if the store has no log
+	 */
+	private long append(byte[] record) {
+		if (_log == null) {
+			return IN_MEMORY;
+		}
+		long retval = IN_MEMORY;
+		try {
+			retval = _log.length();
+			_log.seek(retval);
+			_log.write(record);
+			_records++;
+			Jira4Metrics.increment("store.appended");
+			return retval;
+		} catch (final IOException e) {
+			// Keep answering from memory rather than failing status checks
+			LOG.warn("Unable to write to " + _file + ", bug states are no longer saved", e);
+			truncate(retval);
+			close();
+			return IN_MEMORY;
+		}
+	}
+
+	/**
+	 * Cut off whatever part of a failed record was written, so that the log ends with a whole record.
+	 */
+	private void truncate(long length) {
+		if (length == IN_MEMORY) {
+			return;
+		}
+		try {
+			_log.setLength(length);
+		} catch (final IOException e) {
+			LOG.debug("Unable to truncate " + _file, e);
+		}
+	}
+
+	private void compactIfNeeded() {
+		if (_log == null || _records <= MIN_RECORDS_BEFORE_COMPACTION || _records <= 2 * (_index.size() + _syncMarks.size())) {
+			return;
+		}
+		try {
+			compact();
+		} catch (final IOException e) {
+			LOG.warn("Unable to compact " + _file + ", bug states are no longer saved", e);
+			close();
+		}
+	}
+
+	/**
+	 * Write the current records to a new file and replace the log with it.
+	 */
+	private void compact() throws IOException {
+		final File compacted = new File(_file.getPath() + ".compact");
+		final Map<String, Long> newIndex = new HashMap<String, Long>(_index.size() * 4 / 3 + 1);
+		final RandomAccessFile out = new RandomAccessFile(compacted, "rw");
+		try {
+			out.setLength(0);
+			for (final Map.Entry<String, long[]> marks : _syncMarks.entrySet()) {
+				out.write(syncMarksRecord(marks.getKey(), marks.getValue()[0], marks.getValue()[1]));
+			}
+			for (final Map.Entry<String, Long> entry : _index.entrySet()) {
+				final long position = entry.getValue().longValue();
+				final Jira4BugState state = position == IN_MEMORY ? _cache.get(entry.getKey()) : readState(position);
+				if (state != null) {
+					newIndex.put(entry.getKey(), Long.valueOf(out.getFilePointer()));
+					out.write(stateRecord(state));
+				}
+			}
+			out.getFD().sync();
+		} finally {
+			out.close();
+		}
+
+		_log.close();
+		_log = null;
+		final boolean replaced = _file.delete() && compacted.renameTo(_file);
+		if (replaced || !_file.exists()) {
+			// Either way the compacted copy is the one holding the current records
+			_log = new RandomAccessFile(replaced ? _file : compacted, "rw");
+			_index.clear();
+			_index.putAll(newIndex);
+			_records = newIndex.size() + _syncMarks.size();
+		} else {
+			_log = new RandomAccessFile(_file, "rw");
+		}
+		if (!replaced) {
+			throw new IOException("Unable to replace " + _file + " with " + compacted);
+		}
+		Jira4Metrics.increment("store.compacted");
+	}
+
+	private void load() throws IOException {
+		final File compacted = new File(_file.getPath() + ".compact");
+		if (!_file.exists() && compacted.exists() && !compacted.renameTo(_file)) {
+			// A crash between deleting the log and renaming its compacted copy
+			throw new IOException("Unable to restore " + _file + " from " + compacted);
+		}
+		long validLength = 0;
+		if (_file.exists()) {
+			final DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(_file)));
+			try {
+				byte[] payload;
+				while ((payload = readRecord(in)) != null) {
+					apply(payload, validLength);
+					validLength += 8 + payload.length;
+					_records++;
+				}
+			} finally {
+				in.close();
+			}
+		}
+		_log = new RandomAccessFile(_file, "rw");
+		if (_log.length() > validLength) {
+			LOG.warn("Cutting off " + (_log.length() - validLength) + " unreadable bytes at the end of " + _file);
+			_log.setLength(validLength);
+		}
+		LOG.info("Loaded " + _index.size() + " bug states from " + _file);
+	}
+
+	private void apply(byte[] payload, long position) throws IOException {
+		final DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+		final byte type = in.readByte();
+		if (type == RECORD_STATE) {
+			final String key = in.readUTF();
+			_index.put(key, Long.valueOf(position));
+			_cache.remove(key);
+		} else if (type == RECORD_REMOVED) {
+			final String key = in.readUTF();
+			_index.remove(key);
+			_cache.remove(key);
+		} else if (type == RECORD_SYNC_MARKS) {
+			_syncMarks.put(in.readUTF(), new long[] { in.readLong(), in.readLong() });
+		} else {
+			throw new IOException("Unknown record type " + type);
+		}
+	}
+
+	private Jira4BugState readState(long position) {
+		if (_log == null) {
+			return null;
+		}
+		try {
+			_log.seek(position);
+			final byte[] payload = readRecord(_log);
+			if (payload == null) {
+				throw new IOException("Damaged record at " + position);
+			}
+			return parseState(payload);
+		} catch (final IOException e) {
+			LOG.warn("Unable to read bug state from " + _file, e);
+			return null;
+		}
+	}
+
+	/**
+	 * Read a record written with {@link #frame(byte[])}. Also used by {@link Jira4FilingJournal}.
+	 *
+	 * @return The payload of the next record, or null at the end of the log or at a damaged record
+	 */
+	static byte[] readRecord(DataInput in) throws IOException {
+		try {
+			final int length = in.readInt();
+			final int checksum = in.readInt();
+			if (length <= 0 || length > 16 * 1024 * 1024) {
+				return null;
+			}
+			final byte[] retval = new byte[length];
+			in.readFully(retval);
+			return checksum(retval) == checksum ? retval : null;
+		} catch (final EOFException e) {
+			return null;
+		}
+	}
+
+	private static Jira4BugState parseState(byte[] payload) throws IOException {
+		final DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+		if (in.readByte() != RECORD_STATE) {
+			throw new IOException("Not a bug state record");
+		}
+		final String key = in.readUTF();
+		final String status = in.readUTF();
+		final String resolution = in.readBoolean() ? in.readUTF() : null;
+		final long updated = in.readLong();
+		final int count = in.readInt();
+		final List<String> instanceIds = new ArrayList<String>(count);
+		for (int i = 0; i < count; i++) {
+			instanceIds.add(in.readUTF());
+		}
+		// Added after the first version of the format, so older records end here
+		final String issueType = in.available() > 0 && in.readBoolean() ? in.readUTF() : null;
+		return new Jira4BugState(key, issueType, status, resolution, updated, instanceIds);
+	}
+
+	private static byte[] stateRecord(Jira4BugState state) {
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		final DataOutputStream out = new DataOutputStream(bytes);
+		try {
+			out.writeByte(RECORD_STATE);
+			out.writeUTF(state.getIssueKey());
+			out.writeUTF(state.getStatus());
+			out.writeBoolean(state.getResolution() != null);
+			if (state.getResolution() != null) {
+				out.writeUTF(state.getResolution());
+			}
+			out.writeLong(state.getUpdated());
+			out.writeInt(state.getInstanceIds().size());
+			for (final String instanceId : state.getInstanceIds()) {
+				out.writeUTF(instanceId);
+			}
+			out.writeBoolean(state.getIssueType() != null);
+			if (state.getIssueType() != null) {
+				out.writeUTF(state.getIssueType());
+			}
+		} catch (final IOException e) {
+			throw new IllegalStateException(e);
+		}
+		return frame(bytes.toByteArray());
+	}
+
+	private static byte[] removedRecord(String issueKey) {
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		final DataOutputStream out = new DataOutputStream(bytes);
+		try {
+			out.writeByte(RECORD_REMOVED);
+			out.writeUTF(issueKey);
+		} catch (final IOException e) {
+			throw new IllegalStateException(e);
+		}
+		return frame(bytes.toByteArray());
+	}
+
+	private static byte[] syncMarksRecord(String projectKey, long highWaterMark, long lastFullSync) {
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		final DataOutputStream out = new DataOutputStream(bytes);
+		try {
+			out.writeByte(RECORD_SYNC_MARKS);
+			out.writeUTF(projectKey);
+			out.writeLong(highWaterMark);
+			out.writeLong(lastFullSync);
+		} catch (final IOException e) {
+			throw new IllegalStateException(e);
+		}
+		return frame(bytes.toByteArray());
+	}
+
+	/**
+	 *
+	 * @return The payload prefixed with its length and checksum
+	 */
+	static byte[] frame(byte[] payload) {
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream(payload.length + 8);
+		final DataOutputStream out = new DataOutputStream(bytes);
+		try {
+			out.writeInt(payload.length);
+			out.writeInt(checksum(payload));
+			out.write(payload);
+		} catch (final IOException e) {
+			throw new IllegalStateException(e);
+		}
+		return bytes.toByteArray();
+	}
+
+	static int checksum(byte[] payload) {
+		final CRC32 crc = new CRC32();
+		crc.update(payload);
+		return (int) crc.getValue();
+	}
+}
@@ -4,9 +4,11 @@
 
 package com.fortify.sample.defecttracking.jira;
 
+import java.io.*;
 import java.net.*;
 import java.rmi.RemoteException;
 import java.util.*;
+import java.util.concurrent.*;
 
 import org.apache.commons.lang.*;
 import org.apache.commons.logging.*;
@@ -22,13 +24,36 @@ import static com.fortify.pub.bugtracker.support.BugTrackerPluginConstants.*;
  *
  */
 @BugTrackerPluginImplementation
-public class Jira4BugTrackerPlugin extends AbstractBatchBugTrackerPlugin {
+public class Jira4BugTrackerPlugin extends AbstractBatchBugTrackerPlugin implements InterruptableBugtracker {
 
 	private static final Log LOG = LogFactory.getLog(Jira4BugTrackerPlugin.class);
 
 	protected static final String JIRA_URL = "jiraUrl";
 	protected static final String JIRA_ISSUE_TYPE = "issueType";
 	protected static final String JIRA_PROJECT = "project";
+	protected static final String JIRA_HTTP_TRANSPORT = "httpTransport";
+	protected static final String JIRA_HTTP_MAX_CONNECTIONS = "httpMaxConnectionsPerHost";
+	protected static final String JIRA_HTTP_CONNECT_TIMEOUT = "httpConnectTimeout";
+	protected static final String JIRA_HTTP_SOCKET_TIMEOUT = "httpSocketTimeout";
+	protected static final String JIRA_HTTP_IDLE_TIMEOUT = "httpIdleTimeout";
+	protected static final String JIRA_BREAKER_FAILURE_THRESHOLD = "breakerFailureThreshold";
+	protected static final String JIRA_BREAKER_PROBE_INTERVAL = "breakerProbeInterval";
+	protected static final String JIRA_OPERATION_TIMEOUT = "operationTimeout";
+	protected static final String JIRA_METADATA_CACHE_TTL = "metadataCacheTtl";
+	protected static final String JIRA_BULK_FETCH_CHUNK_SIZE = "bulkFetchChunkSize";
+	protected static final String JIRA_BULK_FETCH_PARALLELISM = "bulkFetchParallelism";
+	protected static final String JIRA_BULK_UPDATE_PARALLELISM = "bulkUpdateParallelism";
+	protected static final String JIRA_BULK_FILE_PARALLELISM = "bulkFileParallelism";
+	protected static final String JIRA_STATUS_SYNC = "statusSync";
+	protected static final String JIRA_STATUS_SYNC_INTERVAL = "statusSyncInterval";
+	protected static final String JIRA_STATUS_FULL_SYNC_INTERVAL = "statusFullSyncInterval";
+	protected static final String JIRA_STATE_DIRECTORY = "stateDirectory";
+	protected static final String JIRA_FILING_MODE = "filingMode";
+
+	static final String STATUS_SYNC_DIRECT = "direct";
+	static final String STATUS_SYNC_INCREMENTAL = "incremental";
+	static final String FILING_MODE_DIRECT = "direct";
+	static final String FILING_MODE_QUEUED = "queued";
 
 	private static final String PARAM_AFFECTS_VERSION = "affectsVersion";
 	private static final String PARAM_ASSIGNEE = "assignee";
@@ -43,6 +68,10 @@ public class Jira4BugTrackerPlugin extends AbstractBatchBugTrackerPlugin {
 	private static final String STATUS_RESOLVED = "Resolved";
 	private static final String STATUS_CLOSED = "Closed";
 	private static final String STATUS_VERIFIED = "Verified";
+	/** Status of a queued submission that was not filed yet */
+	private static final String STATUS_QUEUED = "Queued";
+	/** Status of a queued submission that JIRA rejected */
+	private static final String STATUS_FILING_FAILED = "Filing Failed";
 
 	private static final String RESOLUTION_FIXED = "Fixed";
 	private static final String RESOLUTION_WONT_FIX = "Won't Fix";
@@ -54,30 +83,171 @@ public class Jira4BugTrackerPlugin extends AbstractBatchBugTrackerPlugin {
 
     private static final String SUPPORTED_VERSIONS = "6.x";
 
-	private Map<String, String> configValues = new HashMap<String, String>();
+	private static final int DEFAULT_BULK_FETCH_CHUNK_SIZE = 100;
+	private static final int DEFAULT_BULK_FETCH_PARALLELISM = Jira4SessionPool.DEFAULT_MAX_SESSIONS_PER_USER;
+	private static final int DEFAULT_BULK_UPDATE_PARALLELISM = 4;
+	private static final int DEFAULT_BULK_FILE_PARALLELISM = 4;
+	private static final int DEFAULT_STATUS_SYNC_INTERVAL_SECONDS = 60;
+	private static final int DEFAULT_STATUS_FULL_SYNC_INTERVAL_MINUTES = 24 * 60;
+
+	/**
+	 * Never changed in place, only replaced as a whole, so every caller sees one consistent configuration
+	 * even while another thread calls {@link #setConfiguration(Map)}.
+	 */
+	private volatile Map<String, String> configValues = Collections.emptyMap();
+	/** Transport acquired for the published configuration, released when another configuration replaces it */
+	private Jira4HttpTransport transport;
+	/** Operations using a connection right now, for {@link #stop()} */
+	private final ConcurrentMap<Jira4Operation, Boolean> activeOperations = new ConcurrentHashMap<Jira4Operation, Boolean>();
 
 	public Bug fetchBugDetails(String bugId, UserAuthenticationStore credentials) {
+		return fetchBugDetails(configValues, bugId, credentials);
+	}
+
+	private Bug fetchBugDetails(Map<String, String> config, String bugId, UserAuthenticationStore credentials) {
+		if (Jira4FilingJournal.isProvisional(bugId)) {
+			final String issueKey = getFiledIssueKey(config, bugId, credentials);
+			if (issueKey == null) {
+				return getQueuedBug(config, bugId);
+			}
+			bugId = issueKey;
+		}
 		Jira4PluginConnection connection = null;
 		try {
-			connection = getReusableConnection(credentials);
-			final Bug bug = connection.fetchDetails(bugId);
+			connection = getReusableConnection(config, credentials, newOperation(config, "fetchBugDetails"));
+			if (isIncrementalSync(config)) {
+				syncProject(config, connection, Jira4BugState.projectOf(bugId));
+				final Jira4BugState known = getBugStateStore(config).get(bugId);
+				if (known != null) {
+					Jira4Metrics.increment("sync.store.hit");
+					return known.toBug();
+				}
+			}
+			final Bug bug = fetchAndRemember(config, connection, bugId);
 			return bug;
 		} catch (final RemoteException e) {
 			LOG.info("JIRA Error fetchBugDetails",e);
 			throw new BugTrackerException(Jira4PluginConnection.findHelpfulMessage(e), e);
 		} finally {
 			if (connection != null) {
-				connection.closeJiraConnection();
+				releaseConnection(connection);
+			}
+		}
+	}
+
+	/**
+	 * Fetch the current state of many bugs at once. Keys are looked up with JQL searches of a configurable number of
+	 * issues each, several searches running at the same time on their own sessions. Bugs that cannot be read, e.g.
+	 * because they were deleted or the user may not see them, are reported in {@link Jira4BulkResult#getErrors()}
+	 * instead of failing the whole call.
+	 * With incremental status sync, bugs known from earlier syncs are answered without a search.
+	 *
+	 * @param bugIds Issue keys, duplicates are fetched once
+	 */
+	public Jira4BulkResult<Bug> fetchBugDetails(Collection<String> bugIds, final UserAuthenticationStore credentials) {
+		final Map<String, String> config = configValues;
+		final Jira4BulkResult<Bug> retval = new Jira4BulkResult<Bug>();
+		List<String> ids = new ArrayList<String>(new LinkedHashSet<String>(bugIds));
+		for (final Iterator<String> it = ids.iterator(); it.hasNext();) {
+			final String bugId = it.next();
+			if (Jira4FilingJournal.isProvisional(bugId)) {
+				// Only a few submissions are ever waiting, so they are answered one by one
+				it.remove();
+				final Bug bug = fetchBugDetails(config, bugId, credentials);
+				if (bug == null) {
+					retval.failed(bugId, "Unknown queued submission");
+				} else {
+					retval.succeeded(bugId, bug);
+				}
+			}
+		}
+		if (isIncrementalSync(config)) {
+			ids = answerFromStore(config, ids, credentials, retval);
+		}
+
+		final Jira4BugStateStore store = getBugStateStore(config);
+		final int chunkSize = getPositiveIntConfig(config, JIRA_BULK_FETCH_CHUNK_SIZE, DEFAULT_BULK_FETCH_CHUNK_SIZE);
+		final int parallelism = getPositiveIntConfig(config, JIRA_BULK_FETCH_PARALLELISM, DEFAULT_BULK_FETCH_PARALLELISM);
+		// All chunks share one budget, however many sessions they run on
+		final Jira4Operation operation = newOperation(config, "fetchBugDetails", rounds(ids.size(), chunkSize * parallelism));
+		final List<Callable<Jira4BulkResult<Jira4BugState>>> chunks = new ArrayList<Callable<Jira4BulkResult<Jira4BugState>>>();
+		for (int i = 0; i < ids.size(); i += chunkSize) {
+			final List<String> chunk = ids.subList(i, Math.min(i + chunkSize, ids.size()));
+			chunks.add(new Callable<Jira4BulkResult<Jira4BugState>>() {
+				public Jira4BulkResult<Jira4BugState> call() throws RemoteException {
+					final Jira4PluginConnection connection = getReusableConnection(config, credentials, operation);
+					try {
+						Jira4Metrics.increment("bulk.fetch.chunks");
+						return connection.fetchStates(chunk);
+					} finally {
+						releaseConnection(connection);
+					}
+				}
+			});
+		}
+
+		try {
+			for (final Jira4BulkResult<Jira4BugState> chunkResult : Jira4Workers.runAll(chunks, parallelism)) {
+				for (final Jira4BugState state : chunkResult.getResults().values()) {
+					store.put(state);
+					retval.succeeded(state.getIssueKey(), state.toBug());
+				}
+				for (final Map.Entry<String, String> error : chunkResult.getErrors().entrySet()) {
+					retval.failed(error.getKey(), error.getValue());
+				}
 			}
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new BugTrackerException("Interrupted while fetching bug details", e);
+		} catch (final ExecutionException e) {
+			LOG.info("JIRA Error fetchBugDetails", e.getCause());
+			if (e.getCause() instanceof RemoteException) {
+				throw new BugTrackerException(Jira4PluginConnection.findHelpfulMessage((RemoteException) e.getCause()), e.getCause());
+			}
+			throw new BugTrackerException("Unable to fetch bug details", e.getCause());
 		}
+		return retval;
 	}
 
 	public Bug fileBug(BugSubmission bug, UserAuthenticationStore credentials) {
-		return fileBug(bug.getParams(), credentials);
+		final Map<String, String> config = configValues;
+		recordProjectUse(config, bug.getParams());
+		if (isQueuedFiling(config)) {
+			return queueBug(config, bug.getParams(), credentials, getInstanceIds(bug));
+		}
+		return fileBug(config, bug.getParams(), credentials, getInstanceIds(bug));
+	}
+
+	/**
+	 * File many bugs at once. Priorities, issue types and versions are looked up once for the whole batch, and a
+	 * configurable number of issues are created at the same time over one shared session. The outcome of each
+	 * submission is passed to the listener as soon as it is known; a submission that cannot be filed does not stop
+	 * the others.
+	 *
+	 * @return Throughput and latency of the batch
+	 */
+	public Jira4FilingStats fileBugs(List<BugSubmission> bugs, UserAuthenticationStore credentials, Jira4FilingListener listener) {
+		final List<Map<String, String>> params = new ArrayList<Map<String, String>>(bugs.size());
+		final List<List<String>> instanceIds = new ArrayList<List<String>>(bugs.size());
+		for (final BugSubmission bug : bugs) {
+			params.add(bug.getParams());
+			instanceIds.add(getInstanceIds(bug));
+		}
+		return fileBugs(configValues, params, instanceIds, credentials, listener);
 	}
 
 	public String getBugDeepLink(String bugId) {
-		final StringBuilder sb = new StringBuilder(configValues.get(JIRA_URL));
+		final Map<String, String> config = configValues;
+		final String jiraUrl = config.get(JIRA_URL);
+		if (Jira4FilingJournal.isProvisional(bugId)) {
+			final String issueKey = getFilingQueue(config).getJournal().getIssueKey(bugId);
+			if (issueKey == null) {
+				// Until it is filed, there is nothing in JIRA to link to
+				return jiraUrl;
+			}
+			bugId = issueKey;
+		}
+		final StringBuilder sb = new StringBuilder(jiraUrl);
 		if (sb.charAt(sb.length() - 1) != '/') {
 			sb.append('/');
 		}
@@ -88,46 +258,72 @@ public class Jira4BugTrackerPlugin extends AbstractBatchBugTrackerPlugin {
 
 	public List<BugParam> getBugParameters(IssueDetail issueDetail, UserAuthenticationStore credentials) {
 		// JIRA 4.4 introduced a method called getFieldsForCreate in Aug 2011 but for compatibility throughout the 4.X suite, we cannot use it.
+		final Map<String, String> config = configValues;
+		final String defaultProject = config.get(JIRA_PROJECT);
+		final Jira4FormTemplate.Cache templates = Jira4FormTemplate.Cache.getInstance(config.get(JIRA_URL));
+		Jira4FormTemplate template = templates.get(credentials.getUserName(), defaultProject);
+		if (template == null) {
+			template = buildFormTemplate(config, credentials, defaultProject, templates.getVersion());
+			templates.put(credentials.getUserName(), defaultProject, template);
+		}
+		prefetchProjectChoices(config, credentials, template.getProjectChoices());
+
+		final Map<String, String> values = new HashMap<String, String>();
+		if (issueDetail == null) {
+			values.put(PARAM_SUMMARY, "Fix $ATTRIBUTE_CATEGORY$ in $ATTRIBUTE_FILE$");
+			values.put(PARAM_DESCRIPTION, "Issue Ids: $ATTRIBUTE_INSTANCE_ID$\n$ISSUE_DEEPLINK$");
+		} else {
+			values.put(PARAM_SUMMARY, issueDetail.getSummary());
+			values.put(PARAM_DESCRIPTION, pluginHelper.buildDefaultBugDescription(issueDetail, true));
+			values.put(PARAM_ASSIGNEE, issueDetail.getAssignedUsername());
+		}
+		return template.newForm(values, config.get(JIRA_ISSUE_TYPE));
+	}
+
+	/**
+	 * Look up everything the bug dialog offers the user and lay it out, leaving the values that depend on the issue empty.
+	 *
+	 * @param version Version of the template cache before the lookups start
+	 */
+	private Jira4FormTemplate buildFormTemplate(Map<String, String> config, UserAuthenticationStore credentials, String defaultProject, long version) {
 		final List<BugParam> initialFields = new ArrayList<BugParam>();
+		final Jira4Operation operation = newOperation(config, "getBugParameters");
+		final Jira4Lookups lookups = new Jira4Lookups(operation);
 		Jira4PluginConnection connection = null;
 		try {
-			connection = getReusableConnection(credentials);
-
-			BugParam summaryParam = new BugParamText()
+			connection = getReusableConnection(config, credentials, operation);
+			// The lookups do not depend on each other, so the dialog only waits for the slowest
+			final Future<List<String>> projectKeys = lookups.start(projectKeysLookup(connection));
+			final Future<List<String>> priorityNames = lookups.start(priorityNamesLookup(connection));
+			final Future<List<String>> issueTypeNames = defaultProject == null ? null : lookups.start(issueTypesLookup(connection, defaultProject));
+			final Future<List<String>> versionNames = defaultProject == null ? null : lookups.start(versionsLookup(connection, defaultProject));
+
+			final BugParam summaryParam = new BugParamText()
 					.setIdentifier(PARAM_SUMMARY)
 					.setDisplayLabel("Bug Summary")
 					.setRequired(true)
 					.setDescription("Title of the bug to be logged");
-			if (issueDetail == null) {
-				summaryParam = summaryParam.setValue("Fix $ATTRIBUTE_CATEGORY$ in $ATTRIBUTE_FILE$");
-			} else {
-				summaryParam = summaryParam.setValue(issueDetail.getSummary());
-			}
 			initialFields.add(summaryParam);
 
-			BugParam descriptionParam = new BugParamTextArea()
+			final BugParam descriptionParam = new BugParamTextArea()
 					.setIdentifier(PARAM_DESCRIPTION)
 					.setDisplayLabel("Bug Description")
 					.setRequired(true);
-			if (issueDetail == null) {
-				descriptionParam = descriptionParam.setValue("Issue Ids: $ATTRIBUTE_INSTANCE_ID$\n$ISSUE_DEEPLINK$");
-			} else {
-				descriptionParam.setValue(pluginHelper.buildDefaultBugDescription(issueDetail, true));
-			}
 			initialFields.add(descriptionParam);
 
+			final List<String> projectChoices = lookups.get(projectKeys);
 			final BugParam project = new BugParamChoice()
 					.setHasDependentParams(true)
-					.setChoiceList(connection.getProjectKeys())
+					.setChoiceList(projectChoices)
 					.setDisplayLabel("Project Key")
 					.setDescription("Project Key")
 					.setIdentifier(JIRA_PROJECT)
 					.setRequired(true)
-					.setValue(configValues.get(JIRA_PROJECT));
+					.setValue(defaultProject);
 			initialFields.add(project);
 
 			final BugParam priority = new BugParamChoice()
-					.setChoiceList(connection.getPriorityNames())
+					.setChoiceList(lookups.get(priorityNames))
 					.setDisplayLabel("Priority")
 					.setIdentifier(PARAM_PRIORITY)
 					.setRequired(true);
@@ -143,49 +339,41 @@ public class Jira4BugTrackerPlugin extends AbstractBatchBugTrackerPlugin {
 					.setIdentifier(PARAM_DUE_IN);
 			initialFields.add(dueIn);
 
-			BugParam assignee = new BugParamText()
+			final BugParam assignee = new BugParamText()
 				.setDisplayLabel("Assignee")
 				.setIdentifier(PARAM_ASSIGNEE)
 				.setRequired(false);
-			if (issueDetail != null) {
-				assignee = assignee.setValue(issueDetail.getAssignedUsername());
-			}
 			initialFields.add(assignee);
 
-			if (configValues.get(JIRA_PROJECT) != null) {
-
-				final List<String> issueTypes = connection.getIssueTypes(project.getValue());
-				String defaultIssueType = configValues.get(JIRA_ISSUE_TYPE);
+			if (defaultProject != null) {
 
+				final List<String> issueTypes = lookups.get(issueTypeNames);
 				final BugParam issueType = new BugParamChoice()
 					.setChoiceList(issueTypes)
 					.setDisplayLabel("Issue Type")
 					.setIdentifier(JIRA_ISSUE_TYPE)
 					.setRequired(true);
-				if (issueTypes.contains(defaultIssueType)) {
-					issueType.setValue(defaultIssueType);
-				}
 				initialFields.add(issueType);
 
-				final List<String> versions = connection.getVersions(project.getValue());
+				final List<String> versions = lookups.get(versionNames);
 				final BugParam affectsVersion = new BugParamChoice()
 					.setChoiceList(versions)
 					.setDisplayLabel("Affects version")
 					.setIdentifier(PARAM_AFFECTS_VERSION);
 				initialFields.add(affectsVersion);
+				getProjectPrefetcher(config).put(credentials.getUserName(), defaultProject, new Jira4ProjectPrefetcher.Choices(issueTypes, versions));
 			}
-
+			return new Jira4FormTemplate(version, initialFields, projectChoices, JIRA_ISSUE_TYPE);
 
 		} catch (final RemoteException e) {
 			LOG.info("JIRA Error getBugParameters",e);
 			throw new BugTrackerException(Jira4PluginConnection.findHelpfulMessage(e), e);
 		} finally {
+			lookups.cancel();
 			if (connection != null) {
-				connection.closeJiraConnection();
+				releaseConnection(connection);
 			}
 		}
-
-		return initialFields;
 	}
 
 	public List<BugTrackerConfig> getConfiguration() {
@@ -203,6 +391,136 @@ public class Jira4BugTrackerPlugin extends AbstractBatchBugTrackerPlugin {
 				.setDescription("Base jira url, such as http://jira")
 				.setRequired(true);
 
+		final BugTrackerConfig httpTransport = new BugTrackerConfig()
+				.setIdentifier(JIRA_HTTP_TRANSPORT)
+				.setDisplayLabel("HTTP Transport")
+				.setDescription("'" + Jira4HttpTransport.MODE_POOLED + "' to keep connections to JIRA open between calls, or '"
+						+ Jira4HttpTransport.MODE_SIMPLE + "' to open a new connection for every call")
+				.setValue(Jira4HttpTransport.MODE_POOLED)
+				.setRequired(false);
+
+		final BugTrackerConfig httpMaxConnections = new BugTrackerConfig()
+				.setIdentifier(JIRA_HTTP_MAX_CONNECTIONS)
+				.setDisplayLabel("Max Connections Per Host")
+				.setDescription("Maximum number of open HTTP connections to the JIRA host when the transport is pooled")
+				.setValue(String.valueOf(Jira4HttpTransport.DEFAULT_MAX_CONNECTIONS_PER_HOST))
+				.setRequired(false);
+
+		final BugTrackerConfig httpConnectTimeout = new BugTrackerConfig()
+				.setIdentifier(JIRA_HTTP_CONNECT_TIMEOUT)
+				.setDisplayLabel("Connect Timeout (seconds)")
+				.setDescription("How long to wait for a connection to JIRA to be established")
+				.setValue(String.valueOf(Jira4HttpTransport.DEFAULT_CONNECT_TIMEOUT_MILLIS / 1000))
+				.setRequired(false);
+
+		final BugTrackerConfig httpSocketTimeout = new BugTrackerConfig()
+				.setIdentifier(JIRA_HTTP_SOCKET_TIMEOUT)
+				.setDisplayLabel("Socket Timeout (seconds)")
+				.setDescription("How long to wait for JIRA to answer a single request")
+				.setValue(String.valueOf(Jira4HttpTransport.DEFAULT_SOCKET_TIMEOUT_MILLIS / 1000))
+				.setRequired(false);
+
+		final BugTrackerConfig httpIdleTimeout = new BugTrackerConfig()
+				.setIdentifier(JIRA_HTTP_IDLE_TIMEOUT)
+				.setDisplayLabel("Idle Connection Timeout (seconds)")
+				.setDescription("Pooled connections unused for this long are closed")
+				.setValue(String.valueOf(Jira4HttpTransport.DEFAULT_IDLE_TIMEOUT_MILLIS / 1000))
+				.setRequired(false);
+
+		final BugTrackerConfig breakerFailureThreshold = new BugTrackerConfig()
+				.setIdentifier(JIRA_BREAKER_FAILURE_THRESHOLD)
+				.setDisplayLabel("Unreachable After Failures")
+				.setDescription("After this many calls in a row fail to reach JIRA, calls fail right away until JIRA is reachable again")
+				.setValue(String.valueOf(Jira4CircuitBreaker.DEFAULT_FAILURE_THRESHOLD))
+				.setRequired(false);
+
+		final BugTrackerConfig breakerProbeInterval = new BugTrackerConfig()
+				.setIdentifier(JIRA_BREAKER_PROBE_INTERVAL)
+				.setDisplayLabel("Unreachable Retry Interval (seconds)")
+				.setDescription("How often a single call is let through to see whether an unreachable JIRA is back")
+				.setValue(String.valueOf(Jira4CircuitBreaker.DEFAULT_PROBE_INTERVAL_MILLIS / 1000))
+				.setRequired(false);
+
+		final BugTrackerConfig operationTimeout = new BugTrackerConfig()
+				.setIdentifier(JIRA_OPERATION_TIMEOUT)
+				.setDisplayLabel("Operation Timeout (seconds)")
+				.setDescription("How long all JIRA calls of one action, such as filing a bug, may take together. Batches get this much per round of parallel work.")
+				.setValue(String.valueOf(Jira4Operation.DEFAULT_TIMEOUT_SECONDS))
+				.setRequired(false);
+
+		final BugTrackerConfig metadataCacheTtl = new BugTrackerConfig()
+				.setIdentifier(JIRA_METADATA_CACHE_TTL)
+				.setDisplayLabel("Metadata Cache TTL (minutes)")
+				.setDescription("How long priorities, issue types, statuses and resolutions read from JIRA are reused before being read again")
+				.setValue(String.valueOf(Jira4MetadataCache.DEFAULT_TTL_MILLIS / 60000))
+				.setRequired(false);
+
+		final BugTrackerConfig bulkFetchChunkSize = new BugTrackerConfig()
+				.setIdentifier(JIRA_BULK_FETCH_CHUNK_SIZE)
+				.setDisplayLabel("Bulk Fetch Chunk Size")
+				.setDescription("How many bugs are looked up with a single JIRA search when refreshing many bugs at once")
+				.setValue(String.valueOf(DEFAULT_BULK_FETCH_CHUNK_SIZE))
+				.setRequired(false);
+
+		final BugTrackerConfig bulkFetchParallelism = new BugTrackerConfig()
+				.setIdentifier(JIRA_BULK_FETCH_PARALLELISM)
+				.setDisplayLabel("Bulk Fetch Parallelism")
+				.setDescription("How many of those searches may run at the same time")
+				.setValue(String.valueOf(DEFAULT_BULK_FETCH_PARALLELISM))
+				.setRequired(false);
+
+		final BugTrackerConfig bulkUpdateParallelism = new BugTrackerConfig()
+				.setIdentifier(JIRA_BULK_UPDATE_PARALLELISM)
+				.setDisplayLabel("Bulk Update Parallelism")
+				.setDescription("How many bugs may be reopened or commented on at the same time when updating many bugs at once")
+				.setValue(String.valueOf(DEFAULT_BULK_UPDATE_PARALLELISM))
+				.setRequired(false);
+
+		final BugTrackerConfig bulkFileParallelism = new BugTrackerConfig()
+				.setIdentifier(JIRA_BULK_FILE_PARALLELISM)
+				.setDisplayLabel("Bulk File Parallelism")
+				.setDescription("How many bugs may be filed at the same time when filing many bugs at once")
+				.setValue(String.valueOf(DEFAULT_BULK_FILE_PARALLELISM))
+				.setRequired(false);
+
+		final BugTrackerConfig statusSync = new BugTrackerConfig()
+				.setIdentifier(JIRA_STATUS_SYNC)
+				.setDisplayLabel("Status Sync")
+				.setDescription("'" + STATUS_SYNC_DIRECT + "' to ask JIRA for the status of every bug, or '" + STATUS_SYNC_INCREMENTAL
+						+ "' to answer from the issues JIRA reports as changed since the previous sync")
+				.setValue(STATUS_SYNC_DIRECT)
+				.setRequired(false);
+
+		final BugTrackerConfig statusSyncInterval = new BugTrackerConfig()
+				.setIdentifier(JIRA_STATUS_SYNC_INTERVAL)
+				.setDisplayLabel("Status Sync Interval (seconds)")
+				.setDescription("With incremental status sync, how often JIRA is asked for changed issues of a project")
+				.setValue(String.valueOf(DEFAULT_STATUS_SYNC_INTERVAL_SECONDS))
+				.setRequired(false);
+
+		final BugTrackerConfig statusFullSyncInterval = new BugTrackerConfig()
+				.setIdentifier(JIRA_STATUS_FULL_SYNC_INTERVAL)
+				.setDisplayLabel("Full Status Sync Interval (minutes)")
+				.setDescription("With incremental status sync, how often every known bug of a project is read again")
+				.setValue(String.valueOf(DEFAULT_STATUS_FULL_SYNC_INTERVAL_MINUTES))
+				.setRequired(false);
+
+		final BugTrackerConfig stateDirectory = new BugTrackerConfig()
+				.setIdentifier(JIRA_STATE_DIRECTORY)
+				.setDisplayLabel("State Directory")
+				.setDescription("Optional directory in which the last known status of every bug, and which bugs were filed for which issues, "
+						+ "are saved, so that they survive a restart. "
+						+ "Leave empty to keep it in memory only.")
+				.setRequired(false);
+
+		final BugTrackerConfig filingMode = new BugTrackerConfig()
+				.setIdentifier(JIRA_FILING_MODE)
+				.setDisplayLabel("Filing Mode")
+				.setDescription("'" + FILING_MODE_DIRECT + "' to file bugs while SSC waits, or '" + FILING_MODE_QUEUED
+						+ "' to queue them in the state directory and file them in the background")
+				.setValue(FILING_MODE_DIRECT)
+				.setRequired(false);
+
 		final BugTrackerConfig project = new BugTrackerConfig()
 				.setIdentifier(JIRA_PROJECT)
 				.setDisplayLabel("Default Project Key")
@@ -216,12 +534,29 @@ public class Jira4BugTrackerPlugin extends AbstractBatchBugTrackerPlugin {
 				.setValue("Bug")
 				.setRequired(true);
 
-		final List<BugTrackerConfig> configs = Arrays.asList(supportedVersions, jiraHost, project, issueType);
+		final List<BugTrackerConfig> configs = Arrays.asList(supportedVersions, jiraHost, httpTransport, httpMaxConnections,
+				httpConnectTimeout, httpSocketTimeout, httpIdleTimeout, breakerFailureThreshold, breakerProbeInterval, operationTimeout, metadataCacheTtl, bulkFetchChunkSize, bulkFetchParallelism, bulkUpdateParallelism, bulkFileParallelism, statusSync, statusSyncInterval, statusFullSyncInterval, stateDirectory, filingMode, project, issueType);
 
-		pluginHelper.populateWithDefaultsIfAvailable(configs);
+		populateWithDefaults(configs);
 		return configs;
 	}
 
+	/**
+	 * Apply the defaults of the properties file. It only lists some of the settings; the others keep the default set here.
+	 */
+	private void populateWithDefaults(List<BugTrackerConfig> configs) {
+		final Map<String, String> builtIn = new HashMap<String, String>();
+		for (final BugTrackerConfig config : configs) {
+			builtIn.put(config.getIdentifier(), config.getValue());
+		}
+		pluginHelper.populateWithDefaultsIfAvailable(configs);
+		for (final BugTrackerConfig config : configs) {
+			if (config.getValue() == null) {
+				config.setValue(builtIn.get(config.getIdentifier()));
+			}
+		}
+	}
+
 	public String getLongDisplayName() {
 		final StringBuilder sb = new StringBuilder(getShortDisplayName());
 		sb.append(" (");
@@ -236,26 +571,41 @@ public class Jira4BugTrackerPlugin extends AbstractBatchBugTrackerPlugin {
 
 	public List<BugParam> onParameterChange(IssueDetail issueDetail, String changedParamIdentifier, List<BugParam> currentValues, UserAuthenticationStore credentials) {
 
+		final Map<String, String> config = configValues;
 		Jira4PluginConnection connection=null;
 		if (JIRA_PROJECT.equals(changedParamIdentifier)) {
+			final Jira4Operation operation = newOperation(config, "onParameterChange");
+			final Jira4Lookups lookups = new Jira4Lookups(operation);
 			try {
-				connection = getReusableConnection(credentials);
 				final BugParam project = pluginHelper.findParam(JIRA_PROJECT, currentValues);
 
 				if (!StringUtils.isEmpty(project.getValue())) {
+					final String projectKey = project.getValue();
+					final Jira4ProjectPrefetcher prefetcher = getProjectPrefetcher(config);
+					prefetcher.recordUse(projectKey);
+					// Usually loaded ahead, so switching projects does not wait for JIRA
+					Jira4ProjectPrefetcher.Choices choices = prefetcher.get(credentials.getUserName(), projectKey);
+					if (choices == null) {
+						connection = getReusableConnection(config, credentials, operation);
+						final Future<List<String>> issueTypeNames = lookups.start(issueTypesLookup(connection, projectKey));
+						final Future<List<String>> versionNames = lookups.start(versionsLookup(connection, projectKey));
+						choices = new Jira4ProjectPrefetcher.Choices(lookups.get(issueTypeNames), lookups.get(versionNames));
+						prefetcher.put(credentials.getUserName(), projectKey, choices);
+					}
 
-					final List<String> issueTypes = connection.getIssueTypes(project.getValue());
+					final List<String> issueTypes = new ArrayList<String>(choices.getIssueTypes());
 					final BugParam issueType = new BugParamChoice()
 						.setChoiceList(issueTypes)
 						.setDisplayLabel("Issue Type")
 						.setIdentifier(JIRA_ISSUE_TYPE)
 						.setRequired(true);
-					if (issueTypes.contains(configValues.get(JIRA_ISSUE_TYPE))) {
-						issueType.setValue(configValues.get(JIRA_ISSUE_TYPE));
+					final String defaultIssueType = config.get(JIRA_ISSUE_TYPE);
+					if (issueTypes.contains(defaultIssueType)) {
+						issueType.setValue(defaultIssueType);
 					}
 					addOrReplaceParam(issueType, currentValues);
 
-					final List<String> versions = connection.getVersions(project.getValue());
+					final List<String> versions = new ArrayList<String>(choices.getVersions());
 					final BugParam affectsVersion = new BugParamChoice()
 							.setChoiceList(versions)
 							.setDisplayLabel("Affects version")
@@ -274,8 +624,9 @@ public class Jira4BugTrackerPlugin extends AbstractBatchBugTrackerPlugin {
 				LOG.info("JIRA Error onParameterChange",e);
 				throw new BugTrackerException(Jira4PluginConnection.findHelpfulMessage(e), e);
 			} finally {
+				lookups.cancel();
 				if (connection != null) {
-					connection.closeJiraConnection();
+					releaseConnection(connection);
 				}
 			}
 		}
@@ -288,58 +639,123 @@ public class Jira4BugTrackerPlugin extends AbstractBatchBugTrackerPlugin {
 	}
 
 	public void setConfiguration(Map<String, String> configuration) {
-		configValues = configuration;
+		// Validate a private copy, so callers never see a configuration that is only half checked
+		final Map<String, String> config = new HashMap<String, String>(configuration);
 
-		String url = configuration.get(JIRA_URL);
+		String url = config.get(JIRA_URL);
 		if (!url.startsWith("http://") && !url.startsWith("https://")) {
 			throw new BugTrackerException("JIRA URL protocol should be either http or https");
 		}
 		
 		if (url.endsWith("/")) {
 			url = url.substring(0,url.length()-1);
-			configuration.put(JIRA_URL, url);
+			config.put(JIRA_URL, url);
 		}
 
 		try {
-			URL urltrue = new URL(configValues.get(JIRA_URL));
+			URL urltrue = new URL(url);
 			urltrue.toURI();
 			if (urltrue.getHost().length() == 0) {
 				throw new BugTrackerException("JIRA host cannot be empty");
 			}
 		} catch (MalformedURLException e)
 		{
-			throw new BugTrackerException("Invalid JIRA URL: " + configValues.get(JIRA_URL));
+			throw new BugTrackerException("Invalid JIRA URL: " + url);
 		}
 		catch (URISyntaxException e) {
-			throw new BugTrackerException("Invalid JIRA URL: " + configValues.get(JIRA_URL));
+			throw new BugTrackerException("Invalid JIRA URL: " + url);
 		}
 
+		// Fail early on unusable transport, bulk fetch and sync settings; the transport itself is only set up once published
+		getTransportMode(config);
+		getPositiveIntConfig(config, JIRA_HTTP_CONNECT_TIMEOUT, Jira4HttpTransport.DEFAULT_CONNECT_TIMEOUT_MILLIS / 1000);
+		getPositiveIntConfig(config, JIRA_HTTP_SOCKET_TIMEOUT, Jira4HttpTransport.DEFAULT_SOCKET_TIMEOUT_MILLIS / 1000);
+		getPositiveIntConfig(config, JIRA_HTTP_IDLE_TIMEOUT, Jira4HttpTransport.DEFAULT_IDLE_TIMEOUT_MILLIS / 1000);
+		getPositiveIntConfig(config, JIRA_BULK_FETCH_CHUNK_SIZE, DEFAULT_BULK_FETCH_CHUNK_SIZE);
+		getPositiveIntConfig(config, JIRA_BULK_FETCH_PARALLELISM, DEFAULT_BULK_FETCH_PARALLELISM);
+		getPositiveIntConfig(config, JIRA_BULK_UPDATE_PARALLELISM, DEFAULT_BULK_UPDATE_PARALLELISM);
+		getPositiveIntConfig(config, JIRA_BULK_FILE_PARALLELISM, DEFAULT_BULK_FILE_PARALLELISM);
+		getPositiveIntConfig(config, JIRA_OPERATION_TIMEOUT, Jira4Operation.DEFAULT_TIMEOUT_SECONDS);
+		isIncrementalSync(config);
+		getPositiveIntConfig(config, JIRA_STATUS_SYNC_INTERVAL, DEFAULT_STATUS_SYNC_INTERVAL_SECONDS);
+		getPositiveIntConfig(config, JIRA_STATUS_FULL_SYNC_INTERVAL, DEFAULT_STATUS_FULL_SYNC_INTERVAL_MINUTES);
+		getBugStateStore(config);
+		isQueuedFiling(config);
+
+		// No point in more calls at once than the transport has connections
+		Jira4ConcurrencyLimiter.getInstance(url).setMaxLimit(
+				getPositiveIntConfig(config, JIRA_HTTP_MAX_CONNECTIONS, Jira4HttpTransport.DEFAULT_MAX_CONNECTIONS_PER_HOST));
+		Jira4CircuitBreaker.getInstance(url).configure(
+				getPositiveIntConfig(config, JIRA_BREAKER_FAILURE_THRESHOLD, Jira4CircuitBreaker.DEFAULT_FAILURE_THRESHOLD),
+				getPositiveIntConfig(config, JIRA_BREAKER_PROBE_INTERVAL, (int) (Jira4CircuitBreaker.DEFAULT_PROBE_INTERVAL_MILLIS / 1000)) * 1000L);
+		final long metadataTtlMillis = getPositiveIntConfig(config, JIRA_METADATA_CACHE_TTL, (int) (Jira4MetadataCache.DEFAULT_TTL_MILLIS / 60000)) * 60000L;
+		Jira4MetadataCache.getInstance().setTtlMillis(url, metadataTtlMillis);
+		Jira4ProjectPrefetcher.getInstance(url).setTtlMillis(metadataTtlMillis);
+		Jira4FormTemplate.Cache.getInstance(url).setTtlMillis(metadataTtlMillis);
+
+		publishConfiguration(null, Collections.unmodifiableMap(config));
+		Jira4Metrics.startLogging();
+	}
+
+	/**
+	 * Replace the configuration snapshot.
+	 *
+	 * @param expected Only replace this snapshot, or <code>null</code> to replace whatever is there
+	 * @return Whether the snapshot was replaced
+	 */
+	private synchronized boolean publishConfiguration(Map<String, String> expected, Map<String, String> config) {
+		if (expected != null && expected != configValues) {
+			return false;
+		}
+		configValues = config;
+		// Acquired before the previous one is released, so unchanged settings keep their connections
+		final Jira4HttpTransport previous = transport;
+		transport = acquireTransport(config);
+		if (previous != null) {
+			Jira4HttpTransport.release(previous);
+		}
+		return true;
 	}
 
 	public void testConfiguration(UserAuthenticationStore credentials) {
+		final Map<String, String> config = configValues;
 		Jira4PluginConnection connection=null;
+		final Jira4Operation operation = newOperation(config, "testConfiguration");
+		final Jira4Lookups lookups = new Jira4Lookups(operation);
 		try {
 			final List<String> errorMessages = new ArrayList<String>(1);
+			//Start over with fresh metadata in case JIRA was reconfigured
+			Jira4MetadataCache.getInstance().invalidate(config.get(JIRA_URL));
+			Jira4ProjectPrefetcher.getInstance(config.get(JIRA_URL)).invalidate();
+			Jira4FormTemplate.Cache.getInstance(config.get(JIRA_URL)).invalidate();
 			//Explicitly make a new set of credentials for a new person
-			connection = new Jira4PluginConnection(credentials.getUserName(), credentials.getPassword(), configValues.get(JIRA_URL));
+			connection = new Jira4PluginConnection(credentials.getUserName(), credentials.getPassword(), config.get(JIRA_URL), getTransport(config));
+			attachOperation(connection, operation);
 
-			final String projectKey = configValues.get(JIRA_PROJECT);
-			final List<String> projects = connection.getProjectKeys();
+			final String projectKey = config.get(JIRA_PROJECT);
+			final Future<List<String>> projectKeys = lookups.start(projectKeysLookup(connection));
+			final Future<List<String>> issueTypeNames = lookups.start(issueTypesLookup(connection, projectKey));
+			final List<String> projects = lookups.get(projectKeys);
 			if (!projects.contains(projectKey)) {
 				errorMessages.add("No project named " + projectKey + " was found with your permissions. Test with a different username or use one of the following projects: "
 						+ StringUtils.join(projects, ", ") + '.');
 			}
 
-			String issueType = configValues.get(JIRA_ISSUE_TYPE);
-			final List<String> issueTypes = connection.getIssueTypes(projectKey);
+			String issueType = config.get(JIRA_ISSUE_TYPE);
+			final List<String> issueTypes = lookups.get(issueTypeNames);
 			
 			for (String validType :issueTypes) {
 				if (validType.equalsIgnoreCase(issueType))
 				{
 					issueType = validType;
-					configValues.put(JIRA_ISSUE_TYPE, validType);
 				}
 			}
+			if (issueType != null && !issueType.equals(config.get(JIRA_ISSUE_TYPE))) {
+				// Copy on write; lost if the configuration was replaced meanwhile, since that one was not tested
+				final Map<String, String> corrected = new HashMap<String, String>(config);
+				corrected.put(JIRA_ISSUE_TYPE, issueType);
+				publishConfiguration(config, Collections.unmodifiableMap(corrected));
+			}
 			
 			if (!issueTypes.contains(issueType)) {
 				errorMessages.add("No issue type " + issueType + " was found for project " + projectKey + ". Please try one of: " + StringUtils.join(issueTypes, ", ") + '.');
@@ -354,7 +770,9 @@ public class Jira4BugTrackerPlugin extends AbstractBatchBugTrackerPlugin {
 		} catch (final RemoteException e) {
 			throw new BugTrackerException("Error occured during test: " + Jira4PluginConnection.findHelpfulMessage(e), e);
 		} finally {
+			lookups.cancel();
 			if (connection != null) {
+				detachOperation(connection);
 				connection.closeJiraConnection();
 			}
 		}
@@ -367,10 +785,11 @@ public class Jira4BugTrackerPlugin extends AbstractBatchBugTrackerPlugin {
 
 	public void validateCredentials(UserAuthenticationStore credentials) {
 
+		final Map<String, String> config = configValues;
 		Jira4PluginConnection connection = null;
 		try {
 			//Explicitly make a new set of credentials for a new person
-			connection = new Jira4PluginConnection(credentials.getUserName(), credentials.getPassword(), configValues.get(JIRA_URL));
+			connection = new Jira4PluginConnection(credentials.getUserName(), credentials.getPassword(), config.get(JIRA_URL), getTransport(config));
 		} catch (RemoteAuthenticationException e) {
 			throw new BugTrackerAuthenticationException(Jira4PluginConnection.findHelpfulMessage(e), e);
 		} catch (final RemoteException e) {
@@ -400,15 +819,273 @@ public class Jira4BugTrackerPlugin extends AbstractBatchBugTrackerPlugin {
 
 
 
-	private Jira4PluginConnection getReusableConnection(UserAuthenticationStore credentials) throws RemoteException {
+	/**
+	 * Lease an authenticated session for these credentials from the shared pool.
+	 * Must be given back with {@link #releaseConnection(Jira4PluginConnection)}.
+	 */
+	private Jira4PluginConnection getReusableConnection(Map<String, String> config, UserAuthenticationStore credentials, Jira4Operation operation)
+			throws RemoteException {
 		try {
-			return new Jira4PluginConnection(credentials.getUserName(), credentials.getPassword(), configValues.get(JIRA_URL));
+			final Jira4PluginConnection retval = Jira4SessionPool.getInstance().lease(credentials.getUserName(), credentials.getPassword(),
+					config.get(JIRA_URL), getTransport(config));
+			attachOperation(retval, operation);
+			return retval;
 		} catch (RemoteAuthenticationException e) {
 			LOG.info("JIRA Error getConnection",e);
 			throw new BugTrackerAuthenticationException(Jira4PluginConnection.findHelpfulMessage(e), e);
 		}
 	}
 
+	/**
+	 * Start timing a plugin operation against the configured budget.
+	 */
+	private static Jira4Operation newOperation(Map<String, String> config, String name) {
+		return newOperation(config, name, 1);
+	}
+
+	/**
+	 *
+	 * @param rounds How many times a single operation's worth of JIRA calls a batch needs, see {@link #rounds(int, int)}
+	 */
+	private static Jira4Operation newOperation(Map<String, String> config, String name, int rounds) {
+		return new Jira4Operation(name, getPositiveIntConfig(config, JIRA_OPERATION_TIMEOUT, Jira4Operation.DEFAULT_TIMEOUT_SECONDS) * 1000L * Math.max(1, rounds));
+	}
+
+	/**
+	 *
+	 * @return How many rounds of work a batch of this size takes with the given parallelism
+	 */
+	private static int rounds(int size, int parallelism) {
+		return (size + parallelism - 1) / parallelism;
+	}
+
+	private void attachOperation(Jira4PluginConnection connection, Jira4Operation operation) {
+		synchronized (operation) {
+			operation.attach();
+			activeOperations.put(operation, Boolean.TRUE);
+		}
+		connection.setOperation(operation);
+	}
+
+	private void detachOperation(Jira4PluginConnection connection) {
+		final Jira4Operation operation = connection.getOperation();
+		connection.setOperation(null);
+		if (operation != null) {
+			synchronized (operation) {
+				if (operation.detach()) {
+					activeOperations.remove(operation);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Make the JIRA calls of every operation running right now fail, aborting HTTP requests that are waiting for
+	 * JIRA. Operations started afterwards are not affected.
+	 *
+	 * SSC does not say whose work to stop, so this stops the operations of every user of this plugin instance.
+	 */
+	public void stop() {
+		for (final Jira4Operation operation : activeOperations.keySet()) {
+			LOG.info("Stopping " + operation.getName());
+			operation.stop();
+		}
+	}
+
+	private static Jira4ProjectPrefetcher getProjectPrefetcher(Map<String, String> config) {
+		return Jira4ProjectPrefetcher.getInstance(config.get(JIRA_URL));
+	}
+
+	private static void recordProjectUse(Map<String, String> config, Map<String, String> params) {
+		if (params != null && !StringUtils.isEmpty(params.get(JIRA_PROJECT))) {
+			getProjectPrefetcher(config).recordUse(params.get(JIRA_PROJECT));
+		}
+	}
+
+	/**
+	 * Load the issue types and versions of the projects the user is most likely to pick next, in the background.
+	 */
+	private static void prefetchProjectChoices(Map<String, String> config, UserAuthenticationStore credentials, List<String> projectKeys) {
+		final String jiraUrl = config.get(JIRA_URL);
+		final Jira4ProjectPrefetcher prefetcher = Jira4ProjectPrefetcher.getInstance(jiraUrl);
+		final String userName = credentials.getUserName();
+		final String password = credentials.getPassword();
+		final Jira4HttpTransport transport = getTransport(config);
+		prefetcher.prefetch(userName, prefetcher.rank(userName, projectKeys, config.get(JIRA_PROJECT)), new Callable<Jira4PluginConnection>() {
+			public Jira4PluginConnection call() throws RemoteException {
+				return Jira4SessionPool.getInstance().lease(userName, password, jiraUrl, transport);
+			}
+		});
+	}
+
+	private static Callable<List<String>> projectKeysLookup(final Jira4PluginConnection connection) {
+		return new Callable<List<String>>() {
+			public List<String> call() throws RemoteException {
+				return connection.getProjectKeys();
+			}
+		};
+	}
+
+	private static Callable<List<String>> priorityNamesLookup(final Jira4PluginConnection connection) {
+		return new Callable<List<String>>() {
+			public List<String> call() throws RemoteException {
+				return connection.getPriorityNames();
+			}
+		};
+	}
+
+	private static Callable<List<String>> issueTypesLookup(final Jira4PluginConnection connection, final String projectKey) {
+		return new Callable<List<String>>() {
+			public List<String> call() throws RemoteException {
+				return connection.getIssueTypes(projectKey);
+			}
+		};
+	}
+
+	private static Callable<List<String>> versionsLookup(final Jira4PluginConnection connection, final String projectKey) {
+		return new Callable<List<String>>() {
+			public List<String> call() throws RemoteException {
+				return connection.getVersions(projectKey);
+			}
+		};
+	}
+
+	private void releaseConnection(Jira4PluginConnection connection) {
+		detachOperation(connection);
+		Jira4SessionPool.getInstance().release(connection);
+	}
+
+	private static Jira4BugStateStore getBugStateStore(Map<String, String> config) {
+		final String directory = config.get(JIRA_STATE_DIRECTORY);
+		try {
+			return Jira4BugStateStore.getInstance(config.get(JIRA_URL), StringUtils.isBlank(directory) ? null : new File(directory.trim()));
+		} catch (final IOException e) {
+			LOG.info("Unable to open bug state store", e);
+			throw new BugTrackerException("Unable to use state directory " + directory + ": " + e.getMessage(), e);
+		}
+	}
+
+	private static Jira4DuplicateIndex getDuplicateIndex(Map<String, String> config) {
+		final String directory = config.get(JIRA_STATE_DIRECTORY);
+		try {
+			return Jira4DuplicateIndex.getInstance(config.get(JIRA_URL), StringUtils.isBlank(directory) ? null : new File(directory.trim()));
+		} catch (final IOException e) {
+			LOG.info("Unable to open duplicate index", e);
+			throw new BugTrackerException("Unable to use state directory " + directory + ": " + e.getMessage(), e);
+		}
+	}
+
+	private static Bug fetchAndRemember(Map<String, String> config, Jira4PluginConnection connection, String bugId) {
+		try {
+			final Jira4BugState state = connection.fetchState(bugId);
+			getBugStateStore(config).put(state);
+			return state.toBug();
+		} catch (final RemoteException e) {
+			LOG.info("Unable to get remote status", e);
+			return null;
+		}
+	}
+
+	private static boolean isIncrementalSync(Map<String, String> config) {
+		final String mode = StringUtils.defaultIfEmpty(config.get(JIRA_STATUS_SYNC), STATUS_SYNC_DIRECT).trim().toLowerCase();
+		if (!STATUS_SYNC_DIRECT.equals(mode) && !STATUS_SYNC_INCREMENTAL.equals(mode)) {
+			throw new BugTrackerException("Status sync should be either " + STATUS_SYNC_DIRECT + " or " + STATUS_SYNC_INCREMENTAL);
+		}
+		return STATUS_SYNC_INCREMENTAL.equals(mode);
+	}
+
+	/**
+	 * Run the incremental sync of the project if it is due.
+	 */
+	private static void syncProject(Map<String, String> config, Jira4PluginConnection connection, String projectKey) throws RemoteException {
+		if (projectKey == null) {
+			return;
+		}
+		getBugStateStore(config).getDeltaSync(projectKey).syncIfDue(connection,
+				getPositiveIntConfig(config, JIRA_STATUS_SYNC_INTERVAL, DEFAULT_STATUS_SYNC_INTERVAL_SECONDS) * 1000L,
+				getPositiveIntConfig(config, JIRA_STATUS_FULL_SYNC_INTERVAL, DEFAULT_STATUS_FULL_SYNC_INTERVAL_MINUTES) * 60000L,
+				getPositiveIntConfig(config, JIRA_BULK_FETCH_CHUNK_SIZE, DEFAULT_BULK_FETCH_CHUNK_SIZE));
+	}
+
+	/**
+	 * Sync the projects of the given bugs and answer every bug the store knows.
+	 *
+	 * @return The bugs that still have to be read from JIRA
+	 */
+	private List<String> answerFromStore(Map<String, String> config, List<String> bugIds, UserAuthenticationStore credentials, Jira4BulkResult<Bug> result) {
+		final Set<String> projectKeys = new LinkedHashSet<String>();
+		for (final String bugId : bugIds) {
+			projectKeys.add(Jira4BugState.projectOf(bugId));
+		}
+		Jira4PluginConnection connection = null;
+		try {
+			connection = getReusableConnection(config, credentials, newOperation(config, "fetchBugDetails"));
+			for (final String projectKey : projectKeys) {
+				syncProject(config, connection, projectKey);
+			}
+		} catch (final RemoteException e) {
+			LOG.info("JIRA Error fetchBugDetails", e);
+			throw new BugTrackerException(Jira4PluginConnection.findHelpfulMessage(e), e);
+		} finally {
+			if (connection != null) {
+				releaseConnection(connection);
+			}
+		}
+
+		final Jira4BugStateStore store = getBugStateStore(config);
+		final List<String> retval = new ArrayList<String>();
+		for (final String bugId : bugIds) {
+			final Jira4BugState known = store.get(bugId);
+			if (known == null) {
+				retval.add(bugId);
+			} else {
+				Jira4Metrics.increment("sync.store.hit");
+				result.succeeded(bugId, known.toBug());
+			}
+		}
+		return retval;
+	}
+
+	private static String getTransportMode(Map<String, String> config) {
+		final String retval = StringUtils.defaultIfEmpty(config.get(JIRA_HTTP_TRANSPORT), Jira4HttpTransport.MODE_POOLED).trim().toLowerCase();
+		if (!Jira4HttpTransport.MODE_POOLED.equals(retval) && !Jira4HttpTransport.MODE_SIMPLE.equals(retval)) {
+			throw new BugTrackerException("HTTP transport should be either " + Jira4HttpTransport.MODE_POOLED + " or " + Jira4HttpTransport.MODE_SIMPLE);
+		}
+		return retval;
+	}
+
+	private static Jira4HttpTransport acquireTransport(Map<String, String> config) {
+		return Jira4HttpTransport.acquire(getTransportMode(config),
+				getPositiveIntConfig(config, JIRA_HTTP_MAX_CONNECTIONS, Jira4HttpTransport.DEFAULT_MAX_CONNECTIONS_PER_HOST),
+				getPositiveIntConfig(config, JIRA_HTTP_CONNECT_TIMEOUT, Jira4HttpTransport.DEFAULT_CONNECT_TIMEOUT_MILLIS / 1000) * 1000,
+				getPositiveIntConfig(config, JIRA_HTTP_SOCKET_TIMEOUT, Jira4HttpTransport.DEFAULT_SOCKET_TIMEOUT_MILLIS / 1000) * 1000,
+				getPositiveIntConfig(config, JIRA_HTTP_IDLE_TIMEOUT, Jira4HttpTransport.DEFAULT_IDLE_TIMEOUT_MILLIS / 1000) * 1000);
+	}
+
+	private static Jira4HttpTransport getTransport(Map<String, String> config) {
+		return Jira4HttpTransport.get(getTransportMode(config),
+				getPositiveIntConfig(config, JIRA_HTTP_MAX_CONNECTIONS, Jira4HttpTransport.DEFAULT_MAX_CONNECTIONS_PER_HOST),
+				getPositiveIntConfig(config, JIRA_HTTP_CONNECT_TIMEOUT, Jira4HttpTransport.DEFAULT_CONNECT_TIMEOUT_MILLIS / 1000) * 1000,
+				getPositiveIntConfig(config, JIRA_HTTP_SOCKET_TIMEOUT, Jira4HttpTransport.DEFAULT_SOCKET_TIMEOUT_MILLIS / 1000) * 1000,
+				getPositiveIntConfig(config, JIRA_HTTP_IDLE_TIMEOUT, Jira4HttpTransport.DEFAULT_IDLE_TIMEOUT_MILLIS / 1000) * 1000);
+	}
+
+	private static int getPositiveIntConfig(Map<String, String> config, String identifier, int defaultValue) {
+		final String value = config.get(identifier);
+		if (StringUtils.isBlank(value)) {
+			return defaultValue;
+		}
+		try {
+			final int retval = Integer.parseInt(value.trim());
+			if (retval > 0) {
+				return retval;
+			}
+		} catch (final NumberFormatException e) {
+			LOG.debug("Invalid number for " + identifier, e);
+		}
+		throw new BugTrackerException("Configuration value " + identifier + " should be a positive whole number: " + value);
+	}
+
 	private String trimStringFieldValue(String val) {
 		if (val.length() > 255) {
 			return val.substring(0, 252) + "...";
@@ -416,44 +1093,249 @@ public class Jira4BugTrackerPlugin extends AbstractBatchBugTrackerPlugin {
 		return val;
 	}
 	
-	private Bug fileBug(Map<String, String> params, UserAuthenticationStore credentials) {
+	private Bug fileBug(Map<String, String> config, Map<String, String> params, UserAuthenticationStore credentials, List<String> instanceIds) {
 		Bug retval = null;
 		Jira4PluginConnection connection = null;
 		try {
-			connection = getReusableConnection(credentials);
-			Calendar dueDate = null;
-			if (!StringUtils.isEmpty(params.get(PARAM_DUE_IN))) {
+			connection = getReusableConnection(config, credentials, newOperation(config, "fileBug"));
+			backfillDuplicateIndex(config, connection, Collections.singletonList(params));
+			retval = newFilingPipeline(config, connection, 1).create(prepareIssue(connection, params, connection.getMetadata()), instanceIds).toBug();
+		} catch (final RemoteException e) {
+			LOG.info("JIRA Error fileBug",e);
+			throw new BugTrackerException(Jira4FilingPipeline.describe(e), e);
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new BugTrackerException("Interrupted while filing bug", e);
+		} finally {
+			if (connection != null) {
+				releaseConnection(connection);
+			}
+		}
+		return retval;
+	}
+
+	private Jira4FilingStats fileBugs(Map<String, String> config, List<Map<String, String>> params, List<List<String>> instanceIds,
+			UserAuthenticationStore credentials, Jira4FilingListener listener) {
+		final int parallelism = getPositiveIntConfig(config, JIRA_BULK_FILE_PARALLELISM, DEFAULT_BULK_FILE_PARALLELISM);
+		Jira4PluginConnection connection = null;
+		try {
+			connection = getReusableConnection(config, credentials, newOperation(config, "fileBugs", rounds(params.size(), parallelism)));
+			backfillDuplicateIndex(config, connection, params);
+			// One snapshot for the whole batch
+			final Jira4Metadata metadata = connection.getMetadata();
+			final List<Jira4FilingPipeline.Submission> submissions = new ArrayList<Jira4FilingPipeline.Submission>(params.size());
+			for (int i = 0; i < params.size(); i++) {
 				try {
-					dueDate = Calendar.getInstance();
-					final Integer days = Integer.valueOf(params.get(PARAM_DUE_IN).replaceAll("\\D", ""));
-					dueDate.add(Calendar.DAY_OF_MONTH, days);
-				} catch (final NumberFormatException e) {
-					LOG.info("Unable to set bug due date", e);
+					submissions.add(Jira4FilingPipeline.Submission.prepared(i, prepareIssue(connection, params.get(i), metadata),
+							instanceIds.get(i)));
+				} catch (final RemoteException e) {
+					LOG.info("JIRA Error fileBugs", e);
+					if (Jira4PluginConnection.isTransportFailure(e)) {
+						throw e;
+					}
+					submissions.add(Jira4FilingPipeline.Submission.rejected(i, Jira4FilingPipeline.describe(e)));
 				}
 			}
-			retval = connection.createNewIssue(params.get(JIRA_PROJECT),
-					trimStringFieldValue(params.get(PARAM_SUMMARY)),
-					params.get(PARAM_DESCRIPTION),
-					dueDate,
-					params.get(PARAM_PRIORITY),
-					params.get(JIRA_ISSUE_TYPE),
-					params.get(PARAM_ASSIGNEE),
-					params.get(PARAM_AFFECTS_VERSION));
+			return newFilingPipeline(config, connection, parallelism).run(submissions, listener);
 		} catch (final RemoteException e) {
-			LOG.info("JIRA Error fileBug",e);
-			String errorMessage = Jira4PluginConnection.findHelpfulMessage(e);
-			
-			errorMessage = errorMessage.replaceFirst("^([^\\w]|[\\s])*", "");
-			errorMessage = errorMessage.replaceFirst("([^\\w]|[\\s])*$", "");
-			
-			if (errorMessage.length() == 0) {
-				errorMessage = "Unknown error while trying to file a bug.";
-			}
-			
-			throw new BugTrackerException(errorMessage, e);
+			LOG.info("JIRA Error fileBugs", e);
+			throw new BugTrackerException(Jira4FilingPipeline.describe(e), e);
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new BugTrackerException("Interrupted while filing bugs", e);
+		} catch (final ExecutionException e) {
+			LOG.info("JIRA Error fileBugs", e.getCause());
+			throw new BugTrackerException("Unable to file bugs", e.getCause());
 		} finally {
 			if (connection != null) {
-				connection.closeJiraConnection();
+				releaseConnection(connection);
+			}
+		}
+	}
+
+	/**
+	 * Write the submission to the filing journal and answer right away with its provisional id.
+	 */
+	private Bug queueBug(Map<String, String> config, Map<String, String> params, UserAuthenticationStore credentials, List<String> instanceIds) {
+		try {
+			return new Bug(getFilingQueue(config).submit(credentials, params, instanceIds), STATUS_QUEUED);
+		} catch (final IOException e) {
+			LOG.info("Unable to queue bug", e);
+			throw new BugTrackerException("Unable to queue bug: " + e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * File a queued submission on behalf of the filing queue.
+	 */
+	private Jira4BugState fileQueuedBug(Map<String, String> config, Jira4FilingJournal.Entry entry, UserAuthenticationStore credentials)
+			throws RemoteException, InterruptedException {
+		final Jira4PluginConnection connection = getReusableConnection(config, credentials, newOperation(config, "fileQueuedBug"));
+		try {
+			final String projectKey = entry.getParams().get(JIRA_PROJECT);
+			if (entry.getAttempts() > 1) {
+				// An earlier attempt may have filed it before its outcome was lost
+				final RemoteIssue[] earlier = connection.findByDescription(projectKey, entry.getToken(), null, 1);
+				if (earlier.length > 0) {
+					Jira4Metrics.increment("filing.queue.recovered");
+					final Jira4BugState retval = connection.fetchState(earlier[0].getKey());
+					getBugStateStore(config).put(retval.with(retval.getIssueType(), entry.getInstanceIds()));
+					return retval;
+				}
+			}
+			final Map<String, String> params = new HashMap<String, String>(entry.getParams());
+			params.put(PARAM_DESCRIPTION, Jira4FilingJournal.stamp(params.get(PARAM_DESCRIPTION), entry));
+			backfillDuplicateIndex(config, connection, Collections.singletonList(params));
+			return newFilingPipeline(config, connection, 1).create(prepareIssue(connection, params, connection.getMetadata()), entry.getInstanceIds());
+		} finally {
+			releaseConnection(connection);
+		}
+	}
+
+	/**
+	 *
+	 * @return Key of the issue the queued submission was filed as, or null if it was not filed
+	 */
+	private String getFiledIssueKey(Map<String, String> config, String provisionalId, UserAuthenticationStore credentials) {
+		final Jira4FilingQueue queue = getFilingQueue(config);
+		// The user is back, so submissions left over from before a restart can be filed
+		queue.remember(credentials);
+		return queue.getJournal().getIssueKey(provisionalId);
+	}
+
+	/**
+	 *
+	 * @return The status of a queued submission that was not filed
+	 */
+	private Bug getQueuedBug(Map<String, String> config, String provisionalId) {
+		final Jira4FilingJournal journal = getFilingQueue(config).getJournal();
+		if (journal.isPending(provisionalId)) {
+			return new Bug(provisionalId, STATUS_QUEUED);
+		}
+		final String failure = journal.getFailure(provisionalId);
+		if (failure == null) {
+			LOG.info("Unknown queued submission " + provisionalId);
+			return null;
+		}
+		return new Bug(provisionalId, STATUS_FILING_FAILED);
+	}
+
+	/**
+	 *
+	 * @return How far filing in the background is behind
+	 */
+	public Jira4FilingQueueStats getFilingQueueStats() {
+		return getFilingQueue(configValues).getStats();
+	}
+
+	/**
+	 *
+	 * @return Every counter and gauge of the plugin by name, e.g. session pool hits, the concurrency limit per JIRA,
+	 *         circuit breaker transitions and retries
+	 */
+	public Map<String, Long> getMetrics() {
+		return Jira4Metrics.snapshot();
+	}
+
+	private Jira4FilingQueue getFilingQueue(Map<String, String> config) {
+		final String directory = config.get(JIRA_STATE_DIRECTORY);
+		if (StringUtils.isBlank(directory)) {
+			throw new BugTrackerException("Queued filing needs a state directory");
+		}
+		try {
+			final Jira4FilingQueue retval = Jira4FilingQueue.getInstance(config.get(JIRA_URL), new File(directory.trim()));
+			retval.setFiler(new Jira4FilingQueue.Filer() {
+				public Jira4BugState file(Jira4FilingJournal.Entry entry, UserAuthenticationStore credentials) throws RemoteException,
+						InterruptedException {
+					// Filed later on the queue's thread, with the configuration of that moment
+					return fileQueuedBug(configValues, entry, credentials);
+				}
+			});
+			return retval;
+		} catch (final IOException e) {
+			LOG.info("Unable to open filing journal", e);
+			throw new BugTrackerException("Unable to use state directory " + directory + ": " + e.getMessage(), e);
+		}
+	}
+
+	private static boolean isQueuedFiling(Map<String, String> config) {
+		final String mode = StringUtils.defaultIfEmpty(config.get(JIRA_FILING_MODE), FILING_MODE_DIRECT).trim().toLowerCase();
+		if (!FILING_MODE_DIRECT.equals(mode) && !FILING_MODE_QUEUED.equals(mode)) {
+			throw new BugTrackerException("Filing mode should be either " + FILING_MODE_DIRECT + " or " + FILING_MODE_QUEUED);
+		}
+		if (FILING_MODE_QUEUED.equals(mode) && StringUtils.isBlank(config.get(JIRA_STATE_DIRECTORY))) {
+			throw new BugTrackerException("Filing mode " + FILING_MODE_QUEUED + " needs a state directory to keep the queue in");
+		}
+		return FILING_MODE_QUEUED.equals(mode);
+	}
+
+	private static Jira4FilingPipeline newFilingPipeline(Map<String, String> config, Jira4PluginConnection connection, int parallelism) {
+		return new Jira4FilingPipeline(connection, getBugStateStore(config), getDuplicateIndex(config), parallelism);
+	}
+
+	/**
+	 * Learn the instances already filed into the projects of the submissions, as far as time allows. Filing goes on
+	 * whether or not that is finished.
+	 */
+	private static void backfillDuplicateIndex(Map<String, String> config, Jira4PluginConnection connection, List<Map<String, String>> params)
+			throws InterruptedException {
+		final Jira4DuplicateIndex duplicates = getDuplicateIndex(config);
+		final int pageSize = getPositiveIntConfig(config, JIRA_BULK_FETCH_CHUNK_SIZE, DEFAULT_BULK_FETCH_CHUNK_SIZE);
+		for (final String projectKey : new LinkedHashSet<String>(getProjectKeys(params))) {
+			duplicates.backfill(connection, projectKey, pageSize);
+		}
+	}
+
+	private static List<String> getProjectKeys(List<Map<String, String>> params) {
+		final List<String> retval = new ArrayList<String>(params.size());
+		for (final Map<String, String> submission : params) {
+			retval.add(submission.get(JIRA_PROJECT));
+		}
+		return retval;
+	}
+
+	/**
+	 * Turn the submitted parameters into a new issue, looking up ids in the given metadata and the cached versions of the project.
+	 */
+	private RemoteIssue prepareIssue(Jira4PluginConnection connection, Map<String, String> params, Jira4Metadata metadata) throws RemoteException {
+		Calendar dueDate = null;
+		if (!StringUtils.isEmpty(params.get(PARAM_DUE_IN))) {
+			try {
+				dueDate = Calendar.getInstance();
+				final Integer days = Integer.valueOf(params.get(PARAM_DUE_IN).replaceAll("\\D", ""));
+				dueDate.add(Calendar.DAY_OF_MONTH, days);
+			} catch (final NumberFormatException e) {
+				LOG.info("Unable to set bug due date", e);
+			}
+		}
+		final String projectKey = params.get(JIRA_PROJECT);
+		final Jira4NamedEntityIndex<RemoteVersion> projectVersions = StringUtils.isEmpty(params.get(PARAM_AFFECTS_VERSION)) ? null
+				: connection.getVersionIndex(projectKey, params.get(PARAM_AFFECTS_VERSION));
+		return Jira4PluginConnection.prepareIssue(metadata, projectVersions, projectKey,
+				trimStringFieldValue(params.get(PARAM_SUMMARY)),
+				params.get(PARAM_DESCRIPTION),
+				dueDate,
+				params.get(PARAM_PRIORITY),
+				params.get(JIRA_ISSUE_TYPE),
+				params.get(PARAM_ASSIGNEE),
+				params.get(PARAM_AFFECTS_VERSION));
+	}
+
+	private static List<String> getInstanceIds(BugSubmission bug) {
+		final List<String> retval = new ArrayList<String>(1);
+		if (bug.getIssueDetail() != null && bug.getIssueDetail().getIssueInstanceId() != null) {
+			retval.add(bug.getIssueDetail().getIssueInstanceId());
+		}
+		return retval;
+	}
+
+	private static List<String> getInstanceIds(MultiIssueBugSubmission bug) {
+		final List<String> retval = new ArrayList<String>();
+		if (bug.getIssueDetails() != null) {
+			for (final IssueDetail issueDetail : bug.getIssueDetails()) {
+				if (issueDetail.getIssueInstanceId() != null) {
+					retval.add(issueDetail.getIssueInstanceId());
+				}
 			}
 		}
 		return retval;
@@ -466,7 +1348,24 @@ public class Jira4BugTrackerPlugin extends AbstractBatchBugTrackerPlugin {
 		return onParameterChange(null, changedParamIdentifier, currentValues, credentials);
 	}
 	public Bug fileMultiIssueBug(MultiIssueBugSubmission bug, UserAuthenticationStore credentials) {
-		return fileBug(bug.getParams(), credentials);
+		final Map<String, String> config = configValues;
+		recordProjectUse(config, bug.getParams());
+		if (isQueuedFiling(config)) {
+			return queueBug(config, bug.getParams(), credentials, getInstanceIds(bug));
+		}
+		return fileBug(config, bug.getParams(), credentials, getInstanceIds(bug));
+	}
+	/**
+	 * Same as {@link #fileBugs(List, UserAuthenticationStore, Jira4FilingListener)} for submissions covering several issues each.
+	 */
+	public Jira4FilingStats fileMultiIssueBugs(List<MultiIssueBugSubmission> bugs, UserAuthenticationStore credentials, Jira4FilingListener listener) {
+		final List<Map<String, String>> params = new ArrayList<Map<String, String>>(bugs.size());
+		final List<List<String>> instanceIds = new ArrayList<List<String>>(bugs.size());
+		for (final MultiIssueBugSubmission bug : bugs) {
+			params.add(bug.getParams());
+			instanceIds.add(getInstanceIds(bug));
+		}
+		return fileBugs(configValues, params, instanceIds, credentials, listener);
 	}
 	public boolean isBugOpen(Bug bug, UserAuthenticationStore credentials) {
 		return STATUS_OPEN.equals(bug.getBugStatus()) || STATUS_INPROGRESS.equals(bug.getBugStatus()) || STATUS_REOPENED.equals(bug.getBugStatus());
@@ -478,31 +1377,106 @@ public class Jira4BugTrackerPlugin extends AbstractBatchBugTrackerPlugin {
 		return isBugClosed(bug, credentials) && (RESOLUTION_FIXED.equals(bug.getBugResolution()) || RESOLUTION_INCOMPLETE.equals(bug.getBugResolution()));
 	}
 	public void reOpenBug(Bug bug, String comment, UserAuthenticationStore credentials) {
+		final Map<String, String> config = configValues;
 		Jira4PluginConnection connection = null;
 		try {
-			connection = getReusableConnection(credentials);
-			connection.progressWorkflow(bug.getBugId(), ACTION_REOPEN);
-			connection.addComment(bug.getBugId(), comment);
+			connection = getReusableConnection(config, credentials, newOperation(config, "reOpenBug"));
+			reopen(config, connection, bug, comment);
 		} catch (final RemoteException e) {
 			LOG.info("JIRA Error reOpenBug",e);
 			throw new BugTrackerException(Jira4PluginConnection.findHelpfulMessage(e), e);
 		} finally {
 			if (connection != null ) {
-				connection.closeJiraConnection();
+				releaseConnection(connection);
 			}
 		}
 	}
 	public void addCommentToBug(Bug bug, String comment, UserAuthenticationStore credentials) {
+		final Map<String, String> config = configValues;
 		Jira4PluginConnection connection = null;
 		try {
-			connection = getReusableConnection(credentials);
+			connection = getReusableConnection(config, credentials, newOperation(config, "addCommentToBug"));
 			connection.addComment(bug.getBugId(), comment);
 		} catch (final RemoteException e) {
 			LOG.info("JIRA Error addComment",e);
 			throw new BugTrackerException(Jira4PluginConnection.findHelpfulMessage(e), e);
 		} finally {
 			if (connection != null ) {
-				connection.closeJiraConnection();
+				releaseConnection(connection);
+			}
+		}
+	}
+
+	/**
+	 * Reopen many bugs and add the comment to each. See {@link #addCommentToBugs(Collection, String, UserAuthenticationStore)}
+	 * for how the bugs are processed.
+	 *
+	 * @return The state of every bug after reopening it, or why it could not be reopened
+	 */
+	public Jira4BulkResult<Bug> reOpenBugs(Collection<Bug> bugs, final String comment, UserAuthenticationStore credentials) {
+		final Map<String, String> config = configValues;
+		return updateBugs(config, bugs, credentials, "reOpenBugs", new Jira4BulkUpdater.Update() {
+			public Bug apply(Jira4PluginConnection connection, Bug bug) throws RemoteException {
+				return reopen(config, connection, bug, comment);
+			}
+		});
+	}
+
+	/**
+	 * Add the comment to many bugs. All bugs share one session; a configurable number of them are updated at the
+	 * same time, and a bug listed more than once is updated in the given order. A bug that cannot
+	 * be updated is reported in {@link Jira4BulkResult#getErrors()} and does not stop the others.
+	 *
+	 * @return Every bug that was updated, or why it could not be updated
+	 */
+	public Jira4BulkResult<Bug> addCommentToBugs(Collection<Bug> bugs, final String comment, UserAuthenticationStore credentials) {
+		return updateBugs(configValues, bugs, credentials, "addCommentToBugs", new Jira4BulkUpdater.Update() {
+			public Bug apply(Jira4PluginConnection connection, Bug bug) throws RemoteException {
+				connection.addComment(bug.getBugId(), comment);
+				return bug;
+			}
+		});
+	}
+
+	/**
+	 * Reopen the bug, adding the comment with the transition; the comment is added on its own only if the bug
+	 * cannot be reopened.
+	 */
+	static Bug reopen(Map<String, String> config, Jira4PluginConnection connection, Bug bug, String comment) throws RemoteException {
+		// What we know of the issue lets a learnt workflow action be used without asking JIRA for the actions first
+		final Jira4BugStateStore store = getBugStateStore(config);
+		final Jira4BugState known = store.get(bug.getBugId());
+		final Jira4BugState reopened = connection.transition(bug.getBugId(),
+				known == null ? null : known.getIssueType(),
+				known == null ? bug.getBugStatus() : known.getStatus(),
+				ACTION_REOPEN, comment);
+		if (reopened == null) {
+			connection.addComment(bug.getBugId(), comment);
+			return bug;
+		}
+		store.put(reopened);
+		return reopened.toBug();
+	}
+
+	private Jira4BulkResult<Bug> updateBugs(Map<String, String> config, Collection<Bug> bugs, UserAuthenticationStore credentials, String operation,
+			Jira4BulkUpdater.Update update) {
+		final int parallelism = getPositiveIntConfig(config, JIRA_BULK_UPDATE_PARALLELISM, DEFAULT_BULK_UPDATE_PARALLELISM);
+		Jira4PluginConnection connection = null;
+		try {
+			connection = getReusableConnection(config, credentials, newOperation(config, operation, rounds(bugs.size(), parallelism)));
+			return Jira4BulkUpdater.run(connection, bugs, parallelism, operation, update);
+		} catch (final RemoteException e) {
+			LOG.info("JIRA Error " + operation, e);
+			throw new BugTrackerException(Jira4PluginConnection.findHelpfulMessage(e), e);
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new BugTrackerException("Interrupted while updating bugs", e);
+		} catch (final ExecutionException e) {
+			LOG.info("JIRA Error " + operation, e.getCause());
+			throw new BugTrackerException("Unable to update bugs", e.getCause());
+		} finally {
+			if (connection != null) {
+				releaseConnection(connection);
 			}
 		}
 	}
@@ -60,7 +60,7 @@ public class Jira4BugTrackerPluginTest {
 		Jira4BugTrackerPlugin plugin = new Jira4BugTrackerPlugin();
 
 		List<BugTrackerConfig> config = plugin.getConfiguration();
-		Assert.assertEquals(4, config.size());
+		Assert.assertEquals(22, config.size());
 
 		// assert defaults from properties file
 		for (BugTrackerConfig c : config) {
@@ -70,6 +70,14 @@ public class Jira4BugTrackerPluginTest {
 				Assert.assertEquals("DEF_PROJECT", c.getValue());
 			} else if (c.getIdentifier().equals("issueType")) {
 				Assert.assertEquals("Task", c.getValue());
+			} else if (c.getIdentifier().equals("httpTransport")) {
+				Assert.assertEquals("pooled", c.getValue());
+			} else if (c.getIdentifier().equals("statusSync") || c.getIdentifier().equals("filingMode")) {
+				Assert.assertEquals("direct", c.getValue());
+			} else if (c.getIdentifier().equals("stateDirectory")) {
+				Assert.assertNull(c.getValue());
+			} else if (c.getIdentifier().startsWith("http") || c.getIdentifier().startsWith("bulk") || c.getIdentifier().startsWith("breaker") || c.getIdentifier().equals("statusSyncInterval") || c.getIdentifier().equals("statusFullSyncInterval") || c.getIdentifier().equals("operationTimeout") || c.getIdentifier().equals("metadataCacheTtl")) {
+				Assert.assertTrue(Integer.parseInt(c.getValue()) > 0);
 			} else if (c.getIdentifier().equals("(display-only)supportedVersions")) {
 				//No matter
 			} else {
@@ -0,0 +1,62 @@
+/*
+ * (C) Copyright 2015 Hewlett-Packard Development Company, L.P.
+ */
+
+package com.fortify.sample.defecttracking.jira;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Outcome of an operation on many JIRA issues at once. Every requested issue ends up either in
+ * {@link #getResults()} or, with a readable reason, in {@link #getErrors()}.
+ *
+ * @param <T> What is known about each successfully handled issue, e.g. its {@link com.fortify.pub.bugtracker.support.Bug}
+ */
+public final class Jira4BulkResult<T> {
+
+	private final Map<String, T> _results = new LinkedHashMap<String, T>();
+	private final Map<String, String> _errors = new LinkedHashMap<String, String>();
+
+	synchronized void succeeded(String issueId, T result) {
+		_errors.remove(issueId);
+		_results.put(issueId, result);
+	}
+
+	synchronized void failed(String issueId, String message) {
+		_results.remove(issueId);
+		_errors.put(issueId, message);
+	}
+
+	synchronized void addAll(Jira4BulkResult<T> other) {
+		synchronized (other) {
+			for (final Map.Entry<String, T> entry : other._results.entrySet()) {
+				succeeded(entry.getKey(), entry.getValue());
+			}
+			for (final Map.Entry<String, String> entry : other._errors.entrySet()) {
+				failed(entry.getKey(), entry.getValue());
+			}
+		}
+	}
+
+	/**
+	 *
+	 * @return Issue id to result, for every issue that was handled successfully
+	 */
+	public synchronized Map<String, T> getResults() {
+		return Collections.unmodifiableMap(new LinkedHashMap<String, T>(_results));
+	}
+
+	/**
+	 *
+	 * @return Issue id to error message, for every issue that could not be handled
+	 */
+	public synchronized Map<String, String> getErrors() {
+		return Collections.unmodifiableMap(new LinkedHashMap<String, String>(_errors));
+	}
+
+	public synchronized boolean hasErrors() {
+		return !_errors.isEmpty();
+	}
+}
@@ -0,0 +1,97 @@
+/*
+ * (C) Copyright 2015 Hewlett-Packard Development Company, L.P.
+ */
+
+package com.fortify.sample.defecttracking.jira;
+
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.fortify.pub.bugtracker.support.Bug;
+
+/**
+ * Applies the same change, such as reopening or commenting, to many bugs over one shared connection.
+ * Bugs are updated side by side on {@link Jira4Workers}, except that all updates of the same issue run one after
+ * another in the given order. A failing bug is reported in the result and does not stop the others.
+ *
+ */
+final class Jira4BulkUpdater {
+
+	private static final Log LOG = LogFactory.getLog(Jira4BulkUpdater.class);
+
+	/**
+	 * The change applied to each bug.
+	 */
+	interface Update {
+		/**
+		 *
+		 * @return The bug as it is after the change
+		 */
+		Bug apply(Jira4PluginConnection connection, Bug bug) throws RemoteException;
+	}
+
+	private Jira4BulkUpdater() {
+	}
+
+	/**
+	 *
+	 * @param connection Connection shared by all updates
+	 * @param bugs Bugs to update; a bug listed more than once is updated once per listing
+	 * @param parallelism How many bugs may be updated at the same time
+	 * @param operation Name of the change, used for logging
+	 * @return Every updated bug, or why it could not be updated
+	 */
+	static Jira4BulkResult<Bug> run(final Jira4PluginConnection connection, Collection<Bug> bugs, int parallelism, final String operation,
+			final Update update) throws InterruptedException, ExecutionException {
+		final Map<String, List<Bug>> byIssue = new LinkedHashMap<String, List<Bug>>();
+		for (final Bug bug : bugs) {
+			List<Bug> updates = byIssue.get(bug.getBugId());
+			if (updates == null) {
+				updates = new ArrayList<Bug>(1);
+				byIssue.put(bug.getBugId(), updates);
+			}
+			updates.add(bug);
+		}
+
+		final Jira4BulkResult<Bug> retval = new Jira4BulkResult<Bug>();
+		// Once JIRA cannot be reached, the remaining bugs fail right away instead of each waiting for a timeout
+		final AtomicReference<RemoteException> unreachable = new AtomicReference<RemoteException>();
+		final List<Callable<Void>> tasks = new ArrayList<Callable<Void>>(byIssue.size());
+		for (final List<Bug> updates : byIssue.values()) {
+			tasks.add(new Callable<Void>() {
+				public Void call() {
+					for (final Bug bug : updates) {
+						if (unreachable.get() != null) {
+							retval.failed(bug.getBugId(), Jira4PluginConnection.findHelpfulMessage(unreachable.get()));
+							continue;
+						}
+						try {
+							retval.succeeded(bug.getBugId(), update.apply(connection, bug));
+							Jira4Metrics.increment("bulk.update.succeeded");
+						} catch (final RemoteException e) {
+							LOG.info("JIRA Error " + operation + " for " + bug.getBugId(), e);
+							if (Jira4PluginConnection.isTransportFailure(e)) {
+								unreachable.compareAndSet(null, e);
+							}
+							retval.failed(bug.getBugId(), Jira4PluginConnection.findHelpfulMessage(e));
+							Jira4Metrics.increment("bulk.update.failed");
+						}
+					}
+					return null;
+				}
+			});
+		}
+		Jira4Workers.runAll(tasks, parallelism);
+		return retval;
+	}
+}
@@ -0,0 +1,154 @@
+/*
+ * (C) Copyright 2015 Hewlett-Packard Development Company, L.P.
+ */
+
+package com.fortify.sample.defecttracking.jira;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.rmi.RemoteException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.axis.AxisFault;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Stops calling a JIRA that cannot be reached, so that callers fail right away instead of each waiting for a
+ * connect timeout. After {@link #DEFAULT_FAILURE_THRESHOLD} calls in a row fail to reach the server the breaker
+ * opens, and calls fail with the same error as the last real failure. Once the probe interval has passed the
+ * breaker is half open: a single call is let through, and its outcome closes the breaker or opens it again.
+ *
+ * Only transport failures count; a call JIRA answers with an error shows that the server is up.
+ *
+ */
+final class Jira4CircuitBreaker {
+
+	private static final Log LOG = LogFactory.getLog(Jira4CircuitBreaker.class);
+
+	static final int DEFAULT_FAILURE_THRESHOLD = 5;
+	static final long DEFAULT_PROBE_INTERVAL_MILLIS = 30 * 1000L;
+
+	enum State {
+		CLOSED, OPEN, HALF_OPEN
+	}
+
+	private static final ConcurrentMap<String, Jira4CircuitBreaker> BREAKERS = new ConcurrentHashMap<String, Jira4CircuitBreaker>();
+
+	private final String _jiraBaseUrl;
+	private int _failureThreshold = DEFAULT_FAILURE_THRESHOLD;
+	private long _probeIntervalMillis = DEFAULT_PROBE_INTERVAL_MILLIS;
+	private State _state = State.CLOSED;
+	private int _failures;
+	private long _openedAt;
+	private boolean _probing;
+	private RemoteException _lastFailure;
+
+	Jira4CircuitBreaker(String jiraBaseUrl) {
+		_jiraBaseUrl = jiraBaseUrl;
+	}
+
+	/**
+	 *
+	 * @return The breaker shared by every connection to the given JIRA
+	 */
+	static Jira4CircuitBreaker getInstance(String jiraBaseUrl) {
+		Jira4CircuitBreaker retval = BREAKERS.get(jiraBaseUrl);
+		if (retval == null) {
+			final Jira4CircuitBreaker created = new Jira4CircuitBreaker(jiraBaseUrl);
+			retval = BREAKERS.putIfAbsent(jiraBaseUrl, created);
+			if (retval == null) {
+				retval = created;
+			}
+		}
+		return retval;
+	}
+
+	/**
+	 *
+	 * @param failureThreshold How many calls in a row must fail to reach the server to open the breaker
+	 * @param probeIntervalMillis How long to wait before letting a call through to see if the server is back
+	 */
+	synchronized void configure(int failureThreshold, long probeIntervalMillis) {
+		_failureThreshold = failureThreshold;
+		_probeIntervalMillis = probeIntervalMillis;
+	}
+
+	/**
+	 * Ask to make a call. Unless this throws, the outcome must be reported with {@link #succeeded()},
+	 * {@link #failed(RemoteException)} or {@link #abandoned()}, in a finally block so that a probe is never left open.
+	 *
+	 * @throws RemoteException while the breaker is open, the same error as the failure that opened it
+	 */
+	synchronized void allow() throws RemoteException {
+		if (_state == State.CLOSED) {
+			return;
+		}
+		if (_state == State.OPEN && System.currentTimeMillis() - _openedAt >= _probeIntervalMillis) {
+			moveTo(State.HALF_OPEN);
+		}
+		if (_state == State.HALF_OPEN && !_probing) {
+			_probing = true;
+			return;
+		}
+		Jira4Metrics.increment("breaker.rejected");
+		throw fastFailure();
+	}
+
+	/**
+	 * The call got an answer from JIRA, even if that answer was an error.
+	 */
+	synchronized void succeeded() {
+		_failures = 0;
+		_probing = false;
+		if (_state != State.CLOSED) {
+			moveTo(State.CLOSED);
+		}
+	}
+
+	/**
+	 * The call ended with the given error; only transport failures count against the server.
+	 */
+	synchronized void failed(RemoteException e) {
+		if (!Jira4PluginConnection.isTransportFailure(e)) {
+			succeeded();
+			return;
+		}
+		_lastFailure = e;
+		_probing = false;
+		_failures++;
+		if (_state == State.HALF_OPEN || (_state == State.CLOSED && _failures >= _failureThreshold)) {
+			_openedAt = System.currentTimeMillis();
+			moveTo(State.OPEN);
+		}
+	}
+
+	/**
+	 * The call ended without telling anything about the server, e.g. it was stopped or never sent. The state does
+	 * not change, and if the call was the probe, the next call probes instead.
+	 */
+	synchronized void abandoned() {
+		_probing = false;
+	}
+
+	synchronized State getState() {
+		return _state;
+	}
+
+	private void moveTo(State state) {
+		if (state == State.OPEN) {
+			LOG.warn("JIRA at " + _jiraBaseUrl + " cannot be reached, failing calls for " + _probeIntervalMillis / 1000 + " seconds");
+		} else {
+			LOG.info("Circuit breaker for " + _jiraBaseUrl + " is now " + state);
+		}
+		_state = state;
+		Jira4Metrics.increment("breaker." + state.name().toLowerCase());
+	}
+
+	private RemoteException fastFailure() {
+		final Throwable cause = _lastFailure == null ? null : _lastFailure.detail;
+		final IOException detail = cause instanceof IOException ? (IOException) cause : new ConnectException("JIRA at " + _jiraBaseUrl + " cannot be reached");
+		return AxisFault.makeFault(detail);
+	}
+}
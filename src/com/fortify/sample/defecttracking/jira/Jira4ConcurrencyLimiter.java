@@ -0,0 +1,230 @@
+/*
+ * (C) Copyright 2015 Hewlett-Packard Development Company, L.P.
+ */
+
+package com.fortify.sample.defecttracking.jira;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Limits how many calls to one JIRA may be in flight at the same time, adapting the limit to what the server can
+ * take. The limit grows by about one per round of calls that all finished without delay (additive increase), and
+ * shrinks by a factor when calls take much longer than the fastest recent calls of the same operation or fail to
+ * reach the server at all (multiplicative decrease). Operations are compared only with themselves, since a bulk
+ * search or an issue creation takes much longer than reading the priorities even on an idle server. The limit
+ * shrinks at most once per typical call duration, so one burst of failures counts once.
+ *
+ * Callers beyond the limit wait their turn. The limit, calls in flight and waiting callers are published as
+ * {@link Jira4Metrics} gauges named {@code limiter.limit}, {@code limiter.inflight} and {@code limiter.waiting},
+ * each followed by a colon and the JIRA URL.
+ *
+ */
+final class Jira4ConcurrencyLimiter {
+
+	static final int INITIAL_LIMIT = 4;
+	static final int MIN_LIMIT = 1;
+	static final int DEFAULT_MAX_LIMIT = Jira4HttpTransport.DEFAULT_MAX_CONNECTIONS_PER_HOST;
+	/** Calls slower than this multiple of the fastest recent calls are a sign of congestion */
+	static final double LATENCY_TOLERANCE = 2.0;
+	static final double TIMEOUT_BACKOFF = 0.5;
+	static final double LATENCY_BACKOFF = 0.9;
+	/** How many calls make up one window over which the fastest call is taken */
+	static final int WINDOW = 50;
+
+	private static final ConcurrentMap<String, Jira4ConcurrencyLimiter> LIMITERS = new ConcurrentHashMap<String, Jira4ConcurrencyLimiter>();
+
+	private final String _jiraBaseUrl;
+	private final ReentrantLock _lock = new ReentrantLock();
+	private final Condition _available = _lock.newCondition();
+	private double _limit = INITIAL_LIMIT;
+	private int _maxLimit = DEFAULT_MAX_LIMIT;
+	private int _inFlight;
+	private int _waiting;
+	/** Recent call durations by operation */
+	private final Map<String, Latency> _latencies = new HashMap<String, Latency>();
+	private long _lastDecrease;
+
+	/** Call durations of one operation, guarded by the limiter's lock */
+	private static final class Latency {
+		/** Duration of a call to an idle server, in nanoseconds; 0 until the first window is complete */
+		long baseline;
+		long windowMin = Long.MAX_VALUE;
+		int windowCount;
+	}
+
+	Jira4ConcurrencyLimiter(String jiraBaseUrl) {
+		_jiraBaseUrl = jiraBaseUrl;
+	}
+
+	/**
+	 *
+	 * @return The limiter shared by every connection to the given JIRA
+	 */
+	static Jira4ConcurrencyLimiter getInstance(String jiraBaseUrl) {
+		Jira4ConcurrencyLimiter retval = LIMITERS.get(jiraBaseUrl);
+		if (retval == null) {
+			final Jira4ConcurrencyLimiter created = new Jira4ConcurrencyLimiter(jiraBaseUrl);
+			retval = LIMITERS.putIfAbsent(jiraBaseUrl, created);
+			if (retval == null) {
+				retval = created;
+			}
+		}
+		return retval;
+	}
+
+	/**
+	 * Never let more calls than this be in flight, e.g. because the HTTP transport has no more connections.
+	 */
+	void setMaxLimit(int maxLimit) {
+		_lock.lock();
+		try {
+			_maxLimit = Math.max(MIN_LIMIT, maxLimit);
+			_limit = Math.min(_limit, _maxLimit);
+			publish();
+		} finally {
+			_lock.unlock();
+		}
+	}
+
+	/**
+	 * Wait until another call may be made. Every successful acquire must be followed by
+	 * {@link #release(String, long, boolean)}.
+	 *
+	 * @param timeoutMillis How long to wait at most, or 0 to wait as long as it takes
+	 * @return false if no call could be made in time
+	 */
+	boolean acquire(long timeoutMillis) throws InterruptedException {
+		_lock.lockInterruptibly();
+		try {
+			if (_inFlight >= (int) _limit) {
+				_waiting++;
+				publish();
+				Jira4Metrics.increment("limiter.queued");
+				try {
+					long leftNanos = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+					while (_inFlight >= (int) _limit) {
+						if (timeoutMillis <= 0) {
+							_available.await();
+						} else if (leftNanos <= 0) {
+							Jira4Metrics.increment("limiter.timeout");
+							return false;
+						} else {
+							leftNanos = _available.awaitNanos(leftNanos);
+						}
+					}
+				} finally {
+					_waiting--;
+					publish();
+				}
+			}
+			_inFlight++;
+			publish();
+			return true;
+		} finally {
+			_lock.unlock();
+		}
+	}
+
+	/**
+	 *
+	 * @param operation Name of the JIRA call, whose duration is only compared with earlier calls of the same name
+	 * @param latencyNanos How long the call took
+	 * @param overloaded true if the call never got an answer, e.g. it timed out or could not connect
+	 */
+	void release(String operation, long latencyNanos, boolean overloaded) {
+		_lock.lock();
+		try {
+			final boolean saturated = _inFlight >= (int) _limit;
+			_inFlight--;
+			Latency latency = _latencies.get(operation);
+			if (latency == null) {
+				latency = new Latency();
+				_latencies.put(operation, latency);
+			}
+			if (overloaded) {
+				decrease(TIMEOUT_BACKOFF, latency, latencyNanos);
+			} else {
+				sample(latency, latencyNanos);
+				if (latency.baseline > 0 && latencyNanos > latency.baseline * LATENCY_TOLERANCE) {
+					decrease(LATENCY_BACKOFF, latency, latencyNanos);
+				} else if (saturated) {
+					// Only grow a limit that is actually used
+					_limit = Math.min(_maxLimit, _limit + 1.0 / _limit);
+				}
+			}
+			publish();
+			_available.signalAll();
+		} finally {
+			_lock.unlock();
+		}
+	}
+
+	int getLimit() {
+		_lock.lock();
+		try {
+			return (int) _limit;
+		} finally {
+			_lock.unlock();
+		}
+	}
+
+	int getInFlight() {
+		_lock.lock();
+		try {
+			return _inFlight;
+		} finally {
+			_lock.unlock();
+		}
+	}
+
+	int getWaiting() {
+		_lock.lock();
+		try {
+			return _waiting;
+		} finally {
+			_lock.unlock();
+		}
+	}
+
+	private void decrease(double factor, Latency latency, long latencyNanos) {
+		final long now = System.nanoTime();
+		// Calls that were already in flight when the server slowed down must not shrink the limit again
+		final long guard = latency.baseline > 0 ? latency.baseline : latencyNanos;
+		if (now - _lastDecrease < guard) {
+			return;
+		}
+		_lastDecrease = now;
+		_limit = Math.max(MIN_LIMIT, _limit * factor);
+		Jira4Metrics.increment("limiter.decrease");
+	}
+
+	/**
+	 * Track the fastest call of each window. A faster window replaces the baseline right away, a slower one only
+	 * moves it a little, so the baseline follows a server that got permanently slower without chasing congestion.
+	 */
+	private static void sample(Latency latency, long latencyNanos) {
+		latency.windowMin = Math.min(latency.windowMin, latencyNanos);
+		if (++latency.windowCount < WINDOW) {
+			return;
+		}
+		if (latency.baseline == 0 || latency.windowMin < latency.baseline) {
+			latency.baseline = latency.windowMin;
+		} else {
+			latency.baseline = (long) (latency.baseline * 0.9 + latency.windowMin * 0.1);
+		}
+		latency.windowMin = Long.MAX_VALUE;
+		latency.windowCount = 0;
+	}
+
+	private void publish() {
+		Jira4Metrics.set("limiter.limit:" + _jiraBaseUrl, (int) _limit);
+		Jira4Metrics.set("limiter.inflight:" + _jiraBaseUrl, _inFlight);
+		Jira4Metrics.set("limiter.waiting:" + _jiraBaseUrl, _waiting);
+	}
+}
@@ -0,0 +1,127 @@
+/*
+ * (C) Copyright 2015 Hewlett-Packard Development Company, L.P.
+ */
+
+package com.fortify.sample.defecttracking.jira;
+
+import java.lang.ref.PhantomReference;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Logs out JIRA sessions whose {@link Jira4PluginConnection} was garbage collected without being closed.
+ *
+ * Each open connection is tracked with a phantom reference. A single background thread waits for collected
+ * connections and hands everything that has accumulated to the {@link Jira4LogoutQueue} in one batch. This
+ * replaces the old finalizer, which made a remote call on the JVM finalizer thread and kept every connection
+ * alive for an extra GC cycle.
+ *
+ */
+final class Jira4ConnectionReaper {
+
+	private static final Log LOG = LogFactory.getLog(Jira4ConnectionReaper.class);
+
+	static final int MAX_BATCH_SIZE = 50;
+
+	private static final Jira4ConnectionReaper INSTANCE = new Jira4ConnectionReaper();
+
+	private final ReferenceQueue<Jira4PluginConnection> _queue = new ReferenceQueue<Jira4PluginConnection>();
+	/** Keeps the references themselves reachable until they are enqueued or unregistered */
+	private final ConcurrentMap<Registration, Boolean> _registrations = new ConcurrentHashMap<Registration, Boolean>();
+
+	private Jira4ConnectionReaper() {
+		final Thread reaper = new Jira4DaemonThreadFactory("jira4-connection-reaper").newThread(new Runnable() {
+			public void run() {
+				reap();
+			}
+		});
+		reaper.start();
+	}
+
+	static Jira4ConnectionReaper getInstance() {
+		return INSTANCE;
+	}
+
+	/**
+	 * Start watching a connection. The returned registration must be unregistered when the connection is closed.
+	 */
+	Registration register(Jira4PluginConnection connection, Jira4PluginConnection.RemoteSession session) {
+		final Registration retval = new Registration(connection, session, _queue);
+		_registrations.put(retval, Boolean.TRUE);
+		return retval;
+	}
+
+	/**
+	 *
+	 * @return Number of connections currently being watched
+	 */
+	int getRegisteredCount() {
+		return _registrations.size();
+	}
+
+	private void reap() {
+		final List<Registration> batch = new ArrayList<Registration>(MAX_BATCH_SIZE);
+		while (true) {
+			try {
+				batch.add((Registration) _queue.remove());
+				Reference<? extends Jira4PluginConnection> next;
+				while (batch.size() < MAX_BATCH_SIZE && (next = _queue.poll()) != null) {
+					batch.add((Registration) next);
+				}
+				logoutLeaked(batch);
+			} catch (final InterruptedException e) {
+				return;
+			} catch (final RuntimeException e) {
+				LOG.warn("Unable to clean up leaked JIRA sessions", e);
+			} finally {
+				batch.clear();
+			}
+		}
+	}
+
+	private void logoutLeaked(List<Registration> batch) {
+		int leaked = 0;
+		for (final Registration registration : batch) {
+			_registrations.remove(registration);
+			final Jira4PluginConnection.RemoteSession session = registration._session;
+			if (session.close()) {
+				leaked++;
+				if (session.pool != null) {
+					session.pool.forgetLeaked(session.poolKey);
+				}
+			}
+		}
+		if (leaked > 0) {
+			Jira4Metrics.add("session.leaked", leaked);
+			LOG.info("Logged out " + leaked + " JIRA sessions that were never closed");
+		}
+	}
+
+	/**
+	 * Link between a connection and the session it has to log out.
+	 */
+	final class Registration extends PhantomReference<Jira4PluginConnection> {
+
+		private final Jira4PluginConnection.RemoteSession _session;
+
+		Registration(Jira4PluginConnection connection, Jira4PluginConnection.RemoteSession session, ReferenceQueue<Jira4PluginConnection> queue) {
+			super(connection, queue);
+			_session = session;
+		}
+
+		/**
+		 * Stop watching, the connection was closed properly.
+		 */
+		void unregister() {
+			_registrations.remove(this);
+			clear();
+		}
+	}
+}
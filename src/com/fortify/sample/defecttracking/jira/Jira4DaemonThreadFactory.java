@@ -0,0 +1,28 @@
+/*
+ * (C) Copyright 2015 Hewlett-Packard Development Company, L.P.
+ */
+
+package com.fortify.sample.defecttracking.jira;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Creates named daemon threads so that background work of the plugin never keeps SSC from shutting down.
+ *
+ */
+final class Jira4DaemonThreadFactory implements ThreadFactory {
+
+	private final String _namePrefix;
+	private final AtomicInteger _counter = new AtomicInteger();
+
+	Jira4DaemonThreadFactory(String namePrefix) {
+		_namePrefix = namePrefix;
+	}
+
+	public Thread newThread(Runnable r) {
+		final Thread thread = new Thread(r, _namePrefix + '-' + _counter.incrementAndGet());
+		thread.setDaemon(true);
+		return thread;
+	}
+}
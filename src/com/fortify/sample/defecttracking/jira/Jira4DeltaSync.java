@@ -0,0 +1,110 @@
+/*
+ * (C) Copyright 2015 Hewlett-Packard Development Company, L.P.
+ */
+
+package com.fortify.sample.defecttracking.jira;
+
+import java.rmi.RemoteException;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Keeps the {@link Jira4BugStateStore} of one JIRA project current by asking JIRA only for the issues changed since
+ * the previous sync. The high-water mark is the local time at which the previous sync started; the search goes back
+ * that many minutes on JIRA's clock, plus {@link #OVERLAP_MINUTES} to cover JIRA's minute granularity.
+ *
+ * Every known issue of the project is read again on a slower schedule, and whenever too many issues changed to be
+ * read with a single search. Both marks are saved in the store, so a persistent store resumes from them after a restart.
+ *
+ */
+final class Jira4DeltaSync {
+
+	private static final Log LOG = LogFactory.getLog(Jira4DeltaSync.class);
+
+	static final int OVERLAP_MINUTES = 1;
+	static final int MAX_DELTA_ISSUES = 1000;
+
+	private final String _projectKey;
+	private final Jira4BugStateStore _store;
+	private long _highWaterMark;
+	private long _lastFullSync;
+
+	/**
+	 * Use {@link Jira4BugStateStore#getDeltaSync(String)} to get the sync of a project.
+	 */
+	Jira4DeltaSync(String projectKey, Jira4BugStateStore store) {
+		_projectKey = projectKey;
+		_store = store;
+		final long[] marks = store.getSyncMarks(projectKey);
+		_highWaterMark = marks[0];
+		_lastFullSync = marks[1];
+	}
+
+	/**
+	 * Bring the store up to date unless the previous sync is more recent than the interval. Callers arriving during
+	 * a sync wait for it, so they see its result.
+	 *
+	 * @param connection Connection to read with
+	 * @param intervalMillis How old the previous sync may be
+	 * @param fullIntervalMillis How old the previous full read of every known issue may be
+	 * @param chunkSize How many issues to read per search during a full read
+	 * @throws RemoteException
+	 */
+	synchronized void syncIfDue(Jira4PluginConnection connection, long intervalMillis, long fullIntervalMillis, int chunkSize)
+			throws RemoteException {
+		final long now = System.currentTimeMillis();
+		if (_highWaterMark != 0 && now - _highWaterMark < intervalMillis) {
+			return;
+		}
+		if (_highWaterMark == 0 || now - _lastFullSync >= fullIntervalMillis || !syncDelta(connection, now)) {
+			syncFull(connection, chunkSize);
+			_lastFullSync = now;
+		}
+		_highWaterMark = now;
+		_store.putSyncMarks(_projectKey, _highWaterMark, _lastFullSync);
+	}
+
+	/**
+	 *
+	 * @return false if too many issues changed and a full sync is needed instead
+	 */
+	private boolean syncDelta(Jira4PluginConnection connection, long now) throws RemoteException {
+		final int minutes = (int) ((now - _highWaterMark + 59999) / 60000) + OVERLAP_MINUTES;
+		final List<Jira4BugState> changed = connection.fetchUpdated(_projectKey, minutes, MAX_DELTA_ISSUES);
+		Jira4Metrics.increment("sync.delta.runs");
+		if (changed == null) {
+			LOG.info("More than " + MAX_DELTA_ISSUES + " issues of " + _projectKey + " changed, reading all known issues instead");
+			return false;
+		}
+		int applied = 0;
+		for (final Jira4BugState state : changed) {
+			// The search also returns issues that were not filed by us
+			if (_store.contains(state.getIssueKey())) {
+				_store.put(state);
+				applied++;
+			}
+		}
+		Jira4Metrics.add("sync.delta.applied", applied);
+		return true;
+	}
+
+	private void syncFull(Jira4PluginConnection connection, int chunkSize) throws RemoteException {
+		final List<String> keys = _store.getKeys(_projectKey);
+		Jira4Metrics.increment("sync.full.runs");
+		for (int i = 0; i < keys.size(); i += chunkSize) {
+			final Jira4BulkResult<Jira4BugState> result = connection.fetchStates(keys.subList(i, Math.min(i + chunkSize, keys.size())));
+			for (final Jira4BugState state : result.getResults().values()) {
+				_store.put(state);
+			}
+			for (final Map.Entry<String, String> error : result.getErrors().entrySet()) {
+				// Forget it, so the next status check asks JIRA and reports what is wrong
+				LOG.debug("Unable to sync " + error.getKey() + ": " + error.getValue());
+				_store.remove(error.getKey());
+			}
+		}
+		Jira4Metrics.add("sync.full.read", keys.size());
+	}
+}
@@ -0,0 +1,539 @@
+/*
+ * (C) Copyright 2015 Hewlett-Packard Development Company, L.P.
+ */
+
+package com.fortify.sample.defecttracking.jira;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.atlassian.jira.rpc.soap.client.RemoteIssue;
+
+/**
+ * Knows which JIRA issue was filed for a Fortify issue instance, so that the same finding is not filed twice when
+ * SSC retries a submission or two users submit it. Every filed issue carries a {@link #MARKER} line per instance id
+ * in its description. The index is filled from those markers with a search per project the first time it is used,
+ * and kept current as issues are filed through it. The search of a project holds up only those filing into that
+ * project, and only for part of their time; lookups and filings into other projects go on meanwhile.
+ *
+ * With a directory the index and how far each project was searched are appended to a log file, framed like the records
+ * of the {@link Jira4BugStateStore} and compacted the same way, so that a restarted SSC does not search again. If the
+ * log cannot be written, the index carries on in memory.
+ *
+ * A {@link Jira4BloomFilter} in front of the index answers most lookups of instances that were never filed without
+ * searching the index itself.
+ *
+ */
+final class Jira4DuplicateIndex {
+
+	private static final Log LOG = LogFactory.getLog(Jira4DuplicateIndex.class);
+
+	static final String MARKER = "FortifyInstanceId";
+	static final int INITIAL_CAPACITY = 10000;
+	static final double FALSE_POSITIVE_RATE = 0.01;
+	static final int MIN_RECORDS_BEFORE_COMPACTION = 1000;
+
+	private static final byte RECORD_FILED = 1;
+	private static final byte RECORD_REMOVED = 2;
+	private static final byte RECORD_BACKFILLED = 3;
+	private static final byte RECORD_SEARCHED = 4;
+
+	private static final Pattern MARKER_LINE = Pattern.compile(MARKER + ": *(\\S+)");
+	private static final ConcurrentMap<String, Jira4DuplicateIndex> INSTANCES = new ConcurrentHashMap<String, Jira4DuplicateIndex>();
+
+	private final ReadWriteLock _lock = new ReentrantReadWriteLock();
+	private final Map<String, String> _issueKeys = new HashMap<String, String>();
+	private Jira4BloomFilter _filter = new Jira4BloomFilter(INITIAL_CAPACITY, FALSE_POSITIVE_RATE);
+	private int _capacity = INITIAL_CAPACITY;
+
+	private final Set<String> _backfilled = Collections.synchronizedSet(new HashSet<String>());
+	/** Project key to the key of the last issue read by a search that did not finish, guarded by the lock */
+	private final Map<String, String> _searchedTo = new HashMap<String, String>();
+	private final ConcurrentMap<String, CountDownLatch> _backfilling = new ConcurrentHashMap<String, CountDownLatch>();
+	private final ConcurrentMap<String, CountDownLatch> _filing = new ConcurrentHashMap<String, CountDownLatch>();
+
+	private final File _file;
+	/** Only used with the write lock held */
+	private RandomAccessFile _log;
+	private int _records;
+
+	/**
+	 * Create an index that is kept in memory only.
+	 */
+	Jira4DuplicateIndex() {
+		_file = null;
+	}
+
+	/**
+	 * Open the index kept in the given file, creating the file if needed.
+	 *
+	 * @throws IOException if the file cannot be read or written
+	 */
+	Jira4DuplicateIndex(File file) throws IOException {
+		_file = file;
+		load();
+	}
+
+	/**
+	 *
+	 * @param directory Where to keep the index, or null to keep it in memory only
+	 * @return The index shared by everyone filing into the given JIRA
+	 * @throws IOException if the index in the directory cannot be opened
+	 */
+	static Jira4DuplicateIndex getInstance(String jiraBaseUrl, File directory) throws IOException {
+		final String key = jiraBaseUrl + '|' + (directory == null ? "" : directory.getAbsolutePath());
+		Jira4DuplicateIndex retval = INSTANCES.get(key);
+		if (retval == null) {
+			synchronized (INSTANCES) {
+				retval = INSTANCES.get(key);
+				if (retval == null) {
+					if (directory == null) {
+						retval = new Jira4DuplicateIndex();
+					} else {
+						if (!directory.isDirectory() && !directory.mkdirs()) {
+							throw new IOException("Unable to create directory " + directory);
+						}
+						retval = new Jira4DuplicateIndex(new File(directory, fileNameFor(jiraBaseUrl)));
+					}
+					INSTANCES.put(key, retval);
+				}
+			}
+		}
+		return retval;
+	}
+
+	static String fileNameFor(String jiraBaseUrl) {
+		return "duplicates-" + jiraBaseUrl.replaceAll("[^A-Za-z0-9.-]+", "_") + ".log";
+	}
+
+	/**
+	 *
+	 * @return Key of the issue filed for the instance, or null
+	 */
+	String find(String instanceId) {
+		_lock.readLock().lock();
+		try {
+			if (!_filter.mightContain(instanceId)) {
+				Jira4Metrics.increment("duplicates.filter.negative");
+				return null;
+			}
+			return _issueKeys.get(instanceId);
+		} finally {
+			_lock.readLock().unlock();
+		}
+	}
+
+	void put(String instanceId, String issueKey) {
+		_lock.writeLock().lock();
+		try {
+			if (!issueKey.equals(_issueKeys.get(instanceId))) {
+				index(instanceId, issueKey);
+				append(record(RECORD_FILED, instanceId, issueKey));
+				compactIfNeeded();
+			}
+		} finally {
+			_lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Add the instance to the map and the filter, with the write lock held.
+	 */
+	private void index(String instanceId, String issueKey) {
+		_issueKeys.put(instanceId, issueKey);
+		_filter.add(instanceId);
+		if (_issueKeys.size() > _capacity) {
+			// Keep the false positive rate down as the index grows
+			_capacity *= 2;
+			_filter = new Jira4BloomFilter(_capacity, FALSE_POSITIVE_RATE);
+			for (final String known : _issueKeys.keySet()) {
+				_filter.add(known);
+			}
+		}
+	}
+
+	/**
+	 * Forget the instance, e.g. because its issue was deleted, unless it has been filed again since.
+	 */
+	void remove(String instanceId, String issueKey) {
+		_lock.writeLock().lock();
+		try {
+			if (issueKey.equals(_issueKeys.get(instanceId))) {
+				_issueKeys.remove(instanceId);
+				append(record(RECORD_REMOVED, instanceId, null));
+				compactIfNeeded();
+			}
+		} finally {
+			_lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Read the markers of the project's issues from JIRA, unless that was already done. The search pages through the
+	 * project in key order; each page is added to the index as soon as it is read, and the search carries on after
+	 * the last page read when it is called again, so a project too large to search within one call is searched over
+	 * several. A call spends at most half of what is left of its connection's operation on the search, or on waiting
+	 * for another caller searching the same project, so that there is time left to file.
+	 *
+	 * @param pageSize How many issues to read per search
+	 * @return true if the project has been searched; false if the search is not finished, in which case duplicates
+	 *         of issues not read yet are not detected
+	 */
+	boolean backfill(Jira4PluginConnection connection, String projectKey, int pageSize) throws InterruptedException {
+		if (projectKey == null) {
+			return true;
+		}
+		final Jira4Operation operation = connection.getOperation();
+		final long deadline;
+		try {
+			deadline = System.currentTimeMillis() + (operation == null ? Jira4Operation.DEFAULT_TIMEOUT_SECONDS * 1000L : operation.remainingMillis()) / 2;
+		} catch (final RemoteException e) {
+			// Nothing can be filed either
+			return false;
+		}
+		while (!_backfilled.contains(projectKey)) {
+			final long left = deadline - System.currentTimeMillis();
+			if (left <= 0 || (operation != null && operation.isStopped())) {
+				Jira4Metrics.increment("duplicates.backfill.unfinished");
+				return false;
+			}
+			final CountDownLatch search = new CountDownLatch(1);
+			final CountDownLatch running = _backfilling.putIfAbsent(projectKey, search);
+			if (running == null) {
+				try {
+					if (!search(connection, projectKey, pageSize, deadline)) {
+						Jira4Metrics.increment("duplicates.backfill.unfinished");
+						return false;
+					}
+				} finally {
+					_backfilling.remove(projectKey, search);
+					search.countDown();
+				}
+			} else {
+				// If that search does not finish, one of those waiting carries it on
+				Jira4Metrics.increment("duplicates.backfill.wait");
+				running.await(Math.min(left, Jira4SingleFlight.POLL_MILLIS), TimeUnit.MILLISECONDS);
+			}
+		}
+		return true;
+	}
+
+	/**
+	 *
+	 * @return false if the deadline passed or JIRA could not be reached before the last page was read
+	 */
+	private boolean search(Jira4PluginConnection connection, String projectKey, int pageSize, long deadline) {
+		String afterKey;
+		_lock.readLock().lock();
+		try {
+			afterKey = _searchedTo.get(projectKey);
+		} finally {
+			_lock.readLock().unlock();
+		}
+		try {
+			RemoteIssue[] page;
+			do {
+				if (System.currentTimeMillis() >= deadline) {
+					LOG.info("Searched " + projectKey + " for filed instances up to " + afterKey + ", carrying on with the next filing");
+					return false;
+				}
+				page = connection.findByDescription(projectKey, MARKER, afterKey, pageSize);
+				final Map<String, String> found = new HashMap<String, String>();
+				for (final RemoteIssue issue : page) {
+					for (final String instanceId : parse(issue.getDescription())) {
+						found.put(instanceId, issue.getKey());
+					}
+					afterKey = issue.getKey();
+				}
+				Jira4Metrics.increment("duplicates.backfill.pages");
+				add(projectKey, found, afterKey, page.length < pageSize);
+			} while (page.length == pageSize);
+		} catch (final RemoteException e) {
+			if (Jira4PluginConnection.isTransportFailure(e)) {
+				LOG.info("Unable to search " + projectKey + " for filed instances, carrying on with the next filing", e);
+				return false;
+			}
+			LOG.info("Unable to search " + projectKey + " for filed instances, duplicates are only detected for issues filed from now on", e);
+			add(projectKey, Collections.<String, String> emptyMap(), afterKey, true);
+		}
+		return true;
+	}
+
+	/**
+	 * Add a page of search results.
+	 *
+	 * @param afterKey Key of the last issue read so far, or null
+	 * @param last true if the project has been searched
+	 */
+	private void add(String projectKey, Map<String, String> found, String afterKey, boolean last) {
+		_lock.writeLock().lock();
+		try {
+			for (final Map.Entry<String, String> entry : found.entrySet()) {
+				// An instance filed while the search ran is already known, and more recent
+				if (!_issueKeys.containsKey(entry.getKey())) {
+					index(entry.getKey(), entry.getValue());
+					append(record(RECORD_FILED, entry.getKey(), entry.getValue()));
+				}
+			}
+			if (last) {
+				LOG.debug("Searched " + projectKey + " for filed instances");
+				_searchedTo.remove(projectKey);
+				_backfilled.add(projectKey);
+				append(record(RECORD_BACKFILLED, projectKey, null));
+			} else if (afterKey != null) {
+				_searchedTo.put(projectKey, afterKey);
+				append(record(RECORD_SEARCHED, projectKey, afterKey));
+			}
+			compactIfNeeded();
+		} finally {
+			_lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Close the log file. The index keeps working in memory afterwards.
+	 */
+	void close() {
+		_lock.writeLock().lock();
+		try {
+			closeLog();
+		} finally {
+			_lock.writeLock().unlock();
+		}
+	}
+
+	private void closeLog() {
+		if (_log != null) {
+			try {
+				_log.close();
+			} catch (final IOException e) {
+				LOG.debug("Unable to close " + _file, e);
+			}
+			_log = null;
+		}
+	}
+
+	/**
+	 * Append a record to the log, if there is one, with the write lock held.
+	 */
+	private void append(byte[] record) {
+		if (_log == null) {
+			return;
+		}
+		long previous = -1;
+		try {
+			previous = _log.length();
+			_log.seek(previous);
+			_log.write(record);
+			_records++;
+		} catch (final IOException e) {
+			// Duplicates are still detected until SSC stops
+			LOG.warn("Unable to write to " + _file + ", filed instances are no longer saved", e);
+			if (previous >= 0) {
+				// Leave the log ending with a whole record
+				try {
+					_log.setLength(previous);
+				} catch (final IOException f) {
+					LOG.debug("Unable to truncate " + _file, f);
+				}
+			}
+			closeLog();
+		}
+	}
+
+	private void compactIfNeeded() {
+		if (_log == null || _records <= MIN_RECORDS_BEFORE_COMPACTION || _records <= 2 * (_issueKeys.size() + _backfilled.size() + _searchedTo.size())) {
+			return;
+		}
+		try {
+			compact();
+		} catch (final IOException e) {
+			LOG.warn("Unable to compact " + _file + ", filed instances are no longer saved", e);
+			closeLog();
+		}
+	}
+
+	/**
+	 * Write the current records to a new file and replace the log with it.
+	 */
+	private void compact() throws IOException {
+		final File compacted = new File(_file.getPath() + ".compact");
+		final RandomAccessFile out = new RandomAccessFile(compacted, "rw");
+		try {
+			out.setLength(0);
+			synchronized (_backfilled) {
+				for (final String projectKey : _backfilled) {
+					out.write(record(RECORD_BACKFILLED, projectKey, null));
+				}
+			}
+			for (final Map.Entry<String, String> entry : _searchedTo.entrySet()) {
+				out.write(record(RECORD_SEARCHED, entry.getKey(), entry.getValue()));
+			}
+			for (final Map.Entry<String, String> entry : _issueKeys.entrySet()) {
+				out.write(record(RECORD_FILED, entry.getKey(), entry.getValue()));
+			}
+			out.getFD().sync();
+		} finally {
+			out.close();
+		}
+
+		_log.close();
+		_log = null;
+		if (!_file.delete() || !compacted.renameTo(_file)) {
+			throw new IOException("Unable to replace " + _file + " with " + compacted);
+		}
+		_log = new RandomAccessFile(_file, "rw");
+		_records = _issueKeys.size() + _backfilled.size() + _searchedTo.size();
+		Jira4Metrics.increment("duplicates.compacted");
+	}
+
+	private void load() throws IOException {
+		final File compacted = new File(_file.getPath() + ".compact");
+		if (!_file.exists() && compacted.exists() && !compacted.renameTo(_file)) {
+			// A crash between deleting the log and renaming its compacted copy
+			throw new IOException("Unable to restore " + _file + " from " + compacted);
+		}
+		long validLength = 0;
+		if (_file.exists()) {
+			final DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(_file)));
+			try {
+				byte[] payload;
+				while ((payload = Jira4BugStateStore.readRecord(in)) != null) {
+					apply(payload);
+					validLength += 8 + payload.length;
+					_records++;
+				}
+			} finally {
+				in.close();
+			}
+		}
+		_log = new RandomAccessFile(_file, "rw");
+		if (_log.length() > validLength) {
+			LOG.warn("Cutting off " + (_log.length() - validLength) + " unreadable bytes at the end of " + _file);
+			_log.setLength(validLength);
+		}
+		LOG.info("Loaded " + _issueKeys.size() + " filed instances of " + _backfilled.size() + " projects from " + _file);
+	}
+
+	private void apply(byte[] payload) throws IOException {
+		final DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+		final byte type = in.readByte();
+		final String key = in.readUTF();
+		if (type == RECORD_FILED) {
+			index(key, in.readUTF());
+		} else if (type == RECORD_REMOVED) {
+			_issueKeys.remove(key);
+		} else if (type == RECORD_BACKFILLED) {
+			_searchedTo.remove(key);
+			_backfilled.add(key);
+		} else if (type == RECORD_SEARCHED) {
+			_searchedTo.put(key, in.readUTF());
+		} else {
+			throw new IOException("Unknown record type " + type);
+		}
+	}
+
+	/**
+	 *
+	 * @param key Instance id, or project key of a {@link #RECORD_BACKFILLED} or {@link #RECORD_SEARCHED}
+	 * @param issueKey Issue key of a {@link #RECORD_FILED} or {@link #RECORD_SEARCHED}, otherwise null
+	 */
+	private static byte[] record(byte type, String key, String issueKey) {
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		final DataOutputStream out = new DataOutputStream(bytes);
+		try {
+			out.writeByte(type);
+			out.writeUTF(key);
+			if (issueKey != null) {
+				out.writeUTF(issueKey);
+			}
+		} catch (final IOException e) {
+			throw new IllegalStateException(e);
+		}
+		return Jira4BugStateStore.frame(bytes.toByteArray());
+	}
+
+	/**
+	 * Wait until nobody else is filing any of the instances, and keep others from doing so until
+	 * {@link #release(List, CountDownLatch)}. Instances are claimed in a fixed order, so two filings sharing several
+	 * instances cannot wait for each other.
+	 *
+	 * @return What to pass to {@link #release(List, CountDownLatch)}
+	 */
+	CountDownLatch claim(List<String> instanceIds) throws InterruptedException {
+		final CountDownLatch retval = new CountDownLatch(1);
+		for (final String instanceId : new TreeSet<String>(instanceIds)) {
+			CountDownLatch busy;
+			while ((busy = _filing.putIfAbsent(instanceId, retval)) != null && busy != retval) {
+				Jira4Metrics.increment("duplicates.claim.wait");
+				busy.await();
+			}
+		}
+		return retval;
+	}
+
+	void release(List<String> instanceIds, CountDownLatch claim) {
+		for (final String instanceId : instanceIds) {
+			_filing.remove(instanceId, claim);
+		}
+		claim.countDown();
+	}
+
+	/**
+	 *
+	 * @return The description with a marker line for each instance
+	 */
+	static String stamp(String description, List<String> instanceIds) {
+		if (instanceIds.isEmpty()) {
+			return description;
+		}
+		final StringBuilder retval = new StringBuilder(description == null ? "" : description);
+		retval.append('\n');
+		for (final String instanceId : instanceIds) {
+			retval.append('\n').append(MARKER).append(": ").append(instanceId);
+		}
+		return retval.toString();
+	}
+
+	/**
+	 *
+	 * @return The instance ids marked in the description
+	 */
+	static List<String> parse(String description) {
+		final List<String> retval = new ArrayList<String>(1);
+		if (description != null) {
+			final Matcher matcher = MARKER_LINE.matcher(description);
+			while (matcher.find()) {
+				retval.add(matcher.group(1));
+			}
+		}
+		return retval;
+	}
+}
@@ -0,0 +1,417 @@
+/*
+ * (C) Copyright 2015 Hewlett-Packard Development Company, L.P.
+ */
+
+package com.fortify.sample.defecttracking.jira;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Submissions waiting to be filed into JIRA by the {@link Jira4FilingQueue}, kept in an append-only log so that
+ * none is lost when SSC stops. Each submission is known by a provisional id until it is filed; the issue key it
+ * was filed as, or why it could not be filed, is kept for as long as the journal exists so that the provisional id
+ * SSC was given keeps working.
+ *
+ * A submission is written to disk before it is acknowledged, and so is every attempt to file it. A submission that
+ * was attempted before is looked up in JIRA before it is filed again, see {@link Entry#getAttempts()}.
+ *
+ * Records are framed like those of the {@link Jira4BugStateStore}; the log is compacted the same way.
+ *
+ */
+final class Jira4FilingJournal {
+
+	private static final Log LOG = LogFactory.getLog(Jira4FilingJournal.class);
+
+	static final String PROVISIONAL_PREFIX = "queued:";
+	static final String SUBMISSION_MARKER = "FortifySubmissionId";
+	static final int MIN_RECORDS_BEFORE_COMPACTION = 1000;
+
+	private static final byte RECORD_SUBMITTED = 1;
+	private static final byte RECORD_ATTEMPTED = 2;
+	private static final byte RECORD_FILED = 3;
+	private static final byte RECORD_FAILED = 4;
+
+	/**
+	 * A submission waiting to be filed. Credentials are not part of it; they are only ever kept in memory.
+	 */
+	static final class Entry {
+		private final String _id;
+		private final String _userName;
+		private final long _submittedAt;
+		private final Map<String, String> _params;
+		private final List<String> _instanceIds;
+		private volatile int _attempts;
+
+		Entry(String id, String userName, long submittedAt, Map<String, String> params, List<String> instanceIds) {
+			_id = id;
+			_userName = userName;
+			_submittedAt = submittedAt;
+			_params = Collections.unmodifiableMap(new HashMap<String, String>(params));
+			_instanceIds = Collections.unmodifiableList(new ArrayList<String>(instanceIds));
+		}
+
+		/**
+		 *
+		 * @return The provisional id, which starts with {@link Jira4FilingJournal#PROVISIONAL_PREFIX}
+		 */
+		String getId() {
+			return _id;
+		}
+
+		String getUserName() {
+			return _userName;
+		}
+
+		long getSubmittedAt() {
+			return _submittedAt;
+		}
+
+		Map<String, String> getParams() {
+			return _params;
+		}
+
+		List<String> getInstanceIds() {
+			return _instanceIds;
+		}
+
+		/**
+		 *
+		 * @return How often filing was started, including attempts cut short by a crash
+		 */
+		int getAttempts() {
+			return _attempts;
+		}
+
+		/**
+		 *
+		 * @return The part of the id that is searchable in JIRA
+		 */
+		String getToken() {
+			return _id.substring(PROVISIONAL_PREFIX.length());
+		}
+	}
+
+	/**
+	 *
+	 * @return The description with a line naming the submission, so that an issue filed by an attempt whose outcome
+	 *         was lost can be found by searching for {@link Entry#getToken()}
+	 */
+	static String stamp(String description, Entry entry) {
+		return (description == null ? "" : description) + "\n\n" + SUBMISSION_MARKER + ": " + entry.getToken();
+	}
+
+	private final File _file;
+	private RandomAccessFile _log;
+	private final Map<String, Entry> _pending = new LinkedHashMap<String, Entry>();
+	private final Map<String, String> _filed = new HashMap<String, String>();
+	private final Map<String, String> _failed = new HashMap<String, String>();
+	private int _records;
+
+	/**
+	 * Open the journal kept in the given file, creating the file if needed.
+	 *
+	 * @throws IOException if the file cannot be read or written
+	 */
+	Jira4FilingJournal(File file) throws IOException {
+		_file = file;
+		load();
+	}
+
+	static String fileNameFor(String jiraBaseUrl) {
+		return "filing-" + jiraBaseUrl.replaceAll("[^A-Za-z0-9.-]+", "_") + ".log";
+	}
+
+	static boolean isProvisional(String bugId) {
+		return bugId != null && bugId.startsWith(PROVISIONAL_PREFIX);
+	}
+
+	/**
+	 * Write the submission to disk.
+	 *
+	 * @return The submission with its provisional id
+	 * @throws IOException if it cannot be written, in which case it was not accepted
+	 */
+	synchronized Entry submit(String userName, Map<String, String> params, List<String> instanceIds) throws IOException {
+		final Entry retval = new Entry(PROVISIONAL_PREFIX + UUID.randomUUID().toString().replace("-", ""), userName, System.currentTimeMillis(),
+				params, instanceIds);
+		append(submittedRecord(retval), true);
+		_pending.put(retval.getId(), retval);
+		return retval;
+	}
+
+	/**
+	 * Record that filing of the submission is about to start.
+	 *
+	 * @throws IOException if that cannot be recorded, in which case filing must not start
+	 */
+	synchronized void attempted(Entry entry) throws IOException {
+		append(idRecord(RECORD_ATTEMPTED, entry.getId(), null), true);
+		entry._attempts++;
+	}
+
+	synchronized void filed(Entry entry, String issueKey) throws IOException {
+		append(idRecord(RECORD_FILED, entry.getId(), issueKey), true);
+		_pending.remove(entry.getId());
+		_filed.put(entry.getId(), issueKey);
+		compactIfNeeded();
+	}
+
+	synchronized void failed(Entry entry, String message) throws IOException {
+		append(idRecord(RECORD_FAILED, entry.getId(), message), true);
+		_pending.remove(entry.getId());
+		_failed.put(entry.getId(), message);
+		compactIfNeeded();
+	}
+
+	/**
+	 *
+	 * @return Submissions waiting to be filed, oldest first
+	 */
+	synchronized List<Entry> getPending() {
+		return new ArrayList<Entry>(_pending.values());
+	}
+
+	synchronized boolean isPending(String id) {
+		return _pending.containsKey(id);
+	}
+
+	/**
+	 *
+	 * @return Key of the issue the submission was filed as, or null
+	 */
+	synchronized String getIssueKey(String id) {
+		return _filed.get(id);
+	}
+
+	/**
+	 *
+	 * @return Why the submission could not be filed, or null
+	 */
+	synchronized String getFailure(String id) {
+		return _failed.get(id);
+	}
+
+	synchronized void close() {
+		if (_log != null) {
+			try {
+				_log.close();
+			} catch (final IOException e) {
+				LOG.debug("Unable to close " + _file, e);
+			}
+			_log = null;
+		}
+	}
+
+	private void append(byte[] record, boolean sync) throws IOException {
+		if (_log == null) {
+			throw new IOException(_file + " is closed");
+		}
+		final long previous = _log.length();
+		try {
+			_log.seek(previous);
+			_log.write(record);
+			if (sync) {
+				_log.getFD().sync();
+			}
+		} catch (final IOException e) {
+			// Records written after a torn one would be cut off with it when the journal is loaded
+			try {
+				_log.setLength(previous);
+			} catch (final IOException f) {
+				LOG.error("Unable to cut off a partly written record at the end of " + _file + ", submissions can no longer be queued", f);
+				close();
+			}
+			throw e;
+		}
+		_records++;
+	}
+
+	private void compactIfNeeded() {
+		final int current = _pending.size() + _filed.size() + _failed.size();
+		if (_log == null || _records <= MIN_RECORDS_BEFORE_COMPACTION || _records <= 2 * current) {
+			return;
+		}
+		try {
+			compact();
+		} catch (final IOException e) {
+			LOG.error("Unable to compact " + _file + ", submissions can no longer be queued", e);
+			close();
+		}
+	}
+
+	private void compact() throws IOException {
+		final File compacted = new File(_file.getPath() + ".compact");
+		final RandomAccessFile out = new RandomAccessFile(compacted, "rw");
+		try {
+			out.setLength(0);
+			for (final Map.Entry<String, String> filed : _filed.entrySet()) {
+				out.write(idRecord(RECORD_FILED, filed.getKey(), filed.getValue()));
+			}
+			for (final Map.Entry<String, String> failed : _failed.entrySet()) {
+				out.write(idRecord(RECORD_FAILED, failed.getKey(), failed.getValue()));
+			}
+			for (final Entry entry : _pending.values()) {
+				out.write(submittedRecord(entry));
+				for (int i = 0; i < entry.getAttempts(); i++) {
+					out.write(idRecord(RECORD_ATTEMPTED, entry.getId(), null));
+				}
+			}
+			out.getFD().sync();
+		} finally {
+			out.close();
+		}
+
+		_log.close();
+		_log = null;
+		if (!_file.delete() || !compacted.renameTo(_file)) {
+			throw new IOException("Unable to replace " + _file + " with " + compacted);
+		}
+		_log = new RandomAccessFile(_file, "rw");
+		_records = _filed.size() + _failed.size() + _pending.size();
+		Jira4Metrics.increment("filing.journal.compacted");
+	}
+
+	private void load() throws IOException {
+		final File compacted = new File(_file.getPath() + ".compact");
+		if (!_file.exists() && compacted.exists() && !compacted.renameTo(_file)) {
+			// A crash between deleting the log and renaming its compacted copy
+			throw new IOException("Unable to restore " + _file + " from " + compacted);
+		}
+		long validLength = 0;
+		if (_file.exists()) {
+			final DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(_file)));
+			try {
+				byte[] payload;
+				while ((payload = Jira4BugStateStore.readRecord(in)) != null) {
+					apply(payload);
+					validLength += 8 + payload.length;
+					_records++;
+				}
+			} finally {
+				in.close();
+			}
+		}
+		_log = new RandomAccessFile(_file, "rw");
+		if (_log.length() > validLength) {
+			LOG.warn("Cutting off " + (_log.length() - validLength) + " unreadable bytes at the end of " + _file);
+			_log.setLength(validLength);
+		}
+		LOG.info("Loaded " + _pending.size() + " queued submissions from " + _file);
+	}
+
+	private void apply(byte[] payload) throws IOException {
+		final DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+		final byte type = in.readByte();
+		final String id = in.readUTF();
+		if (type == RECORD_SUBMITTED) {
+			final String userName = in.readUTF();
+			final long submittedAt = in.readLong();
+			final int paramCount = in.readInt();
+			final Map<String, String> params = new HashMap<String, String>(paramCount * 4 / 3 + 1);
+			for (int i = 0; i < paramCount; i++) {
+				params.put(readString(in), in.readBoolean() ? readString(in) : null);
+			}
+			final int idCount = in.readInt();
+			final List<String> instanceIds = new ArrayList<String>(idCount);
+			for (int i = 0; i < idCount; i++) {
+				instanceIds.add(in.readUTF());
+			}
+			_pending.put(id, new Entry(id, userName, submittedAt, params, instanceIds));
+		} else if (type == RECORD_ATTEMPTED) {
+			final Entry entry = _pending.get(id);
+			if (entry != null) {
+				entry._attempts++;
+			}
+		} else if (type == RECORD_FILED) {
+			_pending.remove(id);
+			_filed.put(id, in.readUTF());
+		} else if (type == RECORD_FAILED) {
+			_pending.remove(id);
+			_failed.put(id, readString(in));
+		} else {
+			throw new IOException("Unknown record type " + type);
+		}
+	}
+
+	private static byte[] submittedRecord(Entry entry) {
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		final DataOutputStream out = new DataOutputStream(bytes);
+		try {
+			out.writeByte(RECORD_SUBMITTED);
+			out.writeUTF(entry.getId());
+			out.writeUTF(entry.getUserName());
+			out.writeLong(entry.getSubmittedAt());
+			out.writeInt(entry.getParams().size());
+			for (final Map.Entry<String, String> param : entry.getParams().entrySet()) {
+				writeString(out, param.getKey());
+				out.writeBoolean(param.getValue() != null);
+				if (param.getValue() != null) {
+					writeString(out, param.getValue());
+				}
+			}
+			out.writeInt(entry.getInstanceIds().size());
+			for (final String instanceId : entry.getInstanceIds()) {
+				out.writeUTF(instanceId);
+			}
+		} catch (final IOException e) {
+			throw new IllegalStateException(e);
+		}
+		return Jira4BugStateStore.frame(bytes.toByteArray());
+	}
+
+	/**
+	 *
+	 * @param value Issue key or failure message, null for an attempt
+	 */
+	private static byte[] idRecord(byte type, String id, String value) {
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		final DataOutputStream out = new DataOutputStream(bytes);
+		try {
+			out.writeByte(type);
+			out.writeUTF(id);
+			if (type == RECORD_FILED) {
+				out.writeUTF(value);
+			} else if (type == RECORD_FAILED) {
+				writeString(out, value);
+			}
+		} catch (final IOException e) {
+			throw new IllegalStateException(e);
+		}
+		return Jira4BugStateStore.frame(bytes.toByteArray());
+	}
+
+	/**
+	 * Unlike {@link DataOutput#writeUTF(String)}, not limited to 64k, which a description may exceed.
+	 */
+	private static void writeString(DataOutput out, String value) throws IOException {
+		final byte[] bytes = value.getBytes("UTF-8");
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	private static String readString(DataInput in) throws IOException {
+		final byte[] bytes = new byte[in.readInt()];
+		in.readFully(bytes);
+		return new String(bytes, "UTF-8");
+	}
+}
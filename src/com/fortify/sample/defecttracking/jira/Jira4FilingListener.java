@@ -0,0 +1,30 @@
+/*
+ * (C) Copyright 2015 Hewlett-Packard Development Company, L.P.
+ */
+
+package com.fortify.sample.defecttracking.jira;
+
+import com.fortify.pub.bugtracker.support.Bug;
+
+/**
+ * Receives the outcome of each submission of a batch filed with
+ * {@link Jira4BugTrackerPlugin#fileBugs(java.util.List, com.fortify.pub.bugtracker.support.UserAuthenticationStore, Jira4FilingListener)}
+ * as soon as it is known. Submissions finish in any order and on several threads, so implementations must be thread safe.
+ *
+ */
+public interface Jira4FilingListener {
+
+	/**
+	 *
+	 * @param index Position of the submission in the batch
+	 * @param bug The issue that was created inside JIRA
+	 */
+	void filed(int index, Bug bug);
+
+	/**
+	 *
+	 * @param index Position of the submission in the batch
+	 * @param message Why the issue could not be created
+	 */
+	void failed(int index, String message);
+}
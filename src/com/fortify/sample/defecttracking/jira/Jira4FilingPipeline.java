@@ -0,0 +1,221 @@
+/*
+ * (C) Copyright 2015 Hewlett-Packard Development Company, L.P.
+ */
+
+package com.fortify.sample.defecttracking.jira;
+
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.atlassian.jira.rpc.soap.client.RemoteIssue;
+import com.fortify.pub.bugtracker.support.Bug;
+
+/**
+ * Creates many prepared issues over one shared connection, a bounded number at the same time on {@link Jira4Workers}.
+ * Each outcome is passed to the {@link Jira4FilingListener} as soon as it is known, and every created issue is
+ * remembered in the {@link Jira4BugStateStore}. A submission whose instances were filed before gets the existing
+ * issue instead of a new one, see {@link Jira4DuplicateIndex}.
+ *
+ * Creating an issue is not safe to repeat, so once JIRA cannot be reached the remaining submissions fail right away
+ * instead of being sent into a connection that is likely to time out.
+ *
+ */
+final class Jira4FilingPipeline {
+
+	private static final Log LOG = LogFactory.getLog(Jira4FilingPipeline.class);
+
+	/**
+	 * One submission of the batch, either ready to be created or already rejected while preparing it.
+	 */
+	static final class Submission {
+		final int _index;
+		final RemoteIssue _issue;
+		final List<String> _instanceIds;
+		final String _error;
+
+		private Submission(int index, RemoteIssue issue, List<String> instanceIds, String error) {
+			_index = index;
+			_issue = issue;
+			_instanceIds = instanceIds;
+			_error = error;
+		}
+
+		static Submission prepared(int index, RemoteIssue issue, List<String> instanceIds) {
+			return new Submission(index, issue, instanceIds, null);
+		}
+
+		static Submission rejected(int index, String error) {
+			return new Submission(index, null, null, error);
+		}
+	}
+
+	private final Jira4PluginConnection _connection;
+	private final Jira4BugStateStore _store;
+	private final Jira4DuplicateIndex _duplicates;
+	private final int _parallelism;
+
+	private final AtomicInteger _filed = new AtomicInteger();
+	private final AtomicInteger _failed = new AtomicInteger();
+	private final AtomicLong _totalLatency = new AtomicLong();
+	private final AtomicLong _maxLatency = new AtomicLong();
+	private final AtomicReference<RemoteException> _unreachable = new AtomicReference<RemoteException>();
+
+	/**
+	 *
+	 * @param connection Connection shared by all submissions
+	 * @param store Where created issues are remembered
+	 * @param duplicates Which instances were filed before
+	 * @param parallelism How many issues may be created at the same time
+	 */
+	Jira4FilingPipeline(Jira4PluginConnection connection, Jira4BugStateStore store, Jira4DuplicateIndex duplicates, int parallelism) {
+		_connection = connection;
+		_store = store;
+		_duplicates = duplicates;
+		_parallelism = parallelism;
+	}
+
+	/**
+	 * File every submission. Returns once all of them have been passed to the listener.
+	 */
+	Jira4FilingStats run(List<Submission> submissions, final Jira4FilingListener listener) throws InterruptedException, ExecutionException {
+		final long start = System.currentTimeMillis();
+		final List<Callable<Void>> tasks = new ArrayList<Callable<Void>>(submissions.size());
+		for (final Submission submission : submissions) {
+			if (submission._error != null) {
+				_failed.incrementAndGet();
+				listener.failed(submission._index, submission._error);
+				continue;
+			}
+			tasks.add(new Callable<Void>() {
+				public Void call() throws InterruptedException {
+					file(submission, listener);
+					return null;
+				}
+			});
+		}
+		Jira4Workers.runAll(tasks, _parallelism);
+
+		final Jira4FilingStats retval = new Jira4FilingStats(_filed.get(), _failed.get(), System.currentTimeMillis() - start, _totalLatency.get(),
+				_maxLatency.get());
+		LOG.info("Filed batch of " + submissions.size() + " submissions: " + retval);
+		return retval;
+	}
+
+	private void file(Submission submission, Jira4FilingListener listener) throws InterruptedException {
+		final RemoteException unreachable = _unreachable.get();
+		if (unreachable != null) {
+			_failed.incrementAndGet();
+			listener.failed(submission._index, describe(unreachable));
+			return;
+		}
+
+		final long start = System.currentTimeMillis();
+		Bug bug = null;
+		String error = null;
+		try {
+			bug = create(submission._issue, submission._instanceIds).toBug();
+		} catch (final RemoteException e) {
+			LOG.info("JIRA Error fileBug", e);
+			if (Jira4PluginConnection.isTransportFailure(e)) {
+				_unreachable.compareAndSet(null, e);
+			}
+			error = describe(e);
+		}
+		recordLatency(System.currentTimeMillis() - start);
+
+		if (error == null) {
+			_filed.incrementAndGet();
+			Jira4Metrics.increment("filing.filed");
+			listener.filed(submission._index, bug);
+		} else {
+			_failed.incrementAndGet();
+			Jira4Metrics.increment("filing.failed");
+			listener.failed(submission._index, error);
+		}
+	}
+
+	/**
+	 * Create the issue unless one of its instances was filed before, in which case the existing issue is returned.
+	 * Either way the issue is remembered in the store along with the instances.
+	 *
+	 * @param issue Prepared issue, its description is stamped with the instance ids
+	 */
+	Jira4BugState create(RemoteIssue issue, List<String> instanceIds) throws RemoteException, InterruptedException {
+		final CountDownLatch claim = _duplicates.claim(instanceIds);
+		try {
+			Jira4BugState retval = findExisting(instanceIds);
+			if (retval == null) {
+				issue.setDescription(Jira4DuplicateIndex.stamp(issue.getDescription(), instanceIds));
+				retval = _connection.createIssue(issue);
+				for (final String instanceId : instanceIds) {
+					_duplicates.put(instanceId, retval.getIssueKey());
+				}
+			} else {
+				LOG.info("Not filing a duplicate of " + retval.getIssueKey());
+				Jira4Metrics.increment("filing.duplicate");
+			}
+			_store.put(retval.with(retval.getIssueType(), instanceIds));
+			return retval;
+		} finally {
+			_duplicates.release(instanceIds, claim);
+		}
+	}
+
+	/**
+	 *
+	 * @return The current state of an issue filed for one of the instances, or null
+	 */
+	private Jira4BugState findExisting(List<String> instanceIds) throws RemoteException {
+		for (final String instanceId : instanceIds) {
+			final String issueKey = _duplicates.find(instanceId);
+			if (issueKey == null) {
+				continue;
+			}
+			try {
+				return _connection.fetchState(issueKey);
+			} catch (final RemoteException e) {
+				if (Jira4PluginConnection.isTransportFailure(e)) {
+					throw e;
+				}
+				LOG.info("Unable to read " + issueKey + ", filing " + instanceId + " again", e);
+				_duplicates.remove(instanceId, issueKey);
+			}
+		}
+		return null;
+	}
+
+	private void recordLatency(long latency) {
+		_totalLatency.addAndGet(latency);
+		Jira4Metrics.add("filing.latency.millis", latency);
+		long max = _maxLatency.get();
+		while (latency > max && !_maxLatency.compareAndSet(max, latency)) {
+			max = _maxLatency.get();
+		}
+	}
+
+	/**
+	 *
+	 * @return A message for the user explaining why an issue could not be filed
+	 */
+	static String describe(RemoteException e) {
+		String retval = Jira4PluginConnection.findHelpfulMessage(e);
+
+		retval = retval.replaceFirst("^([^\\w]|[\\s])*", "");
+		retval = retval.replaceFirst("([^\\w]|[\\s])*$", "");
+
+		if (retval.length() == 0) {
+			retval = "Unknown error while trying to file a bug.";
+		}
+		return retval;
+	}
+}
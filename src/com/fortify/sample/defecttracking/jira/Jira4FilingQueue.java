@@ -0,0 +1,267 @@
+/*
+ * (C) Copyright 2015 Hewlett-Packard Development Company, L.P.
+ */
+
+package com.fortify.sample.defecttracking.jira;
+
+import java.io.File;
+import java.io.IOException;
+import java.rmi.RemoteException;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.fortify.pub.bugtracker.support.BugTrackerAuthenticationException;
+import com.fortify.pub.bugtracker.support.BugTrackerException;
+import com.fortify.pub.bugtracker.support.UserAuthenticationStore;
+
+/**
+ * Files submissions into JIRA in the background, so that filing does not hold up SSC while JIRA is slow or down.
+ * Submissions are written to a {@link Jira4FilingJournal} and acknowledged with a provisional id right away; a
+ * single daemon thread then files them oldest first. While JIRA cannot be reached the thread backs off, from
+ * {@link #MIN_BACKOFF_MILLIS} doubling up to {@link #MAX_BACKOFF_MILLIS}. A submission JIRA rejects is not retried.
+ *
+ * Passwords are never written to disk. The queue remembers the password of each user who submitted since SSC
+ * started; submissions left over from before a restart wait until their user submits or checks a bug again.
+ *
+ */
+final class Jira4FilingQueue {
+
+	private static final Log LOG = LogFactory.getLog(Jira4FilingQueue.class);
+
+	static final long MIN_BACKOFF_MILLIS = 1000L;
+	static final long MAX_BACKOFF_MILLIS = 5 * 60 * 1000L;
+	/** How often to look for submissions whose user has come back, when nothing else wakes the thread */
+	static final long IDLE_WAIT_MILLIS = 60 * 1000L;
+
+	private static final ConcurrentMap<String, Jira4FilingQueue> QUEUES = new ConcurrentHashMap<String, Jira4FilingQueue>();
+
+	/**
+	 * Files one submission on behalf of the queue.
+	 */
+	interface Filer {
+		/**
+		 * File the submission into JIRA. If it was attempted before ({@link Jira4FilingJournal.Entry#getAttempts()}
+		 * greater than one), the issue may already exist and must be looked up first.
+		 *
+		 * @return The issue the submission was filed as
+		 * @throws RemoteException if JIRA cannot be reached or rejects the submission
+		 */
+		Jira4BugState file(Jira4FilingJournal.Entry entry, UserAuthenticationStore credentials) throws RemoteException, InterruptedException;
+	}
+
+	private final Jira4FilingJournal _journal;
+	private final ConcurrentMap<String, String> _passwords = new ConcurrentHashMap<String, String>();
+	private volatile Filer _filer;
+	/** Times at which submissions left the queue during the last minute */
+	private final LinkedList<Long> _drained = new LinkedList<Long>();
+	private final Object _wakeup = new Object();
+	private boolean _signalled;
+	private Thread _drainer;
+
+	Jira4FilingQueue(Jira4FilingJournal journal) {
+		_journal = journal;
+	}
+
+	/**
+	 *
+	 * @param directory Where to keep the journal
+	 * @throws IOException if the journal in the directory cannot be opened
+	 */
+	static Jira4FilingQueue getInstance(String jiraBaseUrl, File directory) throws IOException {
+		final String key = jiraBaseUrl + '|' + directory.getAbsolutePath();
+		Jira4FilingQueue retval = QUEUES.get(key);
+		if (retval == null) {
+			synchronized (QUEUES) {
+				retval = QUEUES.get(key);
+				if (retval == null) {
+					if (!directory.isDirectory() && !directory.mkdirs()) {
+						throw new IOException("Unable to create directory " + directory);
+					}
+					retval = new Jira4FilingQueue(new Jira4FilingJournal(new File(directory, Jira4FilingJournal.fileNameFor(jiraBaseUrl))));
+					QUEUES.put(key, retval);
+				}
+			}
+		}
+		return retval;
+	}
+
+	Jira4FilingJournal getJournal() {
+		return _journal;
+	}
+
+	/**
+	 * Use this filer from now on. The plugin passes a new one whenever its configuration may have changed.
+	 */
+	void setFiler(Filer filer) {
+		_filer = filer;
+		wakeUp();
+	}
+
+	/**
+	 * Remember the user's password so that the user's queued submissions can be filed, and start filing them.
+	 */
+	void remember(UserAuthenticationStore credentials) {
+		final String previous = _passwords.put(credentials.getUserName(), credentials.getPassword());
+		if (previous == null || !previous.equals(credentials.getPassword())) {
+			wakeUp();
+		}
+	}
+
+	/**
+	 * Queue a submission.
+	 *
+	 * @return Its provisional id
+	 * @throws IOException if it cannot be written to the journal, in which case it was not queued
+	 */
+	String submit(UserAuthenticationStore credentials, Map<String, String> params, List<String> instanceIds) throws IOException {
+		final Jira4FilingJournal.Entry entry = _journal.submit(credentials.getUserName(), params, instanceIds);
+		Jira4Metrics.increment("filing.queue.submitted");
+		remember(credentials);
+		wakeUp();
+		return entry.getId();
+	}
+
+	Jira4FilingQueueStats getStats() {
+		final List<Jira4FilingJournal.Entry> pending = _journal.getPending();
+		final long now = System.currentTimeMillis();
+		final long oldestAge = pending.isEmpty() ? 0 : now - pending.get(0).getSubmittedAt();
+		Jira4Metrics.set("filing.queue.depth", pending.size());
+		synchronized (_drained) {
+			pruneDrained(now);
+			return new Jira4FilingQueueStats(pending.size(), oldestAge, _drained.size());
+		}
+	}
+
+	/**
+	 * Try to file every waiting submission whose user's password is known, oldest first.
+	 *
+	 * @param filer Files each submission
+	 * @return false if JIRA could not be reached and filing should be retried later
+	 */
+	boolean drain(Filer filer) throws InterruptedException {
+		for (final Jira4FilingJournal.Entry entry : _journal.getPending()) {
+			final String password = _passwords.get(entry.getUserName());
+			if (password == null) {
+				continue;
+			}
+			try {
+				if (!file(filer, entry, password)) {
+					return false;
+				}
+			} catch (final IOException e) {
+				LOG.error("Unable to write to the filing journal, stopping until the next attempt", e);
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 *
+	 * @return false if JIRA could not be reached
+	 * @throws IOException if the journal cannot be written
+	 */
+	private boolean file(Filer filer, Jira4FilingJournal.Entry entry, String password) throws IOException, InterruptedException {
+		try {
+			_journal.attempted(entry);
+			final Jira4BugState state = filer.file(entry, credentials(entry.getUserName(), password));
+			_journal.filed(entry, state.getIssueKey());
+			Jira4Metrics.increment("filing.queue.filed");
+			recordDrained();
+		} catch (final RemoteException e) {
+			if (Jira4PluginConnection.isTransportFailure(e)) {
+				LOG.info("JIRA cannot be reached, keeping " + entry.getId() + " queued", e);
+				return false;
+			}
+			LOG.warn("JIRA rejected queued submission " + entry.getId(), e);
+			_journal.failed(entry, Jira4FilingPipeline.describe(e));
+			Jira4Metrics.increment("filing.queue.failed");
+			recordDrained();
+		} catch (final BugTrackerAuthenticationException e) {
+			// Wait for the user to come back with a password that works
+			LOG.info("Password of " + entry.getUserName() + " no longer works, keeping their submissions queued", e);
+			_passwords.remove(entry.getUserName(), password);
+		} catch (final BugTrackerException e) {
+			LOG.info("Unable to file " + entry.getId() + ", keeping it queued", e);
+			return false;
+		}
+		return true;
+	}
+
+	private void wakeUp() {
+		synchronized (_wakeup) {
+			_signalled = true;
+			_wakeup.notifyAll();
+			if (_drainer == null && _filer != null) {
+				_drainer = new Jira4DaemonThreadFactory("jira4-filing-queue").newThread(new Runnable() {
+					public void run() {
+						drainForever();
+					}
+				});
+				_drainer.start();
+			}
+		}
+	}
+
+	private void drainForever() {
+		long backoff = 0;
+		try {
+			while (true) {
+				if (drain(_filer)) {
+					backoff = 0;
+				} else {
+					backoff = Math.min(Math.max(backoff * 2, MIN_BACKOFF_MILLIS), MAX_BACKOFF_MILLIS);
+					Jira4Metrics.increment("filing.queue.backoff");
+				}
+				getStats();
+				synchronized (_wakeup) {
+					// New submissions do not cut a backoff short, they would only find JIRA down again
+					final long until = System.currentTimeMillis() + (backoff == 0 ? IDLE_WAIT_MILLIS : backoff);
+					long now;
+					while (!(_signalled && backoff == 0) && (now = System.currentTimeMillis()) < until) {
+						_wakeup.wait(until - now);
+					}
+					_signalled = false;
+				}
+			}
+		} catch (final InterruptedException e) {
+			LOG.debug("Filing queue stopped", e);
+		} finally {
+			synchronized (_wakeup) {
+				_drainer = null;
+			}
+		}
+	}
+
+	private void recordDrained() {
+		final long now = System.currentTimeMillis();
+		synchronized (_drained) {
+			_drained.add(Long.valueOf(now));
+			pruneDrained(now);
+		}
+	}
+
+	private void pruneDrained(long now) {
+		while (!_drained.isEmpty() && now - _drained.getFirst().longValue() > 60 * 1000L) {
+			_drained.removeFirst();
+		}
+	}
+
+	private static UserAuthenticationStore credentials(final String userName, final String password) {
+		return new UserAuthenticationStore() {
+			public String getUserName() {
+				return userName;
+			}
+
+			public String getPassword() {
+				return password;
+			}
+		};
+	}
+}
@@ -0,0 +1,51 @@
+/*
+ * (C) Copyright 2015 Hewlett-Packard Development Company, L.P.
+ */
+
+package com.fortify.sample.defecttracking.jira;
+
+/**
+ * How far the queue of submissions waiting to be filed into JIRA is behind.
+ *
+ */
+public final class Jira4FilingQueueStats {
+
+	private final int _depth;
+	private final long _oldestAgeMillis;
+	private final int _drainedLastMinute;
+
+	Jira4FilingQueueStats(int depth, long oldestAgeMillis, int drainedLastMinute) {
+		_depth = depth;
+		_oldestAgeMillis = oldestAgeMillis;
+		_drainedLastMinute = drainedLastMinute;
+	}
+
+	/**
+	 *
+	 * @return How many submissions are waiting to be filed
+	 */
+	public int getDepth() {
+		return _depth;
+	}
+
+	/**
+	 *
+	 * @return How long the oldest waiting submission has been waiting, 0 if none is
+	 */
+	public long getOldestAgeMillis() {
+		return _oldestAgeMillis;
+	}
+
+	/**
+	 *
+	 * @return How many submissions were filed, or failed for good, during the last minute
+	 */
+	public int getDrainRatePerMinute() {
+		return _drainedLastMinute;
+	}
+
+	@Override
+	public String toString() {
+		return _depth + " queued, oldest " + _oldestAgeMillis + " ms, " + _drainedLastMinute + " per minute";
+	}
+}
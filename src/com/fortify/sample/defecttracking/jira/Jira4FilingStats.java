@@ -0,0 +1,69 @@
+/*
+ * (C) Copyright 2015 Hewlett-Packard Development Company, L.P.
+ */
+
+package com.fortify.sample.defecttracking.jira;
+
+/**
+ * How a batch of submissions went. Latency is the time taken to create one issue inside JIRA.
+ *
+ */
+public final class Jira4FilingStats {
+
+	private final int _filed;
+	private final int _failed;
+	private final long _elapsedMillis;
+	private final long _totalLatencyMillis;
+	private final long _maxLatencyMillis;
+
+	Jira4FilingStats(int filed, int failed, long elapsedMillis, long totalLatencyMillis, long maxLatencyMillis) {
+		_filed = filed;
+		_failed = failed;
+		_elapsedMillis = elapsedMillis;
+		_totalLatencyMillis = totalLatencyMillis;
+		_maxLatencyMillis = maxLatencyMillis;
+	}
+
+	public int getFiled() {
+		return _filed;
+	}
+
+	public int getFailed() {
+		return _failed;
+	}
+
+	/**
+	 *
+	 * @return Wall clock time of the whole batch
+	 */
+	public long getElapsedMillis() {
+		return _elapsedMillis;
+	}
+
+	/**
+	 *
+	 * @return Issues created per second over the whole batch
+	 */
+	public double getThroughputPerSecond() {
+		return _elapsedMillis == 0 ? _filed : _filed * 1000.0 / _elapsedMillis;
+	}
+
+	/**
+	 *
+	 * @return Mean time taken to create one issue, including the ones that failed
+	 */
+	public long getMeanLatencyMillis() {
+		final int count = _filed + _failed;
+		return count == 0 ? 0 : _totalLatencyMillis / count;
+	}
+
+	public long getMaxLatencyMillis() {
+		return _maxLatencyMillis;
+	}
+
+	@Override
+	public String toString() {
+		return _filed + " filed, " + _failed + " failed in " + _elapsedMillis + " ms (" + String.format("%.1f", getThroughputPerSecond())
+				+ " per second, mean latency " + getMeanLatencyMillis() + " ms, max " + _maxLatencyMillis + " ms)";
+	}
+}
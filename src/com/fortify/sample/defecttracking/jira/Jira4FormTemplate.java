@@ -0,0 +1,162 @@
+/*
+ * (C) Copyright 2015 Hewlett-Packard Development Company, L.P.
+ */
+
+package com.fortify.sample.defecttracking.jira;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import com.fortify.pub.bugtracker.support.BugParam;
+import com.fortify.pub.bugtracker.support.BugParamChoice;
+
+/**
+ * The bug dialog of one JIRA, user and default project, built once from the lookups and handed out as copies, so
+ * opening the dialog again only fills in the summary, description and assignee of the issue at hand.
+ *
+ * The user is part of the key because the projects and issue types offered depend on the user's permissions.
+ * Copies share the choice lists of the template, which cannot be changed.
+ *
+ */
+final class Jira4FormTemplate {
+
+	private final long _version;
+	private final long _builtAt;
+	private final List<BugParam> _params;
+	private final List<String> _projectChoices;
+	private final String _issueTypeIdentifier;
+
+	/**
+	 *
+	 * @param version {@link Cache#getVersion()} when the lookups for the template started
+	 * @param params The dialog in order, with the issue specific parameters still empty
+	 * @param projectChoices Projects the user can pick
+	 * @param issueTypeIdentifier Parameter whose value is the configured issue type
+	 */
+	Jira4FormTemplate(long version, List<BugParam> params, List<String> projectChoices, String issueTypeIdentifier) {
+		_version = version;
+		_builtAt = System.currentTimeMillis();
+		final List<BugParam> copies = new ArrayList<BugParam>(params.size());
+		for (final BugParam param : params) {
+			copies.add(shared(param.clone()));
+		}
+		_params = Collections.unmodifiableList(copies);
+		_projectChoices = Collections.unmodifiableList(new ArrayList<String>(projectChoices));
+		_issueTypeIdentifier = issueTypeIdentifier;
+	}
+
+	List<String> getProjectChoices() {
+		return _projectChoices;
+	}
+
+	/**
+	 * Copy the dialog for one request.
+	 *
+	 * @param values Values of the issue specific parameters by identifier; missing ones stay empty
+	 * @param defaultIssueType Configured issue type, only selected if the project has it
+	 */
+	List<BugParam> newForm(Map<String, String> values, String defaultIssueType) {
+		final List<BugParam> retval = new ArrayList<BugParam>(_params.size());
+		for (final BugParam param : _params) {
+			final BugParam copy = param.clone();
+			if (values.containsKey(copy.getIdentifier())) {
+				copy.setValue(values.get(copy.getIdentifier()));
+			} else if (copy.getIdentifier().equals(_issueTypeIdentifier) && ((BugParamChoice) copy).getChoiceList().contains(defaultIssueType)) {
+				copy.setValue(defaultIssueType);
+			}
+			retval.add(copy);
+		}
+		return retval;
+	}
+
+	private static BugParam shared(BugParam param) {
+		if (param instanceof BugParamChoice) {
+			final BugParamChoice choice = (BugParamChoice) param;
+			choice.setChoiceList(Collections.unmodifiableList(new ArrayList<String>(choice.getChoiceList())));
+		}
+		return param;
+	}
+
+	/**
+	 * The templates of one JIRA. Each invalidation starts a new version, and templates of an older version are
+	 * neither handed out nor kept, so a template built from lookups that were running during the invalidation is
+	 * not used.
+	 *
+	 * At most {@link #MAX_TEMPLATES} templates are kept, the least recently used are dropped first.
+	 */
+	static final class Cache {
+
+		static final int MAX_TEMPLATES = 200;
+
+		private static final ConcurrentMap<String, Cache> CACHES = new ConcurrentHashMap<String, Cache>();
+
+		private final Map<String, Jira4FormTemplate> _templates = new LinkedHashMap<String, Jira4FormTemplate>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Jira4FormTemplate> eldest) {
+				return size() > MAX_TEMPLATES;
+			}
+		};
+		private long _version;
+		private volatile long _ttlMillis = Jira4MetadataCache.DEFAULT_TTL_MILLIS;
+
+		static Cache getInstance(String jiraBaseUrl) {
+			Cache retval = CACHES.get(jiraBaseUrl);
+			if (retval == null) {
+				final Cache created = new Cache();
+				retval = CACHES.putIfAbsent(jiraBaseUrl, created);
+				if (retval == null) {
+					retval = created;
+				}
+			}
+			return retval;
+		}
+
+		void setTtlMillis(long ttlMillis) {
+			_ttlMillis = ttlMillis;
+		}
+
+		synchronized long getVersion() {
+			return _version;
+		}
+
+		/**
+		 *
+		 * @param defaultProject Configured project, may be null
+		 * @return The user's template, or null if it is not known, too old or from before the last invalidation
+		 */
+		synchronized Jira4FormTemplate get(String userName, String defaultProject) {
+			final Jira4FormTemplate retval = _templates.get(key(userName, defaultProject));
+			if (retval == null || retval._version != _version || System.currentTimeMillis() - retval._builtAt >= _ttlMillis) {
+				Jira4Metrics.increment("form.template.miss");
+				return null;
+			}
+			Jira4Metrics.increment("form.template.hit");
+			return retval;
+		}
+
+		/**
+		 * Keep the template unless the templates were invalidated since it was started.
+		 */
+		synchronized void put(String userName, String defaultProject, Jira4FormTemplate template) {
+			if (template._version == _version) {
+				_templates.put(key(userName, defaultProject), template);
+			}
+		}
+
+		synchronized void invalidate() {
+			_version++;
+			_templates.clear();
+		}
+
+		private static String key(String userName, String defaultProject) {
+			return userName + '\n' + (defaultProject == null ? "" : defaultProject);
+		}
+	}
+}
@@ -0,0 +1,420 @@
+/*
+ * (C) Copyright 2015 Hewlett-Packard Development Company, L.P.
+ */
+
+package com.fortify.sample.defecttracking.jira;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.rmi.RemoteException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.xml.rpc.Service;
+
+import org.apache.axis.AxisFault;
+import org.apache.axis.EngineConfiguration;
+import org.apache.axis.MessageContext;
+import org.apache.axis.SimpleTargetedChain;
+import org.apache.axis.client.Call;
+import org.apache.axis.components.net.CommonsHTTPClientPropertiesFactory;
+import org.apache.axis.configuration.EngineConfigurationFactoryFinder;
+import org.apache.axis.configuration.SimpleProvider;
+import org.apache.axis.transport.http.CommonsHTTPSender;
+import org.apache.commons.httpclient.ConnectionPoolTimeoutException;
+import org.apache.commons.httpclient.DefaultHttpMethodRetryHandler;
+import org.apache.commons.httpclient.HostConfiguration;
+import org.apache.commons.httpclient.HttpClient;
+import org.apache.commons.httpclient.HttpConnection;
+import org.apache.commons.httpclient.HttpConnectionManager;
+import org.apache.commons.httpclient.HttpException;
+import org.apache.commons.httpclient.MultiThreadedHttpConnectionManager;
+import org.apache.commons.httpclient.params.HttpConnectionManagerParams;
+import org.apache.commons.httpclient.params.HttpMethodParams;
+import org.apache.commons.httpclient.util.IdleConnectionTimeoutThread;
+
+import com.atlassian.jira.rpc.soap.client.JiraSoapService;
+import com.atlassian.jira.rpc.soap.client.JiraSoapServiceServiceLocator;
+import com.atlassian.jira.rpc.soap.client.JirasoapserviceV2SoapBindingStub;
+
+/**
+ * HTTP settings used to reach the JIRA SOAP endpoint.
+ *
+ * In {@link #MODE_POOLED} mode every stub created with the same settings sends its requests through one shared,
+ * keep-alive {@link MultiThreadedHttpConnectionManager}, so consecutive SOAP calls reuse TCP and TLS connections.
+ * Connections idle for longer than the idle timeout are closed in the background.
+ * In {@link #MODE_SIMPLE} mode the default Axis sender opens a new connection per call, as the plugin always did.
+ *
+ * Transports are shared by everyone using the same settings and counted: a plugin configuration
+ * {@link #acquire(String, int, int, int, int) acquires} the transport for its settings and releases it when it is
+ * replaced. Once nobody uses a transport it is retired: its idle connections are closed, its background thread stops,
+ * and connections still in use are closed once their request is done. Stubs created before keep working, without
+ * keep-alive.
+ *
+ */
+final class Jira4HttpTransport {
+
+	static final String MODE_POOLED = "pooled";
+	static final String MODE_SIMPLE = "simple";
+
+	static final int DEFAULT_MAX_CONNECTIONS_PER_HOST = 20;
+	static final int DEFAULT_CONNECT_TIMEOUT_MILLIS = 10 * 1000;
+	static final int DEFAULT_SOCKET_TIMEOUT_MILLIS = 60 * 1000;
+	static final int DEFAULT_IDLE_TIMEOUT_MILLIS = 60 * 1000;
+
+	private static final Map<String, Jira4HttpTransport> TRANSPORTS = new HashMap<String, Jira4HttpTransport>();
+	private static final AtomicLong IDS = new AtomicLong();
+	private static Jira4HttpTransport defaultTransport;
+	/** Pooled connection each thread is sending a request over */
+	private static final ConcurrentMap<Thread, HttpConnection> IN_FLIGHT = new ConcurrentHashMap<Thread, HttpConnection>();
+	/** Timeout of the next SOAP call each thread makes, if it differs from that of the stub */
+	private static final ThreadLocal<Integer> CALL_TIMEOUT = new ThreadLocal<Integer>();
+
+	private final long _id = IDS.incrementAndGet();
+	private final String _mode;
+	private final int _maxConnectionsPerHost;
+	private final int _connectTimeoutMillis;
+	private final int _socketTimeoutMillis;
+	private final int _idleTimeoutMillis;
+
+	/** Null in simple mode, as are the connection manager and its evictor */
+	private final EngineConfiguration _engineConfiguration;
+	private SharedConnectionManager _connectionManager;
+	private IdleConnectionTimeoutThread _idleConnectionEvictor;
+	/** Guarded by the class */
+	private int _users;
+
+	/**
+	 *
+	 * @param shared false for a transport that nobody acquired, which keeps no connections open between requests
+	 */
+	private Jira4HttpTransport(String mode, int maxConnectionsPerHost, int connectTimeoutMillis, int socketTimeoutMillis, int idleTimeoutMillis,
+			boolean shared) {
+		_mode = mode;
+		_maxConnectionsPerHost = maxConnectionsPerHost;
+		_connectTimeoutMillis = connectTimeoutMillis;
+		_socketTimeoutMillis = socketTimeoutMillis;
+		_idleTimeoutMillis = idleTimeoutMillis;
+		_engineConfiguration = MODE_POOLED.equals(mode) ? createPooledConfiguration(shared) : null;
+	}
+
+	private static String key(String mode, int maxConnectionsPerHost, int connectTimeoutMillis, int socketTimeoutMillis, int idleTimeoutMillis) {
+		return mode + ':' + maxConnectionsPerHost + ':' + connectTimeoutMillis + ':' + socketTimeoutMillis + ':' + idleTimeoutMillis;
+	}
+
+	/**
+	 * Start using the transport for the given settings, creating it if nobody uses them yet. Every call must be
+	 * matched by a call to {@link #release(Jira4HttpTransport)}.
+	 *
+	 * @param mode {@link #MODE_POOLED} or {@link #MODE_SIMPLE}
+	 */
+	static synchronized Jira4HttpTransport acquire(String mode, int maxConnectionsPerHost, int connectTimeoutMillis, int socketTimeoutMillis,
+			int idleTimeoutMillis) {
+		checkMode(mode);
+		final String key = key(mode, maxConnectionsPerHost, connectTimeoutMillis, socketTimeoutMillis, idleTimeoutMillis);
+		Jira4HttpTransport retval = TRANSPORTS.get(key);
+		if (retval == null) {
+			retval = new Jira4HttpTransport(mode, maxConnectionsPerHost, connectTimeoutMillis, socketTimeoutMillis, idleTimeoutMillis, true);
+			TRANSPORTS.put(key, retval);
+		}
+		retval._users++;
+		return retval;
+	}
+
+	/**
+	 * Stop using a transport got from {@link #acquire(String, int, int, int, int)}. The last user to release it
+	 * retires it, giving up its pooled connections and background thread.
+	 */
+	static synchronized void release(Jira4HttpTransport transport) {
+		if (--transport._users > 0) {
+			return;
+		}
+		final String key = key(transport._mode, transport._maxConnectionsPerHost, transport._connectTimeoutMillis, transport._socketTimeoutMillis,
+				transport._idleTimeoutMillis);
+		if (TRANSPORTS.get(key) == transport) {
+			TRANSPORTS.remove(key);
+		}
+		if (transport._connectionManager != null) {
+			transport._idleConnectionEvictor.shutdown();
+			transport._connectionManager.retire();
+			Jira4Metrics.increment("http.transport.retired");
+		}
+	}
+
+	/**
+	 *
+	 * @param mode {@link #MODE_POOLED} or {@link #MODE_SIMPLE}
+	 * @return The transport in use for the given settings. If nobody uses them, e.g. because the configuration was
+	 *         replaced after the caller read it, a transport of its own that keeps no connections open.
+	 */
+	static synchronized Jira4HttpTransport get(String mode, int maxConnectionsPerHost, int connectTimeoutMillis, int socketTimeoutMillis, int idleTimeoutMillis) {
+		checkMode(mode);
+		final Jira4HttpTransport retval = TRANSPORTS.get(key(mode, maxConnectionsPerHost, connectTimeoutMillis, socketTimeoutMillis, idleTimeoutMillis));
+		if (retval != null) {
+			return retval;
+		}
+		Jira4Metrics.increment("http.transport.unshared");
+		return new Jira4HttpTransport(mode, maxConnectionsPerHost, connectTimeoutMillis, socketTimeoutMillis, idleTimeoutMillis, false);
+	}
+
+	private static void checkMode(String mode) {
+		if (!MODE_POOLED.equals(mode) && !MODE_SIMPLE.equals(mode)) {
+			throw new IllegalArgumentException("Unknown HTTP transport mode " + mode);
+		}
+	}
+
+	/**
+	 *
+	 * @return Whether the transport keeps no connections open any more; a transport in simple mode never does
+	 */
+	static boolean isRetired(Jira4HttpTransport transport) {
+		return transport._connectionManager != null && transport._connectionManager.isRetired();
+	}
+
+	/**
+	 *
+	 * @return The transport with the default settings, which is never released
+	 */
+	static synchronized Jira4HttpTransport getDefault() {
+		if (defaultTransport == null) {
+			defaultTransport = acquire(MODE_POOLED, DEFAULT_MAX_CONNECTIONS_PER_HOST, DEFAULT_CONNECT_TIMEOUT_MILLIS, DEFAULT_SOCKET_TIMEOUT_MILLIS,
+					DEFAULT_IDLE_TIMEOUT_MILLIS);
+		}
+		return defaultTransport;
+	}
+
+	private EngineConfiguration createPooledConfiguration(boolean shared) {
+		final MultiThreadedHttpConnectionManager connectionManager = new MultiThreadedHttpConnectionManager();
+		final HttpConnectionManagerParams params = connectionManager.getParams();
+		params.setDefaultMaxConnectionsPerHost(_maxConnectionsPerHost);
+		params.setMaxTotalConnections(Math.max(_maxConnectionsPerHost, MultiThreadedHttpConnectionManager.DEFAULT_MAX_TOTAL_CONNECTIONS));
+		params.setConnectionTimeout(_connectTimeoutMillis);
+		params.setSoTimeout(_socketTimeoutMillis);
+		params.setStaleCheckingEnabled(true);
+
+		_connectionManager = new SharedConnectionManager(connectionManager);
+		if (shared) {
+			final IdleConnectionTimeoutThread idleConnectionEvictor = new IdleConnectionTimeoutThread();
+			idleConnectionEvictor.setName("jira4-http-idle-evictor");
+			idleConnectionEvictor.setConnectionTimeout(_idleTimeoutMillis);
+			idleConnectionEvictor.setTimeoutInterval(Math.max(1000L, _idleTimeoutMillis / 2));
+			idleConnectionEvictor.addConnectionManager(connectionManager);
+			idleConnectionEvictor.start();
+			_idleConnectionEvictor = idleConnectionEvictor;
+		} else {
+			_connectionManager.retire();
+		}
+
+		final SimpleProvider config = new SimpleProvider(EngineConfigurationFactoryFinder.newFactory().getClientEngineConfig());
+		final SimpleTargetedChain sender = new SimpleTargetedChain(new PooledHttpSender(_connectionManager));
+		config.deployTransport("http", sender);
+		config.deployTransport("https", sender);
+		return config;
+	}
+
+	/**
+	 * Create a SOAP stub for the given JIRA that sends its requests through this transport.
+	 *
+	 * @param jiraBaseUrl Base url of JIRA, such as http://jira
+	 * @throws RemoteException if the url is not valid
+	 */
+	JiraSoapService createSoapService(String jiraBaseUrl) throws RemoteException {
+		final URL jiraWebServiceURL;
+		try {
+			jiraWebServiceURL = new URL(jiraBaseUrl + "/rpc/soap/jirasoapservice-v2");
+		} catch (final MalformedURLException e) {
+			throw new RemoteException("Invalid JIRA URL", e);
+		}
+		final JiraSoapServiceServiceLocator locator = _engineConfiguration == null ? new JiraSoapServiceServiceLocator()
+				: new JiraSoapServiceServiceLocator(_engineConfiguration);
+		final TimedStub retval = new TimedStub(jiraWebServiceURL, locator);
+		retval.setPortName(locator.getJirasoapserviceV2WSDDServiceName());
+		// Without this Axis waits up to ten minutes for an answer
+		retval.setTimeout(_socketTimeoutMillis);
+		return retval;
+	}
+
+	/**
+	 *
+	 * @return Tells this transport from any other, including one created later with the same settings
+	 */
+	long getId() {
+		return _id;
+	}
+
+	String getMode() {
+		return _mode;
+	}
+
+	int getMaxConnectionsPerHost() {
+		return _maxConnectionsPerHost;
+	}
+
+	int getConnectTimeoutMillis() {
+		return _connectTimeoutMillis;
+	}
+
+	int getSocketTimeoutMillis() {
+		return _socketTimeoutMillis;
+	}
+
+	int getIdleTimeoutMillis() {
+		return _idleTimeoutMillis;
+	}
+
+	@Override
+	public String toString() {
+		return _mode + " (max " + _maxConnectionsPerHost + " per host, connect " + _connectTimeoutMillis + " ms, socket "
+				+ _socketTimeoutMillis + " ms, idle " + _idleTimeoutMillis + " ms)";
+	}
+
+	/**
+	 * Give the SOAP calls the current thread makes through a stub of this class the given timeout instead of that of
+	 * the stub, until {@link #clearCallTimeout()}. Unlike the timeout of the stub, this does not change the timeout of
+	 * calls other threads make through the same stub.
+	 */
+	static void setCallTimeout(int timeoutMillis) {
+		CALL_TIMEOUT.set(Integer.valueOf(timeoutMillis));
+	}
+
+	static void clearCallTimeout() {
+		CALL_TIMEOUT.remove();
+	}
+
+	/**
+	 * Stub that applies the timeout set by {@link Jira4HttpTransport#setCallTimeout(int)} to each call.
+	 */
+	private static final class TimedStub extends JirasoapserviceV2SoapBindingStub {
+
+		TimedStub(URL endpointURL, Service service) throws AxisFault {
+			super(endpointURL, service);
+		}
+
+		@Override
+		protected Call createCall() throws RemoteException {
+			final Call retval = super.createCall();
+			final Integer timeout = CALL_TIMEOUT.get();
+			if (timeout != null) {
+				retval.setTimeout(timeout);
+			}
+			return retval;
+		}
+	}
+
+	/**
+	 * Axis sender that uses a shared connection manager instead of creating one per stub.
+	 */
+	private static final class PooledHttpSender extends CommonsHTTPSender {
+
+		private static final long serialVersionUID = 1L;
+
+		PooledHttpSender(HttpConnectionManager connectionManager) {
+			this.connectionManager = connectionManager;
+		}
+
+		@Override
+		protected void initialize() {
+			// Called from the super constructor; the connection manager is set by our constructor instead
+			clientProperties = CommonsHTTPClientPropertiesFactory.create();
+		}
+
+		@Override
+		protected HostConfiguration getHostConfiguration(HttpClient client, MessageContext context, URL targetURL) {
+			// Failed calls are retried by the connection, which knows which of them are safe to send again
+			client.getParams().setParameter(HttpMethodParams.RETRY_HANDLER, new DefaultHttpMethodRetryHandler(0, false));
+			// The per-call timeout cannot go through the shared manager parameters, so set it on the request
+			if (context.getTimeout() > 0) {
+				client.getParams().setSoTimeout(context.getTimeout());
+			}
+			return super.getHostConfiguration(client, context, targetURL);
+		}
+	}
+
+	/**
+	 * Close the pooled HTTP connection the given thread is using for a request, so that the request fails instead
+	 * of waiting for JIRA. The pool drops the closed connection when it is released.
+	 *
+	 * @return false if the thread was not using a pooled connection, or had not opened it yet
+	 */
+	static boolean abort(Thread thread) {
+		final HttpConnection connection = IN_FLIGHT.get(thread);
+		// Closing a connection that is still being opened has no effect
+		if (connection == null || !connection.isOpen()) {
+			return false;
+		}
+		connection.close();
+		Jira4Metrics.increment("http.aborted");
+		return true;
+	}
+
+	/**
+	 * Axis copies the per-call timeout into the connection manager parameters before every request, which would
+	 * overwrite the configured connect timeout of the shared pool. Hand Axis a private parameter object to write to
+	 * and delegate everything else to the real manager. Connections handed out are remembered per thread so that
+	 * requests can be aborted.
+	 */
+	private static final class SharedConnectionManager implements HttpConnectionManager {
+
+		private final HttpConnectionManager _delegate;
+		private HttpConnectionManagerParams _scratchParams = new HttpConnectionManagerParams();
+		private volatile boolean _retired;
+
+		SharedConnectionManager(HttpConnectionManager delegate) {
+			_delegate = delegate;
+		}
+
+		public HttpConnection getConnection(HostConfiguration hostConfiguration) {
+			return inFlight(_delegate.getConnection(hostConfiguration));
+		}
+
+		/**
+		 * @deprecated only here to satisfy the interface
+		 */
+		@Deprecated
+		public HttpConnection getConnection(HostConfiguration hostConfiguration, long timeout) throws HttpException {
+			return inFlight(_delegate.getConnection(hostConfiguration, timeout));
+		}
+
+		public HttpConnection getConnectionWithTimeout(HostConfiguration hostConfiguration, long timeout) throws ConnectionPoolTimeoutException {
+			return inFlight(_delegate.getConnectionWithTimeout(hostConfiguration, timeout));
+		}
+
+		public void releaseConnection(HttpConnection conn) {
+			IN_FLIGHT.remove(Thread.currentThread(), conn);
+			_delegate.releaseConnection(conn);
+			if (_retired) {
+				// Nobody keeps the pool of a retired transport clean
+				_delegate.closeIdleConnections(0);
+			}
+		}
+
+		void retire() {
+			_retired = true;
+			_delegate.closeIdleConnections(0);
+		}
+
+		boolean isRetired() {
+			return _retired;
+		}
+
+		private static HttpConnection inFlight(HttpConnection conn) {
+			IN_FLIGHT.put(Thread.currentThread(), conn);
+			return conn;
+		}
+
+		public void closeIdleConnections(long idleTimeout) {
+			_delegate.closeIdleConnections(idleTimeout);
+		}
+
+		public HttpConnectionManagerParams getParams() {
+			return _scratchParams;
+		}
+
+		public void setParams(HttpConnectionManagerParams params) {
+			_scratchParams = params;
+		}
+	}
+}
@@ -0,0 +1,123 @@
+/*
+ * (C) Copyright 2015 Hewlett-Packard Development Company, L.P.
+ */
+
+package com.fortify.sample.defecttracking.jira;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Logs JIRA sessions out on a background thread so that callers do not wait for the logout round trip.
+ *
+ * The queue is bounded. When it is full a caller waits briefly for room and then logs out on its own thread,
+ * which slows producers down instead of letting tokens pile up. Sessions still queued when the JVM shuts down
+ * are dropped; JIRA expires them on its own.
+ *
+ */
+final class Jira4LogoutQueue {
+
+	private static final Log LOG = LogFactory.getLog(Jira4LogoutQueue.class);
+
+	static final int CAPACITY = 1000;
+	static final int MAX_BATCH_SIZE = 50;
+	static final long OFFER_TIMEOUT_MILLIS = 100L;
+
+	private static final Jira4LogoutQueue INSTANCE = new Jira4LogoutQueue();
+
+	private final BlockingQueue<Jira4PluginConnection.RemoteSession> _queue = new ArrayBlockingQueue<Jira4PluginConnection.RemoteSession>(CAPACITY);
+	private final Thread _worker;
+	private volatile boolean _shutdown;
+
+	private Jira4LogoutQueue() {
+		_worker = new Jira4DaemonThreadFactory("jira4-logout").newThread(new Runnable() {
+			public void run() {
+				drain();
+			}
+		});
+		_worker.start();
+		Runtime.getRuntime().addShutdownHook(new Thread("jira4-logout-shutdown") {
+			@Override
+			public void run() {
+				shutdown();
+			}
+		});
+	}
+
+	static Jira4LogoutQueue getInstance() {
+		return INSTANCE;
+	}
+
+	/**
+	 * Queue a session for logout.
+	 */
+	void submit(Jira4PluginConnection.RemoteSession session) {
+		if (_shutdown) {
+			Jira4Metrics.increment("logout.dropped");
+			return;
+		}
+		boolean queued;
+		try {
+			queued = _queue.offer(session, OFFER_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+			queued = false;
+		}
+		if (queued) {
+			Jira4Metrics.increment("logout.queued");
+			Jira4Metrics.set("logout.queue.depth", _queue.size());
+		} else {
+			// Queue is full, do the work ourselves rather than drop the session
+			Jira4Metrics.increment("logout.inline");
+			session.logoutNow();
+		}
+	}
+
+	int getDepth() {
+		return _queue.size();
+	}
+
+	/**
+	 * Stop the worker. Sessions that are still queued are dropped.
+	 */
+	void shutdown() {
+		_shutdown = true;
+		_worker.interrupt();
+		final int dropped = _queue.size();
+		_queue.clear();
+		if (dropped > 0) {
+			Jira4Metrics.add("logout.dropped", dropped);
+		}
+	}
+
+	private void drain() {
+		final List<Jira4PluginConnection.RemoteSession> batch = new ArrayList<Jira4PluginConnection.RemoteSession>(MAX_BATCH_SIZE);
+		while (!_shutdown) {
+			try {
+				batch.add(_queue.take());
+				_queue.drainTo(batch, MAX_BATCH_SIZE - 1);
+				Jira4Metrics.set("logout.queue.depth", _queue.size());
+				for (final Jira4PluginConnection.RemoteSession session : batch) {
+					if (_shutdown) {
+						Jira4Metrics.increment("logout.dropped");
+						continue;
+					}
+					session.logoutNow();
+					Jira4Metrics.increment("logout.completed");
+				}
+			} catch (final InterruptedException e) {
+				return;
+			} catch (final RuntimeException e) {
+				LOG.warn("Unable to log out of JIRA", e);
+			} finally {
+				batch.clear();
+			}
+		}
+	}
+}
@@ -0,0 +1,127 @@
+/*
+ * (C) Copyright 2015 Hewlett-Packard Development Company, L.P.
+ */
+
+package com.fortify.sample.defecttracking.jira;
+
+import java.net.SocketTimeoutException;
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.apache.axis.AxisFault;
+
+/**
+ * Independent JIRA lookups that are started together and share the deadline of their {@link Jira4Operation}, so
+ * that a caller needing several of them waits for the slowest instead of the sum. Results are collected with
+ * {@link #get(Future)} in whatever order the caller would have made the calls one by one, so the first failure
+ * reported is the same as before.
+ *
+ * Always {@link #cancel()} in a finally block before the connection the lookups use is given back, so that lookups
+ * nobody waits for any more stop and no longer use it.
+ *
+ */
+final class Jira4Lookups {
+
+	private final List<Future<?>> _futures = new ArrayList<Future<?>>();
+	private final Jira4Operation _operation;
+	/** Threads running a lookup right now; guarded by itself */
+	private final Set<Thread> _running = new HashSet<Thread>();
+	private boolean _cancelled;
+
+	/**
+	 *
+	 * @param operation Operation the lookups are made for, whose budget and stop also end the wait for them
+	 */
+	Jira4Lookups(Jira4Operation operation) {
+		_operation = operation;
+	}
+
+	<T> Future<T> start(final Callable<T> lookup) {
+		final Future<T> retval = Jira4Workers.submit(new Callable<T>() {
+			public T call() throws Exception {
+				synchronized (_running) {
+					if (_cancelled) {
+						throw new CancellationException();
+					}
+					_running.add(Thread.currentThread());
+				}
+				try {
+					return lookup.call();
+				} finally {
+					synchronized (_running) {
+						_running.remove(Thread.currentThread());
+						_running.notifyAll();
+					}
+				}
+			}
+		});
+		_futures.add(retval);
+		return retval;
+	}
+
+	/**
+	 *
+	 * @return The result of the lookup
+	 * @throws RemoteException the error of the lookup, or a timeout if the operation is out of time
+	 */
+	<T> T get(Future<T> lookup) throws RemoteException {
+		try {
+			return lookup.get(_operation.remainingMillis(), TimeUnit.MILLISECONDS);
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RemoteException("Interrupted while waiting for JIRA", e);
+		} catch (final TimeoutException e) {
+			Jira4Metrics.increment("lookups.timeout");
+			_operation.remainingMillis();
+			throw AxisFault.makeFault(new SocketTimeoutException(_operation.getName() + " did not get an answer from JIRA in time"));
+		} catch (final ExecutionException e) {
+			final Throwable cause = e.getCause();
+			if (cause instanceof RemoteException) {
+				throw (RemoteException) cause;
+			}
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+			if (cause instanceof Error) {
+				throw (Error) cause;
+			}
+			throw new RemoteException("JIRA lookup failed", cause);
+		}
+	}
+
+	/**
+	 * Stop the lookups that have not finished yet, aborting their HTTP requests, and wait until none of them runs
+	 * any more. Their results are not needed any more.
+	 */
+	void cancel() {
+		synchronized (_running) {
+			_cancelled = true;
+			for (final Future<?> future : _futures) {
+				future.cancel(true);
+			}
+			for (final Thread thread : _running) {
+				Jira4HttpTransport.abort(thread);
+			}
+			boolean interrupted = false;
+			while (!_running.isEmpty()) {
+				try {
+					_running.wait();
+				} catch (final InterruptedException e) {
+					interrupted = true;
+				}
+			}
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+}
@@ -0,0 +1,57 @@
+/*
+ * (C) Copyright 2015 Hewlett-Packard Development Company, L.P.
+ */
+
+package com.fortify.sample.defecttracking.jira;
+
+import com.atlassian.jira.rpc.soap.client.RemoteIssueType;
+import com.atlassian.jira.rpc.soap.client.RemotePriority;
+import com.atlassian.jira.rpc.soap.client.RemoteResolution;
+import com.atlassian.jira.rpc.soap.client.RemoteStatus;
+
+/**
+ * Snapshot of the global JIRA constants the plugin needs: priorities, issue types, statuses and resolutions.
+ * Instances are shared between threads by {@link Jira4MetadataCache}. Each list is indexed once when the snapshot
+ * is taken, so id and name lookups do not scan the arrays on every call.
+ *
+ */
+final class Jira4Metadata {
+
+	private final Jira4NamedEntityIndex<RemotePriority> _priorities;
+	private final Jira4NamedEntityIndex<RemoteIssueType> _issueTypes;
+	private final Jira4NamedEntityIndex<RemoteStatus> _statuses;
+	private final Jira4NamedEntityIndex<RemoteResolution> _resolutions;
+	private final long _loadedAt;
+
+	Jira4Metadata(RemotePriority[] priorities, RemoteIssueType[] issueTypes, RemoteStatus[] statuses, RemoteResolution[] resolutions, long loadedAt) {
+		_priorities = Jira4NamedEntityIndex.of(priorities);
+		_issueTypes = Jira4NamedEntityIndex.of(issueTypes);
+		_statuses = Jira4NamedEntityIndex.of(statuses);
+		_resolutions = Jira4NamedEntityIndex.of(resolutions);
+		_loadedAt = loadedAt;
+	}
+
+	Jira4NamedEntityIndex<RemotePriority> getPriorities() {
+		return _priorities;
+	}
+
+	Jira4NamedEntityIndex<RemoteIssueType> getIssueTypes() {
+		return _issueTypes;
+	}
+
+	Jira4NamedEntityIndex<RemoteStatus> getStatuses() {
+		return _statuses;
+	}
+
+	Jira4NamedEntityIndex<RemoteResolution> getResolutions() {
+		return _resolutions;
+	}
+
+	/**
+	 *
+	 * @return Time in milliseconds at which this snapshot was read from JIRA
+	 */
+	long getLoadedAt() {
+		return _loadedAt;
+	}
+}
@@ -0,0 +1,165 @@
+/*
+ * (C) Copyright 2015 Hewlett-Packard Development Company, L.P.
+ */
+
+package com.fortify.sample.defecttracking.jira;
+
+import java.rmi.RemoteException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.atlassian.jira.rpc.soap.client.RemoteVersion;
+
+/**
+ * Shares {@link Jira4Metadata} snapshots per JIRA URL so that status lookups and issue creation do not download
+ * the full list of priorities, issue types, statuses and resolutions every time.
+ *
+ * A snapshot older than the TTL is reloaded before it is handed out; only one caller loads it, concurrent callers
+ * wait for that load. Once a snapshot has lived through {@link #REFRESH_AHEAD_FRACTION} of its TTL, the next caller
+ * reloads it with its own connection, while everyone else keeps using the current snapshot. So only one caller per
+ * TTL waits for JIRA, and the connection, which belongs to that caller, is never used after the caller is done.
+ *
+ * The versions of each project are cached alongside with the same TTL, since filing an issue needs them too.
+ *
+ */
+final class Jira4MetadataCache {
+
+	private static final Log LOG = LogFactory.getLog(Jira4MetadataCache.class);
+
+	static final long DEFAULT_TTL_MILLIS = 30 * 60 * 1000L;
+	static final double REFRESH_AHEAD_FRACTION = 0.75;
+
+	private static final Jira4MetadataCache INSTANCE = new Jira4MetadataCache();
+
+	private final ConcurrentMap<String, Entry> _entries = new ConcurrentHashMap<String, Entry>();
+
+	static Jira4MetadataCache getInstance() {
+		return INSTANCE;
+	}
+
+	/**
+	 * Set how long snapshots of the given JIRA stay valid.
+	 */
+	void setTtlMillis(String jiraBaseUrl, long ttlMillis) {
+		entryFor(jiraBaseUrl).ttlMillis = ttlMillis;
+	}
+
+	/**
+	 * Return the snapshot for the connection's JIRA, loading it through the connection when missing or expired.
+	 */
+	Jira4Metadata get(String jiraBaseUrl, Jira4PluginConnection connection) throws RemoteException {
+		final Entry entry = entryFor(jiraBaseUrl);
+		final long now = System.currentTimeMillis();
+		final Jira4Metadata current = entry.metadata;
+		if (current == null || now - current.getLoadedAt() >= entry.ttlMillis) {
+			return load(entry, current, connection);
+		}
+		Jira4Metrics.increment("metadata.cache.hit");
+		if (now - current.getLoadedAt() >= entry.ttlMillis * REFRESH_AHEAD_FRACTION && entry.refreshing.compareAndSet(false, true)) {
+			Jira4Metrics.increment("metadata.cache.refreshAhead");
+			try {
+				entry.metadata = connection.fetchMetadata();
+				return entry.metadata;
+			} catch (final RemoteException e) {
+				LOG.info("Unable to refresh JIRA metadata for " + jiraBaseUrl + ", keeping the current snapshot", e);
+			} finally {
+				entry.refreshing.set(false);
+			}
+		}
+		return current;
+	}
+
+	/**
+	 * Load a new snapshot right away, e.g. because the cached one does not know a status that JIRA just returned.
+	 */
+	Jira4Metadata reload(String jiraBaseUrl, Jira4PluginConnection connection) throws RemoteException {
+		final Entry entry = entryFor(jiraBaseUrl);
+		return load(entry, entry.metadata, connection);
+	}
+
+	/**
+	 * Return the versions of a project, loading them through the connection when missing or expired, or when they
+	 * do not contain the wanted version yet.
+	 *
+	 * @param wantedVersion Name of a version the caller is about to use, may be null
+	 */
+	Jira4NamedEntityIndex<RemoteVersion> getVersions(String jiraBaseUrl, String projectKey, String wantedVersion, Jira4PluginConnection connection)
+			throws RemoteException {
+		final Entry entry = entryFor(jiraBaseUrl);
+		final Versions current = entry.versions.get(projectKey);
+		if (current != null && System.currentTimeMillis() - current.loadedAt < entry.ttlMillis
+				&& (wantedVersion == null || current.index.getByName(wantedVersion) != null)) {
+			Jira4Metrics.increment("versions.cache.hit");
+			return current.index;
+		}
+		synchronized (entry) {
+			final Versions loaded = entry.versions.get(projectKey);
+			if (loaded != null && loaded != current) {
+				Jira4Metrics.increment("versions.cache.hit");
+				return loaded.index;
+			}
+			Jira4Metrics.increment("versions.cache.miss");
+			final Versions retval = new Versions(connection.fetchVersionIndex(projectKey), System.currentTimeMillis());
+			entry.versions.put(projectKey, retval);
+			return retval.index;
+		}
+	}
+
+	/**
+	 * Drop the snapshot of the given JIRA; the next caller loads a fresh one.
+	 */
+	void invalidate(String jiraBaseUrl) {
+		final Entry entry = _entries.get(jiraBaseUrl);
+		if (entry != null) {
+			entry.metadata = null;
+			entry.versions.clear();
+			Jira4Metrics.increment("metadata.cache.invalidate");
+		}
+	}
+
+	private Jira4Metadata load(Entry entry, Jira4Metadata stale, Jira4PluginConnection connection) throws RemoteException {
+		synchronized (entry) {
+			// Someone else may have loaded it while we waited
+			if (entry.metadata != null && entry.metadata != stale) {
+				Jira4Metrics.increment("metadata.cache.hit");
+				return entry.metadata;
+			}
+			Jira4Metrics.increment("metadata.cache.miss");
+			entry.metadata = connection.fetchMetadata();
+			return entry.metadata;
+		}
+	}
+
+	private Entry entryFor(String jiraBaseUrl) {
+		Entry retval = _entries.get(jiraBaseUrl);
+		if (retval == null) {
+			final Entry created = new Entry();
+			retval = _entries.putIfAbsent(jiraBaseUrl, created);
+			if (retval == null) {
+				retval = created;
+			}
+		}
+		return retval;
+	}
+
+	private static final class Entry {
+		volatile Jira4Metadata metadata;
+		volatile long ttlMillis = DEFAULT_TTL_MILLIS;
+		final AtomicBoolean refreshing = new AtomicBoolean();
+		final ConcurrentMap<String, Versions> versions = new ConcurrentHashMap<String, Versions>();
+	}
+
+	private static final class Versions {
+		final Jira4NamedEntityIndex<RemoteVersion> index;
+		final long loadedAt;
+
+		Versions(Jira4NamedEntityIndex<RemoteVersion> index, long loadedAt) {
+			this.index = index;
+			this.loadedAt = loadedAt;
+		}
+	}
+}
@@ -0,0 +1,109 @@
+/*
+ * (C) Copyright 2015 Hewlett-Packard Development Company, L.P.
+ */
+
+package com.fortify.sample.defecttracking.jira;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Process wide counters and gauges describing how the plugin talks to JIRA, such as session pool hits, limiter
+ * and breaker state and retries. Values are kept in memory, can be read with {@link #snapshot()}, which the plugin
+ * exposes as {@link Jira4BugTrackerPlugin#getMetrics()}, and are logged every {@link #LOG_INTERVAL_MINUTES} minutes
+ * once {@link #startLogging()} was called.
+ *
+ */
+final class Jira4Metrics {
+
+	private static final Log LOG = LogFactory.getLog(Jira4Metrics.class);
+
+	static final int LOG_INTERVAL_MINUTES = 5;
+
+	private static final ConcurrentMap<String, AtomicLong> VALUES = new ConcurrentHashMap<String, AtomicLong>();
+	private static final AtomicBoolean LOGGING = new AtomicBoolean();
+
+	private Jira4Metrics() {
+	}
+
+	/**
+	 * Add one to the named counter.
+	 *
+	 * @param name Name of the counter, e.g. session.pool.hit
+	 */
+	static void increment(String name) {
+		add(name, 1);
+	}
+
+	static void add(String name, long delta) {
+		get(name).addAndGet(delta);
+	}
+
+	/**
+	 * Overwrite the value of a gauge, e.g. a current limit or queue depth.
+	 */
+	static void set(String name, long value) {
+		get(name).set(value);
+	}
+
+	static long value(String name) {
+		final AtomicLong value = VALUES.get(name);
+		return value == null ? 0 : value.get();
+	}
+
+	/**
+	 *
+	 * @return Sorted copy of every counter and gauge recorded so far.
+	 */
+	static Map<String, Long> snapshot() {
+		final Map<String, Long> retval = new TreeMap<String, Long>();
+		for (final Map.Entry<String, AtomicLong> entry : VALUES.entrySet()) {
+			retval.put(entry.getKey(), Long.valueOf(entry.getValue().get()));
+		}
+		return retval;
+	}
+
+	/**
+	 * Log every value periodically from now on, unless that is already the case or INFO logging is off.
+	 */
+	static void startLogging() {
+		if (!LOG.isInfoEnabled() || !LOGGING.compareAndSet(false, true)) {
+			return;
+		}
+		final ScheduledExecutorService logger = Executors.newSingleThreadScheduledExecutor(new Jira4DaemonThreadFactory("jira4-metrics"));
+		logger.scheduleWithFixedDelay(new Runnable() {
+			private Map<String, Long> _logged;
+
+			public void run() {
+				final Map<String, Long> current = snapshot();
+				// Nothing worth repeating while the plugin is idle
+				if (!current.isEmpty() && !current.equals(_logged)) {
+					LOG.info("JIRA plugin metrics: " + current);
+					_logged = current;
+				}
+			}
+		}, LOG_INTERVAL_MINUTES * 60L, LOG_INTERVAL_MINUTES * 60L, TimeUnit.SECONDS);
+	}
+
+	private static AtomicLong get(String name) {
+		AtomicLong retval = VALUES.get(name);
+		if (retval == null) {
+			final AtomicLong created = new AtomicLong();
+			retval = VALUES.putIfAbsent(name, created);
+			if (retval == null) {
+				retval = created;
+			}
+		}
+		return retval;
+	}
+}
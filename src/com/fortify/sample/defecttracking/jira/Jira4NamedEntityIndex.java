@@ -0,0 +1,92 @@
+/*
+ * (C) Copyright 2015 Hewlett-Packard Development Company, L.P.
+ */
+
+package com.fortify.sample.defecttracking.jira;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.atlassian.jira.rpc.soap.client.AbstractNamedRemoteEntity;
+
+/**
+ * Immutable two-way lookup between the ids and names of JIRA entities such as statuses or versions.
+ * Replaces linear scans over the arrays returned by JIRA. When several entities share a name, the first one
+ * in JIRA's order wins, as it did with the scans.
+ *
+ */
+final class Jira4NamedEntityIndex<T extends AbstractNamedRemoteEntity> {
+
+	private final Map<String, T> _byId;
+	private final Map<String, T> _byName;
+	private final List<String> _names;
+
+	private Jira4NamedEntityIndex(T[] entities) {
+		final int capacity = entities.length * 4 / 3 + 1;
+		final Map<String, T> byId = new HashMap<String, T>(capacity);
+		final Map<String, T> byName = new HashMap<String, T>(capacity);
+		final List<String> names = new ArrayList<String>(entities.length);
+		for (final T entity : entities) {
+			putIfAbsent(byId, entity.getId(), entity);
+			putIfAbsent(byName, entity.getName(), entity);
+			names.add(entity.getName());
+		}
+		_byId = byId;
+		_byName = byName;
+		_names = Collections.unmodifiableList(names);
+	}
+
+	/**
+	 * Build an index over the given entities, e.g. the result of getStatuses.
+	 */
+	static <T extends AbstractNamedRemoteEntity> Jira4NamedEntityIndex<T> of(T[] entities) {
+		return new Jira4NamedEntityIndex<T>(entities);
+	}
+
+	T getById(String id) {
+		return id == null ? null : _byId.get(id);
+	}
+
+	T getByName(String name) {
+		return name == null ? null : _byName.get(name);
+	}
+
+	/**
+	 *
+	 * @return Id of the entity with exactly this name, or null
+	 */
+	String findId(String name) {
+		final T entity = getByName(name);
+		return entity == null ? null : entity.getId();
+	}
+
+	/**
+	 *
+	 * @return Name of the entity with this id, or null
+	 */
+	String findName(String id) {
+		final T entity = getById(id);
+		return entity == null ? null : entity.getName();
+	}
+
+	/**
+	 *
+	 * @return Names of all entities in JIRA's order
+	 */
+	List<String> getNames() {
+		return _names;
+	}
+
+	int size() {
+		return _names.size();
+	}
+
+	private static <T> void putIfAbsent(Map<String, T> map, String key, T value) {
+		if (key != null && !map.containsKey(key)) {
+			map.put(key, value);
+		}
+	}
+}
@@ -0,0 +1,116 @@
+/*
+ * (C) Copyright 2015 Hewlett-Packard Development Company, L.P.
+ */
+
+package com.fortify.sample.defecttracking.jira;
+
+import java.net.SocketTimeoutException;
+import java.rmi.RemoteException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.axis.AxisFault;
+
+/**
+ * One plugin call, such as filing a bug, with the time budget that all of its JIRA calls share. Connections used
+ * for the operation carry it, so calls made on worker threads count against the same budget. Each JIRA call is
+ * given at most the time that is left, and no call is started once the budget is spent.
+ *
+ * {@link #stop()} makes the calls of the operation fail: waiting ones right away, and HTTP requests in flight by
+ * closing their pooled connection.
+ *
+ */
+final class Jira4Operation {
+
+	static final int DEFAULT_TIMEOUT_SECONDS = 120;
+
+	private final String _name;
+	private final long _budgetMillis;
+	private final long _deadlineNanos;
+	private final ConcurrentMap<Thread, Boolean> _callers = new ConcurrentHashMap<Thread, Boolean>();
+	private volatile boolean _stopped;
+	private int _connections;
+
+	/**
+	 *
+	 * @param name Name of the plugin method, used in messages and metrics
+	 * @param budgetMillis How long all JIRA calls of the operation may take together
+	 */
+	Jira4Operation(String name, long budgetMillis) {
+		_name = name;
+		_budgetMillis = budgetMillis;
+		_deadlineNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(budgetMillis);
+	}
+
+	String getName() {
+		return _name;
+	}
+
+	/**
+	 *
+	 * @return How long the next JIRA call may take, at least one millisecond
+	 * @throws RemoteException if the operation was stopped or its budget is spent
+	 */
+	int remainingMillis() throws RemoteException {
+		if (_stopped) {
+			throw new RemoteException(_name + " was stopped");
+		}
+		final long left = TimeUnit.NANOSECONDS.toMillis(_deadlineNanos - System.nanoTime());
+		if (left <= 0) {
+			Jira4Metrics.increment("operation.timeout");
+			Jira4Metrics.increment("operation.timeout." + _name);
+			throw AxisFault.makeFault(new SocketTimeoutException(_name + " did not finish within " + _budgetMillis / 1000 + " seconds"));
+		}
+		return (int) Math.min(left, Integer.MAX_VALUE);
+	}
+
+	boolean isStopped() {
+		return _stopped;
+	}
+
+	/**
+	 *
+	 * @return true if the operation was stopped or its budget is spent
+	 */
+	boolean isOver() {
+		return _stopped || _deadlineNanos - System.nanoTime() <= 0;
+	}
+
+	/**
+	 * The current thread starts a JIRA call for the operation.
+	 */
+	void enter() {
+		_callers.put(Thread.currentThread(), Boolean.TRUE);
+	}
+
+	void exit() {
+		_callers.remove(Thread.currentThread());
+	}
+
+	/**
+	 * Fail the calls of the operation, including those in flight.
+	 */
+	void stop() {
+		_stopped = true;
+		Jira4Metrics.increment("operation.stopped");
+		for (final Thread caller : _callers.keySet()) {
+			Jira4HttpTransport.abort(caller);
+		}
+	}
+
+	/**
+	 * A connection was leased for the operation.
+	 */
+	synchronized void attach() {
+		_connections++;
+	}
+
+	/**
+	 *
+	 * @return true if no connection is used for the operation any more
+	 */
+	synchronized boolean detach() {
+		return --_connections == 0;
+	}
+}
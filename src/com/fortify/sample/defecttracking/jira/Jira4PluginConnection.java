@@ -4,25 +4,37 @@
 
 package com.fortify.sample.defecttracking.jira;
 
+import java.io.Closeable;
+import java.io.IOException;
 import java.net.ConnectException;
-import java.net.MalformedURLException;
-import java.net.URL;
+import java.net.SocketTimeoutException;
 import java.rmi.RemoteException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Calendar;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import org.apache.axis.AxisFault;
+import org.apache.axis.client.Stub;
 import org.apache.commons.lang.StringUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
 import com.atlassian.jira.rpc.soap.client.*;
-import com.atlassian.jira_soapclient.SOAPSession;
 import com.fortify.pub.bugtracker.support.Bug;
 
 /**
  * Utility for working with JIRA's APIs.
+ * Connections must be closed with {@link #close()}, or given back to the {@link Jira4SessionPool} they were
+ * leased from. Connections that are dropped without either are logged out by the {@link Jira4ConnectionReaper}.
  * Instructions from {@link http://confluence.atlassian.com/display/JIRA041/Creating+a+SOAP+Client}
  * Using Atlassian library from {@link https://svn.atlassian.com/svn/public/atlassian/rpc-jira-plugin/tags/atlassian_jira_4_1_1_1/jira-soapclient/}
  * Relevant Javadoc {@link http://docs.atlassian.com/software/jira/docs/api/rpc-jira-plugin/4.1-1/}
@@ -30,12 +42,88 @@ import com.fortify.pub.bugtracker.support.Bug;
  * @author costlowe
  *
  */
-public class Jira4PluginConnection {
+public class Jira4PluginConnection implements Closeable {
 
 	private static final Log LOG = LogFactory.getLog(Jira4PluginConnection.class);
-	private final String _authToken;
+
+	/**
+	 * A single call against the JIRA SOAP service. Calls may be replayed with a new token
+	 * when JIRA reports that the previous one has expired.
+	 */
+	interface JiraCall<T> {
+		T call(JiraSoapService service, String authToken) throws RemoteException;
+	}
+
+	/**
+	 * Finds out whether a write that failed in transit was carried out by JIRA anyway, so that it is only
+	 * tried again when it was not.
+	 */
+	interface JiraCheck<T> {
+		/**
+		 *
+		 * @return What the write would have answered if it took effect, or null if it did not
+		 */
+		T find() throws RemoteException;
+	}
+
+	/** Operations that change nothing in JIRA, and so can be tried again after any transient failure */
+	private static final Set<String> READ_OPERATIONS = new HashSet<String>(Arrays.asList("getIssue", "getIssuesFromJqlSearch",
+			"getComments", "getAvailableActions", "getProjectByKey", "getProjectsNoSchemes", "getIssueTypesForProject", "getVersions",
+			"getPriorities", "getIssueTypes", "getStatuses", "getResolutions"));
+
+	/** How JIRA names the key that made it reject a search */
+	private static final Pattern REJECTED_KEY = Pattern.compile("key '([^']+)'");
+
+	/**
+	 * Everything needed to log out of JIRA. Kept apart from the connection so that a leaked connection
+	 * can still be logged out after it has been garbage collected.
+	 */
+	static final class RemoteSession {
+		final JiraSoapService service;
+		volatile String authToken;
+		/** Set by {@link Jira4SessionPool} when the connection is leased out of the pool */
+		volatile Jira4SessionPool pool;
+		volatile String poolKey;
+		final AtomicBoolean closed = new AtomicBoolean();
+
+		RemoteSession(JiraSoapService service, String authToken) {
+			this.service = service;
+			this.authToken = authToken;
+		}
+
+		/**
+		 * Hand the session to the {@link Jira4LogoutQueue} unless it has already been closed.
+		 *
+		 * @return false if the session was already closed
+		 */
+		boolean close() {
+			if (!closed.compareAndSet(false, true)) {
+				return false;
+			}
+			Jira4LogoutQueue.getInstance().submit(this);
+			return true;
+		}
+
+		void logoutNow() {
+			try {
+				service.logout(authToken);
+			} catch (final RemoteException e) {
+				LOG.trace("Unable to close jira connection, probably already closed", e);
+			}
+		}
+	}
+
+	private final String _userName;
+	private final String _password;
+	private final String _jiraBaseUrl;
 
 	private final JiraSoapService _jiraSoapService;
+	private final RemoteSession _session;
+	private final Jira4ConnectionReaper.Registration _registration;
+	private volatile Jira4RetryPolicy _retryPolicy = Jira4RetryPolicy.DEFAULT;
+	/** Timeout of a single call as set up by the transport, 0 if the service is not an Axis stub */
+	private final int _callTimeoutMillis;
+	private volatile Jira4Operation _operation;
 
 	/**
 	 * Opens a remote connection to JIRA and encapsulate its calls.
@@ -46,32 +134,289 @@ public class Jira4PluginConnection {
 	 * @throws RemoteException
 	 */
 	public Jira4PluginConnection(String userName, String password, String jiraBaseUrl) throws RemoteException {
-		final String jiraWebServiceURL = jiraBaseUrl + "/rpc/soap/jirasoapservice-v2";
-		SOAPSession soapSession;
-		try {
-			soapSession = new SOAPSession(new URL(jiraWebServiceURL));
-		} catch (final MalformedURLException e) {
-			throw new RemoteException("Invalid JIRA URL", e);
-		}
-		soapSession.connect(userName, password);
-		_jiraSoapService = soapSession.getJiraSoapService();
-		_authToken = soapSession.getAuthenticationToken();
+		this(userName, password, jiraBaseUrl, Jira4HttpTransport.getDefault());
 	}
 
 	/**
-	 * Close the remote connection and tell JIRA that our temporary key is no longer valid.
-	 * Your object instance will (intentionally) be useless after calling this.
+	 * Opens a remote connection to JIRA over the given HTTP transport.
 	 *
+	 * @param userName
+	 * @param password
+	 * @param jiraBaseUrl
+	 * @param transport
 	 * @throws RemoteException
 	 */
+	Jira4PluginConnection(String userName, String password, String jiraBaseUrl, Jira4HttpTransport transport) throws RemoteException {
+		this(userName, password, jiraBaseUrl, transport.createSoapService(jiraBaseUrl));
+	}
+
+	/**
+	 * Logs in through an already created SOAP service.
+	 *
+	 * @param userName
+	 * @param password
+	 * @param jiraBaseUrl
+	 * @param jiraSoapService
+	 * @throws RemoteException
+	 */
+	Jira4PluginConnection(String userName, String password, String jiraBaseUrl, JiraSoapService jiraSoapService) throws RemoteException {
+		_userName = userName;
+		_password = password;
+		_jiraBaseUrl = jiraBaseUrl;
+		_jiraSoapService = jiraSoapService;
+		_callTimeoutMillis = jiraSoapService instanceof Stub ? ((Stub) jiraSoapService).getTimeout() : 0;
+		_session = new RemoteSession(jiraSoapService, limited("login", null, new JiraCall<String>() {
+			public String call(JiraSoapService service, String authToken) throws RemoteException {
+				return service.login(_userName, _password);
+			}
+		}));
+		_registration = Jira4ConnectionReaper.getInstance().register(this, _session);
+	}
+
+	String getPoolKey() {
+		return _session.poolKey;
+	}
+
+	String getUserName() {
+		return _userName;
+	}
+
+	void setRetryPolicy(Jira4RetryPolicy retryPolicy) {
+		_retryPolicy = retryPolicy;
+	}
+
+	/**
+	 * Make the following calls part of the given plugin operation, sharing its time budget.
+	 *
+	 * @param operation null once the connection is not used for an operation any more
+	 */
+	void setOperation(Jira4Operation operation) {
+		_operation = operation;
+	}
+
+	Jira4Operation getOperation() {
+		return _operation;
+	}
+
+	void setPool(Jira4SessionPool pool, String poolKey) {
+		_session.pool = pool;
+		_session.poolKey = poolKey;
+	}
+
+	/**
+	 * Close the remote connection and tell JIRA that our temporary key is no longer valid.
+	 * Your object instance will (intentionally) be useless after calling this.
+	 * The logout itself happens in the background, so this does not wait for JIRA.
+	 */
 	public void closeJiraConnection() {
+		_registration.unregister();
+		_session.close();
+	}
+
+	/**
+	 * Same as {@link #closeJiraConnection()}. Closing twice has no further effect.
+	 */
+	public void close() {
+		closeJiraConnection();
+	}
+
+	/**
+	 * Run a call with the current token. If JIRA rejects the token, e.g. because the session timed out
+	 * on the server, log in again and replay the call once. Reads are tried again after transient failures
+	 * as the {@link Jira4RetryPolicy} allows; writes are not.
+	 *
+	 * @param operation Name of the SOAP operation, used for logging and to tell reads from writes
+	 */
+	<T> T invoke(String operation, JiraCall<T> call) throws RemoteException {
+		return invoke(operation, call, null);
+	}
+
+	/**
+	 * Same as {@link #invoke(String, JiraCall)}, but a write is also tried again after a transient failure
+	 * if the check finds that JIRA did not carry it out.
+	 *
+	 * @param check Null if the write cannot be checked, in which case it is not tried again
+	 */
+	<T> T invoke(String operation, JiraCall<T> call, JiraCheck<T> check) throws RemoteException {
+		final boolean read = READ_OPERATIONS.contains(operation);
+		final long start = System.currentTimeMillis();
+		for (int attempt = 1;; attempt++) {
+			final RemoteException failure;
+			try {
+				return invokeOnce(operation, call);
+			} catch (final RemoteException e) {
+				failure = e;
+			}
+			// While the breaker is open every attempt would fail without reaching JIRA
+			if (!Jira4RetryPolicy.isTransient(failure) || (!read && check == null)
+					|| Jira4CircuitBreaker.getInstance(_jiraBaseUrl).getState() == Jira4CircuitBreaker.State.OPEN) {
+				throw failure;
+			}
+			final long delay = _retryPolicy.delayBeforeRetry(attempt, System.currentTimeMillis() - start);
+			if (delay < 0 || !fitsInOperation(delay)) {
+				Jira4Metrics.increment("retry.exhausted");
+				throw failure;
+			}
+			try {
+				Thread.sleep(delay);
+			} catch (final InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw failure;
+			}
+			if (!read) {
+				final T done;
+				try {
+					done = check.find();
+				} catch (final RemoteException e) {
+					LOG.debug("Unable to tell whether " + operation + " was carried out, not trying it again", e);
+					throw failure;
+				}
+				if (done != null) {
+					Jira4Metrics.increment("retry.confirmed");
+					return done;
+				}
+			}
+			LOG.debug("Trying " + operation + " again after a transient failure", failure);
+			Jira4Metrics.increment("retry.attempts");
+			Jira4Metrics.increment("retry." + operation);
+		}
+	}
+
+	private boolean fitsInOperation(long delayMillis) {
+		final Jira4Operation operation = _operation;
+		if (operation == null) {
+			return true;
+		}
+		try {
+			return delayMillis < operation.remainingMillis();
+		} catch (final RemoteException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Same as {@link #invoke(String, JiraCall)} for a read, but other connections asking the same question at the
+	 * same time share the call through {@link Jira4SingleFlight}. The answer must not be modified.
+	 *
+	 * @param perUser true if JIRA answers according to the permissions of the user
+	 * @param args Arguments of the call besides the token
+	 */
+	private <T> T invokeShared(final String operation, boolean perUser, final JiraCall<T> call, Object... args) throws RemoteException {
+		// Failures down to the connection that made the shared call, e.g. its expired session, are not passed on
+		return Jira4SingleFlight.run(Jira4SingleFlight.key(_jiraBaseUrl, perUser ? _userName : null, operation, args), new Callable<T>() {
+			public T call() throws RemoteException {
+				return invoke(operation, call);
+			}
+		}, _operation);
+	}
+
+	private <T> T invokeOnce(String operation, JiraCall<T> call) throws RemoteException {
+		final String authToken = _session.authToken;
 		try {
-			_jiraSoapService.logout(_authToken);
+			return limited(operation, authToken, call);
 		} catch (final RemoteException e) {
-			LOG.trace("Unable to close jira connection, probably already closed", e);
+			if (!isExpiredToken(e)) {
+				throw e;
+			}
+			LOG.debug("JIRA rejected the session token during " + operation + ", logging in again");
+			relogin(authToken);
+			return limited(operation, _session.authToken, call);
 		}
 	}
 
+	/**
+	 * Run a call once the {@link Jira4CircuitBreaker} and {@link Jira4ConcurrencyLimiter} of the JIRA let it,
+	 * and tell both how it went. Waiting for the limiter and the call itself may each take no longer than the
+	 * {@link Jira4Operation} has left.
+	 *
+	 * @param name Name of the JIRA call, for the limiter's latency tracking
+	 */
+	private <T> T limited(String name, String authToken, JiraCall<T> call) throws RemoteException {
+		final Jira4Operation operation = _operation;
+		final int timeoutMillis = operation == null ? _callTimeoutMillis : operation.remainingMillis();
+		final Jira4CircuitBreaker breaker = Jira4CircuitBreaker.getInstance(_jiraBaseUrl);
+		breaker.allow();
+		boolean reported = false;
+		try {
+			final Jira4ConcurrencyLimiter limiter = Jira4ConcurrencyLimiter.getInstance(_jiraBaseUrl);
+			try {
+				if (!limiter.acquire(timeoutMillis)) {
+					throw AxisFault.makeFault(new SocketTimeoutException("No free slot to call JIRA within " + timeoutMillis + " ms"));
+				}
+			} catch (final InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new RemoteException("Interrupted while waiting to call JIRA", e);
+			}
+			final long start = System.nanoTime();
+			boolean overloaded = false;
+			if (operation != null) {
+				operation.enter();
+			}
+			if (_callTimeoutMillis > 0) {
+				// The stub is shared by the threads working for this connection, so the timeout is set per thread
+				Jira4HttpTransport.setCallTimeout(Math.min(_callTimeoutMillis, timeoutMillis));
+			}
+			try {
+				final T retval = call.call(_jiraSoapService, authToken);
+				breaker.succeeded();
+				reported = true;
+				return retval;
+			} catch (final RemoteException e) {
+				if (operation != null && operation.isStopped()) {
+					// The request was aborted here, JIRA itself may be fine
+					throw new RemoteException(operation.getName() + " was stopped", e);
+				}
+				overloaded = isTransportFailure(e);
+				breaker.failed(e);
+				reported = true;
+				throw e;
+			} finally {
+				Jira4HttpTransport.clearCallTimeout();
+				if (operation != null) {
+					operation.exit();
+				}
+				limiter.release(name, System.nanoTime() - start, overloaded);
+			}
+		} finally {
+			if (!reported) {
+				// Nothing was learnt about the server, e.g. no slot was free or the call ended with a runtime exception
+				breaker.abandoned();
+			}
+		}
+	}
+
+	private synchronized void relogin(String expiredToken) throws RemoteException {
+		if (_session.closed.get()) {
+			// Logging in again would open a session that nobody logs out
+			throw new RemoteException("JIRA connection is already closed");
+		}
+		// Another thread sharing this connection may already have replaced the token
+		if (StringUtils.equals(expiredToken, _session.authToken)) {
+			_session.authToken = limited("login", null, new JiraCall<String>() {
+				public String call(JiraSoapService service, String authToken) throws RemoteException {
+					return service.login(_userName, _password);
+				}
+			});
+			Jira4Metrics.increment("session.relogin");
+		}
+	}
+
+	/**
+	 *
+	 * @return true if the call never got an answer from JIRA, e.g. the connection was refused or timed out
+	 */
+	static boolean isTransportFailure(RemoteException e) {
+		return e instanceof AxisFault && e.detail instanceof IOException;
+	}
+
+	static boolean isExpiredToken(RemoteException e) {
+		if (e instanceof RemoteAuthenticationException) {
+			return true;
+		}
+		// Faults are not always mapped to their JIRA exception class, so fall back to the fault text
+		return e instanceof AxisFault && StringUtils.contains(((AxisFault) e).getFaultString(), "RemoteAuthenticationException");
+	}
+
 	/**
 	 *
 	 * @param projectKey Which project to file the issue in.
@@ -88,45 +433,191 @@ public class Jira4PluginConnection {
 	 */
 	public Bug createNewIssue(String projectKey, String summary, String description, Calendar dueDate, String priorityName, String issueTypeName, String assignee, String affectsVersion)
 			throws RemoteException {
-		final String priorityId = findIdFromName(priorityName, _jiraSoapService.getPriorities(_authToken));
-		final String issueTypeId = findIdFromName(issueTypeName, _jiraSoapService.getIssueTypes(_authToken));
-		final RemoteVersion[] affectsVersions = parseAffectsVersion(affectsVersion, projectKey);
+		final Jira4NamedEntityIndex<RemoteVersion> versions = StringUtils.isEmpty(affectsVersion) ? null : getVersionIndex(projectKey, affectsVersion);
+		return createIssue(prepareIssue(getMetadata(), versions, projectKey, summary, description, dueDate, priorityName, issueTypeName, assignee,
+				affectsVersion)).toBug();
+	}
 
-		RemoteIssue remoteIssue = new RemoteIssue();
-		remoteIssue.setAffectsVersions(affectsVersions);
-		remoteIssue.setAssignee(StringUtils.isEmpty(assignee) ? null : assignee);
-		remoteIssue.setDescription(description);
-		remoteIssue.setDuedate(dueDate);
-		remoteIssue.setPriority(priorityId);
-		remoteIssue.setProject(projectKey);
-		remoteIssue.setSummary(summary);
-		remoteIssue.setType(issueTypeId);
+	/**
+	 * Turn the names used by {@link #createNewIssue} into a new issue with JIRA ids, without asking JIRA.
+	 * Many issues can be prepared from the same metadata snapshot and version index.
+	 *
+	 * @param metadata Snapshot to look up priority and issue type ids in
+	 * @param versions Versions of the project, may be null when there is no affects version
+	 */
+	static RemoteIssue prepareIssue(Jira4Metadata metadata, Jira4NamedEntityIndex<RemoteVersion> versions, String projectKey, String summary,
+			String description, Calendar dueDate, String priorityName, String issueTypeName, String assignee, String affectsVersion) {
+		final RemoteIssue newIssue = new RemoteIssue();
+		newIssue.setAffectsVersions(parseAffectsVersion(affectsVersion, versions));
+		newIssue.setAssignee(StringUtils.isEmpty(assignee) ? null : assignee);
+		newIssue.setDescription(description);
+		newIssue.setDuedate(dueDate);
+		newIssue.setPriority(metadata.getPriorities().findId(priorityName));
+		newIssue.setProject(projectKey);
+		newIssue.setSummary(summary);
+		newIssue.setType(metadata.getIssueTypes().findId(issueTypeName));
+		return newIssue;
+	}
 
-		remoteIssue = _jiraSoapService.createIssue(_authToken, remoteIssue);
+	/**
+	 * JIRA answers with the created issue, including its status and resolution, so the state is built from that
+	 * answer and cached metadata instead of reading the issue again.
+	 *
+	 * @param newIssue Issue from {@link #prepareIssue}
+	 * @return The state of the issue that was created inside JIRA
+	 * @throws RemoteException
+	 *             if the issue cannot be created
+	 */
+	Jira4BugState createIssue(final RemoteIssue newIssue) throws RemoteException {
+		final List<String> instanceIds = Jira4DuplicateIndex.parse(newIssue.getDescription());
+		final RemoteIssue remoteIssue = invoke("createIssue", new JiraCall<RemoteIssue>() {
+			public RemoteIssue call(JiraSoapService service, String authToken) throws RemoteException {
+				return service.createIssue(authToken, newIssue);
+			}
+		}, instanceIds.isEmpty() ? null : new JiraCheck<RemoteIssue>() {
+			// The instance ids stamped into the description find the issue if it was created
+			public RemoteIssue find() throws RemoteException {
+				final String instanceId = instanceIds.get(0);
+				for (final RemoteIssue issue : findByDescription(newIssue.getProject(), instanceId, null, 10)) {
+					if (Jira4DuplicateIndex.parse(issue.getDescription()).contains(instanceId)) {
+						return issue;
+					}
+				}
+				return null;
+			}
+		});
+		if (remoteIssue.getType() == null) {
+			remoteIssue.setType(newIssue.getType());
+		}
+		return Jira4BugState.from(remoteIssue.getKey(), remoteIssue, metadataFor(remoteIssue, getMetadata()));
+	}
 
-		final Bug retval = fetchDetails(remoteIssue.getKey());
+	public void addComment(final String issueId, final String comment) throws RemoteException {
+		final RemoteComment rc = new RemoteComment();
+		rc.setBody(comment);
+		// Only looked at after a transient failure: an identical comment added before the first attempt does not count
+		final long start = System.currentTimeMillis();
+		invoke("addComment", new JiraCall<Boolean>() {
+			public Boolean call(JiraSoapService service, String authToken) throws RemoteException {
+				service.addComment(authToken, issueId, rc);
+				return Boolean.TRUE;
+			}
+		}, new JiraCheck<Boolean>() {
+			public Boolean find() throws RemoteException {
+				for (final RemoteComment added : getComments(issueId)) {
+					if (added.getCreated() != null && added.getCreated().getTimeInMillis() >= start
+							&& StringUtils.equals(added.getAuthor(), _userName) && StringUtils.equals(added.getBody(), comment)) {
+						return Boolean.TRUE;
+					}
+				}
+				return null;
+			}
+		});
+	}
 
-		return retval;
+	private RemoteComment[] getComments(final String issueId) throws RemoteException {
+		final RemoteComment[] retval = invoke("getComments", new JiraCall<RemoteComment[]>() {
+			public RemoteComment[] call(JiraSoapService service, String authToken) throws RemoteException {
+				return service.getComments(authToken, issueId);
+			}
+		});
+		return retval == null ? new RemoteComment[0] : retval;
 	}
 
-	public void addComment(String issueId, String comment) throws RemoteException {
-		RemoteComment rc = new RemoteComment();
-		rc.setBody(comment);
-		_jiraSoapService.addComment(_authToken, issueId, rc);
+	public void progressWorkflow(final String issueId, String action) throws RemoteException {
+		transition(issueId, null, null, action);
+	}
+
+	/**
+	 * Same as {@link #progressWorkflow(String, String)}, but when the issue type and current status are known,
+	 * a workflow action id learnt from an earlier transition is used right away, saving the round trip that asks
+	 * JIRA for the available actions. If JIRA rejects that id, the actions are looked up as usual.
+	 *
+	 * @param issueType Id of the issue's type, or null if unknown
+	 * @param currentStatus Name of the issue's current status, or null if unknown
+	 * @return The state of the issue after the transition, or null if the action is not available for the issue
+	 */
+	Jira4BugState transition(final String issueId, String issueType, String currentStatus, String action) throws RemoteException {
+		return transition(issueId, issueType, currentStatus, action, null);
 	}
 
-	public void progressWorkflow(String issueId, String action) throws RemoteException {
-		final RemoteNamedObject[] actions = _jiraSoapService.getAvailableActions(_authToken, issueId);
-		String statusId = null;
+	/**
+	 * Same as {@link #transition(String, String, String, String)}, adding the comment as part of the transition
+	 * rather than in a call of its own.
+	 *
+	 * @param comment Comment to add, or null for none. It is not added if the transition is not available.
+	 */
+	Jira4BugState transition(final String issueId, String issueType, String currentStatus, String action, String comment) throws RemoteException {
+		final Jira4TransitionCache cache = Jira4TransitionCache.getInstance();
+		final String projectKey = Jira4BugState.projectOf(issueId);
+		final boolean cacheable = projectKey != null && issueType != null && currentStatus != null;
+		if (cacheable) {
+			final String actionId = cache.get(_jiraBaseUrl, projectKey, issueType, currentStatus, action);
+			if (actionId != null) {
+				try {
+					final Jira4BugState retval = progress(issueId, actionId, currentStatus, comment);
+					Jira4Metrics.increment("workflow.cache.hit");
+					return retval;
+				} catch (final RemoteException e) {
+					if (isTransportFailure(e)) {
+						throw e;
+					}
+					// The workflow was changed, or the status we were told is out of date
+					LOG.debug("JIRA rejected cached action " + actionId + " for " + issueId + ", looking up available actions", e);
+					Jira4Metrics.increment("workflow.cache.rejected");
+					cache.remove(_jiraBaseUrl, projectKey, issueType, currentStatus, action);
+				}
+			}
+		}
+
+		final RemoteNamedObject[] actions = invoke("getAvailableActions", new JiraCall<RemoteNamedObject[]>() {
+			public RemoteNamedObject[] call(JiraSoapService service, String authToken) throws RemoteException {
+				return service.getAvailableActions(authToken, issueId);
+			}
+		});
+		String actionId = null;
 		for (final RemoteNamedObject raction : actions) {
 			if (StringUtils.equals(raction.getName(), action)) {
-				statusId = raction.getId();
+				actionId = raction.getId();
 				break;
 			}
 		}
-		if (statusId != null) {
-			_jiraSoapService.progressWorkflowAction(_authToken, issueId, statusId, null);
+		if (actionId == null) {
+			return null;
 		}
+		final Jira4BugState retval = progress(issueId, actionId, currentStatus, comment);
+		if (projectKey != null && currentStatus != null) {
+			// The type of an issue does not change in a transition, so the result tells it if the caller did not know
+			final String learntType = issueType != null ? issueType : (retval == null ? null : retval.getIssueType());
+			if (learntType != null) {
+				cache.put(_jiraBaseUrl, projectKey, learntType, currentStatus, action, actionId);
+			}
+		}
+		return retval;
+	}
+
+	/**
+	 *
+	 * @param currentStatus Name of the issue's status before the transition, or null if unknown. Only if it is
+	 *            known can the transition be checked and tried again after a transient failure.
+	 * @param comment Comment to add with the transition, or null
+	 */
+	private Jira4BugState progress(final String issueId, final String actionId, final String currentStatus, String comment) throws RemoteException {
+		final RemoteFieldValue[] fields = comment == null ? null : new RemoteFieldValue[] { new RemoteFieldValue("comment", new String[] { comment }) };
+		final RemoteIssue issue = invoke("progressWorkflowAction", new JiraCall<RemoteIssue>() {
+			public RemoteIssue call(JiraSoapService service, String authToken) throws RemoteException {
+				return service.progressWorkflowAction(authToken, issueId, actionId, fields);
+			}
+		}, currentStatus == null ? null : new JiraCheck<RemoteIssue>() {
+			// The issue left its status only if the transition was carried out
+			public RemoteIssue find() throws RemoteException {
+				final RemoteIssue current = fetchIssue(issueId);
+				final String status = metadataFor(current, getMetadata()).getStatuses().findName(current.getStatus());
+				return StringUtils.equals(status, currentStatus) ? null : current;
+			}
+		});
+		// A null answer must not be taken for a transition that is not available
+		return issue == null ? fetchState(issueId) : Jira4BugState.from(issueId, issue, metadataFor(issue, getMetadata()));
 	}
 
 	/**
@@ -134,40 +625,214 @@ public class Jira4PluginConnection {
 	 * @param issueId The issue id within JIRA
 	 * @return A representation of the Bug's current status
 	 */
-	public Bug fetchDetails(String issueId) {
-		Bug retval = new Bug(issueId, "UNKNOWN");
-		RemoteIssue issue;
+	public Bug fetchDetails(final String issueId) {
+		Bug retval;
 		try {
-			issue = _jiraSoapService.getIssue(_authToken, issueId);
-			final RemoteStatus[] statuses = _jiraSoapService.getStatuses(_authToken);
-			for (final RemoteStatus status : statuses) {
-				if (StringUtils.equals(status.getId(), issue.getStatus())) {
-					retval.setBugStatus(status.getName());
-					break;
+			retval = fetchState(issueId).toBug();
+		} catch (final RemoteException e) {
+			LOG.info("Unable to get remote status", e);
+			retval = null;
+		}
+		return retval;
+	}
+
+	/**
+	 *
+	 * @param issueId The issue id within JIRA
+	 * @return The issue's current status, resolution and time of last change
+	 * @throws RemoteException if the issue cannot be read
+	 */
+	Jira4BugState fetchState(final String issueId) throws RemoteException {
+		final RemoteIssue issue = fetchIssue(issueId);
+		return Jira4BugState.from(issueId, issue, metadataFor(issue, getMetadata()));
+	}
+
+	/**
+	 * Read the status of several issues with a single JQL search. Issues the search does not return, because they
+	 * were moved or deleted or are hidden from this user, are read one by one so that each gets its own answer
+	 * or error message.
+	 *
+	 * @param issueIds Issue keys, no more than JIRA should return from one search
+	 * @return The current state of each issue, or why it could not be read
+	 * @throws RemoteException if JIRA cannot be reached at all
+	 */
+	Jira4BulkResult<Jira4BugState> fetchStates(final List<String> issueIds) throws RemoteException {
+		final Jira4BulkResult<Jira4BugState> retval = new Jira4BulkResult<Jira4BugState>();
+		final Map<String, RemoteIssue> found = new HashMap<String, RemoteIssue>(issueIds.size() * 4 / 3 + 1);
+		search(issueIds, found);
+
+		Jira4Metadata metadata = getMetadata();
+		for (final String issueId : issueIds) {
+			RemoteIssue issue = found.get(issueId);
+			if (issue == null) {
+				Jira4Metrics.increment("bulk.fetch.fallback");
+				try {
+					issue = fetchIssue(issueId);
+				} catch (final RemoteException e) {
+					if (isTransportFailure(e)) {
+						throw e;
+					}
+					retval.failed(issueId, findHelpfulMessage(e));
+					continue;
 				}
 			}
-			final RemoteResolution[] resolutions = _jiraSoapService.getResolutions(_authToken);
-			for (final RemoteResolution resolution : resolutions) {
-				if (StringUtils.equals(resolution.getId(), issue.getResolution())) {
-					retval.setBugResolution(resolution.getName());
-					break;
+			metadata = metadataFor(issue, metadata);
+			retval.succeeded(issueId, Jira4BugState.from(issueId, issue, metadata));
+		}
+		return retval;
+	}
+
+	/**
+	 * Search for the issues by key. JQL rejects the whole search when one of the keys does not exist, so a rejected
+	 * search is retried without the key JIRA names in its error, or, if it names none, as two searches of half the
+	 * keys each. A key rejected on its own is left out of the result.
+	 *
+	 * @param found Receives the issues found by key
+	 */
+	private void search(final List<String> issueKeys, Map<String, RemoteIssue> found) throws RemoteException {
+		if (issueKeys.isEmpty()) {
+			return;
+		}
+		final String jql = buildKeyQuery(issueKeys);
+		try {
+			final RemoteIssue[] issues = invoke("getIssuesFromJqlSearch", new JiraCall<RemoteIssue[]>() {
+				public RemoteIssue[] call(JiraSoapService service, String authToken) throws RemoteException {
+					return service.getIssuesFromJqlSearch(authToken, jql, issueKeys.size());
 				}
+			});
+			for (final RemoteIssue issue : issues) {
+				found.put(issue.getKey(), issue);
 			}
 		} catch (final RemoteException e) {
-			LOG.info("Unable to get remote status", e);
-			retval = null;
+			if (isTransportFailure(e)) {
+				throw e;
+			}
+			LOG.debug("JIRA rejected the search for " + issueKeys.size() + " issues", e);
+			Jira4Metrics.increment("bulk.fetch.searchRejected");
+			if (issueKeys.size() == 1) {
+				return;
+			}
+			final String rejectedKey = findRejectedKey(e);
+			if (rejectedKey != null && issueKeys.contains(rejectedKey)) {
+				final List<String> rest = new ArrayList<String>(issueKeys);
+				rest.remove(rejectedKey);
+				search(rest, found);
+			} else {
+				final int half = issueKeys.size() / 2;
+				search(issueKeys.subList(0, half), found);
+				search(issueKeys.subList(half, issueKeys.size()), found);
+			}
+		}
+	}
+
+	/**
+	 *
+	 * @return The key JIRA names in the error of a rejected search, e.g. "An issue with key 'GONE-1' does not exist", or null
+	 */
+	static String findRejectedKey(RemoteException e) {
+		final Matcher matcher = REJECTED_KEY.matcher(StringUtils.defaultString(findHelpfulMessage(e)));
+		return matcher.find() ? matcher.group(1) : null;
+	}
+
+	/**
+	 * Read the issues of a project that JIRA changed within the last minutes. The period is relative to JIRA's
+	 * clock, so the clocks of SSC and JIRA do not need to agree.
+	 *
+	 * @param projectKey Project to look at
+	 * @param minutes How far to look back
+	 * @param maxResults Most issues to read
+	 * @return The state of every changed issue, oldest change first, or null if more than maxResults issues changed
+	 * @throws RemoteException
+	 */
+	List<Jira4BugState> fetchUpdated(String projectKey, int minutes, final int maxResults) throws RemoteException {
+		final String jql = "project = " + quoteJql(projectKey) + " AND updated >= \"-" + minutes + "m\" ORDER BY updated ASC";
+		final RemoteIssue[] issues = invoke("getIssuesFromJqlSearch", new JiraCall<RemoteIssue[]>() {
+			public RemoteIssue[] call(JiraSoapService service, String authToken) throws RemoteException {
+				return service.getIssuesFromJqlSearch(authToken, jql, maxResults + 1);
+			}
+		});
+		if (issues.length > maxResults) {
+			return null;
+		}
+		final List<Jira4BugState> retval = new ArrayList<Jira4BugState>(issues.length);
+		Jira4Metadata metadata = getMetadata();
+		for (final RemoteIssue issue : issues) {
+			metadata = metadataFor(issue, metadata);
+			retval.add(Jira4BugState.from(issue.getKey(), issue, metadata));
 		}
 		return retval;
 	}
 
+	/**
+	 * Read one page of the project's issues whose description contains the given word, in key order.
+	 * The SOAP search has no offset, so the next page starts after the last key of the previous one.
+	 *
+	 * @param afterKey Last key of the previous page, or null for the first page
+	 * @param maxResults Size of a page
+	 */
+	RemoteIssue[] findByDescription(String projectKey, String word, String afterKey, final int maxResults) throws RemoteException {
+		final String jql = "project = " + quoteJql(projectKey) + " AND description ~ " + quoteJql(word)
+				+ (afterKey == null ? "" : " AND key > " + quoteJql(afterKey)) + " ORDER BY key ASC";
+		return invoke("getIssuesFromJqlSearch", new JiraCall<RemoteIssue[]>() {
+			public RemoteIssue[] call(JiraSoapService service, String authToken) throws RemoteException {
+				return service.getIssuesFromJqlSearch(authToken, jql, maxResults);
+			}
+		});
+	}
+
+	private RemoteIssue fetchIssue(final String issueId) throws RemoteException {
+		return invoke("getIssue", new JiraCall<RemoteIssue>() {
+			public RemoteIssue call(JiraSoapService service, String authToken) throws RemoteException {
+				return service.getIssue(authToken, issueId);
+			}
+		});
+	}
+
+	/**
+	 *
+	 * @return The given snapshot, or a reloaded one if the issue has a status or resolution that was added in JIRA
+	 *         after the snapshot was taken
+	 */
+	private Jira4Metadata metadataFor(RemoteIssue issue, Jira4Metadata metadata) throws RemoteException {
+		if (metadata.getStatuses().findName(issue.getStatus()) == null
+				|| (issue.getResolution() != null && metadata.getResolutions().findName(issue.getResolution()) == null)) {
+			return Jira4MetadataCache.getInstance().reload(_jiraBaseUrl, this);
+		}
+		return metadata;
+	}
+
+	static String buildKeyQuery(List<String> issueIds) {
+		final StringBuilder retval = new StringBuilder("key in (");
+		for (int i = 0; i < issueIds.size(); i++) {
+			if (i > 0) {
+				retval.append(", ");
+			}
+			retval.append(quoteJql(issueIds.get(i)));
+		}
+		retval.append(')');
+		return retval.toString();
+	}
+
+	private static String quoteJql(String value) {
+		return '"' + value.replace("\\", "\\\\").replace("\"", "\\\"") + '"';
+	}
+
 	/**
 	 *
 	 * @return The types of issues that can be filed.
 	 * @throws RemoteException
 	 */
-	public List<String> getIssueTypes(String projectKey) throws RemoteException {
-		RemoteProject project = _jiraSoapService.getProjectByKey(_authToken, projectKey);
-		return toTextList(_jiraSoapService.getIssueTypesForProject(_authToken, project.getId()));
+	public List<String> getIssueTypes(final String projectKey) throws RemoteException {
+		final RemoteProject project = invokeShared("getProjectByKey", true, new JiraCall<RemoteProject>() {
+			public RemoteProject call(JiraSoapService service, String authToken) throws RemoteException {
+				return service.getProjectByKey(authToken, projectKey);
+			}
+		}, projectKey);
+		return toTextList(invokeShared("getIssueTypesForProject", true, new JiraCall<RemoteIssueType[]>() {
+			public RemoteIssueType[] call(JiraSoapService service, String authToken) throws RemoteException {
+				return service.getIssueTypesForProject(authToken, project.getId());
+			}
+		}, project.getId()));
 	}
 
 	/**
@@ -176,7 +841,7 @@ public class Jira4PluginConnection {
 	 * @throws RemoteException
 	 */
 	public List<String> getPriorityNames() throws RemoteException {
-		return toTextList(_jiraSoapService.getPriorities(_authToken));
+		return new ArrayList<String>(getMetadata().getPriorities().getNames());
 
 	}
 
@@ -186,7 +851,11 @@ public class Jira4PluginConnection {
 	 * @throws RemoteException
 	 */
 	public List<String> getProjectKeys() throws RemoteException {
-		final RemoteProject[] projects = _jiraSoapService.getProjectsNoSchemes(_authToken);
+		final RemoteProject[] projects = invokeShared("getProjectsNoSchemes", true, new JiraCall<RemoteProject[]>() {
+			public RemoteProject[] call(JiraSoapService service, String authToken) throws RemoteException {
+				return service.getProjectsNoSchemes(authToken);
+			}
+		});
 		final List<String> projectKeys = new ArrayList<String>(projects.length);
 		for (final RemoteProject project : projects) {
 			projectKeys.add(project.getKey());
@@ -201,47 +870,85 @@ public class Jira4PluginConnection {
 	 * @throws RemoteException
 	 */
 	public List<String> getVersions(String projectKey) throws RemoteException {
-		return toTextList(_jiraSoapService.getVersions(_authToken, projectKey));
+		return toTextList(fetchVersions(projectKey));
 	}
 
-	private String findIdFromName(String findName, AbstractNamedRemoteEntity[] fromCollection) {
-		String retval = null;
-		for (final AbstractNamedRemoteEntity entity : fromCollection) {
-			if (StringUtils.equals(entity.getName(), findName)) {
-				retval = entity.getId();
-				break;
+	/**
+	 *
+	 * @param projectKey Which project to look at
+	 * @param wantedVersion Name of a version about to be used, so that a cached list without it is reloaded; may be null
+	 * @return The project's versions by name, usually from the shared cache
+	 * @throws RemoteException
+	 */
+	Jira4NamedEntityIndex<RemoteVersion> getVersionIndex(String projectKey, String wantedVersion) throws RemoteException {
+		return Jira4MetadataCache.getInstance().getVersions(_jiraBaseUrl, projectKey, wantedVersion, this);
+	}
+
+	/**
+	 * Download the project's versions, bypassing the cache.
+	 *
+	 * @throws RemoteException
+	 */
+	Jira4NamedEntityIndex<RemoteVersion> fetchVersionIndex(String projectKey) throws RemoteException {
+		return Jira4NamedEntityIndex.of(fetchVersions(projectKey));
+	}
+
+	private RemoteVersion[] fetchVersions(final String projectKey) throws RemoteException {
+		return invokeShared("getVersions", true, new JiraCall<RemoteVersion[]>() {
+			public RemoteVersion[] call(JiraSoapService service, String authToken) throws RemoteException {
+				return service.getVersions(authToken, projectKey);
 			}
-		}
-		return retval;
+		}, projectKey);
 	}
 
-	private String findNameFromId(String id, AbstractNamedRemoteEntity[] collection) {
-		String retval = null;
-		for (final AbstractNamedRemoteEntity entity : collection) {
-			if (StringUtils.equals(entity.getId(), id)) {
-				retval = entity.getName();
-				break;
+	/**
+	 *
+	 * @return Priorities, issue types, statuses and resolutions of this JIRA, usually from the shared cache.
+	 * @throws RemoteException
+	 */
+	Jira4Metadata getMetadata() throws RemoteException {
+		return Jira4MetadataCache.getInstance().get(_jiraBaseUrl, this);
+	}
+
+	/**
+	 * Download a new metadata snapshot, bypassing the cache.
+	 *
+	 * @throws RemoteException
+	 */
+	Jira4Metadata fetchMetadata() throws RemoteException {
+		final RemotePriority[] priorities = invokeShared("getPriorities", false, new JiraCall<RemotePriority[]>() {
+			public RemotePriority[] call(JiraSoapService service, String authToken) throws RemoteException {
+				return service.getPriorities(authToken);
 			}
-		}
-		return retval;
+		});
+		final RemoteIssueType[] issueTypes = invokeShared("getIssueTypes", false, new JiraCall<RemoteIssueType[]>() {
+			public RemoteIssueType[] call(JiraSoapService service, String authToken) throws RemoteException {
+				return service.getIssueTypes(authToken);
+			}
+		});
+		final RemoteStatus[] statuses = invokeShared("getStatuses", false, new JiraCall<RemoteStatus[]>() {
+			public RemoteStatus[] call(JiraSoapService service, String authToken) throws RemoteException {
+				return service.getStatuses(authToken);
+			}
+		});
+		final RemoteResolution[] resolutions = invokeShared("getResolutions", false, new JiraCall<RemoteResolution[]>() {
+			public RemoteResolution[] call(JiraSoapService service, String authToken) throws RemoteException {
+				return service.getResolutions(authToken);
+			}
+		});
+		return new Jira4Metadata(priorities, issueTypes, statuses, resolutions, System.currentTimeMillis());
 	}
 
-	private RemoteVersion[] parseAffectsVersion(String affectsVersion, String project) throws RemoteException {
+	private static RemoteVersion[] parseAffectsVersion(String affectsVersion, Jira4NamedEntityIndex<RemoteVersion> versions) {
 		if (StringUtils.isEmpty(affectsVersion)) {
 			return null;
 		}
 
 		final RemoteVersion[] retval;
 
-		final RemoteVersion[] knownVersions = _jiraSoapService.getVersions(_authToken, project);
-		final List<RemoteVersion> versions = new ArrayList<RemoteVersion>(knownVersions.length);
-
-		for (final RemoteVersion version : knownVersions) {
-			if (StringUtils.equals(version.getName(), affectsVersion)) {
-				versions.add(version);
-			}
-		}
-		retval = versions.toArray(new RemoteVersion[0]);
+		// Version names are unique within a JIRA project
+		final RemoteVersion version = versions == null ? null : versions.getByName(affectsVersion);
+		retval = version == null ? new RemoteVersion[0] : new RemoteVersion[] { version };
 
 		return retval;
 	}
@@ -254,19 +961,6 @@ public class Jira4PluginConnection {
 		return retval;
 	}
 
-	@Override
-	protected void finalize() {
-		// A polite way of cleaning up after ourselves within JIRA.
-		if (_jiraSoapService != null) {
-			closeJiraConnection();
-		}
-		try {
-			super.finalize();
-		} catch (final Throwable e) {
-			LOG.trace("Issue cleaning up in JIRA 4", e);
-		}
-	}
-
 	static String findHelpfulMessage(RemoteException e) {
 		//JIRA doesn't put the useful information inside getMessage, so parse their format
 		final String retval;
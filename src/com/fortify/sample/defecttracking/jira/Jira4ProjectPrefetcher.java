@@ -0,0 +1,233 @@
+/*
+ * (C) Copyright 2015 Hewlett-Packard Development Company, L.P.
+ */
+
+package com.fortify.sample.defecttracking.jira;
+
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Keeps the issue types and versions of the projects a user is likely to pick in the bug dialog, so that switching
+ * the project is answered from memory. Once the project list is known, the configured default project and the
+ * projects picked most often and most recently are loaded in the background.
+ *
+ * Which issue types and versions JIRA offers depends on the user's permissions, so choices are kept per user and
+ * loaded with the user's own session. How often projects are picked is counted for all users of a JIRA together.
+ *
+ * Picks count less the longer ago they were made: each pick is worth half as much after {@link #HALF_LIFE_MILLIS}.
+ * The picks of at most {@link #MAX_PROJECTS} projects and the choices of at most {@link #MAX_CHOICES} projects and
+ * users are kept per JIRA, the least recently used are dropped first.
+ *
+ */
+final class Jira4ProjectPrefetcher {
+
+	private static final Log LOG = LogFactory.getLog(Jira4ProjectPrefetcher.class);
+
+	static final int MAX_PROJECTS = 50;
+	static final int MAX_CHOICES = 200;
+	static final int PREFETCH_COUNT = 5;
+	static final long HALF_LIFE_MILLIS = 24 * 60 * 60 * 1000L;
+
+	private static final ConcurrentMap<String, Jira4ProjectPrefetcher> PREFETCHERS = new ConcurrentHashMap<String, Jira4ProjectPrefetcher>();
+
+	/**
+	 * Issue types and versions of one project.
+	 */
+	static final class Choices {
+		private final List<String> _issueTypes;
+		private final List<String> _versions;
+		private final long _loadedAt;
+
+		Choices(List<String> issueTypes, List<String> versions) {
+			_issueTypes = Collections.unmodifiableList(new ArrayList<String>(issueTypes));
+			_versions = Collections.unmodifiableList(new ArrayList<String>(versions));
+			_loadedAt = System.currentTimeMillis();
+		}
+
+		List<String> getIssueTypes() {
+			return _issueTypes;
+		}
+
+		List<String> getVersions() {
+			return _versions;
+		}
+	}
+
+	/** How often and when a project was picked; guarded by the prefetcher */
+	private static final class Usage {
+		double score;
+		long lastUsed;
+	}
+
+	/** Keyed by user and project */
+	private final Map<String, Choices> _choices = new LinkedHashMap<String, Choices>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, Choices> eldest) {
+			return size() > MAX_CHOICES;
+		}
+	};
+	private final Map<String, Usage> _usage = new LinkedHashMap<String, Usage>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, Usage> eldest) {
+			return size() > MAX_PROJECTS;
+		}
+	};
+	/** Users whose prefetch is running */
+	private final ConcurrentMap<String, Boolean> _prefetching = new ConcurrentHashMap<String, Boolean>();
+	private volatile long _ttlMillis = Jira4MetadataCache.DEFAULT_TTL_MILLIS;
+
+	static Jira4ProjectPrefetcher getInstance(String jiraBaseUrl) {
+		Jira4ProjectPrefetcher retval = PREFETCHERS.get(jiraBaseUrl);
+		if (retval == null) {
+			final Jira4ProjectPrefetcher created = new Jira4ProjectPrefetcher();
+			retval = PREFETCHERS.putIfAbsent(jiraBaseUrl, created);
+			if (retval == null) {
+				retval = created;
+			}
+		}
+		return retval;
+	}
+
+	void setTtlMillis(long ttlMillis) {
+		_ttlMillis = ttlMillis;
+	}
+
+	/**
+	 *
+	 * @return The choices of the project cached for the user, or null if they are not known or too old
+	 */
+	synchronized Choices get(String userName, String projectKey) {
+		final Choices retval = _choices.get(key(userName, projectKey));
+		if (retval == null || System.currentTimeMillis() - retval._loadedAt >= _ttlMillis) {
+			Jira4Metrics.increment("prefetch.miss");
+			return null;
+		}
+		Jira4Metrics.increment("prefetch.hit");
+		return retval;
+	}
+
+	synchronized void put(String userName, String projectKey, Choices choices) {
+		_choices.put(key(userName, projectKey), choices);
+	}
+
+	/**
+	 * Read the choices of a project from JIRA and keep them for the user of the connection.
+	 */
+	Choices load(Jira4PluginConnection connection, String projectKey) throws RemoteException {
+		final Choices retval = new Choices(connection.getIssueTypes(projectKey), connection.getVersions(projectKey));
+		put(connection.getUserName(), projectKey, retval);
+		return retval;
+	}
+
+	/**
+	 * Note that the user picked the project.
+	 */
+	synchronized void recordUse(String projectKey) {
+		final long now = System.currentTimeMillis();
+		Usage usage = _usage.get(projectKey);
+		if (usage == null) {
+			usage = new Usage();
+			_usage.put(projectKey, usage);
+		}
+		usage.score = decayed(usage, now) + 1;
+		usage.lastUsed = now;
+	}
+
+	/**
+	 *
+	 * @param available Projects the user can pick
+	 * @param defaultProject Configured project, may be null
+	 * @return The projects worth loading ahead, most likely first, leaving out those already cached for the user
+	 */
+	synchronized List<String> rank(String userName, List<String> available, String defaultProject) {
+		final long now = System.currentTimeMillis();
+		final Map<String, Double> scores = new LinkedHashMap<String, Double>();
+		for (final Map.Entry<String, Usage> entry : _usage.entrySet()) {
+			if (available.contains(entry.getKey())) {
+				scores.put(entry.getKey(), Double.valueOf(decayed(entry.getValue(), now)));
+			}
+		}
+		final List<String> candidates = new ArrayList<String>(scores.keySet());
+		// Ties go to the most recently used, which the access ordered usage map lists last
+		Collections.reverse(candidates);
+		Collections.sort(candidates, new Comparator<String>() {
+			public int compare(String a, String b) {
+				return Double.compare(scores.get(b).doubleValue(), scores.get(a).doubleValue());
+			}
+		});
+		if (defaultProject != null && available.contains(defaultProject)) {
+			candidates.remove(defaultProject);
+			candidates.add(0, defaultProject);
+		}
+		final List<String> retval = new ArrayList<String>(PREFETCH_COUNT);
+		for (final String projectKey : candidates) {
+			if (retval.size() == PREFETCH_COUNT) {
+				break;
+			}
+			final Choices cached = _choices.get(key(userName, projectKey));
+			if (cached == null || now - cached._loadedAt >= _ttlMillis) {
+				retval.add(projectKey);
+			}
+		}
+		return retval;
+	}
+
+	/**
+	 * Load the given projects for the user in the background unless a prefetch for the user is already running.
+	 *
+	 * @param lease Leases a connection of the user from the {@link Jira4SessionPool}; it is given back once done
+	 */
+	void prefetch(final String userName, final List<String> projectKeys, final Callable<Jira4PluginConnection> lease) {
+		if (projectKeys.isEmpty() || _prefetching.putIfAbsent(userName, Boolean.TRUE) != null) {
+			return;
+		}
+		Jira4Workers.submit(new Callable<Void>() {
+			public Void call() {
+				Jira4PluginConnection connection = null;
+				try {
+					connection = lease.call();
+					for (final String projectKey : projectKeys) {
+						load(connection, projectKey);
+						Jira4Metrics.increment("prefetch.loaded");
+					}
+				} catch (final Exception e) {
+					LOG.debug("Unable to prefetch project choices", e);
+				} finally {
+					_prefetching.remove(userName);
+					if (connection != null) {
+						Jira4SessionPool.getInstance().release(connection);
+					}
+				}
+				return null;
+			}
+		});
+	}
+
+	synchronized void invalidate() {
+		_choices.clear();
+	}
+
+	private static String key(String userName, String projectKey) {
+		return userName + '\n' + projectKey;
+	}
+
+	private double decayed(Usage usage, long now) {
+		return usage.score * Math.pow(0.5, (double) (now - usage.lastUsed) / HALF_LIFE_MILLIS);
+	}
+}
@@ -0,0 +1,82 @@
+/*
+ * (C) Copyright 2015 Hewlett-Packard Development Company, L.P.
+ */
+
+package com.fortify.sample.defecttracking.jira;
+
+import java.rmi.RemoteException;
+import java.util.Random;
+
+import org.apache.axis.AxisFault;
+import org.apache.commons.lang.StringUtils;
+
+/**
+ * Decides whether and when a failed JIRA call is tried again. Only failures that say nothing about the request
+ * itself are retried: the connection was reset or timed out, or a proxy in front of JIRA answered that the server
+ * is unavailable. The waits grow exponentially and are jittered over the whole range, so that callers that failed
+ * together do not come back together, and retrying stops once the total deadline would be passed.
+ *
+ */
+final class Jira4RetryPolicy {
+
+	static final Jira4RetryPolicy DEFAULT = new Jira4RetryPolicy(4, 200L, 5000L, 30 * 1000L);
+
+	/** Never tries a call again */
+	static final Jira4RetryPolicy NONE = new Jira4RetryPolicy(1, 0L, 0L, 0L);
+
+	private static final Random RANDOM = new Random();
+
+	private final int _maxAttempts;
+	private final long _baseDelayMillis;
+	private final long _maxDelayMillis;
+	private final long _deadlineMillis;
+
+	/**
+	 *
+	 * @param maxAttempts How often a call is made at most, including the first time
+	 * @param baseDelayMillis Longest wait before the first retry; each further retry doubles it
+	 * @param maxDelayMillis Longest wait before any retry
+	 * @param deadlineMillis No retry is started if it would begin later than this after the first attempt
+	 */
+	Jira4RetryPolicy(int maxAttempts, long baseDelayMillis, long maxDelayMillis, long deadlineMillis) {
+		_maxAttempts = maxAttempts;
+		_baseDelayMillis = baseDelayMillis;
+		_maxDelayMillis = maxDelayMillis;
+		_deadlineMillis = deadlineMillis;
+	}
+
+	/**
+	 *
+	 * @return true if the call may succeed when made again unchanged
+	 */
+	static boolean isTransient(RemoteException e) {
+		if (Jira4PluginConnection.isTransportFailure(e)) {
+			return true;
+		}
+		if (!(e instanceof AxisFault) || e instanceof com.atlassian.jira.rpc.soap.client.RemoteException) {
+			return false;
+		}
+		// Axis reports HTTP errors as "(503)Service Unavailable"
+		final String faultString = ((AxisFault) e).getFaultString();
+		return StringUtils.startsWith(faultString, "(502)") || StringUtils.startsWith(faultString, "(503)")
+				|| StringUtils.startsWith(faultString, "(504)");
+	}
+
+	/**
+	 *
+	 * @param attempt How many attempts failed so far
+	 * @param elapsedMillis Time since the first attempt started
+	 * @return How long to wait before the next attempt, or -1 if there should be none
+	 */
+	long delayBeforeRetry(int attempt, long elapsedMillis) {
+		if (attempt >= _maxAttempts) {
+			return -1;
+		}
+		final long ceiling = Math.min(_maxDelayMillis, _baseDelayMillis << Math.min(attempt - 1, 20));
+		final long retval;
+		synchronized (RANDOM) {
+			retval = ceiling <= 0 ? 0 : (long) (RANDOM.nextDouble() * ceiling);
+		}
+		return elapsedMillis + retval > _deadlineMillis ? -1 : retval;
+	}
+}
@@ -0,0 +1,269 @@
+/*
+ * (C) Copyright 2015 Hewlett-Packard Development Company, L.P.
+ */
+
+package com.fortify.sample.defecttracking.jira;
+
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.ListIterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.lang.StringUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Keeps authenticated JIRA sessions around so that plugin calls do not have to log in and out every time.
+ * Sessions are keyed by JIRA URL, HTTP transport, user name and a hash of the password, so a changed
+ * password never reuses a session opened with the old one.
+ *
+ * Each key may hold at most {@link #getMaxSessionsPerUser()} sessions, leased or idle. Callers that find
+ * every session busy wait up to {@link #getLeaseTimeoutMillis()} for one to be released. Idle sessions are
+ * logged out once they have not been used for {@link #getIdleTimeoutMillis()}.
+ *
+ */
+final class Jira4SessionPool {
+
+	/**
+	 * Opens new authenticated connections when the pool has no idle one to hand out.
+	 */
+	interface ConnectionFactory {
+		Jira4PluginConnection open(String userName, String password, String jiraBaseUrl, Jira4HttpTransport transport) throws RemoteException;
+	}
+
+	static final int DEFAULT_MAX_SESSIONS_PER_USER = 4;
+	static final long DEFAULT_IDLE_TIMEOUT_MILLIS = 5 * 60 * 1000L;
+	static final long DEFAULT_LEASE_TIMEOUT_MILLIS = 30 * 1000L;
+
+	private static final Log LOG = LogFactory.getLog(Jira4SessionPool.class);
+
+	private static final ConnectionFactory DEFAULT_FACTORY = new ConnectionFactory() {
+		public Jira4PluginConnection open(String userName, String password, String jiraBaseUrl, Jira4HttpTransport transport) throws RemoteException {
+			return new Jira4PluginConnection(userName, password, jiraBaseUrl, transport);
+		}
+	};
+
+	private static final Jira4SessionPool INSTANCE = new Jira4SessionPool(DEFAULT_FACTORY, DEFAULT_MAX_SESSIONS_PER_USER,
+			DEFAULT_IDLE_TIMEOUT_MILLIS, DEFAULT_LEASE_TIMEOUT_MILLIS);
+
+	private final ConnectionFactory _factory;
+	private final int _maxSessionsPerUser;
+	private final long _idleTimeoutMillis;
+	private final long _leaseTimeoutMillis;
+	private final ConcurrentMap<String, Partition> _partitions = new ConcurrentHashMap<String, Partition>();
+	private final ScheduledExecutorService _evictor;
+
+	Jira4SessionPool(ConnectionFactory factory, int maxSessionsPerUser, long idleTimeoutMillis, long leaseTimeoutMillis) {
+		_factory = factory;
+		_maxSessionsPerUser = maxSessionsPerUser;
+		_idleTimeoutMillis = idleTimeoutMillis;
+		_leaseTimeoutMillis = leaseTimeoutMillis;
+		_evictor = Executors.newSingleThreadScheduledExecutor(new Jira4DaemonThreadFactory("jira4-session-evictor"));
+		final long period = Math.max(1000L, idleTimeoutMillis / 2);
+		_evictor.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				evictIdle(System.currentTimeMillis());
+			}
+		}, period, period, TimeUnit.MILLISECONDS);
+	}
+
+	static Jira4SessionPool getInstance() {
+		return INSTANCE;
+	}
+
+	/**
+	 * Hand out an authenticated connection, reusing an idle one for the same credentials when possible.
+	 * Every leased connection must be given back with {@link #release(Jira4PluginConnection)}.
+	 *
+	 * @throws RemoteException if no session could be opened or none became free in time
+	 */
+	Jira4PluginConnection lease(String userName, String password, String jiraBaseUrl, Jira4HttpTransport transport) throws RemoteException {
+		final String key = keyFor(userName, password, jiraBaseUrl, transport);
+		final Partition partition = partitionFor(key);
+		final long deadline = System.currentTimeMillis() + _leaseTimeoutMillis;
+		boolean waited = false;
+		synchronized (partition) {
+			while (true) {
+				if (!partition.idle.isEmpty()) {
+					final IdleSession session = partition.idle.removeFirst();
+					Jira4Metrics.increment("session.pool.hit");
+					return session.connection;
+				}
+				if (partition.open < _maxSessionsPerUser) {
+					// Reserve the slot now, log in outside of the lock
+					partition.open++;
+					break;
+				}
+				final long remaining = deadline - System.currentTimeMillis();
+				if (remaining <= 0) {
+					Jira4Metrics.increment("session.pool.timeout");
+					throw new RemoteException("Timed out waiting for a free JIRA session for user " + userName);
+				}
+				if (!waited) {
+					waited = true;
+					Jira4Metrics.increment("session.pool.wait");
+				}
+				try {
+					partition.wait(remaining);
+				} catch (final InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new RemoteException("Interrupted while waiting for a free JIRA session", e);
+				}
+			}
+		}
+
+		Jira4Metrics.increment("session.pool.miss");
+		boolean opened = false;
+		try {
+			final Jira4PluginConnection connection = _factory.open(userName, password, jiraBaseUrl, transport);
+			connection.setPool(this, key);
+			opened = true;
+			return connection;
+		} finally {
+			if (!opened) {
+				synchronized (partition) {
+					partition.open--;
+					partition.notify();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Give a leased connection back so another caller with the same credentials can use it.
+	 * Connections that were not leased from this pool are simply closed.
+	 */
+	void release(Jira4PluginConnection connection) {
+		final Partition partition = connection.getPoolKey() == null ? null : _partitions.get(connection.getPoolKey());
+		if (partition == null) {
+			connection.closeJiraConnection();
+			return;
+		}
+		synchronized (partition) {
+			partition.idle.addFirst(new IdleSession(connection, System.currentTimeMillis()));
+			partition.notify();
+		}
+	}
+
+	/**
+	 * Free the slot of a leased connection that was garbage collected without being released.
+	 * Called by the {@link Jira4ConnectionReaper} after it logged the session out.
+	 */
+	void forgetLeaked(String poolKey) {
+		final Partition partition = _partitions.get(poolKey);
+		if (partition != null) {
+			synchronized (partition) {
+				partition.open--;
+				partition.notify();
+			}
+		}
+	}
+
+	/**
+	 * Log out every session that has been idle for longer than the idle timeout.
+	 *
+	 * @param now Current time in milliseconds
+	 * @return Number of sessions that were evicted
+	 */
+	int evictIdle(long now) {
+		final List<Jira4PluginConnection> expired = new ArrayList<Jira4PluginConnection>();
+		for (final Partition partition : _partitions.values()) {
+			synchronized (partition) {
+				// The oldest sessions are at the end of the list
+				for (final ListIterator<IdleSession> it = partition.idle.listIterator(partition.idle.size()); it.hasPrevious();) {
+					final IdleSession session = it.previous();
+					if (now - session.lastUsed < _idleTimeoutMillis) {
+						break;
+					}
+					it.remove();
+					partition.open--;
+					expired.add(session.connection);
+				}
+				if (!expired.isEmpty()) {
+					partition.notifyAll();
+				}
+			}
+		}
+		for (final Jira4PluginConnection connection : expired) {
+			connection.closeJiraConnection();
+		}
+		if (!expired.isEmpty()) {
+			Jira4Metrics.add("session.pool.evicted", expired.size());
+			LOG.debug("Evicted " + expired.size() + " idle JIRA sessions");
+		}
+		return expired.size();
+	}
+
+	/**
+	 * Stop the evictor and log out every idle session. Leased sessions are closed when they are released.
+	 */
+	void shutdown() {
+		_evictor.shutdownNow();
+		evictIdle(Long.MAX_VALUE);
+		_partitions.clear();
+	}
+
+	int getMaxSessionsPerUser() {
+		return _maxSessionsPerUser;
+	}
+
+	long getIdleTimeoutMillis() {
+		return _idleTimeoutMillis;
+	}
+
+	long getLeaseTimeoutMillis() {
+		return _leaseTimeoutMillis;
+	}
+
+	int getIdleCount() {
+		int retval = 0;
+		for (final Partition partition : _partitions.values()) {
+			synchronized (partition) {
+				retval += partition.idle.size();
+			}
+		}
+		return retval;
+	}
+
+	private Partition partitionFor(String key) {
+		Partition retval = _partitions.get(key);
+		if (retval == null) {
+			final Partition created = new Partition();
+			retval = _partitions.putIfAbsent(key, created);
+			if (retval == null) {
+				retval = created;
+			}
+		}
+		return retval;
+	}
+
+	private static String keyFor(String userName, String password, String jiraBaseUrl, Jira4HttpTransport transport) {
+		// A session's stub sends through the transport it was created with, which may have been retired since
+		return jiraBaseUrl + '\n' + transport.getId() + '\n' + userName + '\n' + DigestUtils.sha256Hex(StringUtils.defaultString(password));
+	}
+
+	private static final class Partition {
+		/** Sessions open for this key, leased or idle */
+		int open;
+		/** Most recently released first */
+		final LinkedList<IdleSession> idle = new LinkedList<IdleSession>();
+	}
+
+	private static final class IdleSession {
+		final Jira4PluginConnection connection;
+		final long lastUsed;
+
+		IdleSession(Jira4PluginConnection connection, long lastUsed) {
+			this.connection = connection;
+			this.lastUsed = lastUsed;
+		}
+	}
+}
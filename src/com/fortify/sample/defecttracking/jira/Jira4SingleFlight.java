@@ -0,0 +1,177 @@
+/*
+ * (C) Copyright 2015 Hewlett-Packard Development Company, L.P.
+ */
+
+package com.fortify.sample.defecttracking.jira;
+
+import java.rmi.RemoteException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.apache.axis.AxisFault;
+
+/**
+ * Lets concurrent callers asking JIRA the same question share one call. The first caller makes the call, callers
+ * arriving while it is in flight wait for its answer. Nothing is kept once the call is done, so a caller never gets
+ * an answer older than its own request; keeping answers for longer is up to caches like {@link Jira4MetadataCache}.
+ *
+ * Answers are handed to every waiting caller as they are, so callers must not modify them. So are failures, including
+ * transport failures: while JIRA is slow or down, waiting callers must not all call it at once, and the
+ * {@link Jira4CircuitBreaker} and {@link Jira4RetryPolicy} already decide when to try again. Only failures down to
+ * the caller that made the call, i.e. its session expired, its operation was stopped or ran out of time, or it failed
+ * before reaching JIRA, are not shared; waiting callers make the call themselves instead. Waiting callers give up
+ * when their own {@link Jira4Operation} is stopped or out of time.
+ *
+ */
+final class Jira4SingleFlight {
+
+	/** How often a waiting caller checks whether its own operation was stopped */
+	static final long POLL_MILLIS = 100;
+
+	private static final ConcurrentMap<String, FutureTask<?>> FLIGHTS = new ConcurrentHashMap<String, FutureTask<?>>();
+
+	private Jira4SingleFlight() {
+	}
+
+	/**
+	 *
+	 * @param userName User whose permissions decide the answer, or null if every user gets the same answer
+	 * @return A key telling calls apart that must not share an answer
+	 */
+	static String key(String jiraBaseUrl, String userName, String operation, Object... args) {
+		final StringBuilder retval = new StringBuilder(jiraBaseUrl);
+		retval.append('\n').append(userName == null ? "" : userName);
+		retval.append('\n').append(operation);
+		for (final Object arg : args) {
+			retval.append('\n').append(arg);
+		}
+		return retval.toString();
+	}
+
+	/**
+	 * Make the call, or wait for the same call already in flight.
+	 *
+	 * @param operation Operation of the caller, whose budget and stop also end the wait; may be null
+	 * @throws RemoteException the error of the call
+	 */
+	@SuppressWarnings("unchecked")
+	static <T> T run(String key, final Callable<T> call, final Jira4Operation operation) throws RemoteException {
+		final FutureTask<T> created = new FutureTask<T>(new Callable<T>() {
+			public T call() throws Exception {
+				try {
+					return call.call();
+				} catch (final RemoteException e) {
+					if (isOwnFailure(e, operation)) {
+						throw new OwnFailure(e);
+					}
+					throw e;
+				}
+			}
+		});
+		final FutureTask<T> flight = (FutureTask<T>) FLIGHTS.putIfAbsent(key, created);
+		if (flight == null) {
+			Jira4Metrics.increment("singleflight.calls");
+			try {
+				created.run();
+			} finally {
+				FLIGHTS.remove(key, created);
+			}
+			try {
+				return outcome(created);
+			} catch (final OwnFailure e) {
+				throw e.failure;
+			}
+		}
+		Jira4Metrics.increment("singleflight.shared");
+		await(flight, operation);
+		try {
+			return outcome(flight);
+		} catch (final OwnFailure e) {
+			// Not ours
+		}
+		Jira4Metrics.increment("singleflight.local");
+		final FutureTask<T> local = new FutureTask<T>(call);
+		local.run();
+		try {
+			return outcome(local);
+		} catch (final OwnFailure e) {
+			throw e.failure;
+		}
+	}
+
+	/**
+	 *
+	 * @return true if the failure may be down to the caller that made the call rather than to JIRA
+	 */
+	static boolean isOwnFailure(RemoteException e, Jira4Operation operation) {
+		// The plugin itself fails calls that never reached JIRA with a plain RemoteException, e.g. when stopped
+		return !(e instanceof AxisFault) || Jira4PluginConnection.isExpiredToken(e) || (operation != null && operation.isOver())
+				|| Thread.currentThread().isInterrupted();
+	}
+
+	/**
+	 * Carries a failure that is not handed to waiting callers.
+	 */
+	private static final class OwnFailure extends Exception {
+		private static final long serialVersionUID = 1L;
+
+		final RemoteException failure;
+
+		OwnFailure(RemoteException failure) {
+			super(failure);
+			this.failure = failure;
+		}
+	}
+
+	private static void await(FutureTask<?> flight, Jira4Operation operation) throws RemoteException {
+		try {
+			if (operation == null) {
+				// The caller making the call is held to its own timeouts
+				flight.get();
+				return;
+			}
+			while (true) {
+				try {
+					flight.get(Math.min(operation.remainingMillis(), POLL_MILLIS), TimeUnit.MILLISECONDS);
+					return;
+				} catch (final TimeoutException e) {
+					// See whether the operation is still going
+				}
+			}
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RemoteException("Interrupted while waiting for JIRA", e);
+		} catch (final ExecutionException e) {
+			// Done; the outcome tells what happened
+		}
+	}
+
+	private static <T> T outcome(FutureTask<T> flight) throws RemoteException, OwnFailure {
+		try {
+			return flight.get();
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RemoteException("Interrupted while waiting for JIRA", e);
+		} catch (final ExecutionException e) {
+			final Throwable cause = e.getCause();
+			if (cause instanceof OwnFailure) {
+				throw (OwnFailure) cause;
+			}
+			if (cause instanceof RemoteException) {
+				throw (RemoteException) cause;
+			}
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+			if (cause instanceof Error) {
+				throw (Error) cause;
+			}
+			throw new RemoteException("JIRA call failed", cause);
+		}
+	}
+}
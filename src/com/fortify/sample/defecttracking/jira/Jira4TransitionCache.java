@@ -0,0 +1,52 @@
+/*
+ * (C) Copyright 2015 Hewlett-Packard Development Company, L.P.
+ */
+
+package com.fortify.sample.defecttracking.jira;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Remembers which workflow action id JIRA used for an action name, so that moving an issue through its workflow
+ * does not have to ask for the available actions first. Workflows are assigned per project and issue type, and the
+ * actions available depend on the current status, so all of these are part of the key.
+ *
+ * Entries are only hints: when JIRA rejects a remembered id, the caller forgets it and asks JIRA again.
+ *
+ */
+final class Jira4TransitionCache {
+
+	private static final Jira4TransitionCache INSTANCE = new Jira4TransitionCache();
+
+	private final ConcurrentMap<String, String> _actionIds = new ConcurrentHashMap<String, String>();
+
+	static Jira4TransitionCache getInstance() {
+		return INSTANCE;
+	}
+
+	/**
+	 *
+	 * @return The remembered action id, or null
+	 */
+	String get(String jiraBaseUrl, String projectKey, String issueType, String status, String action) {
+		return _actionIds.get(key(jiraBaseUrl, projectKey, issueType, status, action));
+	}
+
+	void put(String jiraBaseUrl, String projectKey, String issueType, String status, String action, String actionId) {
+		_actionIds.put(key(jiraBaseUrl, projectKey, issueType, status, action), actionId);
+	}
+
+	void remove(String jiraBaseUrl, String projectKey, String issueType, String status, String action) {
+		_actionIds.remove(key(jiraBaseUrl, projectKey, issueType, status, action));
+	}
+
+	private static String key(String jiraBaseUrl, String projectKey, String issueType, String status, String action) {
+		final StringBuilder retval = new StringBuilder(jiraBaseUrl);
+		retval.append('\n').append(projectKey);
+		retval.append('\n').append(issueType);
+		retval.append('\n').append(status);
+		retval.append('\n').append(action);
+		return retval.toString();
+	}
+}
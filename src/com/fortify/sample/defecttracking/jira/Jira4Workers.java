@@ -0,0 +1,95 @@
+/*
+ * (C) Copyright 2015 Hewlett-Packard Development Company, L.P.
+ */
+
+package com.fortify.sample.defecttracking.jira;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Shared daemon threads for running independent JIRA calls side by side, such as the chunks of a bulk fetch.
+ * Each batch limits its own parallelism, so one large batch cannot take over every session of the pool.
+ *
+ */
+final class Jira4Workers {
+
+	private static final ExecutorService EXECUTOR = Executors.newCachedThreadPool(new Jira4DaemonThreadFactory("jira4-worker"));
+
+	private Jira4Workers() {
+	}
+
+	/**
+	 * Start a single task on a worker thread.
+	 */
+	static <T> Future<T> submit(Callable<T> task) {
+		return EXECUTOR.submit(task);
+	}
+
+	/**
+	 * Run the tasks with at most {@code parallelism} of them at the same time and wait for all of them.
+	 * The calling thread takes part in the work. Once a task fails, tasks that have not started yet are skipped.
+	 *
+	 * @return The results in the order of the tasks
+	 * @throws ExecutionException wrapping the first checked exception thrown by a task
+	 */
+	static <T> List<T> runAll(final List<? extends Callable<T>> tasks, int parallelism) throws InterruptedException, ExecutionException {
+		final int size = tasks.size();
+		final AtomicReferenceArray<T> results = new AtomicReferenceArray<T>(size);
+		final AtomicInteger next = new AtomicInteger();
+		final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+		final int runners = Math.max(1, Math.min(parallelism, size));
+		final CountDownLatch done = new CountDownLatch(runners - 1);
+
+		final Runnable runner = new Runnable() {
+			public void run() {
+				int index;
+				while (failure.get() == null && (index = next.getAndIncrement()) < size) {
+					try {
+						results.set(index, tasks.get(index).call());
+					} catch (final Throwable t) {
+						failure.compareAndSet(null, t);
+					}
+				}
+			}
+		};
+		for (int i = 1; i < runners; i++) {
+			EXECUTOR.execute(new Runnable() {
+				public void run() {
+					try {
+						runner.run();
+					} finally {
+						done.countDown();
+					}
+				}
+			});
+		}
+		runner.run();
+		done.await();
+
+		final Throwable t = failure.get();
+		if (t instanceof RuntimeException) {
+			throw (RuntimeException) t;
+		}
+		if (t instanceof Error) {
+			throw (Error) t;
+		}
+		if (t != null) {
+			throw new ExecutionException(t);
+		}
+		final List<T> retval = new ArrayList<T>(size);
+		for (int i = 0; i < size; i++) {
+			retval.add(results.get(i));
+		}
+		return retval;
+	}
+}
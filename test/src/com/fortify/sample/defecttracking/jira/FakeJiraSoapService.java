@@ -0,0 +1,109 @@
+/*
+ * (C) Copyright 2015 Hewlett-Packard Development Company, L.P.
+ */
+
+package com.fortify.sample.defecttracking.jira;
+
+import java.lang.reflect.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+import com.atlassian.jira.rpc.soap.client.*;
+
+/**
+ * In-memory stand-in for the JIRA SOAP service so that connection handling can be tested without a server.
+ * Subclasses override {@link #handle(String, Object[])} to script answers for the calls they care about.
+ */
+public class FakeJiraSoapService implements InvocationHandler {
+
+	private final ConcurrentMap<String, AtomicInteger> calls = new ConcurrentHashMap<String, AtomicInteger>();
+	private final AtomicInteger tokens = new AtomicInteger();
+
+	public JiraSoapService create() {
+		return (JiraSoapService) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] { JiraSoapService.class }, this);
+	}
+
+	public int count(String method) {
+		final AtomicInteger count = calls.get(method);
+		return count == null ? 0 : count.get();
+	}
+
+	/**
+	 * Wait for background work, such as the logout queue, to make the expected number of calls.
+	 */
+	public int awaitCount(String method, int expected) throws InterruptedException {
+		final long deadline = System.currentTimeMillis() + 5000L;
+		while (count(method) < expected && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		return count(method);
+	}
+
+	public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+		calls.putIfAbsent(method.getName(), new AtomicInteger());
+		calls.get(method.getName()).incrementAndGet();
+		return handle(method.getName(), args);
+	}
+
+	protected Object handle(String method, Object[] args) throws Exception {
+		if ("login".equals(method)) {
+			return "token-" + tokens.incrementAndGet();
+		}
+		if ("logout".equals(method)) {
+			return Boolean.TRUE;
+		}
+		if ("getStatuses".equals(method)) {
+			return new RemoteStatus[] { status("1", "Open"), status("5", "Resolved") };
+		}
+		if ("getResolutions".equals(method)) {
+			return new RemoteResolution[] { resolution("1", "Fixed") };
+		}
+		if ("getPriorities".equals(method)) {
+			final RemotePriority priority = new RemotePriority();
+			priority.setId("3");
+			priority.setName("Major");
+			return new RemotePriority[] { priority };
+		}
+		if ("getIssueTypes".equals(method)) {
+			final RemoteIssueType type = new RemoteIssueType();
+			type.setId("1");
+			type.setName("Bug");
+			return new RemoteIssueType[] { type };
+		}
+		if ("getVersions".equals(method)) {
+			final RemoteVersion version = new RemoteVersion();
+			version.setId("10");
+			version.setName("1.0");
+			return new RemoteVersion[] { version };
+		}
+		if ("getIssue".equals(method)) {
+			return issue((String) args[1], "1", null);
+		}
+		throw new UnsupportedOperationException(method);
+	}
+
+	public static RemoteIssue issue(String key, String status, String resolution) {
+		final RemoteIssue issue = new RemoteIssue();
+		issue.setKey(key);
+		issue.setProject(key.substring(0, key.indexOf('-')));
+		issue.setStatus(status);
+		issue.setResolution(resolution);
+		issue.setType("1");
+		return issue;
+	}
+
+	public static RemoteStatus status(String id, String name) {
+		final RemoteStatus status = new RemoteStatus();
+		status.setId(id);
+		status.setName(name);
+		return status;
+	}
+
+	public static RemoteResolution resolution(String id, String name) {
+		final RemoteResolution resolution = new RemoteResolution();
+		resolution.setId(id);
+		resolution.setName(name);
+		return resolution;
+	}
+}
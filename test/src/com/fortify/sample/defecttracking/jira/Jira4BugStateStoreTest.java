@@ -0,0 +1,159 @@
+/*
+ * (C) Copyright 2015 Hewlett-Packard Development Company, L.P.
+ */
+
+package com.fortify.sample.defecttracking.jira;
+
+import java.io.*;
+import java.util.*;
+
+import org.junit.*;
+
+public class Jira4BugStateStoreTest {
+
+	private File file;
+
+	@Before
+	public void createFile() throws IOException {
+		file = File.createTempFile("bugstates", ".log");
+		file.delete();
+	}
+
+	@After
+	public void deleteFile() {
+		file.delete();
+		new File(file.getPath() + ".compact").delete();
+	}
+
+	@Test
+	public void testStatesSurviveReopen() throws Exception {
+		Jira4BugStateStore store = new Jira4BugStateStore(file);
+		store.put(new Jira4BugState("GOAT-1", "Open", null, 0, Arrays.asList("instance-1", "instance-2")));
+		store.put(new Jira4BugState("GOAT-2", "Open", null, 10));
+		// A sync does not know the instance ids, they are kept anyway
+		store.put(new Jira4BugState("GOAT-1", "Resolved", "Fixed", 20));
+		store.remove("GOAT-2");
+		store.putSyncMarks("GOAT", 100, 50);
+		store.close();
+
+		store = new Jira4BugStateStore(file);
+		Assert.assertEquals(1, store.size());
+		final Jira4BugState state = store.get("GOAT-1");
+		Assert.assertEquals("Resolved", state.getStatus());
+		Assert.assertEquals("Fixed", state.getResolution());
+		Assert.assertEquals(20, state.getUpdated());
+		Assert.assertEquals(Arrays.asList("instance-1", "instance-2"), state.getInstanceIds());
+		Assert.assertNull(store.get("GOAT-2"));
+		Assert.assertEquals(100, store.getSyncMarks("GOAT")[0]);
+		Assert.assertEquals(50, store.getSyncMarks("GOAT")[1]);
+		store.close();
+	}
+
+	@Test
+	public void testTornRecordIsCutOff() throws Exception {
+		Jira4BugStateStore store = new Jira4BugStateStore(file);
+		store.put(new Jira4BugState("GOAT-1", "Open", null, 10));
+		store.close();
+		final long goodLength = file.length();
+
+		final RandomAccessFile raw = new RandomAccessFile(file, "rw");
+		raw.seek(goodLength);
+		raw.writeInt(100);
+		raw.writeInt(42);
+		raw.write(new byte[] { 1, 2, 3 });
+		raw.close();
+
+		store = new Jira4BugStateStore(file);
+		Assert.assertEquals("Open", store.get("GOAT-1").getStatus());
+		Assert.assertEquals(goodLength, file.length());
+		store.put(new Jira4BugState("GOAT-2", "Open", null, 10));
+		store.close();
+
+		store = new Jira4BugStateStore(file);
+		Assert.assertEquals(2, store.size());
+		store.close();
+	}
+
+	@Test
+	public void testLogIsCompacted() throws Exception {
+		Jira4BugStateStore store = new Jira4BugStateStore(file);
+		for (int i = 0; i < 3000; i++) {
+			store.put(new Jira4BugState("GOAT-" + (i % 10), "Open", null, i + 1));
+		}
+		final long compactedLength = file.length();
+		store.close();
+		Assert.assertTrue(compactedLength < 3000 * 30);
+
+		store = new Jira4BugStateStore(file);
+		Assert.assertEquals(10, store.size());
+		Assert.assertEquals(3000, store.get("GOAT-9").getUpdated());
+		store.close();
+	}
+
+	@Test
+	public void testEvictedStatesAreReadFromLog() throws Exception {
+		final Jira4BugStateStore store = new Jira4BugStateStore(file);
+		final int count = Jira4BugStateStore.MAX_CACHED_STATES + 100;
+		for (int i = 0; i < count; i++) {
+			store.put(new Jira4BugState("GOAT-" + i, "Open", null, 1));
+		}
+		store.put(new Jira4BugState("GOAT-0", "Closed", null, 2));
+		for (int i = 1; i < count; i++) {
+			store.get("GOAT-" + i);
+		}
+		Assert.assertEquals(count, store.size());
+		Assert.assertEquals("Closed", store.get("GOAT-0").getStatus());
+		Assert.assertEquals("Open", store.get("GOAT-1").getStatus());
+		store.close();
+	}
+
+	@Test
+	public void testStatesAreKeptInMemoryAfterClose() throws Exception {
+		Jira4BugStateStore store = new Jira4BugStateStore(file);
+		store.put(new Jira4BugState("GOAT-1", "Open", null, 10));
+		store.put(new Jira4BugState("GOAT-2", "Resolved", "Fixed", 20));
+		store.close();
+
+		// Nothing is cached after opening, so every state has to be read from the log before it is closed
+		store = new Jira4BugStateStore(file);
+		store.close();
+		file.delete();
+		Assert.assertTrue(store.contains("GOAT-1"));
+		Assert.assertEquals("Open", store.get("GOAT-1").getStatus());
+		Assert.assertEquals("Fixed", store.get("GOAT-2").getResolution());
+		store.put(new Jira4BugState("GOAT-3", "Open", null, 30));
+		Assert.assertEquals(3, store.size());
+		Assert.assertEquals("Open", store.get("GOAT-3").getStatus());
+	}
+
+	@Test
+	public void testMemoryOnlyStoreForgetsLeastRecentlyUsed() {
+		final Jira4BugStateStore store = new Jira4BugStateStore();
+		for (int i = 0; i <= Jira4BugStateStore.MAX_CACHED_STATES; i++) {
+			store.put(new Jira4BugState("GOAT-" + i, "Open", null, i));
+			if (i == 1) {
+				store.get("GOAT-0");
+			}
+		}
+		Assert.assertEquals(Jira4BugStateStore.MAX_CACHED_STATES, store.size());
+		Assert.assertFalse(store.contains("GOAT-1"));
+		Assert.assertNull(store.get("GOAT-1"));
+		Assert.assertEquals("Open", store.get("GOAT-0").getStatus());
+	}
+
+	@Test
+	public void testSyncResumesFromSavedMarks() throws Exception {
+		Jira4BugStateStore store = new Jira4BugStateStore(file);
+		store.put(new Jira4BugState("GOAT-1", "Open", null, 1));
+		store.putSyncMarks("GOAT", System.currentTimeMillis(), System.currentTimeMillis());
+		store.close();
+
+		store = new Jira4BugStateStore(file);
+		final FakeJiraSoapService service = new FakeJiraSoapService();
+		final Jira4PluginConnection connection = new Jira4PluginConnection("user", "password", "http://store/resume", service.create());
+		// Neither a full sync nor a delta search is due right after the restart
+		store.getDeltaSync("GOAT").syncIfDue(connection, 60 * 1000L, 60 * 60 * 1000L, 100);
+		Assert.assertEquals(0, service.count("getIssuesFromJqlSearch"));
+		store.close();
+	}
+}
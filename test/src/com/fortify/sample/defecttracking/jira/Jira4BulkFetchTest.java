@@ -0,0 +1,161 @@
+/*
+ * (C) Copyright 2015 Hewlett-Packard Development Company, L.P.
+ */
+
+package com.fortify.sample.defecttracking.jira;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+import org.junit.*;
+
+import com.atlassian.jira.rpc.soap.client.*;
+import com.atlassian.jira.rpc.soap.client.RemoteException;
+
+public class Jira4BulkFetchTest {
+
+	@Test
+	public void testOneSearchPerChunk() throws Exception {
+		final FakeJiraSoapService service = new FakeJiraSoapService() {
+			@Override
+			protected Object handle(String method, Object[] args) throws Exception {
+				if ("getIssuesFromJqlSearch".equals(method)) {
+					Assert.assertEquals("key in (\"GOAT-1\", \"GOAT-2\")", args[1]);
+					return new RemoteIssue[] { issue("GOAT-2", "5", "1"), issue("GOAT-1", "1", null) };
+				}
+				return super.handle(method, args);
+			}
+		};
+		final Jira4PluginConnection connection = new Jira4PluginConnection("user", "password", "http://bulk/search", service.create());
+
+		final Jira4BulkResult<Jira4BugState> result = connection.fetchStates(Arrays.asList("GOAT-1", "GOAT-2"));
+		Assert.assertFalse(result.hasErrors());
+		Assert.assertEquals(Arrays.asList("GOAT-1", "GOAT-2"), new ArrayList<String>(result.getResults().keySet()));
+		Assert.assertEquals("Open", result.getResults().get("GOAT-1").getStatus());
+		Assert.assertEquals("Resolved", result.getResults().get("GOAT-2").getStatus());
+		Assert.assertEquals("Fixed", result.getResults().get("GOAT-2").getResolution());
+		Assert.assertEquals(1, service.count("getIssuesFromJqlSearch"));
+		Assert.assertEquals(0, service.count("getIssue"));
+	}
+
+	@Test
+	public void testHiddenKeyIsReportedOnItsOwn() throws Exception {
+		final FakeJiraSoapService service = new FakeJiraSoapService() {
+			@Override
+			protected Object handle(String method, Object[] args) throws Exception {
+				if ("getIssuesFromJqlSearch".equals(method)) {
+					return new RemoteIssue[] { issue("GOAT-1", "1", null) };
+				}
+				if ("getIssue".equals(method)) {
+					throw permissionDenied();
+				}
+				return super.handle(method, args);
+			}
+		};
+		final Jira4PluginConnection connection = new Jira4PluginConnection("user", "password", "http://bulk/hidden", service.create());
+
+		final Jira4BulkResult<Jira4BugState> result = connection.fetchStates(Arrays.asList("GOAT-1", "SECRET-1"));
+		Assert.assertEquals(Collections.singleton("GOAT-1"), result.getResults().keySet());
+		Assert.assertEquals(" You do not have permission to see SECRET-1", result.getErrors().get("SECRET-1"));
+		Assert.assertEquals(1, service.count("getIssue"));
+	}
+
+	@Test
+	public void testRejectedSearchIsRetriedWithoutNamedKey() throws Exception {
+		final FakeJiraSoapService service = new FakeJiraSoapService() {
+			@Override
+			protected Object handle(String method, Object[] args) throws Exception {
+				if ("getIssuesFromJqlSearch".equals(method)) {
+					if (((String) args[1]).contains("GONE-1")) {
+						final RemoteException e = new RemoteException();
+						e.setFaultString("com.atlassian.jira.rpc.exception.RemoteValidationException: An issue with key 'GONE-1' does not exist");
+						throw e;
+					}
+					Assert.assertEquals("key in (\"GOAT-1\", \"GOAT-2\")", args[1]);
+					return new RemoteIssue[] { issue("GOAT-1", "1", null), issue("GOAT-2", "1", null) };
+				}
+				if ("getIssue".equals(method) && "GONE-1".equals(args[1])) {
+					throw permissionDenied();
+				}
+				return super.handle(method, args);
+			}
+		};
+		final Jira4PluginConnection connection = new Jira4PluginConnection("user", "password", "http://bulk/rejected", service.create());
+
+		final Jira4BulkResult<Jira4BugState> result = connection.fetchStates(Arrays.asList("GOAT-1", "GONE-1", "GOAT-2"));
+		Assert.assertEquals(Arrays.asList("GOAT-1", "GOAT-2"), new ArrayList<String>(result.getResults().keySet()));
+		Assert.assertEquals(Collections.singleton("GONE-1"), result.getErrors().keySet());
+		Assert.assertEquals(2, service.count("getIssuesFromJqlSearch"));
+		// Only the rejected key is read on its own
+		Assert.assertEquals(1, service.count("getIssue"));
+	}
+
+	@Test
+	public void testRejectedSearchIsBisected() throws Exception {
+		final FakeJiraSoapService service = new FakeJiraSoapService() {
+			@Override
+			protected Object handle(String method, Object[] args) throws Exception {
+				if ("getIssuesFromJqlSearch".equals(method)) {
+					if (((String) args[1]).contains("GONE-1")) {
+						final RemoteException e = new RemoteException();
+						e.setFaultString("com.atlassian.jira.rpc.exception.RemoteValidationException: Error in the JQL Query");
+						throw e;
+					}
+					final List<RemoteIssue> retval = new ArrayList<RemoteIssue>();
+					for (final String key : Arrays.asList("GOAT-1", "GOAT-2", "GOAT-3")) {
+						if (((String) args[1]).contains('"' + key + '"')) {
+							retval.add(issue(key, "1", null));
+						}
+					}
+					return retval.toArray(new RemoteIssue[retval.size()]);
+				}
+				if ("getIssue".equals(method) && "GONE-1".equals(args[1])) {
+					throw permissionDenied();
+				}
+				return super.handle(method, args);
+			}
+		};
+		final Jira4PluginConnection connection = new Jira4PluginConnection("user", "password", "http://bulk/bisect", service.create());
+
+		final Jira4BulkResult<Jira4BugState> result = connection.fetchStates(Arrays.asList("GOAT-1", "GONE-1", "GOAT-2", "GOAT-3"));
+		Assert.assertEquals(Arrays.asList("GOAT-1", "GOAT-2", "GOAT-3"), new ArrayList<String>(result.getResults().keySet()));
+		Assert.assertEquals(Collections.singleton("GONE-1"), result.getErrors().keySet());
+		// All four, then GOAT-1 and GONE-1, then each of those, then GOAT-2 and GOAT-3
+		Assert.assertEquals(5, service.count("getIssuesFromJqlSearch"));
+		Assert.assertEquals(1, service.count("getIssue"));
+	}
+
+	@Test
+	public void testWorkersRespectParallelism() throws Exception {
+		final AtomicInteger running = new AtomicInteger();
+		final AtomicInteger maxRunning = new AtomicInteger();
+		final List<Callable<Integer>> tasks = new ArrayList<Callable<Integer>>();
+		for (int i = 0; i < 20; i++) {
+			final int value = i;
+			tasks.add(new Callable<Integer>() {
+				public Integer call() throws Exception {
+					final int now = running.incrementAndGet();
+					synchronized (maxRunning) {
+						maxRunning.set(Math.max(maxRunning.get(), now));
+					}
+					Thread.sleep(10);
+					running.decrementAndGet();
+					return Integer.valueOf(value);
+				}
+			});
+		}
+
+		final List<Integer> results = Jira4Workers.runAll(tasks, 3);
+		Assert.assertEquals(20, results.size());
+		Assert.assertEquals(Integer.valueOf(7), results.get(7));
+		Assert.assertTrue(maxRunning.get() <= 3);
+		Assert.assertTrue(maxRunning.get() > 1);
+	}
+
+	private static RemoteException permissionDenied() {
+		final RemoteException retval = new RemoteException();
+		retval.setFaultString("com.atlassian.jira.rpc.exception.RemotePermissionException: You do not have permission to see SECRET-1");
+		return retval;
+	}
+}
@@ -0,0 +1,77 @@
+/*
+ * (C) Copyright 2015 Hewlett-Packard Development Company, L.P.
+ */
+
+package com.fortify.sample.defecttracking.jira;
+
+import java.io.IOException;
+import java.util.*;
+
+import org.apache.axis.AxisFault;
+import org.junit.*;
+
+import com.fortify.pub.bugtracker.support.Bug;
+
+public class Jira4BulkUpdaterTest {
+
+	private static Jira4PluginConnection connect(String url) throws Exception {
+		return new Jira4PluginConnection("user", "password", url, new FakeJiraSoapService().create());
+	}
+
+	@Test
+	public void testFailedBugDoesNotStopOthers() throws Exception {
+		final Jira4BulkResult<Bug> result = Jira4BulkUpdater.run(connect("http://bulk/failed"),
+				Arrays.asList(new Bug("GOAT-1", "Open"), new Bug("GOAT-2", "Open"), new Bug("GOAT-3", "Open")), 2, "test",
+				new Jira4BulkUpdater.Update() {
+					public Bug apply(Jira4PluginConnection connection, Bug bug) throws java.rmi.RemoteException {
+						if ("GOAT-2".equals(bug.getBugId())) {
+							final com.atlassian.jira.rpc.soap.client.RemoteException e = new com.atlassian.jira.rpc.soap.client.RemoteException();
+							e.setFaultString("Issue does not exist");
+							throw e;
+						}
+						return bug;
+					}
+				});
+		Assert.assertEquals(new HashSet<String>(Arrays.asList("GOAT-1", "GOAT-3")), result.getResults().keySet());
+		Assert.assertEquals(Collections.singleton("GOAT-2"), result.getErrors().keySet());
+	}
+
+	@Test
+	public void testUpdatesOfOneIssueKeepTheirOrder() throws Exception {
+		final List<String> applied = Collections.synchronizedList(new ArrayList<String>());
+		final List<Bug> bugs = new ArrayList<Bug>();
+		for (int i = 0; i < 20; i++) {
+			bugs.add(new Bug("GOAT-" + (i % 2), String.valueOf(i)));
+		}
+		Jira4BulkUpdater.run(connect("http://bulk/order"), bugs, 4, "test", new Jira4BulkUpdater.Update() {
+			public Bug apply(Jira4PluginConnection connection, Bug bug) {
+				applied.add(bug.getBugId() + ":" + bug.getBugStatus());
+				return bug;
+			}
+		});
+		Assert.assertEquals(20, applied.size());
+		int previous = -1;
+		for (final String update : applied) {
+			if (update.startsWith("GOAT-0:")) {
+				final int current = Integer.parseInt(update.substring(7));
+				Assert.assertTrue(current > previous);
+				previous = current;
+			}
+		}
+	}
+
+	@Test
+	public void testTransportFailureFailsRemainingBugsFast() throws Exception {
+		final List<String> attempted = Collections.synchronizedList(new ArrayList<String>());
+		final Jira4BulkResult<Bug> result = Jira4BulkUpdater.run(connect("http://bulk/down"),
+				Arrays.asList(new Bug("GOAT-1", "Open"), new Bug("GOAT-1", "Open"), new Bug("GOAT-1", "Open")), 1, "test",
+				new Jira4BulkUpdater.Update() {
+					public Bug apply(Jira4PluginConnection connection, Bug bug) throws java.rmi.RemoteException {
+						attempted.add(bug.getBugId());
+						throw AxisFault.makeFault(new IOException("Connection refused"));
+					}
+				});
+		Assert.assertEquals(1, attempted.size());
+		Assert.assertTrue(result.hasErrors());
+	}
+}
@@ -0,0 +1,160 @@
+/*
+ * (C) Copyright 2015 Hewlett-Packard Development Company, L.P.
+ */
+
+package com.fortify.sample.defecttracking.jira;
+
+import java.net.ConnectException;
+
+import org.apache.axis.AxisFault;
+import org.junit.*;
+
+import com.atlassian.jira.rpc.soap.client.RemoteException;
+
+public class Jira4CircuitBreakerTest {
+
+	/** JIRA whose server can be taken down and brought back by the test */
+	private static class FlakyJira extends FakeJiraSoapService {
+		volatile boolean down;
+		volatile boolean broken;
+
+		@Override
+		protected Object handle(String method, Object[] args) throws Exception {
+			if (down) {
+				throw AxisFault.makeFault(new ConnectException("Connection refused"));
+			}
+			if (broken) {
+				throw new IllegalStateException("Unexpected answer");
+			}
+			return super.handle(method, args);
+		}
+	}
+
+	private static java.rmi.RemoteException unreachable() {
+		return AxisFault.makeFault(new ConnectException("Connection refused"));
+	}
+
+	@Test
+	public void testOpensAfterConsecutiveFailures() throws Exception {
+		final Jira4CircuitBreaker breaker = new Jira4CircuitBreaker("http://breaker/opens");
+		breaker.configure(3, 60 * 1000L);
+		for (int i = 0; i < 2; i++) {
+			breaker.allow();
+			breaker.failed(unreachable());
+		}
+		breaker.allow();
+		breaker.succeeded();
+		// The success started the count over
+		for (int i = 0; i < 2; i++) {
+			breaker.allow();
+			breaker.failed(unreachable());
+		}
+		Assert.assertEquals(Jira4CircuitBreaker.State.CLOSED, breaker.getState());
+		breaker.allow();
+		breaker.failed(unreachable());
+		Assert.assertEquals(Jira4CircuitBreaker.State.OPEN, breaker.getState());
+
+		try {
+			breaker.allow();
+			Assert.fail("Open breaker let a call through");
+		} catch (final java.rmi.RemoteException e) {
+			Assert.assertTrue(Jira4PluginConnection.isTransportFailure(e));
+		}
+	}
+
+	@Test
+	public void testAnsweredErrorsDoNotCount() throws Exception {
+		final Jira4CircuitBreaker breaker = new Jira4CircuitBreaker("http://breaker/answered");
+		breaker.configure(1, 60 * 1000L);
+		breaker.allow();
+		breaker.failed(new RemoteException());
+		Assert.assertEquals(Jira4CircuitBreaker.State.CLOSED, breaker.getState());
+	}
+
+	@Test
+	public void testSingleProbeAfterInterval() throws Exception {
+		final Jira4CircuitBreaker breaker = new Jira4CircuitBreaker("http://breaker/probe");
+		breaker.configure(1, 50L);
+		breaker.allow();
+		breaker.failed(unreachable());
+		Thread.sleep(100);
+
+		breaker.allow();
+		Assert.assertEquals(Jira4CircuitBreaker.State.HALF_OPEN, breaker.getState());
+		try {
+			breaker.allow();
+			Assert.fail("Second call let through while probing");
+		} catch (final java.rmi.RemoteException expected) {
+			// Only one probe at a time
+		}
+		breaker.failed(unreachable());
+		Assert.assertEquals(Jira4CircuitBreaker.State.OPEN, breaker.getState());
+
+		Thread.sleep(100);
+		breaker.allow();
+		breaker.succeeded();
+		Assert.assertEquals(Jira4CircuitBreaker.State.CLOSED, breaker.getState());
+		breaker.allow();
+	}
+
+	@Test
+	public void testOpenBreakerFailsFastWithSameMessage() throws Exception {
+		final String url = "http://breaker/connection";
+		Jira4CircuitBreaker.getInstance(url).configure(2, 60 * 1000L);
+		final FlakyJira service = new FlakyJira();
+		final Jira4PluginConnection connection = new Jira4PluginConnection("user", "password", url, service.create());
+
+		service.down = true;
+		String message = null;
+		for (int i = 0; i < 2; i++) {
+			try {
+				connection.getProjectKeys();
+				Assert.fail("Down JIRA answered");
+			} catch (final java.rmi.RemoteException e) {
+				message = Jira4PluginConnection.findHelpfulMessage(e);
+			}
+		}
+		final int calls = service.count("getProjectsNoSchemes");
+		try {
+			connection.getProjectKeys();
+			Assert.fail("Open breaker let a call through");
+		} catch (final java.rmi.RemoteException e) {
+			Assert.assertEquals(message, Jira4PluginConnection.findHelpfulMessage(e));
+		}
+		Assert.assertEquals(calls, service.count("getProjectsNoSchemes"));
+	}
+
+	@Test
+	public void testProbeEndingWithRuntimeExceptionIsNotLeftOpen() throws Exception {
+		final String url = "http://breaker/runtime";
+		final Jira4CircuitBreaker breaker = Jira4CircuitBreaker.getInstance(url);
+		breaker.configure(1, 50L);
+		final FlakyJira service = new FlakyJira();
+		final Jira4PluginConnection connection = new Jira4PluginConnection("user", "password", url, service.create());
+
+		service.down = true;
+		try {
+			connection.fetchState("GOAT-1");
+			Assert.fail("Down JIRA answered");
+		} catch (final java.rmi.RemoteException expected) {
+			// opens the breaker
+		}
+		Assert.assertEquals(Jira4CircuitBreaker.State.OPEN, breaker.getState());
+		Thread.sleep(100);
+
+		service.down = false;
+		service.broken = true;
+		try {
+			connection.fetchState("GOAT-1");
+			Assert.fail("Broken answer was accepted");
+		} catch (final IllegalStateException expected) {
+			// the probe
+		}
+		Assert.assertEquals(Jira4CircuitBreaker.State.HALF_OPEN, breaker.getState());
+
+		// The next call probes instead of being rejected for good
+		service.broken = false;
+		Assert.assertEquals("Open", connection.fetchState("GOAT-1").getStatus());
+		Assert.assertEquals(Jira4CircuitBreaker.State.CLOSED, breaker.getState());
+	}
+}
@@ -0,0 +1,145 @@
+/*
+ * (C) Copyright 2015 Hewlett-Packard Development Company, L.P.
+ */
+
+package com.fortify.sample.defecttracking.jira;
+
+import java.io.IOException;
+
+import org.apache.axis.AxisFault;
+import org.junit.*;
+
+public class Jira4ConcurrencyLimiterTest {
+
+	private static final long FAST = 1000 * 1000L;
+
+	@Test
+	public void testCallsBeyondLimitWait() throws Exception {
+		final Jira4ConcurrencyLimiter limiter = new Jira4ConcurrencyLimiter("http://limiter/wait");
+		for (int i = 0; i < Jira4ConcurrencyLimiter.INITIAL_LIMIT; i++) {
+			limiter.acquire(0);
+		}
+		final Thread waiter = new Thread() {
+			@Override
+			public void run() {
+				try {
+					limiter.acquire(0);
+				} catch (final InterruptedException e) {
+					// test ends
+				}
+			}
+		};
+		waiter.start();
+		final long deadline = System.currentTimeMillis() + 5000;
+		while (limiter.getWaiting() == 0 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(5);
+		}
+		Assert.assertEquals(1, limiter.getWaiting());
+		Assert.assertEquals(1, Jira4Metrics.value("limiter.waiting:http://limiter/wait"));
+
+		limiter.release("getIssue", FAST, false);
+		waiter.join(5000);
+		Assert.assertEquals(0, limiter.getWaiting());
+		Assert.assertEquals(Jira4ConcurrencyLimiter.INITIAL_LIMIT, limiter.getInFlight());
+	}
+
+	@Test
+	public void testBusyHealthyServerGetsMoreCalls() throws Exception {
+		final Jira4ConcurrencyLimiter limiter = new Jira4ConcurrencyLimiter("http://limiter/grow");
+		limiter.setMaxLimit(10);
+		for (int round = 0; round < 200; round++) {
+			final int limit = limiter.getLimit();
+			for (int i = 0; i < limit; i++) {
+				limiter.acquire(0);
+			}
+			for (int i = 0; i < limit; i++) {
+				limiter.release("getIssue", FAST, false);
+			}
+		}
+		Assert.assertEquals(10, limiter.getLimit());
+	}
+
+	@Test
+	public void testIdleLimitDoesNotGrow() throws Exception {
+		final Jira4ConcurrencyLimiter limiter = new Jira4ConcurrencyLimiter("http://limiter/idle");
+		for (int i = 0; i < 200; i++) {
+			limiter.acquire(0);
+			limiter.release("getIssue", FAST, false);
+		}
+		Assert.assertEquals(Jira4ConcurrencyLimiter.INITIAL_LIMIT, limiter.getLimit());
+	}
+
+	@Test
+	public void testTimeoutHalvesLimitOncePerBurst() throws Exception {
+		final Jira4ConcurrencyLimiter limiter = new Jira4ConcurrencyLimiter("http://limiter/timeout");
+		for (int i = 0; i < 3; i++) {
+			limiter.acquire(0);
+		}
+		for (int i = 0; i < 3; i++) {
+			limiter.release("getIssue", 10 * 1000 * 1000 * 1000L, true);
+		}
+		Assert.assertEquals(Jira4ConcurrencyLimiter.INITIAL_LIMIT / 2, limiter.getLimit());
+	}
+
+	@Test
+	public void testSlowCallsShrinkLimit() throws Exception {
+		final Jira4ConcurrencyLimiter limiter = new Jira4ConcurrencyLimiter("http://limiter/slow");
+		for (int i = 0; i < Jira4ConcurrencyLimiter.WINDOW; i++) {
+			limiter.acquire(0);
+			limiter.release("getIssue", FAST, false);
+		}
+		limiter.acquire(0);
+		limiter.release("getIssue", 10 * FAST, false);
+		Assert.assertTrue(limiter.getLimit() < Jira4ConcurrencyLimiter.INITIAL_LIMIT);
+	}
+
+	@Test
+	public void testSlowOperationsAreNotCongestion() throws Exception {
+		final Jira4ConcurrencyLimiter limiter = new Jira4ConcurrencyLimiter("http://limiter/mixed");
+		limiter.setMaxLimit(10);
+		for (int round = 0; round < 200; round++) {
+			final int limit = limiter.getLimit();
+			for (int i = 0; i < limit; i++) {
+				limiter.acquire(0);
+			}
+			// A bulk search always takes a hundred times longer than reading the priorities
+			for (int i = 0; i < limit; i++) {
+				limiter.release(i % 2 == 0 ? "getPriorities" : "getIssuesFromJqlSearch", i % 2 == 0 ? FAST : 100 * FAST, false);
+			}
+		}
+		Assert.assertEquals(10, limiter.getLimit());
+	}
+
+	@Test
+	public void testAcquireGivesUpAfterTimeout() throws Exception {
+		final Jira4ConcurrencyLimiter limiter = new Jira4ConcurrencyLimiter("http://limiter/deadline");
+		for (int i = 0; i < Jira4ConcurrencyLimiter.INITIAL_LIMIT; i++) {
+			Assert.assertTrue(limiter.acquire(0));
+		}
+		final long start = System.currentTimeMillis();
+		Assert.assertFalse(limiter.acquire(50));
+		Assert.assertTrue(System.currentTimeMillis() - start >= 40);
+		Assert.assertEquals(0, limiter.getWaiting());
+		Assert.assertEquals(Jira4ConcurrencyLimiter.INITIAL_LIMIT, limiter.getInFlight());
+	}
+
+	@Test
+	public void testConnectionReportsUnreachableServer() throws Exception {
+		final FakeJiraSoapService service = new FakeJiraSoapService() {
+			@Override
+			protected Object handle(String method, Object[] args) throws Exception {
+				if ("getIssue".equals(method)) {
+					throw AxisFault.makeFault(new IOException("Read timed out"));
+				}
+				return super.handle(method, args);
+			}
+		};
+		final Jira4PluginConnection connection = new Jira4PluginConnection("user", "password", "http://limiter/connection", service.create());
+		// A single timeout, not the retries that follow it
+		connection.setRetryPolicy(Jira4RetryPolicy.NONE);
+		Assert.assertNull(connection.fetchDetails("GOAT-1"));
+		final Jira4ConcurrencyLimiter limiter = Jira4ConcurrencyLimiter.getInstance("http://limiter/connection");
+		Assert.assertEquals(Jira4ConcurrencyLimiter.INITIAL_LIMIT / 2, limiter.getLimit());
+		Assert.assertEquals(0, limiter.getInFlight());
+	}
+}
@@ -0,0 +1,113 @@
+/*
+ * (C) Copyright 2015 Hewlett-Packard Development Company, L.P.
+ */
+
+package com.fortify.sample.defecttracking.jira;
+
+import java.util.*;
+
+import org.junit.*;
+
+import com.atlassian.jira.rpc.soap.client.*;
+
+public class Jira4DeltaSyncTest {
+
+	private static final long MINUTE = 60 * 1000L;
+
+	/** Answers searches with whatever the test put into {@link #changed} and {@link #all} */
+	private static class SearchingJira extends FakeJiraSoapService {
+		final List<RemoteIssue> changed = new ArrayList<RemoteIssue>();
+		final List<RemoteIssue> all = new ArrayList<RemoteIssue>();
+		final List<String> queries = new ArrayList<String>();
+
+		@Override
+		protected Object handle(String method, Object[] args) throws Exception {
+			if ("getIssuesFromJqlSearch".equals(method)) {
+				final String jql = (String) args[1];
+				queries.add(jql);
+				return (jql.startsWith("project") ? changed : all).toArray(new RemoteIssue[0]);
+			}
+			return super.handle(method, args);
+		}
+	}
+
+	@Test
+	public void testOnlyChangedIssuesAreRead() throws Exception {
+		final SearchingJira service = new SearchingJira();
+		final Jira4PluginConnection connection = new Jira4PluginConnection("user", "password", "http://sync/delta", service.create());
+		final Jira4BugStateStore store = new Jira4BugStateStore();
+		store.put(new Jira4BugState("GOAT-1", "Open", null, 1));
+		store.put(new Jira4BugState("GOAT-2", "Open", null, 1));
+		final Jira4DeltaSync sync = new Jira4DeltaSync("GOAT", store);
+
+		// First sync reads every known issue
+		service.all.add(FakeJiraSoapService.issue("GOAT-1", "1", null));
+		service.all.add(FakeJiraSoapService.issue("GOAT-2", "1", null));
+		sync.syncIfDue(connection, 0, 60 * MINUTE, 100);
+		Assert.assertEquals(1, service.queries.size());
+
+		// Later syncs only ask for what changed, ignoring issues we do not track
+		final RemoteIssue resolved = FakeJiraSoapService.issue("GOAT-2", "5", "1");
+		resolved.setUpdated(Calendar.getInstance());
+		service.changed.add(resolved);
+		service.changed.add(FakeJiraSoapService.issue("GOAT-99", "5", "1"));
+		// As if the previous sync started 90 seconds ago: two minutes back, plus the overlap
+		final long now = System.currentTimeMillis();
+		store.putSyncMarks("GOAT", now - 90 * 1000L, now);
+		new Jira4DeltaSync("GOAT", store).syncIfDue(connection, 0, 60 * MINUTE, 100);
+
+		Assert.assertEquals(2, service.queries.size());
+		Assert.assertEquals("project = \"GOAT\" AND updated >= \"-3m\" ORDER BY updated ASC", service.queries.get(1));
+		Assert.assertEquals("Open", store.get("GOAT-1").getStatus());
+		Assert.assertEquals("Resolved", store.get("GOAT-2").toBug().getBugStatus());
+		Assert.assertEquals("Fixed", store.get("GOAT-2").toBug().getBugResolution());
+		Assert.assertFalse(store.contains("GOAT-99"));
+	}
+
+	@Test
+	public void testSyncWithinIntervalDoesNothing() throws Exception {
+		final SearchingJira service = new SearchingJira();
+		final Jira4PluginConnection connection = new Jira4PluginConnection("user", "password", "http://sync/interval", service.create());
+		final Jira4BugStateStore store = new Jira4BugStateStore();
+		store.put(new Jira4BugState("GOAT-1", "Open", null, 1));
+		final Jira4DeltaSync sync = new Jira4DeltaSync("GOAT", store);
+
+		sync.syncIfDue(connection, MINUTE, 60 * MINUTE, 100);
+		sync.syncIfDue(connection, MINUTE, 60 * MINUTE, 100);
+		Assert.assertEquals(1, service.queries.size());
+	}
+
+	@Test
+	public void testFullSyncForgetsUnreadableIssues() throws Exception {
+		final SearchingJira service = new SearchingJira() {
+			@Override
+			protected Object handle(String method, Object[] args) throws Exception {
+				if ("getIssue".equals(method)) {
+					final com.atlassian.jira.rpc.soap.client.RemoteException e = new com.atlassian.jira.rpc.soap.client.RemoteException();
+					e.setFaultString("com.atlassian.jira.rpc.exception.RemotePermissionException: This issue does not exist");
+					throw e;
+				}
+				return super.handle(method, args);
+			}
+		};
+		final Jira4PluginConnection connection = new Jira4PluginConnection("user", "password", "http://sync/full", service.create());
+		final Jira4BugStateStore store = new Jira4BugStateStore();
+		store.put(new Jira4BugState("GOAT-1", "Open", null, 1));
+		store.put(new Jira4BugState("GOAT-2", "Open", null, 1));
+		service.all.add(FakeJiraSoapService.issue("GOAT-1", "5", null));
+
+		new Jira4DeltaSync("GOAT", store).syncIfDue(connection, 0, 0, 100);
+		Assert.assertEquals("Resolved", store.get("GOAT-1").getStatus());
+		Assert.assertFalse(store.contains("GOAT-2"));
+	}
+
+	@Test
+	public void testOlderStateDoesNotOverwriteNewer() {
+		final Jira4BugStateStore store = new Jira4BugStateStore();
+		store.put(new Jira4BugState("GOAT-1", "Resolved", "Fixed", 20));
+		store.put(new Jira4BugState("GOAT-1", "Open", null, 10));
+		Assert.assertEquals("Resolved", store.get("GOAT-1").getStatus());
+		store.put(new Jira4BugState("GOAT-1", "Reopened", null, 30));
+		Assert.assertEquals("Reopened", store.get("GOAT-1").getStatus());
+	}
+}
@@ -0,0 +1,262 @@
+/*
+ * (C) Copyright 2015 Hewlett-Packard Development Company, L.P.
+ */
+
+package com.fortify.sample.defecttracking.jira;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+import org.junit.*;
+
+import com.atlassian.jira.rpc.soap.client.*;
+
+public class Jira4DuplicateIndexTest {
+
+	/** Project GOAT holds GOAT-1 to GOAT-5, each filed for instance-N; creates new issues from GOAT-100 on */
+	private static class FiledJira extends FakeJiraSoapService {
+		private final AtomicInteger next = new AtomicInteger(99);
+		final List<String> queries = Collections.synchronizedList(new ArrayList<String>());
+
+		@Override
+		protected Object handle(String method, Object[] args) throws Exception {
+			if ("getIssuesFromJqlSearch".equals(method)) {
+				final String jql = (String) args[1];
+				queries.add(jql);
+				final int after = jql.contains("key > ") ? Integer.parseInt(jql.replaceAll(".*key > \"GOAT-(\\d+)\".*", "$1")) : 0;
+				final List<RemoteIssue> page = new ArrayList<RemoteIssue>();
+				for (int i = after + 1; i <= 5 && page.size() < (Integer) args[2]; i++) {
+					final RemoteIssue issue = issue("GOAT-" + i, "1", null);
+					issue.setDescription(Jira4DuplicateIndex.stamp("Found by SCA", Collections.singletonList("instance-" + i)));
+					page.add(issue);
+				}
+				return page.toArray(new RemoteIssue[page.size()]);
+			}
+			if ("createIssue".equals(method)) {
+				Thread.sleep(20);
+				return issue("GOAT-" + next.incrementAndGet(), "1", null);
+			}
+			return super.handle(method, args);
+		}
+	}
+
+	@Test
+	public void testStampedDescriptionIsParsed() {
+		final String description = Jira4DuplicateIndex.stamp("Found by SCA", Arrays.asList("A1B2", "C3D4"));
+		Assert.assertTrue(description.startsWith("Found by SCA"));
+		Assert.assertEquals(Arrays.asList("A1B2", "C3D4"), Jira4DuplicateIndex.parse(description));
+		Assert.assertEquals(Collections.emptyList(), Jira4DuplicateIndex.parse(null));
+	}
+
+	@Test
+	public void testIndexGrowsWithoutLosingEntries() {
+		final Jira4DuplicateIndex index = new Jira4DuplicateIndex();
+		final int count = Jira4DuplicateIndex.INITIAL_CAPACITY * 3;
+		for (int i = 0; i < count; i++) {
+			index.put("instance-" + i, "GOAT-" + i);
+		}
+		for (int i = 0; i < count; i++) {
+			Assert.assertEquals("GOAT-" + i, index.find("instance-" + i));
+		}
+		Assert.assertNull(index.find("instance-" + count));
+		index.remove("instance-1", "GOAT-2");
+		Assert.assertEquals("GOAT-1", index.find("instance-1"));
+		index.remove("instance-1", "GOAT-1");
+		Assert.assertNull(index.find("instance-1"));
+	}
+
+	@Test
+	public void testBloomFilterRarelyAnswersMaybe() {
+		final Jira4BloomFilter filter = new Jira4BloomFilter(1000, 0.01);
+		for (int i = 0; i < 1000; i++) {
+			filter.add("added-" + i);
+		}
+		int maybe = 0;
+		for (int i = 0; i < 10000; i++) {
+			Assert.assertTrue(filter.mightContain("added-" + (i % 1000)));
+			if (filter.mightContain("other-" + i)) {
+				maybe++;
+			}
+		}
+		Assert.assertTrue("False positives: " + maybe, maybe < 300);
+	}
+
+	@Test
+	public void testBackfillReadsAllPages() throws Exception {
+		final FiledJira service = new FiledJira();
+		final Jira4PluginConnection connection = new Jira4PluginConnection("user", "password", "http://duplicates/backfill", service.create());
+		final Jira4DuplicateIndex index = new Jira4DuplicateIndex();
+
+		index.backfill(connection, "GOAT", 2);
+		Assert.assertEquals(3, service.queries.size());
+		Assert.assertTrue(service.queries.get(1).contains("key > \"GOAT-2\""));
+		for (int i = 1; i <= 5; i++) {
+			Assert.assertEquals("GOAT-" + i, index.find("instance-" + i));
+		}
+
+		index.backfill(connection, "GOAT", 2);
+		Assert.assertEquals(3, service.queries.size());
+	}
+
+	@Test
+	public void testFiledInstanceIsNotFiledAgain() throws Exception {
+		final FiledJira service = new FiledJira();
+		final Jira4PluginConnection connection = new Jira4PluginConnection("user", "password", "http://duplicates/filed", service.create());
+		final Jira4DuplicateIndex index = new Jira4DuplicateIndex();
+		index.backfill(connection, "GOAT", 100);
+		final Jira4FilingPipeline pipeline = new Jira4FilingPipeline(connection, new Jira4BugStateStore(), index, 1);
+
+		Assert.assertEquals("GOAT-3", pipeline.create(newIssue(connection), Collections.singletonList("instance-3")).getIssueKey());
+		Assert.assertEquals(0, service.count("createIssue"));
+
+		final RemoteIssue fresh = newIssue(connection);
+		Assert.assertEquals("GOAT-100", pipeline.create(fresh, Collections.singletonList("instance-9")).getIssueKey());
+		Assert.assertEquals(Collections.singletonList("instance-9"), Jira4DuplicateIndex.parse(fresh.getDescription()));
+		Assert.assertEquals("GOAT-100", pipeline.create(newIssue(connection), Arrays.asList("instance-10", "instance-9")).getIssueKey());
+		Assert.assertEquals(1, service.count("createIssue"));
+	}
+
+	@Test
+	public void testConcurrentSubmissionsOfOneInstanceFileOnce() throws Exception {
+		final FiledJira service = new FiledJira();
+		final Jira4PluginConnection connection = new Jira4PluginConnection("user", "password", "http://duplicates/concurrent", service.create());
+		final Jira4FilingPipeline pipeline = new Jira4FilingPipeline(connection, new Jira4BugStateStore(), new Jira4DuplicateIndex(), 1);
+
+		final List<Callable<String>> submissions = new ArrayList<Callable<String>>();
+		for (int i = 0; i < 4; i++) {
+			submissions.add(new Callable<String>() {
+				public String call() throws Exception {
+					return pipeline.create(newIssue(connection), Arrays.asList("instance-7", "instance-8")).getIssueKey();
+				}
+			});
+		}
+		final ExecutorService executor = Executors.newFixedThreadPool(4);
+		try {
+			for (final Future<String> key : executor.invokeAll(submissions)) {
+				Assert.assertEquals("GOAT-100", key.get());
+			}
+		} finally {
+			executor.shutdown();
+		}
+		Assert.assertEquals(1, service.count("createIssue"));
+	}
+
+	@Test
+	public void testIndexSurvivesReopen() throws Exception {
+		final File file = File.createTempFile("duplicates", ".log");
+		file.delete();
+		try {
+			final FiledJira service = new FiledJira();
+			final Jira4PluginConnection connection = new Jira4PluginConnection("user", "password", "http://duplicates/reopen", service.create());
+			Jira4DuplicateIndex index = new Jira4DuplicateIndex(file);
+			index.backfill(connection, "GOAT", 100);
+			index.put("instance-9", "GOAT-100");
+			index.remove("instance-2", "GOAT-2");
+			index.close();
+
+			index = new Jira4DuplicateIndex(file);
+			index.backfill(connection, "GOAT", 100);
+			Assert.assertEquals(1, service.queries.size());
+			Assert.assertEquals("GOAT-1", index.find("instance-1"));
+			Assert.assertNull(index.find("instance-2"));
+			Assert.assertEquals("GOAT-100", index.find("instance-9"));
+			index.close();
+		} finally {
+			file.delete();
+			new File(file.getPath() + ".compact").delete();
+		}
+	}
+
+	@Test
+	public void testUnfinishedBackfillCarriesOn() throws Exception {
+		final File file = File.createTempFile("duplicates", ".log");
+		file.delete();
+		try {
+			final AtomicBoolean drop = new AtomicBoolean(true);
+			final FiledJira service = new FiledJira() {
+				@Override
+				protected Object handle(String method, Object[] args) throws Exception {
+					if ("getIssuesFromJqlSearch".equals(method) && ((String) args[1]).contains("key > ") && drop.getAndSet(false)) {
+						throw org.apache.axis.AxisFault.makeFault(new IOException("Connection reset"));
+					}
+					return super.handle(method, args);
+				}
+			};
+			final Jira4PluginConnection connection = new Jira4PluginConnection("user", "password", "http://duplicates/unfinished", service.create());
+			connection.setRetryPolicy(Jira4RetryPolicy.NONE);
+			Jira4DuplicateIndex index = new Jira4DuplicateIndex(file);
+			Assert.assertFalse(index.backfill(connection, "GOAT", 2));
+			Assert.assertEquals("GOAT-2", index.find("instance-2"));
+			Assert.assertNull(index.find("instance-3"));
+			index.close();
+
+			// The pages already read are not read again, even after a restart
+			index = new Jira4DuplicateIndex(file);
+			Assert.assertTrue(index.backfill(connection, "GOAT", 2));
+			Assert.assertTrue(service.queries.get(1).contains("key > \"GOAT-2\""));
+			Assert.assertEquals(3, service.queries.size());
+			Assert.assertEquals("GOAT-5", index.find("instance-5"));
+			index.close();
+		} finally {
+			file.delete();
+			new File(file.getPath() + ".compact").delete();
+		}
+	}
+
+	@Test
+	public void testBackfillOnlyHoldsUpItsProject() throws Exception {
+		final CountDownLatch searching = new CountDownLatch(1);
+		final CountDownLatch finish = new CountDownLatch(1);
+		final FiledJira service = new FiledJira() {
+			@Override
+			protected Object handle(String method, Object[] args) throws Exception {
+				if ("getIssuesFromJqlSearch".equals(method) && ((String) args[1]).contains("\"BANK\"")) {
+					return new RemoteIssue[0];
+				}
+				if ("getIssuesFromJqlSearch".equals(method)) {
+					searching.countDown();
+					finish.await();
+				}
+				return super.handle(method, args);
+			}
+		};
+		final String url = "http://duplicates/projects";
+		final Jira4DuplicateIndex index = new Jira4DuplicateIndex();
+		final ExecutorService executor = Executors.newFixedThreadPool(2);
+		try {
+			final List<Future<Void>> goat = new ArrayList<Future<Void>>();
+			for (int i = 0; i < 2; i++) {
+				goat.add(executor.submit(new Callable<Void>() {
+					public Void call() throws Exception {
+						index.backfill(new Jira4PluginConnection("user", "password", url, service.create()), "GOAT", 100);
+						return null;
+					}
+				}));
+			}
+			Assert.assertTrue(searching.await(5, TimeUnit.SECONDS));
+
+			// Neither lookups nor other projects wait for the search of GOAT
+			index.put("instance-9", "BANK-1");
+			Assert.assertEquals("BANK-1", index.find("instance-9"));
+			index.backfill(new Jira4PluginConnection("user", "password", url, service.create()), "BANK", 100);
+			Assert.assertNull(index.find("instance-1"));
+
+			finish.countDown();
+			for (final Future<Void> result : goat) {
+				result.get(5, TimeUnit.SECONDS);
+			}
+			Assert.assertEquals("GOAT-1", index.find("instance-1"));
+			// The second caller waited for the first one's search
+			Assert.assertEquals(1, service.queries.size());
+		} finally {
+			finish.countDown();
+			executor.shutdownNow();
+		}
+	}
+
+	private static RemoteIssue newIssue(Jira4PluginConnection connection) throws Exception {
+		return Jira4PluginConnection.prepareIssue(connection.getMetadata(), null, "GOAT", "summary", "Found by SCA", null, "Major", "Bug", null, null);
+	}
+}
@@ -0,0 +1,117 @@
+/*
+ * (C) Copyright 2015 Hewlett-Packard Development Company, L.P.
+ */
+
+package com.fortify.sample.defecttracking.jira;
+
+import java.io.*;
+import java.util.*;
+
+import org.junit.*;
+
+public class Jira4FilingJournalTest {
+
+	private File file;
+
+	@Before
+	public void createFile() throws IOException {
+		file = File.createTempFile("filing", ".log");
+		file.delete();
+	}
+
+	@After
+	public void deleteFile() {
+		file.delete();
+		new File(file.getPath() + ".compact").delete();
+	}
+
+	private static Map<String, String> params(String summary) {
+		final Map<String, String> retval = new HashMap<String, String>();
+		retval.put("project", "GOAT");
+		retval.put("summary", summary);
+		retval.put("assignee", null);
+		return retval;
+	}
+
+	@Test
+	public void testJournalReplaysAfterRestart() throws Exception {
+		Jira4FilingJournal journal = new Jira4FilingJournal(file);
+		final Jira4FilingJournal.Entry filed = journal.submit("user", params("filed"), Arrays.asList("instance-1"));
+		final Jira4FilingJournal.Entry attempted = journal.submit("user", params("attempted"), Collections.<String>emptyList());
+		final Jira4FilingJournal.Entry rejected = journal.submit("other", params("rejected"), Collections.<String>emptyList());
+		journal.attempted(filed);
+		journal.filed(filed, "GOAT-1");
+		journal.attempted(attempted);
+		journal.failed(rejected, "Summary is not valid");
+		journal.close();
+
+		journal = new Jira4FilingJournal(file);
+		final List<Jira4FilingJournal.Entry> pending = journal.getPending();
+		Assert.assertEquals(1, pending.size());
+		Assert.assertEquals(attempted.getId(), pending.get(0).getId());
+		Assert.assertEquals(1, pending.get(0).getAttempts());
+		Assert.assertEquals("attempted", pending.get(0).getParams().get("summary"));
+		Assert.assertTrue(pending.get(0).getParams().containsKey("assignee"));
+		Assert.assertEquals("GOAT-1", journal.getIssueKey(filed.getId()));
+		Assert.assertEquals("Summary is not valid", journal.getFailure(rejected.getId()));
+		journal.close();
+	}
+
+	@Test
+	public void testLongDescriptionIsKept() throws Exception {
+		final StringBuilder description = new StringBuilder();
+		while (description.length() < 100000) {
+			description.append("Found by SCA. ");
+		}
+		final Map<String, String> params = params("long");
+		params.put("description", description.toString());
+		Jira4FilingJournal journal = new Jira4FilingJournal(file);
+		journal.submit("user", params, Collections.<String>emptyList());
+		journal.close();
+
+		journal = new Jira4FilingJournal(file);
+		Assert.assertEquals(description.toString(), journal.getPending().get(0).getParams().get("description"));
+		journal.close();
+	}
+
+	@Test
+	public void testTornSubmissionIsCutOff() throws Exception {
+		Jira4FilingJournal journal = new Jira4FilingJournal(file);
+		journal.submit("user", params("kept"), Collections.<String>emptyList());
+		journal.close();
+		final long goodLength = file.length();
+
+		final RandomAccessFile raw = new RandomAccessFile(file, "rw");
+		raw.seek(goodLength);
+		raw.writeInt(500);
+		raw.write(new byte[] { 1, 2, 3 });
+		raw.close();
+
+		journal = new Jira4FilingJournal(file);
+		Assert.assertEquals(1, journal.getPending().size());
+		Assert.assertEquals(goodLength, file.length());
+		journal.close();
+	}
+
+	@Test
+	public void testCompactionKeepsFiledIds() throws Exception {
+		Jira4FilingJournal journal = new Jira4FilingJournal(file);
+		final List<String> ids = new ArrayList<String>();
+		for (int i = 0; i < 1000; i++) {
+			final Jira4FilingJournal.Entry entry = journal.submit("user", params("bug " + i), Collections.<String>emptyList());
+			journal.attempted(entry);
+			if (i < 999) {
+				journal.filed(entry, "GOAT-" + i);
+			}
+			ids.add(entry.getId());
+		}
+		journal.close();
+
+		journal = new Jira4FilingJournal(file);
+		Assert.assertEquals("GOAT-0", journal.getIssueKey(ids.get(0)));
+		Assert.assertEquals("GOAT-998", journal.getIssueKey(ids.get(998)));
+		Assert.assertEquals(1, journal.getPending().size());
+		Assert.assertEquals(1, journal.getPending().get(0).getAttempts());
+		journal.close();
+	}
+}
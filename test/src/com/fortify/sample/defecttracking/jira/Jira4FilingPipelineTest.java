@@ -0,0 +1,138 @@
+/*
+ * (C) Copyright 2015 Hewlett-Packard Development Company, L.P.
+ */
+
+package com.fortify.sample.defecttracking.jira;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+import org.apache.axis.AxisFault;
+import org.junit.*;
+
+import com.atlassian.jira.rpc.soap.client.*;
+import com.atlassian.jira.rpc.soap.client.RemoteException;
+import com.fortify.pub.bugtracker.support.Bug;
+
+public class Jira4FilingPipelineTest {
+
+	/** Creates GOAT-1, GOAT-2, ... and rejects issues with the summary "invalid" */
+	private static class CreatingJira extends FakeJiraSoapService {
+		private final AtomicInteger next = new AtomicInteger();
+		volatile boolean down;
+
+		@Override
+		protected Object handle(String method, Object[] args) throws Exception {
+			if ("createIssue".equals(method)) {
+				if (down) {
+					throw AxisFault.makeFault(new IOException("Connection refused"));
+				}
+				if ("invalid".equals(((RemoteIssue) args[1]).getSummary())) {
+					final RemoteException e = new RemoteException();
+					e.setFaultString("com.atlassian.jira.rpc.exception.RemoteValidationException: Summary is not valid.");
+					throw e;
+				}
+				return issue("GOAT-" + next.incrementAndGet(), "1", null);
+			}
+			return super.handle(method, args);
+		}
+	}
+
+	private static class RecordingListener implements Jira4FilingListener {
+		final ConcurrentMap<Integer, String> filed = new ConcurrentHashMap<Integer, String>();
+		final ConcurrentMap<Integer, String> failed = new ConcurrentHashMap<Integer, String>();
+
+		public void filed(int index, Bug bug) {
+			filed.put(index, bug.getBugId());
+		}
+
+		public void failed(int index, String message) {
+			failed.put(index, message);
+		}
+	}
+
+	private static List<Jira4FilingPipeline.Submission> submissions(Jira4Metadata metadata, String... summaries) {
+		final List<Jira4FilingPipeline.Submission> retval = new ArrayList<Jira4FilingPipeline.Submission>();
+		for (int i = 0; i < summaries.length; i++) {
+			final RemoteIssue issue = Jira4PluginConnection.prepareIssue(metadata, null, "GOAT", summaries[i], "", null, "Major", "Bug", null, null);
+			retval.add(Jira4FilingPipeline.Submission.prepared(i, issue, Collections.singletonList("instance-" + i)));
+		}
+		return retval;
+	}
+
+	@Test
+	public void testEverySubmissionIsReported() throws Exception {
+		final CreatingJira service = new CreatingJira();
+		final Jira4PluginConnection connection = new Jira4PluginConnection("user", "password", "http://filing/all", service.create());
+		final Jira4BugStateStore store = new Jira4BugStateStore();
+		final List<Jira4FilingPipeline.Submission> submissions = submissions(connection.getMetadata(), "one", "invalid", "three", "four");
+		submissions.add(Jira4FilingPipeline.Submission.rejected(4, "No such version"));
+		final RecordingListener listener = new RecordingListener();
+
+		final Jira4FilingStats stats = new Jira4FilingPipeline(connection, store, new Jira4DuplicateIndex(), 3).run(submissions, listener);
+
+		Assert.assertEquals(new HashSet<Integer>(Arrays.asList(0, 2, 3)), listener.filed.keySet());
+		Assert.assertEquals("Summary is not valid", listener.failed.get(1));
+		Assert.assertEquals("No such version", listener.failed.get(4));
+		Assert.assertEquals(3, stats.getFiled());
+		Assert.assertEquals(2, stats.getFailed());
+		Assert.assertEquals(4, service.count("createIssue"));
+		// Metadata was read once for the whole batch, and created issues are not read again
+		Assert.assertEquals(1, service.count("getPriorities"));
+		Assert.assertEquals(0, service.count("getIssue"));
+
+		final Jira4BugState state = store.get(listener.filed.get(0));
+		Assert.assertEquals("1", state.getIssueType());
+		Assert.assertEquals(Collections.singletonList("instance-0"), state.getInstanceIds());
+	}
+
+	@Test
+	public void testTransportFailureFailsRemainingSubmissionsFast() throws Exception {
+		final CreatingJira service = new CreatingJira();
+		final Jira4PluginConnection connection = new Jira4PluginConnection("user", "password", "http://filing/down", service.create());
+		connection.setRetryPolicy(Jira4RetryPolicy.NONE);
+		final List<Jira4FilingPipeline.Submission> submissions = submissions(connection.getMetadata(), "one", "two", "three");
+		service.down = true;
+		final RecordingListener listener = new RecordingListener();
+
+		final Jira4FilingStats stats = new Jira4FilingPipeline(connection, new Jira4BugStateStore(), new Jira4DuplicateIndex(), 1).run(submissions, listener);
+
+		Assert.assertEquals(1, service.count("createIssue"));
+		Assert.assertEquals(3, stats.getFailed());
+		Assert.assertEquals(3, listener.failed.size());
+	}
+
+	@Test
+	public void testPreparedIssueUsesIds() throws Exception {
+		final Jira4PluginConnection connection = new Jira4PluginConnection("user", "password", "http://filing/prepare", new FakeJiraSoapService().create());
+		final RemoteVersion version = new RemoteVersion();
+		version.setId("10");
+		version.setName("1.0");
+		final RemoteIssue issue = Jira4PluginConnection.prepareIssue(connection.getMetadata(), Jira4NamedEntityIndex.of(new RemoteVersion[] { version }),
+				"GOAT", "summary", "description", null, "Major", "Bug", "", "1.0");
+		Assert.assertEquals("3", issue.getPriority());
+		Assert.assertEquals("1", issue.getType());
+		Assert.assertNull(issue.getAssignee());
+		Assert.assertEquals("10", issue.getAffectsVersions()[0].getId());
+	}
+
+	@Test
+	public void testWarmCreateIsOneRoundTrip() throws Exception {
+		final CreatingJira service = new CreatingJira();
+		final Jira4PluginConnection connection = new Jira4PluginConnection("user", "password", "http://filing/warm", service.create());
+		connection.createNewIssue("GOAT", "first", "", null, "Major", "Bug", null, "1.0");
+		final int login = service.count("login");
+		final int priorities = service.count("getPriorities");
+
+		final Bug bug = connection.createNewIssue("GOAT", "second", "", null, "Major", "Bug", null, "1.0");
+		Assert.assertEquals("GOAT-2", bug.getBugId());
+		Assert.assertEquals("Open", bug.getBugStatus());
+		Assert.assertEquals(2, service.count("createIssue"));
+		Assert.assertEquals(1, service.count("getVersions"));
+		Assert.assertEquals(0, service.count("getIssue"));
+		Assert.assertEquals(login, service.count("login"));
+		Assert.assertEquals(priorities, service.count("getPriorities"));
+	}
+}
@@ -0,0 +1,126 @@
+/*
+ * (C) Copyright 2015 Hewlett-Packard Development Company, L.P.
+ */
+
+package com.fortify.sample.defecttracking.jira;
+
+import java.io.*;
+import java.util.*;
+
+import org.apache.axis.AxisFault;
+import org.junit.*;
+
+import com.atlassian.jira.rpc.soap.client.RemoteException;
+import com.fortify.pub.bugtracker.support.*;
+
+public class Jira4FilingQueueTest {
+
+	private File file;
+	private Jira4FilingQueue queue;
+
+	/** Files GOAT-1, GOAT-2, ...; rejects the summary "invalid" and fails with a transport error while down */
+	private static class ScriptedFiler implements Jira4FilingQueue.Filer {
+		final List<String> filed = new ArrayList<String>();
+		final List<Integer> attempts = new ArrayList<Integer>();
+		boolean down;
+
+		public Jira4BugState file(Jira4FilingJournal.Entry entry, UserAuthenticationStore credentials) throws java.rmi.RemoteException {
+			attempts.add(entry.getAttempts());
+			if (down) {
+				throw AxisFault.makeFault(new IOException("Connection refused"));
+			}
+			if ("invalid".equals(entry.getParams().get("summary"))) {
+				final RemoteException e = new RemoteException();
+				e.setFaultString("com.atlassian.jira.rpc.exception.RemoteValidationException: Summary is not valid.");
+				throw e;
+			}
+			filed.add(entry.getParams().get("summary"));
+			return new Jira4BugState("GOAT-" + filed.size(), "Open", null, 1);
+		}
+	}
+
+	private static UserAuthenticationStore credentials(final String userName) {
+		return new UserAuthenticationStore() {
+			public String getUserName() {
+				return userName;
+			}
+
+			public String getPassword() {
+				return "password";
+			}
+		};
+	}
+
+	private static Map<String, String> params(String summary) {
+		return Collections.singletonMap("summary", summary);
+	}
+
+	@Before
+	public void createQueue() throws IOException {
+		file = File.createTempFile("filing", ".log");
+		file.delete();
+		queue = new Jira4FilingQueue(new Jira4FilingJournal(file));
+	}
+
+	@After
+	public void deleteFile() {
+		queue.getJournal().close();
+		file.delete();
+	}
+
+	@Test
+	public void testSubmissionsAreFiledInOrder() throws Exception {
+		final String first = queue.submit(credentials("user"), params("first"), Collections.<String>emptyList());
+		final String rejected = queue.submit(credentials("user"), params("invalid"), Collections.<String>emptyList());
+		queue.submit(credentials("user"), params("third"), Collections.<String>emptyList());
+		Assert.assertTrue(Jira4FilingJournal.isProvisional(first));
+		Assert.assertEquals(3, queue.getStats().getDepth());
+
+		final ScriptedFiler filer = new ScriptedFiler();
+		Assert.assertTrue(queue.drain(filer));
+		Assert.assertEquals(Arrays.asList("first", "third"), filer.filed);
+		Assert.assertEquals("GOAT-1", queue.getJournal().getIssueKey(first));
+		Assert.assertEquals("Summary is not valid", queue.getJournal().getFailure(rejected));
+
+		final Jira4FilingQueueStats stats = queue.getStats();
+		Assert.assertEquals(0, stats.getDepth());
+		Assert.assertEquals(0, stats.getOldestAgeMillis());
+		Assert.assertEquals(3, stats.getDrainRatePerMinute());
+	}
+
+	@Test
+	public void testUnreachableJiraKeepsSubmissionsQueued() throws Exception {
+		final String id = queue.submit(credentials("user"), params("first"), Collections.<String>emptyList());
+		queue.submit(credentials("user"), params("second"), Collections.<String>emptyList());
+		final ScriptedFiler filer = new ScriptedFiler();
+		filer.down = true;
+
+		Assert.assertFalse(queue.drain(filer));
+		// The first failure stops the pass
+		Assert.assertEquals(Arrays.asList(1), filer.attempts);
+		Assert.assertTrue(queue.getJournal().isPending(id));
+
+		filer.down = false;
+		Assert.assertTrue(queue.drain(filer));
+		// The retry knows the first attempt may have filed it already
+		Assert.assertEquals(Arrays.asList(1, 2, 1), filer.attempts);
+		Assert.assertEquals(0, queue.getStats().getDepth());
+	}
+
+	@Test
+	public void testReplayedSubmissionsWaitForTheirUser() throws Exception {
+		queue.submit(credentials("user"), params("first"), Collections.<String>emptyList());
+		queue.getJournal().close();
+		// Passwords do not survive a restart
+		queue = new Jira4FilingQueue(new Jira4FilingJournal(file));
+
+		final ScriptedFiler filer = new ScriptedFiler();
+		Assert.assertTrue(queue.drain(filer));
+		Assert.assertEquals(1, queue.getStats().getDepth());
+		Assert.assertTrue(queue.getStats().getOldestAgeMillis() >= 0);
+
+		queue.remember(credentials("user"));
+		Assert.assertTrue(queue.drain(filer));
+		Assert.assertEquals(Arrays.asList("first"), filer.filed);
+	}
+}
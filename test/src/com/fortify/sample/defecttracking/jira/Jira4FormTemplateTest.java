@@ -0,0 +1,89 @@
+/*
+ * (C) Copyright 2015 Hewlett-Packard Development Company, L.P.
+ */
+
+package com.fortify.sample.defecttracking.jira;
+
+import java.util.*;
+
+import org.junit.*;
+
+import com.fortify.pub.bugtracker.support.*;
+
+public class Jira4FormTemplateTest {
+
+	private static Jira4FormTemplate template(long version) {
+		final List<BugParam> params = new ArrayList<BugParam>();
+		params.add(new BugParamText().setIdentifier("summary").setRequired(true));
+		params.add(new BugParamChoice().setChoiceList(new ArrayList<String>(Arrays.asList("GOAT", "BANK"))).setIdentifier("project").setValue("GOAT"));
+		params.add(new BugParamChoice().setChoiceList(Arrays.asList("Bug", "Task")).setIdentifier("issueType"));
+		return new Jira4FormTemplate(version, params, Arrays.asList("GOAT", "BANK"), "issueType");
+	}
+
+	@Test
+	public void testFormsAreIndependentCopies() {
+		final Jira4FormTemplate template = template(0);
+
+		final List<BugParam> first = template.newForm(Collections.singletonMap("summary", "First"), "Task");
+		Assert.assertEquals(3, first.size());
+		Assert.assertEquals("First", first.get(0).getValue());
+		Assert.assertEquals("GOAT", first.get(1).getValue());
+		Assert.assertEquals("Task", first.get(2).getValue());
+		first.get(1).setValue("BANK");
+
+		final List<BugParam> second = template.newForm(Collections.<String, String> emptyMap(), "Story");
+		Assert.assertNull(second.get(0).getValue());
+		Assert.assertEquals("GOAT", second.get(1).getValue());
+		// The project has no such issue type
+		Assert.assertNull(second.get(2).getValue());
+		Assert.assertNotSame(first.get(1), second.get(1));
+	}
+
+	@Test
+	public void testChoicesCannotBeChanged() {
+		final List<BugParam> form = template(0).newForm(Collections.<String, String> emptyMap(), null);
+		try {
+			((BugParamChoice) form.get(1)).getChoiceList().add("ZOO");
+			Assert.fail("Shared choice list was changed");
+		} catch (final UnsupportedOperationException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void testCacheIsPerUserAndProject() {
+		final Jira4FormTemplate.Cache cache = Jira4FormTemplate.Cache.getInstance("http://form/users");
+		final Jira4FormTemplate template = template(cache.getVersion());
+		cache.put("alice", "GOAT", template);
+
+		Assert.assertSame(template, cache.get("alice", "GOAT"));
+		Assert.assertNull(cache.get("bob", "GOAT"));
+		Assert.assertNull(cache.get("alice", "BANK"));
+		Assert.assertNull(cache.get("alice", null));
+	}
+
+	@Test
+	public void testTemplateStartedBeforeInvalidateIsNotKept() {
+		final Jira4FormTemplate.Cache cache = Jira4FormTemplate.Cache.getInstance("http://form/invalidate");
+		cache.put("alice", "GOAT", template(cache.getVersion()));
+		final long version = cache.getVersion();
+
+		cache.invalidate();
+		Assert.assertNull(cache.get("alice", "GOAT"));
+		cache.put("alice", "GOAT", template(version));
+		Assert.assertNull(cache.get("alice", "GOAT"));
+
+		final Jira4FormTemplate current = template(cache.getVersion());
+		cache.put("alice", "GOAT", current);
+		Assert.assertSame(current, cache.get("alice", "GOAT"));
+	}
+
+	@Test
+	public void testExpiredTemplateIsNotUsed() throws Exception {
+		final Jira4FormTemplate.Cache cache = Jira4FormTemplate.Cache.getInstance("http://form/ttl");
+		cache.setTtlMillis(20);
+		cache.put("alice", "GOAT", template(cache.getVersion()));
+		Thread.sleep(50);
+		Assert.assertNull(cache.get("alice", "GOAT"));
+	}
+}
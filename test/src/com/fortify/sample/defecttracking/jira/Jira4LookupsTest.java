@@ -0,0 +1,125 @@
+/*
+ * (C) Copyright 2015 Hewlett-Packard Development Company, L.P.
+ */
+
+package com.fortify.sample.defecttracking.jira;
+
+import java.rmi.RemoteException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.*;
+
+public class Jira4LookupsTest {
+
+	private static Callable<String> slow(final String result, final long millis) {
+		return new Callable<String>() {
+			public String call() throws InterruptedException {
+				Thread.sleep(millis);
+				return result;
+			}
+		};
+	}
+
+	private static Callable<String> failing(final String message, final long millis) {
+		return new Callable<String>() {
+			public String call() throws Exception {
+				Thread.sleep(millis);
+				throw new RemoteException(message);
+			}
+		};
+	}
+
+	@Test
+	public void testLookupsRunSideBySide() throws Exception {
+		final Jira4Lookups lookups = new Jira4Lookups(new Jira4Operation("lookups", 5000L));
+		final long start = System.currentTimeMillis();
+		try {
+			final Future<String> projects = lookups.start(slow("projects", 300));
+			final Future<String> priorities = lookups.start(slow("priorities", 300));
+			final Future<String> versions = lookups.start(slow("versions", 300));
+			Assert.assertEquals("projects", lookups.get(projects));
+			Assert.assertEquals("priorities", lookups.get(priorities));
+			Assert.assertEquals("versions", lookups.get(versions));
+		} finally {
+			lookups.cancel();
+		}
+		Assert.assertTrue(System.currentTimeMillis() - start < 800);
+	}
+
+	@Test
+	public void testFirstFailureInCallOrderIsReported() throws Exception {
+		final Jira4Lookups lookups = new Jira4Lookups(new Jira4Operation("lookups", 5000L));
+		try {
+			final Future<String> projects = lookups.start(failing("projects", 200));
+			final Future<String> priorities = lookups.start(failing("priorities", 0));
+			lookups.get(projects);
+			lookups.get(priorities);
+			Assert.fail("Failed lookup was not reported");
+		} catch (final RemoteException e) {
+			Assert.assertEquals("projects", e.getMessage());
+		} finally {
+			lookups.cancel();
+		}
+	}
+
+	@Test
+	public void testDeadlineIsShared() throws Exception {
+		final Jira4Lookups lookups = new Jira4Lookups(new Jira4Operation("lookups", 200L));
+		final Future<String> fast = lookups.start(slow("fast", 0));
+		final Future<String> hung = lookups.start(slow("hung", 10000));
+		try {
+			Assert.assertEquals("fast", lookups.get(fast));
+			lookups.get(hung);
+			Assert.fail("Deadline was not kept");
+		} catch (final RemoteException e) {
+			Assert.assertTrue(Jira4PluginConnection.isTransportFailure(e));
+		} finally {
+			lookups.cancel();
+		}
+		Assert.assertTrue(hung.isCancelled());
+	}
+
+	@Test
+	public void testCancelWaitsForRunningLookups() throws Exception {
+		final Jira4Lookups lookups = new Jira4Lookups(new Jira4Operation("lookups", 5000L));
+		final AtomicBoolean running = new AtomicBoolean();
+		final CountDownLatch started = new CountDownLatch(1);
+		lookups.start(new Callable<String>() {
+			public String call() {
+				running.set(true);
+				started.countDown();
+				// Like a socket read, which an interrupt does not end
+				final long end = System.currentTimeMillis() + 200;
+				while (System.currentTimeMillis() < end) {
+					Thread.yield();
+				}
+				running.set(false);
+				return "done";
+			}
+		});
+		Assert.assertTrue(started.await(5, TimeUnit.SECONDS));
+		lookups.cancel();
+		// The connection the lookup used may be given back now
+		Assert.assertFalse(running.get());
+	}
+
+	@Test
+	public void testStoppedOperationEndsWait() throws Exception {
+		final Jira4Operation operation = new Jira4Operation("getBugParameters", 5000L);
+		final Jira4Lookups lookups = new Jira4Lookups(operation);
+		final Future<String> hung = lookups.start(slow("hung", 10000));
+		operation.stop();
+		try {
+			lookups.get(hung);
+			Assert.fail("Stopped operation kept waiting");
+		} catch (final RemoteException e) {
+			Assert.assertEquals("getBugParameters was stopped", e.getMessage());
+		} finally {
+			lookups.cancel();
+		}
+	}
+}
@@ -0,0 +1,85 @@
+/*
+ * (C) Copyright 2015 Hewlett-Packard Development Company, L.P.
+ */
+
+package com.fortify.sample.defecttracking.jira;
+
+import org.junit.*;
+
+public class Jira4MetadataCacheTest {
+
+	private final Jira4MetadataCache cache = Jira4MetadataCache.getInstance();
+
+	@Test
+	public void testSnapshotIsReusedWithinTtl() throws Exception {
+		final FakeJiraSoapService service = new FakeJiraSoapService();
+		final Jira4PluginConnection connection = new Jira4PluginConnection("user", "password", "http://reuse", service.create());
+
+		final Jira4Metadata first = cache.get("http://reuse", connection);
+		Assert.assertSame(first, cache.get("http://reuse", connection));
+		Assert.assertEquals(1, service.count("getStatuses"));
+
+		// A status check now costs a single round trip
+		connection.fetchDetails("GOAT-1");
+		connection.fetchDetails("GOAT-2");
+		Assert.assertEquals(2, service.count("getIssue"));
+		Assert.assertEquals(1, service.count("getStatuses"));
+		Assert.assertEquals(1, service.count("getResolutions"));
+	}
+
+	@Test
+	public void testInvalidateForcesReload() throws Exception {
+		final FakeJiraSoapService service = new FakeJiraSoapService();
+		final Jira4PluginConnection connection = new Jira4PluginConnection("user", "password", "http://invalidate", service.create());
+
+		final Jira4Metadata first = cache.get("http://invalidate", connection);
+		cache.invalidate("http://invalidate");
+		Assert.assertNotSame(first, cache.get("http://invalidate", connection));
+		Assert.assertEquals(2, service.count("getPriorities"));
+	}
+
+	@Test
+	public void testExpiredSnapshotIsReloaded() throws Exception {
+		final FakeJiraSoapService service = new FakeJiraSoapService();
+		final Jira4PluginConnection connection = new Jira4PluginConnection("user", "password", "http://expire", service.create());
+		cache.setTtlMillis("http://expire", 1);
+
+		cache.get("http://expire", connection);
+		Thread.sleep(5);
+		cache.get("http://expire", connection);
+		Assert.assertEquals(2, service.count("getPriorities"));
+	}
+
+	@Test
+	public void testRefreshAheadUsesCallersConnection() throws Exception {
+		final FakeJiraSoapService service = new FakeJiraSoapService();
+		final Jira4PluginConnection connection = new Jira4PluginConnection("user", "password", "http://ahead", service.create());
+		cache.setTtlMillis("http://ahead", 1000);
+
+		final Jira4Metadata first = cache.get("http://ahead", connection);
+		Thread.sleep(800);
+		// Still valid, but the first caller past the refresh point loads the next one before it returns
+		final Jira4Metadata second = cache.get("http://ahead", connection);
+		Assert.assertNotSame(first, second);
+		Assert.assertEquals(2, service.count("getResolutions"));
+		Assert.assertSame(second, cache.get("http://ahead", connection));
+		Assert.assertEquals(2, service.count("getResolutions"));
+	}
+
+	@Test
+	public void testVersionsAreCachedPerProject() throws Exception {
+		final FakeJiraSoapService service = new FakeJiraSoapService();
+		final Jira4PluginConnection connection = new Jira4PluginConnection("user", "password", "http://versions", service.create());
+
+		Assert.assertEquals("10", cache.getVersions("http://versions", "GOAT", "1.0", connection).findId("1.0"));
+		cache.getVersions("http://versions", "GOAT", "1.0", connection);
+		Assert.assertEquals(1, service.count("getVersions"));
+
+		cache.getVersions("http://versions", "SHEEP", null, connection);
+		Assert.assertEquals(2, service.count("getVersions"));
+
+		// A version that was added in JIRA since the list was loaded
+		Assert.assertNull(cache.getVersions("http://versions", "GOAT", "2.0", connection).getByName("2.0"));
+		Assert.assertEquals(3, service.count("getVersions"));
+	}
+}
@@ -0,0 +1,56 @@
+/*
+ * (C) Copyright 2015 Hewlett-Packard Development Company, L.P.
+ */
+
+package com.fortify.sample.defecttracking.jira;
+
+import java.util.*;
+
+import org.junit.*;
+
+import com.atlassian.jira.rpc.soap.client.*;
+
+public class Jira4NamedEntityIndexTest {
+
+	@Test
+	public void testLooksUpBothWays() {
+		final Jira4NamedEntityIndex<RemoteStatus> index = Jira4NamedEntityIndex.of(new RemoteStatus[] {
+				FakeJiraSoapService.status("1", "Open"), FakeJiraSoapService.status("5", "Resolved") });
+
+		Assert.assertEquals("5", index.findId("Resolved"));
+		Assert.assertEquals("Open", index.findName("1"));
+		Assert.assertNull(index.findId("resolved"));
+		Assert.assertNull(index.findName("42"));
+		Assert.assertNull(index.findName(null));
+		Assert.assertEquals(Arrays.asList("Open", "Resolved"), index.getNames());
+	}
+
+	@Test
+	public void testFirstEntityWinsOnDuplicateName() {
+		final Jira4NamedEntityIndex<RemoteResolution> index = Jira4NamedEntityIndex.of(new RemoteResolution[] {
+				FakeJiraSoapService.resolution("1", "Fixed"), FakeJiraSoapService.resolution("2", "Fixed") });
+
+		Assert.assertEquals("1", index.findId("Fixed"));
+		Assert.assertEquals("Fixed", index.findName("2"));
+		Assert.assertEquals(2, index.size());
+	}
+
+	@Test
+	public void testStatusNamesComeFromSnapshotIndex() throws Exception {
+		final FakeJiraSoapService service = new FakeJiraSoapService() {
+			@Override
+			protected Object handle(String method, Object[] args) throws Exception {
+				if ("getIssue".equals(method)) {
+					return issue((String) args[1], "5", "1");
+				}
+				return super.handle(method, args);
+			}
+		};
+		final Jira4PluginConnection connection = new Jira4PluginConnection("user", "password", "http://index", service.create());
+
+		final com.fortify.pub.bugtracker.support.Bug bug = connection.fetchDetails("GOAT-1");
+		Assert.assertEquals("Resolved", bug.getBugStatus());
+		Assert.assertEquals("Fixed", bug.getBugResolution());
+		Assert.assertEquals(1, service.count("getStatuses"));
+	}
+}
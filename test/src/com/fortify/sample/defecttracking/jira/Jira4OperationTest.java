@@ -0,0 +1,106 @@
+/*
+ * (C) Copyright 2015 Hewlett-Packard Development Company, L.P.
+ */
+
+package com.fortify.sample.defecttracking.jira;
+
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.*;
+
+import com.atlassian.jira.rpc.soap.client.JiraSoapService;
+
+public class Jira4OperationTest {
+
+	/** Takes a while to answer getIssue */
+	private static class SlowJira extends FakeJiraSoapService {
+		@Override
+		protected Object handle(String method, Object[] args) throws Exception {
+			if ("getIssue".equals(method)) {
+				Thread.sleep(150);
+			}
+			return super.handle(method, args);
+		}
+	}
+
+	@Test
+	public void testBudgetIsSharedByCalls() throws Exception {
+		final SlowJira service = new SlowJira();
+		final Jira4PluginConnection connection = new Jira4PluginConnection("user", "password", "http://operation/budget", service.create());
+		connection.setRetryPolicy(Jira4RetryPolicy.NONE);
+		connection.setOperation(new Jira4Operation("budgetTest", 200L));
+		final long timeouts = Jira4Metrics.value("operation.timeout.budgetTest");
+
+		connection.fetchState("GOAT-1");
+		connection.fetchState("GOAT-2");
+		try {
+			connection.fetchState("GOAT-3");
+			Assert.fail("Call was made after the budget was spent");
+		} catch (final java.rmi.RemoteException e) {
+			Assert.assertTrue(Jira4PluginConnection.isTransportFailure(e));
+		}
+		Assert.assertEquals(2, service.count("getIssue"));
+		Assert.assertEquals(timeouts + 1, Jira4Metrics.value("operation.timeout.budgetTest"));
+	}
+
+	@Test
+	public void testStoppedOperationMakesNoCalls() throws Exception {
+		final SlowJira service = new SlowJira();
+		final Jira4PluginConnection connection = new Jira4PluginConnection("user", "password", "http://operation/stopped", service.create());
+		final Jira4Operation operation = new Jira4Operation("stopTest", 60 * 1000L);
+		connection.setOperation(operation);
+		operation.stop();
+		try {
+			connection.fetchState("GOAT-1");
+			Assert.fail("Stopped operation made a call");
+		} catch (final java.rmi.RemoteException e) {
+			Assert.assertFalse(Jira4RetryPolicy.isTransient(e));
+		}
+		Assert.assertEquals(0, service.count("getIssue"));
+		Assert.assertEquals(Jira4CircuitBreaker.State.CLOSED, Jira4CircuitBreaker.getInstance("http://operation/stopped").getState());
+	}
+
+	@Test
+	public void testAbortClosesPooledRequest() throws Exception {
+		final ServerSocket silent = new ServerSocket(0);
+		final AtomicReference<Socket> accepted = new AtomicReference<Socket>();
+		final Thread acceptor = new Thread() {
+			@Override
+			public void run() {
+				try {
+					accepted.set(silent.accept());
+				} catch (final Exception e) {
+					// Test is over
+				}
+			}
+		};
+		acceptor.start();
+		final JiraSoapService service = Jira4HttpTransport.get(Jira4HttpTransport.MODE_POOLED, 2, 5000, 30000, 60000)
+				.createSoapService("http://127.0.0.1:" + silent.getLocalPort());
+		final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+		final Thread caller = new Thread() {
+			@Override
+			public void run() {
+				try {
+					service.login("user", "password");
+				} catch (final Throwable t) {
+					failure.set(t);
+				}
+			}
+		};
+		caller.start();
+		acceptor.join(5000);
+		Assert.assertNotNull(accepted.get());
+		final long deadline = System.currentTimeMillis() + 5000;
+		while (!Jira4HttpTransport.abort(caller) && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		caller.join(5000);
+		Assert.assertFalse(caller.isAlive());
+		Assert.assertNotNull(failure.get());
+		accepted.get().close();
+		silent.close();
+	}
+}
@@ -0,0 +1,158 @@
+/*
+ * (C) Copyright 2015 Hewlett-Packard Development Company, L.P.
+ */
+
+package com.fortify.sample.defecttracking.jira;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+import org.junit.*;
+
+import com.fortify.pub.bugtracker.support.BugTrackerConfig;
+import com.fortify.pub.bugtracker.support.BugTrackerException;
+
+public class Jira4PluginConfigurationTest {
+
+	private static Map<String, String> config(String url, String project) {
+		final Map<String, String> retval = new HashMap<String, String>();
+		retval.put(Jira4BugTrackerPlugin.JIRA_URL, url);
+		retval.put(Jira4BugTrackerPlugin.JIRA_PROJECT, project);
+		return retval;
+	}
+
+	@Test
+	public void testBuiltInDefaultsSurviveProperties() {
+		final Map<String, String> values = new HashMap<String, String>();
+		for (final BugTrackerConfig config : new Jira4BugTrackerPlugin().getConfiguration()) {
+			values.put(config.getIdentifier(), config.getValue());
+		}
+		// From Jira4BugTrackerPlugin.properties
+		Assert.assertEquals("http://localhost:8280", values.get(Jira4BugTrackerPlugin.JIRA_URL));
+		Assert.assertEquals("Task", values.get(Jira4BugTrackerPlugin.JIRA_ISSUE_TYPE));
+		// Not in the properties file
+		Assert.assertEquals(Jira4HttpTransport.MODE_POOLED, values.get(Jira4BugTrackerPlugin.JIRA_HTTP_TRANSPORT));
+		Assert.assertEquals(String.valueOf(Jira4Operation.DEFAULT_TIMEOUT_SECONDS), values.get(Jira4BugTrackerPlugin.JIRA_OPERATION_TIMEOUT));
+		Assert.assertEquals(Jira4BugTrackerPlugin.FILING_MODE_DIRECT, values.get(Jira4BugTrackerPlugin.JIRA_FILING_MODE));
+		Assert.assertNull(values.get(Jira4BugTrackerPlugin.JIRA_STATE_DIRECTORY));
+	}
+
+	@Test
+	public void testMetricsArePublic() {
+		Jira4Metrics.increment("test.exported");
+		Assert.assertEquals(Long.valueOf(1), new Jira4BugTrackerPlugin().getMetrics().get("test.exported"));
+	}
+
+	@Test
+	public void testTransportIsRetiredOnceNobodyUsesIt() {
+		final Jira4BugTrackerPlugin plugin = new Jira4BugTrackerPlugin();
+		final Jira4BugTrackerPlugin other = new Jira4BugTrackerPlugin();
+		final Map<String, String> values = config("http://transport.example", "GOAT");
+		values.put(Jira4BugTrackerPlugin.JIRA_HTTP_IDLE_TIMEOUT, "7");
+		plugin.setConfiguration(values);
+		other.setConfiguration(values);
+		final Jira4HttpTransport first = transport(7);
+
+		// Same settings, same transport
+		plugin.setConfiguration(values);
+		Assert.assertFalse(Jira4HttpTransport.isRetired(first));
+		Assert.assertSame(first, transport(7));
+
+		// Still used by the other plugin
+		values.put(Jira4BugTrackerPlugin.JIRA_HTTP_IDLE_TIMEOUT, "8");
+		plugin.setConfiguration(values);
+		Assert.assertFalse(Jira4HttpTransport.isRetired(first));
+		Assert.assertFalse(Jira4HttpTransport.isRetired(transport(8)));
+
+		other.setConfiguration(values);
+		Assert.assertTrue(Jira4HttpTransport.isRetired(first));
+		// Asking for settings nobody uses gives a new transport that keeps no connections
+		final Jira4HttpTransport unshared = transport(7);
+		Assert.assertNotSame(first, unshared);
+		Assert.assertTrue(first.getId() != unshared.getId());
+		Assert.assertTrue(Jira4HttpTransport.isRetired(unshared));
+
+		final Jira4HttpTransport second = transport(8);
+		Assert.assertFalse(Jira4HttpTransport.isRetired(second));
+		Jira4HttpTransport.release(second);
+		Jira4HttpTransport.release(second);
+		Assert.assertTrue(Jira4HttpTransport.isRetired(second));
+	}
+
+	private static Jira4HttpTransport transport(int idleTimeoutSeconds) {
+		return Jira4HttpTransport.get(Jira4HttpTransport.MODE_POOLED, Jira4HttpTransport.DEFAULT_MAX_CONNECTIONS_PER_HOST,
+				Jira4HttpTransport.DEFAULT_CONNECT_TIMEOUT_MILLIS, Jira4HttpTransport.DEFAULT_SOCKET_TIMEOUT_MILLIS, idleTimeoutSeconds * 1000);
+	}
+
+	@Test
+	public void testCallerMapIsCopied() {
+		final Jira4BugTrackerPlugin plugin = new Jira4BugTrackerPlugin();
+		final Map<String, String> values = config("http://first.example/", "GOAT");
+		plugin.setConfiguration(values);
+		Assert.assertEquals("http://first.example/", values.get(Jira4BugTrackerPlugin.JIRA_URL));
+
+		values.put(Jira4BugTrackerPlugin.JIRA_URL, "http://changed.example");
+		Assert.assertEquals("http://first.example/browse/GOAT-1", plugin.getBugDeepLink("GOAT-1"));
+	}
+
+	@Test
+	public void testRejectedConfigurationIsNotUsed() {
+		final Jira4BugTrackerPlugin plugin = new Jira4BugTrackerPlugin();
+		plugin.setConfiguration(config("http://first.example", "GOAT"));
+
+		final Map<String, String> invalid = config("http://second.example", "GOAT");
+		invalid.put(Jira4BugTrackerPlugin.JIRA_BULK_FETCH_CHUNK_SIZE, "-1");
+		try {
+			plugin.setConfiguration(invalid);
+			Assert.fail("Negative chunk size was accepted");
+		} catch (final BugTrackerException e) {
+			// expected
+		}
+		Assert.assertEquals("http://first.example/browse/GOAT-1", plugin.getBugDeepLink("GOAT-1"));
+	}
+
+	@Test
+	public void testConcurrentReconfiguration() throws Exception {
+		final Jira4BugTrackerPlugin plugin = new Jira4BugTrackerPlugin();
+		final List<Map<String, String>> configs = Arrays.asList(config("http://first.example/", "GOAT"), config("http://second.example", "BANK"));
+		final Set<String> links = new HashSet<String>(Arrays.asList("http://first.example/browse/GOAT-1", "http://second.example/browse/GOAT-1"));
+		final Set<String> names = new HashSet<String>(Arrays.asList("JIRA (http://first.example)", "JIRA (http://second.example)"));
+		plugin.setConfiguration(configs.get(0));
+
+		final int threads = 8;
+		final CountDownLatch start = new CountDownLatch(1);
+		final ExecutorService executor = Executors.newFixedThreadPool(threads);
+		final List<Future<Void>> results = new ArrayList<Future<Void>>();
+		try {
+			for (int i = 0; i < threads; i++) {
+				final boolean writer = i % 4 == 0;
+				final int offset = i;
+				results.add(executor.submit(new Callable<Void>() {
+					public Void call() throws Exception {
+						start.await();
+						for (int j = 0; j < 2000; j++) {
+							if (writer) {
+								plugin.setConfiguration(configs.get((offset + j) % configs.size()));
+							} else {
+								final String link = plugin.getBugDeepLink("GOAT-1");
+								Assert.assertTrue(link, links.contains(link));
+								final String name = plugin.getLongDisplayName();
+								Assert.assertTrue(name, names.contains(name));
+							}
+						}
+						return null;
+					}
+				}));
+			}
+			start.countDown();
+			for (final Future<Void> result : results) {
+				result.get(30, TimeUnit.SECONDS);
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+		// Neither of the shared maps was touched
+		Assert.assertEquals("http://first.example/", configs.get(0).get(Jira4BugTrackerPlugin.JIRA_URL));
+		Assert.assertEquals(2, configs.get(1).size());
+	}
+}
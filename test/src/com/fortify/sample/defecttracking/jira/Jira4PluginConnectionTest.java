@@ -0,0 +1,89 @@
+/*
+ * (C) Copyright 2015 Hewlett-Packard Development Company, L.P.
+ */
+
+package com.fortify.sample.defecttracking.jira;
+
+import java.util.*;
+
+import org.junit.*;
+
+import com.atlassian.jira.rpc.soap.client.*;
+import com.fortify.pub.bugtracker.support.*;
+
+/**
+ * Tests connection behaviour against {@link FakeJiraSoapService}, no JIRA server required.
+ */
+public class Jira4PluginConnectionTest {
+
+	@Test
+	public void testExpiredTokenIsRenewedAndCallReplayed() throws Exception {
+		final Set<String> expired = Collections.synchronizedSet(new HashSet<String>());
+		final FakeJiraSoapService service = new FakeJiraSoapService() {
+			@Override
+			protected Object handle(String method, Object[] args) throws Exception {
+				if (!"login".equals(method) && expired.contains(args[0])) {
+					throw new RemoteAuthenticationException();
+				}
+				return super.handle(method, args);
+			}
+		};
+		final Jira4PluginConnection connection = new Jira4PluginConnection("user", "password", "http://jira/expired", service.create());
+		expired.add("token-1");
+
+		final Bug bug = connection.fetchDetails("GOAT-1");
+		Assert.assertEquals("Open", bug.getBugStatus());
+		Assert.assertEquals(2, service.count("login"));
+	}
+
+	@Test
+	public void testRejectedFreshTokenIsNotRetriedForever() throws Exception {
+		final FakeJiraSoapService service = new FakeJiraSoapService() {
+			@Override
+			protected Object handle(String method, Object[] args) throws Exception {
+				if ("getPriorities".equals(method)) {
+					throw new RemoteAuthenticationException();
+				}
+				return super.handle(method, args);
+			}
+		};
+		final Jira4PluginConnection connection = new Jira4PluginConnection("user", "password", "http://jira/rejected", service.create());
+		try {
+			connection.getPriorityNames();
+			Assert.fail("Expected the second authentication failure to be reported");
+		} catch (final RemoteAuthenticationException e) {
+			// ok
+		}
+		Assert.assertEquals(2, service.count("login"));
+		Assert.assertEquals(2, service.count("getPriorities"));
+	}
+
+	@Test
+	public void testCloseLogsOutOnce() throws Exception {
+		final FakeJiraSoapService service = new FakeJiraSoapService();
+		final Jira4PluginConnection connection = new Jira4PluginConnection("user", "password", "http://jira/close", service.create());
+		connection.close();
+		connection.closeJiraConnection();
+		Assert.assertEquals(1, service.awaitCount("logout", 1));
+		Thread.sleep(50);
+		Assert.assertEquals(1, service.count("logout"));
+	}
+
+	@Test
+	public void testLeakedConnectionIsLoggedOut() throws Exception {
+		final FakeJiraSoapService service = new FakeJiraSoapService();
+		final long leakedBefore = Jira4Metrics.value("session.leaked");
+		openAndForget(service);
+		final long deadline = System.currentTimeMillis() + 10000L;
+		while ((service.count("logout") == 0 || Jira4Metrics.value("session.leaked") == leakedBefore) && System.currentTimeMillis() < deadline) {
+			System.gc();
+			Thread.sleep(50);
+		}
+		Assert.assertEquals(1, service.count("logout"));
+		Assert.assertTrue(Jira4Metrics.value("session.leaked") > leakedBefore);
+	}
+
+	private static void openAndForget(FakeJiraSoapService service) throws Exception {
+		new Jira4PluginConnection("user", "password", "http://jira/leak", service.create());
+	}
+}
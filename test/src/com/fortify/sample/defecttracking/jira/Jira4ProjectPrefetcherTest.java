@@ -0,0 +1,112 @@
+/*
+ * (C) Copyright 2015 Hewlett-Packard Development Company, L.P.
+ */
+
+package com.fortify.sample.defecttracking.jira;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+import org.junit.*;
+
+import com.atlassian.jira.rpc.soap.client.*;
+
+public class Jira4ProjectPrefetcherTest {
+
+	private static final List<String> PROJECTS = Arrays.asList("GOAT", "SHEEP", "COW", "PIG", "HEN", "DUCK", "HORSE");
+
+	/** Every project has the issue type Bug */
+	private static class ProjectJira extends FakeJiraSoapService {
+		@Override
+		protected Object handle(String method, Object[] args) throws Exception {
+			if ("getProjectByKey".equals(method)) {
+				final RemoteProject project = new RemoteProject();
+				project.setId("id-" + args[1]);
+				project.setKey((String) args[1]);
+				return project;
+			}
+			if ("getIssueTypesForProject".equals(method)) {
+				final RemoteIssueType type = new RemoteIssueType();
+				type.setId("1");
+				type.setName("Bug");
+				return new RemoteIssueType[] { type };
+			}
+			return super.handle(method, args);
+		}
+	}
+
+	private static Jira4ProjectPrefetcher.Choices choices() {
+		return new Jira4ProjectPrefetcher.Choices(Collections.singletonList("Bug"), Collections.singletonList("1.0"));
+	}
+
+	@Test
+	public void testDefaultProjectComesFirst() {
+		final Jira4ProjectPrefetcher prefetcher = new Jira4ProjectPrefetcher();
+		prefetcher.recordUse("SHEEP");
+		Assert.assertEquals(Arrays.asList("GOAT", "SHEEP"), prefetcher.rank("user", PROJECTS, "GOAT"));
+	}
+
+	@Test
+	public void testFrequentBeforeRecentBeforeRare() {
+		final Jira4ProjectPrefetcher prefetcher = new Jira4ProjectPrefetcher();
+		prefetcher.recordUse("COW");
+		prefetcher.recordUse("PIG");
+		prefetcher.recordUse("PIG");
+		prefetcher.recordUse("PIG");
+		prefetcher.recordUse("HEN");
+		Assert.assertEquals(Arrays.asList("PIG", "HEN", "COW"), prefetcher.rank("user", PROJECTS, null));
+	}
+
+	@Test
+	public void testCachedAndUnavailableProjectsAreSkipped() {
+		final Jira4ProjectPrefetcher prefetcher = new Jira4ProjectPrefetcher();
+		for (final String project : PROJECTS) {
+			prefetcher.recordUse(project);
+		}
+		prefetcher.recordUse("MOOSE");
+		prefetcher.put("user", "HORSE", choices());
+		final List<String> ranked = prefetcher.rank("user", PROJECTS, "GOAT");
+		Assert.assertEquals(Jira4ProjectPrefetcher.PREFETCH_COUNT, ranked.size());
+		Assert.assertEquals("GOAT", ranked.get(0));
+		Assert.assertFalse(ranked.contains("HORSE"));
+		Assert.assertFalse(ranked.contains("MOOSE"));
+	}
+
+	@Test
+	public void testExpiredChoicesAreNotServed() throws Exception {
+		final Jira4ProjectPrefetcher prefetcher = new Jira4ProjectPrefetcher();
+		prefetcher.put("user", "GOAT", choices());
+		Assert.assertNotNull(prefetcher.get("user", "GOAT"));
+		prefetcher.setTtlMillis(1);
+		Thread.sleep(10);
+		Assert.assertNull(prefetcher.get("user", "GOAT"));
+	}
+
+	@Test
+	public void testPrefetchLoadsInBackground() throws Exception {
+		final ProjectJira service = new ProjectJira();
+		final Jira4ProjectPrefetcher prefetcher = new Jira4ProjectPrefetcher();
+		prefetcher.prefetch("user", Arrays.asList("GOAT", "SHEEP"), new Callable<Jira4PluginConnection>() {
+			public Jira4PluginConnection call() throws Exception {
+				return new Jira4PluginConnection("user", "password", "http://prefetch/background", service.create());
+			}
+		});
+		Assert.assertEquals(2, service.awaitCount("getVersions", 2));
+		service.awaitCount("logout", 1);
+		Assert.assertEquals(Collections.singletonList("Bug"), prefetcher.get("user", "GOAT").getIssueTypes());
+		Assert.assertEquals(Collections.singletonList("1.0"), prefetcher.get("user", "SHEEP").getVersions());
+	}
+
+	@Test
+	public void testChoicesAreKeptPerUser() {
+		final Jira4ProjectPrefetcher prefetcher = new Jira4ProjectPrefetcher();
+		prefetcher.put("user", "GOAT", choices());
+		Assert.assertNull(prefetcher.get("other", "GOAT"));
+		prefetcher.recordUse("GOAT");
+		// The other user's pick counts, but the choices are loaded with the other user's session
+		Assert.assertEquals(Collections.singletonList("GOAT"), prefetcher.rank("other", PROJECTS, null));
+		Assert.assertEquals(Collections.emptyList(), prefetcher.rank("user", PROJECTS, null));
+	}
+}
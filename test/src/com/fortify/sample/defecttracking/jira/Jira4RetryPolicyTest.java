@@ -0,0 +1,196 @@
+/*
+ * (C) Copyright 2015 Hewlett-Packard Development Company, L.P.
+ */
+
+package com.fortify.sample.defecttracking.jira;
+
+import java.io.IOException;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.apache.axis.AxisFault;
+import org.junit.*;
+
+import com.atlassian.jira.rpc.soap.client.*;
+
+public class Jira4RetryPolicyTest {
+
+	private static final Jira4RetryPolicy FAST = new Jira4RetryPolicy(4, 1L, 5L, 1000L);
+
+	/** Drops the connection on the first calls of an operation; a dropped createIssue may still create the issue */
+	private static class DroppingJira extends FakeJiraSoapService {
+		volatile int drops;
+		volatile boolean createBeforeDrop;
+		volatile RemoteIssue created;
+
+		@Override
+		protected Object handle(String method, Object[] args) throws Exception {
+			if ("createIssue".equals(method)) {
+				final RemoteIssue issue = issue("GOAT-1", "1", null);
+				issue.setDescription(((RemoteIssue) args[1]).getDescription());
+				if (drops > 0 && !createBeforeDrop) {
+					drops--;
+					throw AxisFault.makeFault(new IOException("Connection reset"));
+				}
+				created = issue;
+				if (drops > 0) {
+					drops--;
+					throw AxisFault.makeFault(new IOException("Connection reset"));
+				}
+				return issue;
+			}
+			if ("getIssuesFromJqlSearch".equals(method)) {
+				return created == null ? new RemoteIssue[0] : new RemoteIssue[] { created };
+			}
+			if ("getIssue".equals(method) && drops > 0) {
+				drops--;
+				throw AxisFault.makeFault(new IOException("Read timed out"));
+			}
+			return super.handle(method, args);
+		}
+	}
+
+	/** Drops the connection on the first comments; a dropped addComment may still add the comment */
+	private static class CommentingJira extends FakeJiraSoapService {
+		final List<RemoteComment> comments = new CopyOnWriteArrayList<RemoteComment>();
+		volatile int drops;
+		volatile boolean commentBeforeDrop;
+
+		void comment(String author, String body, long created) {
+			final RemoteComment comment = new RemoteComment();
+			comment.setAuthor(author);
+			comment.setBody(body);
+			final Calendar calendar = Calendar.getInstance();
+			calendar.setTimeInMillis(created);
+			comment.setCreated(calendar);
+			comments.add(comment);
+		}
+
+		@Override
+		protected Object handle(String method, Object[] args) throws Exception {
+			if ("addComment".equals(method)) {
+				if (drops > 0 && !commentBeforeDrop) {
+					drops--;
+					throw AxisFault.makeFault(new IOException("Connection reset"));
+				}
+				comment("user", ((RemoteComment) args[2]).getBody(), System.currentTimeMillis());
+				if (drops > 0) {
+					drops--;
+					throw AxisFault.makeFault(new IOException("Connection reset"));
+				}
+				return null;
+			}
+			if ("getComments".equals(method)) {
+				return comments.toArray(new RemoteComment[comments.size()]);
+			}
+			return super.handle(method, args);
+		}
+	}
+
+	private static Jira4PluginConnection connect(DroppingJira service, String url) throws Exception {
+		final Jira4PluginConnection retval = new Jira4PluginConnection("user", "password", url, service.create());
+		retval.setRetryPolicy(FAST);
+		return retval;
+	}
+
+	private static RemoteIssue newIssue(String description) {
+		final RemoteIssue retval = new RemoteIssue();
+		retval.setProject("GOAT");
+		retval.setType("1");
+		retval.setSummary("summary");
+		retval.setDescription(description);
+		return retval;
+	}
+
+	@Test
+	public void testReadIsRetried() throws Exception {
+		final DroppingJira service = new DroppingJira();
+		final Jira4PluginConnection connection = connect(service, "http://retry/read");
+		service.drops = 2;
+		Assert.assertEquals("Open", connection.fetchState("GOAT-1").getStatus());
+		Assert.assertEquals(3, service.count("getIssue"));
+	}
+
+	@Test
+	public void testCreateIsRetriedIfNotFiled() throws Exception {
+		final DroppingJira service = new DroppingJira();
+		final Jira4PluginConnection connection = connect(service, "http://retry/notfiled");
+		service.drops = 1;
+		final Jira4BugState state = connection.createIssue(newIssue(Jira4DuplicateIndex.stamp("description", Collections.singletonList("instance-1"))));
+		Assert.assertEquals("GOAT-1", state.getIssueKey());
+		Assert.assertEquals(2, service.count("createIssue"));
+	}
+
+	@Test
+	public void testFiledCreateIsNotRetried() throws Exception {
+		final DroppingJira service = new DroppingJira();
+		final Jira4PluginConnection connection = connect(service, "http://retry/filed");
+		service.drops = 1;
+		service.createBeforeDrop = true;
+		final Jira4BugState state = connection.createIssue(newIssue(Jira4DuplicateIndex.stamp("description", Collections.singletonList("instance-1"))));
+		Assert.assertEquals("GOAT-1", state.getIssueKey());
+		Assert.assertEquals(1, service.count("createIssue"));
+	}
+
+	@Test
+	public void testUncheckableCreateIsNotRetried() throws Exception {
+		final DroppingJira service = new DroppingJira();
+		final Jira4PluginConnection connection = connect(service, "http://retry/uncheckable");
+		service.drops = 1;
+		try {
+			connection.createIssue(newIssue("description"));
+			Assert.fail("Failed create was not reported");
+		} catch (final java.rmi.RemoteException e) {
+			Assert.assertTrue(Jira4PluginConnection.isTransportFailure(e));
+		}
+		Assert.assertEquals(1, service.count("createIssue"));
+	}
+
+	@Test
+	public void testCommentIsRetriedDespiteEarlierIdenticalComment() throws Exception {
+		final CommentingJira service = new CommentingJira();
+		final Jira4PluginConnection connection = new Jira4PluginConnection("user", "password", "http://retry/comment", service.create());
+		connection.setRetryPolicy(FAST);
+		service.comment("user", "Still open", System.currentTimeMillis() - 60 * 60 * 1000L);
+		service.drops = 1;
+		connection.addComment("GOAT-1", "Still open");
+		Assert.assertEquals(2, service.count("addComment"));
+		Assert.assertEquals(2, service.comments.size());
+	}
+
+	@Test
+	public void testCommentIsAddedWithOneCall() throws Exception {
+		final CommentingJira service = new CommentingJira();
+		final Jira4PluginConnection connection = new Jira4PluginConnection("user", "password", "http://retry/once", service.create());
+		connection.setRetryPolicy(FAST);
+		connection.addComment("GOAT-1", "Still open");
+		Assert.assertEquals(1, service.count("addComment"));
+		Assert.assertEquals(0, service.count("getComments"));
+	}
+
+	@Test
+	public void testAddedCommentIsNotRetried() throws Exception {
+		final CommentingJira service = new CommentingJira();
+		final Jira4PluginConnection connection = new Jira4PluginConnection("user", "password", "http://retry/commented", service.create());
+		connection.setRetryPolicy(FAST);
+		service.comment("user", "Still open", System.currentTimeMillis() - 60 * 60 * 1000L);
+		service.drops = 1;
+		service.commentBeforeDrop = true;
+		connection.addComment("GOAT-1", "Still open");
+		Assert.assertEquals(1, service.count("addComment"));
+		Assert.assertEquals(2, service.comments.size());
+	}
+
+	@Test
+	public void testRetriesStopAtDeadline() {
+		final Jira4RetryPolicy policy = new Jira4RetryPolicy(10, 100L, 1000L, 500L);
+		final long first = policy.delayBeforeRetry(1, 0L);
+		Assert.assertTrue(first >= 0 && first < 100);
+		final long late = policy.delayBeforeRetry(3, 450L);
+		Assert.assertTrue(late == -1 || late <= 50);
+		Assert.assertEquals(-1, policy.delayBeforeRetry(10, 0L));
+		Assert.assertFalse(Jira4RetryPolicy.isTransient(new RemoteException()));
+	}
+}
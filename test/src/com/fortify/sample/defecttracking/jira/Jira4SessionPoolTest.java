@@ -0,0 +1,89 @@
+/*
+ * (C) Copyright 2015 Hewlett-Packard Development Company, L.P.
+ */
+
+package com.fortify.sample.defecttracking.jira;
+
+import java.rmi.RemoteException;
+
+import org.junit.*;
+
+public class Jira4SessionPoolTest {
+
+	private FakeJiraSoapService service;
+	private Jira4SessionPool pool;
+
+	@Before
+	public void setUp() {
+		service = new FakeJiraSoapService();
+		pool = new Jira4SessionPool(new Jira4SessionPool.ConnectionFactory() {
+			public Jira4PluginConnection open(String userName, String password, String jiraBaseUrl, Jira4HttpTransport transport) throws RemoteException {
+				return new Jira4PluginConnection(userName, password, jiraBaseUrl, service.create());
+			}
+		}, 2, 60000L, 200L);
+	}
+
+	@After
+	public void tearDown() {
+		pool.shutdown();
+	}
+
+	@Test
+	public void testReleasedSessionIsReused() throws Exception {
+		final Jira4PluginConnection first = pool.lease("user", "password", "http://jira", Jira4HttpTransport.getDefault());
+		pool.release(first);
+		final Jira4PluginConnection second = pool.lease("user", "password", "http://jira", Jira4HttpTransport.getDefault());
+		Assert.assertSame(first, second);
+		Assert.assertEquals(1, service.count("login"));
+		Assert.assertEquals(0, service.count("logout"));
+	}
+
+	@Test
+	public void testChangedPasswordOpensNewSession() throws Exception {
+		final Jira4PluginConnection first = pool.lease("user", "password", "http://jira", Jira4HttpTransport.getDefault());
+		pool.release(first);
+		final Jira4PluginConnection second = pool.lease("user", "changed", "http://jira", Jira4HttpTransport.getDefault());
+		Assert.assertNotSame(first, second);
+		Assert.assertEquals(2, service.count("login"));
+	}
+
+	@Test
+	public void testSessionsPerUserAreCapped() throws Exception {
+		pool.lease("user", "password", "http://jira", Jira4HttpTransport.getDefault());
+		pool.lease("user", "password", "http://jira", Jira4HttpTransport.getDefault());
+		try {
+			pool.lease("user", "password", "http://jira", Jira4HttpTransport.getDefault());
+			Assert.fail("Expected a timeout waiting for a third session");
+		} catch (final RemoteException e) {
+			// ok
+		}
+		// Other users are not affected by the cap
+		pool.lease("other", "password", "http://jira", Jira4HttpTransport.getDefault());
+		Assert.assertEquals(3, service.count("login"));
+	}
+
+	@Test
+	public void testSessionOfOtherTransportIsNotReused() throws Exception {
+		final Jira4HttpTransport transport = Jira4HttpTransport.acquire(Jira4HttpTransport.MODE_POOLED, 3, 5000, 30000, 60000);
+		final Jira4PluginConnection first = pool.lease("user", "password", "http://jira", transport);
+		pool.release(first);
+		Jira4HttpTransport.release(transport);
+
+		// Same settings, but the stub of the idle session sends through the retired transport
+		final Jira4HttpTransport replacement = Jira4HttpTransport.acquire(Jira4HttpTransport.MODE_POOLED, 3, 5000, 30000, 60000);
+		try {
+			Assert.assertNotSame(first, pool.lease("user", "password", "http://jira", replacement));
+		} finally {
+			Jira4HttpTransport.release(replacement);
+		}
+	}
+
+	@Test
+	public void testIdleSessionsAreEvicted() throws Exception {
+		pool.release(pool.lease("user", "password", "http://jira", Jira4HttpTransport.getDefault()));
+		Assert.assertEquals(0, pool.evictIdle(System.currentTimeMillis()));
+		Assert.assertEquals(1, pool.evictIdle(System.currentTimeMillis() + 60000L));
+		Assert.assertEquals(0, pool.getIdleCount());
+		Assert.assertEquals(1, service.awaitCount("logout", 1));
+	}
+}
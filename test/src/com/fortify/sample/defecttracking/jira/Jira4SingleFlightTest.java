@@ -0,0 +1,254 @@
+/*
+ * (C) Copyright 2015 Hewlett-Packard Development Company, L.P.
+ */
+
+package com.fortify.sample.defecttracking.jira;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.axis.AxisFault;
+import org.junit.*;
+
+import com.atlassian.jira.rpc.soap.client.*;
+
+public class Jira4SingleFlightTest {
+
+	/** Holds project and priority lookups until the test lets them answer */
+	private static class GatedJira extends FakeJiraSoapService {
+		final CountDownLatch gate = new CountDownLatch(1);
+
+		@Override
+		protected Object handle(String method, Object[] args) throws Exception {
+			if ("getProjectsNoSchemes".equals(method)) {
+				gate.await(5, TimeUnit.SECONDS);
+				final RemoteProject project = new RemoteProject();
+				project.setKey("GOAT");
+				return new RemoteProject[] { project };
+			}
+			if ("getPriorities".equals(method)) {
+				gate.await(5, TimeUnit.SECONDS);
+			}
+			return super.handle(method, args);
+		}
+	}
+
+	private static List<Future<?>> startAll(ExecutorService executor, List<? extends Callable<?>> calls) {
+		final List<Future<?>> retval = new ArrayList<Future<?>>();
+		for (final Callable<?> call : calls) {
+			retval.add(executor.submit(call));
+		}
+		return retval;
+	}
+
+	private static Callable<Object> projectKeys(final Jira4PluginConnection connection) {
+		return new Callable<Object>() {
+			public Object call() throws Exception {
+				return connection.getProjectKeys();
+			}
+		};
+	}
+
+	private static Callable<Object> metadata(final Jira4PluginConnection connection) {
+		return new Callable<Object>() {
+			public Object call() throws Exception {
+				return connection.fetchMetadata();
+			}
+		};
+	}
+
+	@Test
+	public void testConcurrentCallsOfOneUserAreShared() throws Exception {
+		final GatedJira service = new GatedJira();
+		final ExecutorService executor = Executors.newFixedThreadPool(4);
+		final List<Callable<Object>> calls = new ArrayList<Callable<Object>>();
+		for (int i = 0; i < 4; i++) {
+			calls.add(projectKeys(new Jira4PluginConnection("user", "password", "http://singleflight/user", service.create())));
+		}
+		final List<Future<?>> results = startAll(executor, calls);
+		Thread.sleep(200);
+		service.gate.countDown();
+		for (final Future<?> result : results) {
+			Assert.assertEquals("[GOAT]", result.get().toString());
+		}
+		executor.shutdown();
+		Assert.assertEquals(1, service.count("getProjectsNoSchemes"));
+	}
+
+	@Test
+	public void testPermissionSensitiveCallsAreNotSharedAcrossUsers() throws Exception {
+		final GatedJira service = new GatedJira();
+		final ExecutorService executor = Executors.newFixedThreadPool(2);
+		final List<Callable<Object>> calls = new ArrayList<Callable<Object>>();
+		calls.add(projectKeys(new Jira4PluginConnection("alice", "password", "http://singleflight/users", service.create())));
+		calls.add(projectKeys(new Jira4PluginConnection("bob", "password", "http://singleflight/users", service.create())));
+		final List<Future<?>> results = startAll(executor, calls);
+		Assert.assertEquals(2, service.awaitCount("getProjectsNoSchemes", 2));
+		service.gate.countDown();
+		for (final Future<?> result : results) {
+			result.get();
+		}
+		executor.shutdown();
+	}
+
+	@Test
+	public void testGlobalCallsAreSharedAcrossUsers() throws Exception {
+		final GatedJira service = new GatedJira();
+		final ExecutorService executor = Executors.newFixedThreadPool(2);
+		final List<Callable<Object>> calls = new ArrayList<Callable<Object>>();
+		calls.add(metadata(new Jira4PluginConnection("alice", "password", "http://singleflight/global", service.create())));
+		calls.add(metadata(new Jira4PluginConnection("bob", "password", "http://singleflight/global", service.create())));
+		final List<Future<?>> results = startAll(executor, calls);
+		Thread.sleep(200);
+		service.gate.countDown();
+		for (final Future<?> result : results) {
+			result.get();
+		}
+		executor.shutdown();
+		Assert.assertEquals(1, service.count("getPriorities"));
+	}
+
+	@Test
+	public void testOwnersOwnFailureIsNotShared() throws Exception {
+		final CountDownLatch started = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		final Thread owner = new Thread() {
+			@Override
+			public void run() {
+				try {
+					Jira4SingleFlight.run("owner-failure", new Callable<String>() {
+						public String call() throws Exception {
+							started.countDown();
+							release.await(5, TimeUnit.SECONDS);
+							throw new java.rmi.RemoteException("fileBug was stopped");
+						}
+					}, null);
+				} catch (final java.rmi.RemoteException e) {
+					// expected
+				}
+			}
+		};
+		owner.start();
+		Assert.assertTrue(started.await(5, TimeUnit.SECONDS));
+		final ExecutorService executor = Executors.newSingleThreadExecutor();
+		final Future<String> waiter = executor.submit(new Callable<String>() {
+			public String call() throws Exception {
+				return Jira4SingleFlight.run("owner-failure", new Callable<String>() {
+					public String call() {
+						return "own answer";
+					}
+				}, null);
+			}
+		});
+		Thread.sleep(100);
+		release.countDown();
+		Assert.assertEquals("own answer", waiter.get(5, TimeUnit.SECONDS));
+		executor.shutdown();
+		owner.join(5000);
+	}
+
+	@Test
+	public void testTransportFailureIsShared() throws Exception {
+		final CountDownLatch started = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		final Thread owner = new Thread() {
+			@Override
+			public void run() {
+				try {
+					Jira4SingleFlight.run("transport-failure", new Callable<String>() {
+						public String call() throws Exception {
+							started.countDown();
+							release.await(5, TimeUnit.SECONDS);
+							throw AxisFault.makeFault(new IOException("Connection reset"));
+						}
+					}, null);
+				} catch (final java.rmi.RemoteException e) {
+					// expected
+				}
+			}
+		};
+		owner.start();
+		Assert.assertTrue(started.await(5, TimeUnit.SECONDS));
+		final AtomicInteger calls = new AtomicInteger();
+		final ExecutorService executor = Executors.newSingleThreadExecutor();
+		final Future<String> waiter = executor.submit(new Callable<String>() {
+			public String call() throws Exception {
+				return Jira4SingleFlight.run("transport-failure", new Callable<String>() {
+					public String call() {
+						calls.incrementAndGet();
+						return "own answer";
+					}
+				}, null);
+			}
+		});
+		Thread.sleep(100);
+		release.countDown();
+		try {
+			waiter.get(5, TimeUnit.SECONDS);
+			Assert.fail("transport failure was not shared");
+		} catch (final ExecutionException e) {
+			Assert.assertTrue(Jira4PluginConnection.isTransportFailure((java.rmi.RemoteException) e.getCause()));
+		}
+		Assert.assertEquals(0, calls.get());
+		executor.shutdown();
+		owner.join(5000);
+	}
+
+	@Test
+	public void testWaiterGivesUpWhenItsOperationStops() throws Exception {
+		final CountDownLatch started = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		final ExecutorService executor = Executors.newFixedThreadPool(2);
+		executor.submit(new Callable<String>() {
+			public String call() throws Exception {
+				return Jira4SingleFlight.run("waiter-stopped", new Callable<String>() {
+					public String call() throws Exception {
+						started.countDown();
+						release.await(5, TimeUnit.SECONDS);
+						return "late";
+					}
+				}, null);
+			}
+		});
+		Assert.assertTrue(started.await(5, TimeUnit.SECONDS));
+		final Jira4Operation operation = new Jira4Operation("getBugParameters", 60000);
+		final Future<String> waiter = executor.submit(new Callable<String>() {
+			public String call() throws Exception {
+				return Jira4SingleFlight.run("waiter-stopped", new Callable<String>() {
+					public String call() {
+						return "own answer";
+					}
+				}, operation);
+			}
+		});
+		Thread.sleep(100);
+		operation.stop();
+		try {
+			waiter.get(5, TimeUnit.SECONDS);
+			Assert.fail("Stopped caller kept waiting");
+		} catch (final ExecutionException e) {
+			Assert.assertEquals("getBugParameters was stopped", e.getCause().getMessage());
+		}
+		release.countDown();
+		executor.shutdown();
+	}
+
+	@Test
+	public void testFinishedCallsAreNotReused() throws Exception {
+		final GatedJira service = new GatedJira();
+		service.gate.countDown();
+		final Jira4PluginConnection connection = new Jira4PluginConnection("user", "password", "http://singleflight/sequential", service.create());
+		connection.getProjectKeys();
+		connection.getProjectKeys();
+		Assert.assertEquals(2, service.count("getProjectsNoSchemes"));
+	}
+}
@@ -0,0 +1,136 @@
+/*
+ * (C) Copyright 2015 Hewlett-Packard Development Company, L.P.
+ */
+
+package com.fortify.sample.defecttracking.jira;
+
+import java.util.*;
+
+import org.junit.*;
+
+import com.atlassian.jira.rpc.soap.client.*;
+import com.atlassian.jira.rpc.soap.client.RemoteException;
+import com.fortify.pub.bugtracker.support.Bug;
+
+public class Jira4TransitionCacheTest {
+
+	/** Workflow with a single "Reopen Issue" action whose id can be changed by the test */
+	private static class WorkflowJira extends FakeJiraSoapService {
+		volatile String reopenId = "3";
+		volatile String reopenName = "Reopen Issue";
+		volatile String comment;
+
+		@Override
+		protected Object handle(String method, Object[] args) throws Exception {
+			if ("getAvailableActions".equals(method)) {
+				final RemoteNamedObject reopen = new RemoteNamedObject();
+				reopen.setId(reopenId);
+				reopen.setName(reopenName);
+				return new RemoteNamedObject[] { reopen };
+			}
+			if ("progressWorkflowAction".equals(method)) {
+				if (!reopenId.equals(args[2])) {
+					final RemoteException e = new RemoteException();
+					e.setFaultString("com.atlassian.jira.rpc.exception.RemoteValidationException: Invalid action " + args[2]);
+					throw e;
+				}
+				final RemoteFieldValue[] fields = (RemoteFieldValue[]) args[3];
+				if (fields != null && fields.length > 0 && "comment".equals(fields[0].getId())) {
+					comment = fields[0].getValues()[0];
+				}
+				return issue((String) args[1], "1", null);
+			}
+			if ("addComment".equals(method)) {
+				comment = ((RemoteComment) args[2]).getBody();
+				return null;
+			}
+			return super.handle(method, args);
+		}
+	}
+
+	@Test
+	public void testLearntActionSkipsLookup() throws Exception {
+		final WorkflowJira service = new WorkflowJira();
+		final Jira4PluginConnection connection = new Jira4PluginConnection("user", "password", "http://workflow/learn", service.create());
+
+		final Jira4BugState first = connection.transition("GOAT-1", "1", "Resolved", "Reopen Issue");
+		Assert.assertEquals("Open", first.getStatus());
+		Assert.assertEquals(1, service.count("getAvailableActions"));
+
+		connection.transition("GOAT-2", "1", "Resolved", "Reopen Issue");
+		connection.transition("GOAT-3", "1", "Resolved", "Reopen Issue");
+		Assert.assertEquals(1, service.count("getAvailableActions"));
+		Assert.assertEquals(3, service.count("progressWorkflowAction"));
+
+		// Another status may have other actions, so it is looked up again
+		connection.transition("GOAT-4", "1", "Closed", "Reopen Issue");
+		Assert.assertEquals(2, service.count("getAvailableActions"));
+	}
+
+	@Test
+	public void testRejectedActionIsLookedUpAgain() throws Exception {
+		final WorkflowJira service = new WorkflowJira();
+		final Jira4PluginConnection connection = new Jira4PluginConnection("user", "password", "http://workflow/rejected", service.create());
+		connection.transition("GOAT-1", "1", "Resolved", "Reopen Issue");
+
+		service.reopenId = "711";
+		Assert.assertNotNull(connection.transition("GOAT-2", "1", "Resolved", "Reopen Issue"));
+		Assert.assertEquals(2, service.count("getAvailableActions"));
+
+		connection.transition("GOAT-3", "1", "Resolved", "Reopen Issue");
+		Assert.assertEquals(2, service.count("getAvailableActions"));
+		Assert.assertEquals("711", Jira4TransitionCache.getInstance().get("http://workflow/rejected", "GOAT", "1", "Resolved", "Reopen Issue"));
+	}
+
+	@Test
+	public void testIssueTypeIsLearntFromTransition() throws Exception {
+		final WorkflowJira service = new WorkflowJira();
+		final Jira4PluginConnection connection = new Jira4PluginConnection("user", "password", "http://workflow/type", service.create());
+
+		connection.transition("GOAT-1", null, "Resolved", "Reopen Issue");
+		Assert.assertEquals("3", Jira4TransitionCache.getInstance().get("http://workflow/type", "GOAT", "1", "Resolved", "Reopen Issue"));
+	}
+
+	@Test
+	public void testReopenWithLearntActionIsOneCall() throws Exception {
+		final WorkflowJira service = new WorkflowJira();
+		final Jira4PluginConnection connection = new Jira4PluginConnection("user", "password", "http://workflow/reopen", service.create());
+		final Map<String, String> config = new HashMap<String, String>();
+		config.put(Jira4BugTrackerPlugin.JIRA_URL, "http://workflow/reopen");
+		connection.transition("GOAT-1", "1", "Resolved", "Reopen Issue");
+		// As a status sync would have left it
+		Jira4BugStateStore.getInstance("http://workflow/reopen", null).put(
+				new Jira4BugState("GOAT-2", "1", "Resolved", "Fixed", 0, Collections.<String> emptyList()));
+		final int before = service.count("progressWorkflowAction") + service.count("getAvailableActions") + service.count("getIssue");
+
+		final Bug reopened = Jira4BugTrackerPlugin.reopen(config, connection, new Bug("GOAT-2", "Resolved"), "Found again");
+		Assert.assertEquals("Open", reopened.getBugStatus());
+		Assert.assertEquals(before + 1, service.count("progressWorkflowAction") + service.count("getAvailableActions") + service.count("getIssue"));
+		Assert.assertEquals(0, service.count("getComments"));
+		Assert.assertEquals(0, service.count("addComment"));
+		Assert.assertEquals("Found again", service.comment);
+	}
+
+	@Test
+	public void testCommentIsAddedWhenBugCannotBeReopened() throws Exception {
+		final WorkflowJira service = new WorkflowJira();
+		service.reopenName = "Start Progress";
+		final Jira4PluginConnection connection = new Jira4PluginConnection("user", "password", "http://workflow/noreopen", service.create());
+		final Map<String, String> config = new HashMap<String, String>();
+		config.put(Jira4BugTrackerPlugin.JIRA_URL, "http://workflow/noreopen");
+
+		Jira4BugTrackerPlugin.reopen(config, connection, new Bug("GOAT-1", "Open"), "Found again");
+		Assert.assertEquals(0, service.count("progressWorkflowAction"));
+		Assert.assertEquals(1, service.count("addComment"));
+		Assert.assertEquals("Found again", service.comment);
+	}
+
+	@Test
+	public void testUnknownActionIsNotTransitioned() throws Exception {
+		final WorkflowJira service = new WorkflowJira();
+		final Jira4PluginConnection connection = new Jira4PluginConnection("user", "password", "http://workflow/unknown", service.create());
+
+		Assert.assertNull(connection.transition("GOAT-1", "1", "Open", "Close Issue"));
+		Assert.assertEquals(0, service.count("progressWorkflowAction"));
+	}
+}